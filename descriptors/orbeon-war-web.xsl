@@ -269,6 +269,22 @@
                         </init-param>
                     </xsl:with-param>
                 </xsl:call-template>
+                <xsl:comment>Asynchronous requests are disabled by default. They require a Servlet 3 container, this file to use version 3.0 of the web.xml schema, and async-supported to be true on this servlet and on all the filters mapped to it.</xsl:comment>
+                <xsl:call-template name="comment">
+                    <xsl:with-param name="caption" select="'asynchronous requests'"/>
+                    <xsl:with-param name="commented" select="true()"/>
+                    <xsl:with-param name="content">
+                        <init-param>
+                            <param-name>oxf.servlet.async.threads</param-name>
+                            <param-value>50</param-value>
+                        </init-param>
+                        <init-param>
+                            <param-name>oxf.servlet.async.timeout</param-name>
+                            <param-value>300000</param-value>
+                        </init-param>
+                        <async-supported>true</async-supported>
+                    </xsl:with-param>
+                </xsl:call-template>
             </servlet>
 
             <xsl:comment>This is the XForms Server servlet</xsl:comment>
@@ -330,6 +346,12 @@
                 </xsl:with-param>
             </xsl:call-template>
 
+            <xsl:comment>This servlet tells load balancers whether warm-up is done</xsl:comment>
+            <servlet>
+                <servlet-name>orbeon-warm-up-status-servlet</servlet-name>
+                <servlet-class>org.orbeon.oxf.servlet.WarmUpStatusServlet</servlet-class>
+            </servlet>
+
             <servlet>
                 <servlet-name>display-chart-servlet</servlet-name>
                 <servlet-class>org.jfree.chart.servlet.DisplayChart</servlet-class>
@@ -393,6 +415,11 @@
                 <url-pattern>/xforms-renderer</url-pattern>
             </servlet-mapping>
 
+            <servlet-mapping>
+                <servlet-name>orbeon-warm-up-status-servlet</servlet-name>
+                <url-pattern>/warm-up-status</url-pattern>
+            </servlet-mapping>
+
             <servlet-mapping>
                 <servlet-name>exist-rest-servlet</servlet-name>
                 <url-pattern>/exist/rest/*</url-pattern>
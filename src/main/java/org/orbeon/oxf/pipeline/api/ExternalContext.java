@@ -32,8 +32,10 @@ import java.util.Map;
 public interface ExternalContext {
 
     static final int SC_OK = 200;
+    static final int SC_PARTIAL_CONTENT = 206;
     static final int SC_NOT_FOUND = 404;
     static final int SC_NOT_MODIFIED = 304;
+    static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
     static final int SC_INTERNAL_SERVER_ERROR = 500;
 
     public interface Request {
@@ -54,6 +54,7 @@ public class PipelineContext implements PropertyContext {
     private Map<Object, Object> attributes = new HashMap<Object, Object>();
     private List<ContextListener> listeners;
     private boolean destroyed;
+    private volatile boolean cancelled;
 
     private static ThreadLocal<PipelineContext> threadLocal = new ThreadLocal<PipelineContext>();
     private PipelineContext originalPipelineContext;
@@ -125,6 +126,23 @@ public class PipelineContext implements PropertyContext {
         }
     }
 
+    /**
+     * Request the pipeline to stop. This can be called from another thread, for example when a request times out.
+     * Processors stop at the next output read.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check whether the pipeline has been requested to stop.
+     *
+     * @return true if the pipeline has been cancelled, false otherwise
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     /**
      * Check whether this context has been destroyed.
      *
@@ -21,15 +21,16 @@ import org.orbeon.exception.OrbeonFormatter;
 import org.orbeon.oxf.cache.CacheKey;
 import org.orbeon.oxf.cache.InternalCacheKey;
 import org.orbeon.oxf.cache.ObjectCache;
-import org.orbeon.oxf.cache.SoftCacheImpl;
 import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.pipeline.api.ExternalContext;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.impl.CacheableTransformerOutputImpl;
+import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.resources.URLFactory;
 import org.orbeon.oxf.util.ContentHandlerOutputStream;
 import org.orbeon.oxf.util.LoggerFactory;
+import org.orbeon.oxf.util.Metrics;
 import org.orbeon.oxf.util.NetUtils;
 import org.orbeon.oxf.util.NumberUtils;
 import org.orbeon.oxf.xml.XPathUtils;
@@ -39,6 +40,7 @@ import org.orbeon.oxf.xml.dom4j.NonLazyUserDataDocument;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
@@ -46,13 +48,17 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * ImageServer directly serves or converts to its "data" output images from URLs while performing
  * various operations on them such as scaling or cropping. It also handles a disk cache of
- * transformed images.
+ * transformed images, and a memory cache of decoded and transformed images.
  *
  * NOTE: The JPEG quality parameter only applies when a transformation is done. There is no
  * provision to do a quality conversion only.
@@ -71,7 +77,30 @@ public class ImageServer extends ProcessorImpl {
     private static final boolean DEFAULT_USE_CACHE = true;
     private static final boolean DEFAULT_SCALE_UP = true;
 
-    private SoftCacheImpl cache;
+    private static final String MEMORY_CACHE_MAX_BYTES_PROPERTY = "oxf.image-server.memory-cache.max-bytes";
+    private static final int DEFAULT_MEMORY_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    private static final String MAX_TRANSFORMATIONS_PROPERTY = "oxf.image-server.max-concurrent-transformations";
+
+    private static final String METRICS_GROUP = "image-server";
+
+    // Decoded images and encoded transformed images, shared by all image servers
+    private static final WeightedCache memoryCache =
+        new WeightedCache(Properties.instance().getPropertySet().getInteger(MEMORY_CACHE_MAX_BYTES_PROPERTY, DEFAULT_MEMORY_CACHE_MAX_BYTES));
+
+    // Concurrent requests for the same image wait for a single decoding or transformation
+    private static final SingleFlight<BufferedImage> decodings = new SingleFlight<BufferedImage>();
+    private static final SingleFlight<byte[]> transformations = new SingleFlight<byte[]>();
+
+    // Transformations allocate large images, so only a few of them run at the same time
+    private static final Semaphore transformationPermits;
+    static {
+        final int maxTransformations = Properties.instance().getPropertySet().getInteger(MAX_TRANSFORMATIONS_PROPERTY, 0);
+        transformationPermits = new Semaphore(maxTransformations > 0 ? maxTransformations : Runtime.getRuntime().availableProcessors(), true);
+
+        Metrics.group(METRICS_GROUP).gauge("memory-cache.bytes", new Callable<Long>() {
+            public Long call() { return memoryCache.weight(); }
+        });
+    }
 
     public ImageServer() {
         addInputInfo(new ProcessorInputOutputInfo(INPUT_CONFIG, IMAGE_SERVER_CONFIG_NAMESPACE_URI));
@@ -93,7 +122,6 @@ public class ImageServer extends ProcessorImpl {
         public Boolean useCache;
         public Object transforms;
         public int transformCount;
-        public Iterator transformIterator;
     }
 
     public void processImage(PipelineContext pipelineContext, ImageResponse imageResponse) {
@@ -157,7 +185,6 @@ public class ImageServer extends ProcessorImpl {
                     if (transforms != null && transforms instanceof Node)
                         transforms = Collections.singletonList(transforms);
                     result.transforms = transforms;
-                    result.transformIterator = XPathUtils.selectIterator(imageConfigDocument, "/image/transform");
 
                     return result;
                 }
@@ -226,82 +253,31 @@ public class ImageServer extends ProcessorImpl {
 
                 // Process image if needed
                 if (mustProcess) {
-                    boolean closeOutputStream = false;
-                    OutputStream os = null;
+                    final byte[] encodedImage;
                     try {
-                        // Try to obtain decoded image from cache first
-                        Long cacheValidity = lastModified;
-                        String cacheKey = "[" + newURL.toExternalForm() + "][" + cacheValidity + "]";
-                        BufferedImage img1;
-                        // Decode one image at a time to try to minimize the memory impact
-                        // NOTE: This should probably be configurable
-                        synchronized (ImageServer.this) {
-                            img1 = (cache == null) ? null : (BufferedImage) cache.get(cacheKey);
-                            // If this failed (most common case) decode the image
-                            if (img1 == null) {
-                                // Decode image into BufferedImage
-                                img1 = ImageIO.read(urlConnectionInputStream);
-
-                                // Store the image into the soft cache
-                                if (cache == null)
-                                    cache = new SoftCacheImpl(0);
-                                cache.put(cacheKey, img1);
-                            } else {
-                                cache.refresh(cacheKey);
-                                //logger.info("Found image in cache with key: " + cacheKey);
-                                logger.info("Found decoded image in cache");
-                            }
-                        }
-
-                        // Filter image
-                        BufferedImage img2 = filter(img1, imageConfig.transformIterator);
-
-                        // Create OutputStream
-                        if (updateCache) {
-                            File outputDir = cacheFile.getParentFile();
-                            if (!outputDir.exists() && !outputDir.mkdirs()) {
-                                logger.info("Cannot create cache directory: " + outputDir.getCanonicalPath());
-                                imageResponse.setStatus(ExternalContext.SC_INTERNAL_SERVER_ERROR);
-                                return;
-                            }
-                            os = new FileOutputStream(cacheFile);
-                            closeOutputStream = true;
-                        } else {
-                            os = imageResponse.getOutputStream();
-                        }
-
-                        // Encode image to OutputStream
-
-                        final Iterator writers = ImageIO.getImageWritersByFormatName("jpeg");
-                        final ImageWriter writer = (ImageWriter) writers.next();
-
-                        writer.setOutput(ImageIO.createImageOutputStream(os));
-
-                        final ImageWriteParam params = writer.getDefaultWriteParam();
-
-                        // Set quality
-                        params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                        params.setCompressionQuality(quality);
-
-                        writer.write(img2);
+                        encodedImage = getTransformedImage(newURL, lastModified, urlConnectionInputStream, imageConfig, quality);
                     } catch (OXFException e) {
                         logger.error(OrbeonFormatter.format(e));
                         imageResponse.setStatus(ExternalContext.SC_INTERNAL_SERVER_ERROR);
                         return;
-                    } finally {
-                        if (os != null && closeOutputStream) os.close();
                     }
-                }
 
-                // Send cached image if relevant
-                if (useCache) {
-                    InputStream is = new FileInputStream(cacheFile);
-                    OutputStream os = imageResponse.getOutputStream();
-                    try {
-                        NetUtils.copyStream(is, os);
-                    } finally {
-                        is.close();
+                    // Update the disk cache
+                    if (updateCache) {
+                        final File outputDir = cacheFile.getParentFile();
+                        if (!outputDir.exists() && !outputDir.mkdirs() && !outputDir.exists()) {
+                            logger.info("Cannot create cache directory: " + outputDir.getCanonicalPath());
+                            imageResponse.setStatus(ExternalContext.SC_INTERNAL_SERVER_ERROR);
+                            return;
+                        }
+                        writeCacheFile(cacheFile, encodedImage);
                     }
+
+                    // Send image
+                    imageResponse.getOutputStream().write(encodedImage);
+                } else {
+                    // Send cached image
+                    sendFile(cacheFile, imageResponse.getOutputStream());
                 }
             } finally {
                 // Make sure the connection is closed because when getting the
@@ -459,14 +435,149 @@ public class ImageServer extends ProcessorImpl {
         public OutputStream getOutputStream() throws IOException;
     }
 
-    private String computeCacheFileName(String type, String path, List<Element> nodes) {
+    /**
+     * Return the encoded transformed image, from the memory cache if possible. Otherwise, decode the image unless it is
+     * in the memory cache, and transform and encode it.
+     */
+    private byte[] getTransformedImage(final URL url, final long lastModified, final InputStream inputStream,
+                                       final ImageConfig imageConfig, final float quality) throws Exception {
+
+        final String decodedKey = "[" + url.toExternalForm() + "][" + lastModified + "]";
+        final String transformedKey = decodedKey + "[" + computeTransformsDigest((List<Element>) imageConfig.transforms) + "][" + quality + "]";
+
+        final byte[] cachedImage = (byte[]) memoryCache.get(transformedKey);
+        if (cachedImage != null) {
+            Metrics.group(METRICS_GROUP).counter("transformed.hit").inc();
+            return cachedImage;
+        }
+
+        return transformations.get(transformedKey, new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                Metrics.group(METRICS_GROUP).counter("transformed.miss").inc();
+
+                final BufferedImage decodedImage = getDecodedImage(decodedKey, inputStream);
+
+                final byte[] encodedImage;
+                transformationPermits.acquire();
+                try {
+                    encodedImage = encode(filter(decodedImage, ((List) imageConfig.transforms).iterator()), quality);
+                } finally {
+                    transformationPermits.release();
+                }
+
+                memoryCache.put(transformedKey, encodedImage, encodedImage.length);
+                return encodedImage;
+            }
+        });
+    }
+
+    private BufferedImage getDecodedImage(final String key, final InputStream inputStream) throws Exception {
+
+        final BufferedImage cachedImage = (BufferedImage) memoryCache.get(key);
+        if (cachedImage != null) {
+            Metrics.group(METRICS_GROUP).counter("decoded.hit").inc();
+            return cachedImage;
+        }
+
+        return decodings.get(key, new Callable<BufferedImage>() {
+            public BufferedImage call() throws Exception {
+                Metrics.group(METRICS_GROUP).counter("decoded.miss").inc();
+
+                final BufferedImage decodedImage = ImageIO.read(inputStream);
+                if (decodedImage == null)
+                    throw new OXFException("Unable to decode image.");
+
+                // Copy the image to RGB once if necessary, as this is what transformations work with
+                // (is there another way? Otherwise some images fail)
+                final BufferedImage rgbImage;
+                if (decodedImage.getType() != BufferedImage.TYPE_INT_RGB) {
+                    rgbImage = new BufferedImage(decodedImage.getWidth(), decodedImage.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    final Graphics2D graphics = rgbImage.createGraphics();
+                    graphics.drawImage(decodedImage, null, 0, 0);
+                    graphics.dispose();
+                } else {
+                    rgbImage = decodedImage;
+                }
+
+                memoryCache.put(key, rgbImage, (long) rgbImage.getWidth() * rgbImage.getHeight() * 4);
+                return rgbImage;
+            }
+        });
+    }
+
+    private static byte[] encode(BufferedImage image, float quality) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        final Iterator writers = ImageIO.getImageWritersByFormatName("jpeg");
+        final ImageWriter writer = (ImageWriter) writers.next();
+        final ImageOutputStream ios = ImageIO.createImageOutputStream(os);
+        try {
+            writer.setOutput(ios);
+
+            final ImageWriteParam params = writer.getDefaultWriteParam();
+
+            // Set quality
+            params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            params.setCompressionQuality(quality);
+
+            writer.write(image);
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+
+        return os.toByteArray();
+    }
+
+    // Write the file so that concurrent requests never read a partially written file
+    private static void writeCacheFile(File cacheFile, byte[] content) throws IOException {
+        final File tempFile = File.createTempFile("image", ".tmp", cacheFile.getParentFile());
+        try {
+            final OutputStream os = new FileOutputStream(tempFile);
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                // Some platforms don't replace an existing file
+                cacheFile.delete();
+                if (!tempFile.renameTo(cacheFile))
+                    logger.info("Cannot write cache file: " + cacheFile.getCanonicalPath());
+            }
+        } finally {
+            if (tempFile.exists())
+                tempFile.delete();
+        }
+    }
+
+    // Send the file with a channel transfer, which lets the JVM avoid copying the file content through the heap
+    private static void sendFile(File file, OutputStream os) throws IOException {
+        final FileInputStream is = new FileInputStream(file);
+        try {
+            final FileChannel channel = is.getChannel();
+            final WritableByteChannel target = Channels.newChannel(os);
+            final long size = channel.size();
+            long position = 0;
+            while (position < size)
+                position += channel.transferTo(position, size - position, target);
+        } finally {
+            is.close();
+        }
+    }
+
+    private String computeTransformsDigest(List<Element> nodes) {
         // Create digest document and digest
         Document document = new NonLazyUserDataDocument();
         Element rootElement = document.addElement("image");
         for (Element element: nodes) {
             rootElement.add(element.createCopy());
         }
-        String digest = NumberUtils.toHexString(Dom4jUtils.getDigest(document));
+        return NumberUtils.toHexString(Dom4jUtils.getDigest(document));
+    }
+
+    private String computeCacheFileName(String type, String path, List<Element> nodes) {
+        String digest = computeTransformsDigest(nodes);
 
         // Create file name
         if ("flat".equals(type))
@@ -498,19 +609,12 @@ public class ImageServer extends ProcessorImpl {
         }
     }
 
-    private synchronized BufferedImage filter(BufferedImage img, Iterator transformIterator) {
-        // Copy the image to RGB if necessary (is there another way? Otherwise some images fail)
-        BufferedImage srcImage = img;
-        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
-            srcImage = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-            Graphics2D graphics = srcImage.createGraphics();
-            graphics.drawImage(img, null, 0, 0);
-            graphics.dispose();
-        }
+    // NOTE: The source image is RGB and is shared, so it must not be modified
+    private BufferedImage filter(BufferedImage srcImage, Iterator transformIterator) {
 
         ImageProducer producer = srcImage.getSource();
-        int currentWidth = img.getWidth(null);
-        int currentHeight = img.getHeight(null);
+        int currentWidth = srcImage.getWidth(null);
+        int currentHeight = srcImage.getHeight(null);
 
         // There may be one drawing operation
         List<Node> drawConfiguration = new ArrayList<Node>();
@@ -650,6 +754,89 @@ public class ImageServer extends ProcessorImpl {
         return newImage;
     }
 
+    /**
+     * Weight-limited LRU cache. Entries heavier than the maximum weight are not cached.
+     */
+    private static class WeightedCache {
+
+        private final long maxWeight;
+        private long weight;
+
+        private final LinkedHashMap<String, WeightedEntry> entries = new LinkedHashMap<String, WeightedEntry>(16, 0.75f, true);
+
+        private static class WeightedEntry {
+            public final Object value;
+            public final long weight;
+
+            private WeightedEntry(Object value, long weight) {
+                this.value = value;
+                this.weight = weight;
+            }
+        }
+
+        public WeightedCache(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        public synchronized Object get(String key) {
+            final WeightedEntry entry = entries.get(key);
+            return (entry == null) ? null : entry.value;
+        }
+
+        public synchronized void put(String key, Object value, long valueWeight) {
+            if (valueWeight > maxWeight)
+                return;
+
+            final WeightedEntry previous = entries.put(key, new WeightedEntry(value, valueWeight));
+            if (previous != null)
+                weight -= previous.weight;
+            weight += valueWeight;
+
+            // Evict least recently used entries
+            for (final Iterator<WeightedEntry> i = entries.values().iterator(); weight > maxWeight && i.hasNext();) {
+                weight -= i.next().weight;
+                i.remove();
+            }
+        }
+
+        public synchronized long weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Run at most one computation per key at a time. Callers asking for a key being computed wait for the result.
+     */
+    private static class SingleFlight<T> {
+
+        private final ConcurrentHashMap<String, FutureTask<T>> inFlight = new ConcurrentHashMap<String, FutureTask<T>>();
+
+        public T get(String key, Callable<T> callable) throws Exception {
+            final FutureTask<T> newTask = new FutureTask<T>(callable);
+            final FutureTask<T> existingTask = inFlight.putIfAbsent(key, newTask);
+
+            if (existingTask == null) {
+                try {
+                    newTask.run();
+                } finally {
+                    inFlight.remove(key, newTask);
+                }
+            }
+
+            try {
+                return (existingTask == null ? newTask : existingTask).get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                else if (cause instanceof Error)
+                    throw (Error) cause;
+                else
+                    throw new OXFException(cause);
+            }
+        }
+    }
+
     private Color getColor(Node colorNode) {
         String rgb = XPathUtils.selectStringValueNormalize(colorNode, "@rgb");
         String alpha = XPathUtils.selectStringValueNormalize(colorNode, "@alpha");
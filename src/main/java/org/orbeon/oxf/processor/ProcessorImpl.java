@@ -352,9 +352,13 @@ public abstract class ProcessorImpl implements Processor {
                 if (logger.isDebugEnabled())
                     logger.debug("Cache " + debugInfo + ": source cacheable and found for key '" + keyValidity.key + "'. FOUND object: " + inputObject);
 
+                ProcessorMetrics.cacheHit(output);
                 reader.foundInCache();
                 return (T) inputObject;
             }
+            ProcessorMetrics.cacheMiss(output);
+        } else {
+            ProcessorMetrics.uncacheable(output);
         }
 
         if (logger.isDebugEnabled())
@@ -42,6 +42,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Generates SAX events from a document fetched from an URL.
@@ -607,7 +608,7 @@ public class URLGenerator extends ProcessorImpl {
                 return validities;
             }
 
-            private Long getHandlerValidity(PipelineContext pipelineContext, Config config, URL url, ResourceHandler handler) {
+            private Long getHandlerValidity(PipelineContext pipelineContext, Config config, final URL url, ResourceHandler handler) {
                 final URLGeneratorState state = (URLGenerator.URLGeneratorState) URLGenerator.this.getState(pipelineContext);
                 final String urlString = url.toExternalForm();
                 if (state.isLastModifiedSet(urlString)) {
@@ -617,7 +618,31 @@ public class URLGenerator extends ProcessorImpl {
                     // Get value and cache it in state
                     try {
                         final Long validity;
-                        if (handler == null) {
+                        if (handler == null && Connection.isHTTPOrHTTPS(url.getProtocol())) {
+                            // Include dependency over HTTP
+
+                            // Validators are shared across pipelines: no request is made while the last response is
+                            // fresh, and concurrent checks of the same URL and credentials result in a single conditional
+                            // request
+                            final URLResourceHandler urlResourceHandler = new URLResourceHandler(new Config(url));
+                            try {
+                                final String validatorsKey = urlResourceHandler.getValidatorsKey();
+                                final Long freshValidity = HttpValidatorCache.freshValidity(validatorsKey);
+                                if (freshValidity != null) {
+                                    validity = freshValidity;
+                                } else if (validatorsKey == null) {
+                                    validity = urlResourceHandler.getValidity();
+                                } else {
+                                    validity = HttpValidatorCache.collapse(validatorsKey, new Callable<Long>() {
+                                        public Long call() throws Exception {
+                                            return urlResourceHandler.getSharedConditional();
+                                        }
+                                    });
+                                }
+                            } finally {
+                                urlResourceHandler.destroy();
+                            }
+                        } else if (handler == null) {
                             // Include dependency
 
                             // Create handler right here
@@ -626,9 +651,6 @@ public class URLGenerator extends ProcessorImpl {
                                 : new URLResourceHandler(new Config(url));// Should use full config so that headers are forwarded?
 
                             try {
-                                // FIXME: this can potentially be very slow with some URLs like HTTP URLs. We try to
-                                // optimized this by keeping the URLConnection for the main document, but dependencies may
-                                // cause multiple requests to the same URL.
                                 validity = handler.getValidity();
                             } finally {
                                 // Destroy handler
@@ -653,9 +675,20 @@ public class URLGenerator extends ProcessorImpl {
                             if (cacheEntry != null) {
                                 // Found some entry in cache for the key
                                 final long lastModified = findLastModified(cacheEntry.validity);
-                                // This returns the validity and, possibly, stores the document in the state
-                                validity = handler.getConditional(lastModified);
-                                if (handler.getConnectionStatusCode() == 304) {
+                                final String validatorsKey = handler instanceof URLResourceHandler ? ((URLResourceHandler) handler).getValidatorsKey() : null;
+
+                                final boolean notModified;
+                                if (HttpValidatorCache.isFresh(validatorsKey, lastModified)) {
+                                    // The last response is still fresh, so don't even make a conditional request
+                                    validity = lastModified;
+                                    notModified = true;
+                                } else {
+                                    // This returns the validity and, possibly, stores the document in the state
+                                    validity = handler.getConditional(lastModified);
+                                    notModified = handler.getConnectionStatusCode() == 304;
+                                }
+
+                                if (notModified) {
                                     // The server responded that the resource hasn't changed
 
                                     // Update the entry in cache
@@ -826,6 +859,9 @@ public class URLGenerator extends ProcessorImpl {
         private Config config;
         private ConnectionResult connectionResult;
         private InputStream inputStream;
+        private Long sharedValidity;
+        private String validatorsKey;
+        private boolean validatorsKeyComputed;
 
         public URLResourceHandler(Config config) {
             this.config = config;
@@ -860,14 +896,40 @@ public class URLGenerator extends ProcessorImpl {
 
         public Long getValidity() throws IOException {
             openConnection();
-            return isFailureStatusCode() ? null : connectionResult.getLastModifiedJava();
+            if (isHTTP())
+                return sharedValidity;
+            else
+                return isFailureStatusCode() ? null : connectionResult.getLastModifiedJava();
         }
 
         public Long getConditional(Long lastModified) throws IOException {
-            openConnection(lastModified);
+            // Only send the ETag if it is for the version of the resource we have
+            openConnection(lastModified, lastModified == null ? null : HttpValidatorCache.etagForValidity(getValidatorsKey(), lastModified));
+            return getValidity();
+        }
+
+        // Conditional request with the validators of the last response, when only the validity is needed
+        public Long getSharedConditional() throws IOException {
+            final String validatorsKey = getValidatorsKey();
+            openConnection(HttpValidatorCache.lastModified(validatorsKey), HttpValidatorCache.etag(validatorsKey));
             return getValidity();
         }
 
+        // Key of the validators shared across pipelines, null if the response to the request can't be shared
+        public String getValidatorsKey() {
+            if (! validatorsKeyComputed) {
+                validatorsKey = isHTTP()
+                    ? HttpValidatorCache.key(config.getURL().toExternalForm(), getCredentials(), buildHeaders(config.getHeaderNameValues()))
+                    : null;
+                validatorsKeyComputed = true;
+            }
+            return validatorsKey;
+        }
+
+        private boolean isHTTP() {
+            return Connection.isHTTPOrHTTPS(config.getURL().getProtocol());
+        }
+
         public void destroy() throws IOException {
             // Make sure the connection is closed because when
             // getting the last modified date, the stream is
@@ -877,39 +939,51 @@ public class URLGenerator extends ProcessorImpl {
                 inputStream.close();
         }
 
+        private Connection.Credentials getCredentials() {
+            return config.getUsername() == null ?
+                null :
+                new Connection.Credentials(config.getUsername(), config.getPassword(), config.isPreemptiveAuthentication() ? "true" : "false", config.getDomain());
+        }
+
+        private scala.collection.immutable.Map<String, String[]> buildHeaders(Map<String, String[]> headerNameValues) {
+            return Connection.jBuildConnectionHeaders(config.getURL().getProtocol(), getCredentials(), headerNameValues, config.getForwardHeaders(), indentedLogger);
+        }
+
         private void openConnection() throws IOException {
-            openConnection(null);
+            openConnection(null, null);
         }
 
-        private void openConnection(Long lastModified) throws IOException {
+        private void openConnection(Long lastModified, String etag) throws IOException {
             if (connectionResult == null) {
                 // TODO: pass logging callback
 
                 final Map<String, String[]> newHeaders;
-                if (lastModified != null) {
+                if (lastModified != null || etag != null) {
                     // A conditional GET is requested
                     newHeaders = new HashMap<String, String[]>();
                     if (config.getHeaderNameValues() != null)
                         newHeaders.putAll(config.getHeaderNameValues());
-                    newHeaders.put("If-Modified-Since", new String[] { DateUtils.RFC1123Date().print(lastModified) });
+                    if (lastModified != null)
+                        newHeaders.put("If-Modified-Since", new String[] { DateUtils.RFC1123Date().print(lastModified) });
+                    if (etag != null)
+                        newHeaders.put("If-None-Match", new String[] { etag });
                 } else {
                     // Regular GET
                     newHeaders = config.getHeaderNameValues();
                 }
 
-                final Connection.Credentials credentials = config.getUsername() == null ?
-                    null :
-                    new Connection.Credentials(config.getUsername(), config.getPassword(), config.isPreemptiveAuthentication() ? "true" : "false", config.getDomain());
-
+                final Connection.Credentials credentials = getCredentials();
                 final URL url = config.getURL();
-                final scala.collection.immutable.Map<String, String[]> headers =
-                    Connection.jBuildConnectionHeaders(url.getProtocol(), credentials, newHeaders, config.getForwardHeaders(), indentedLogger);
 
                 connectionResult =
-                    Connection.jApply("GET", url, credentials, null, headers, true, false, indentedLogger).connect(true);
+                    Connection.jApply("GET", url, credentials, null, buildHeaders(newHeaders), true, false, indentedLogger).connect(true);
                 inputStream =
                     connectionResult.getResponseInputStream(); // empty stream if conditional GET succeeded
 
+                // Remember validators for subsequent requests
+                if (isHTTP())
+                    sharedValidity = HttpValidatorCache.update(getValidatorsKey(), connectionResult, lastModified);
+
                 // Save headers as request attributes
                 final List<String> readHeader = config.getReadHeaders();
                 if (readHeader != null && ! readHeader.isEmpty()) {
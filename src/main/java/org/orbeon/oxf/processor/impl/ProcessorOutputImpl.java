@@ -391,6 +391,10 @@ public abstract class ProcessorOutputImpl implements ProcessorOutput {
     public final void read(PipelineContext pipelineContext, XMLReceiver xmlReceiver) {
         TraceEntry traceEntry = null;
         try {
+            // Stop if the pipeline was cancelled, e.g. because the request timed out
+            if (pipelineContext != null && pipelineContext.isCancelled())
+                throw new OXFException("Pipeline execution cancelled");
+
             // Update trace if needed
             if (pipelineContext instanceof TracingPipelineContext) {
                 final TracingPipelineContext tracingPipelineContext = (TracingPipelineContext) pipelineContext;
@@ -401,7 +405,16 @@ public abstract class ProcessorOutputImpl implements ProcessorOutput {
             }
 
             // Delegate
-            getRuntimeFilter().read(pipelineContext, xmlReceiver);
+            final ProcessorTiming timing = ProcessorMetrics.startRead(this, xmlReceiver);
+            if (timing == null) {
+                getRuntimeFilter().read(pipelineContext, xmlReceiver);
+            } else {
+                try {
+                    getRuntimeFilter().read(pipelineContext, timing.receiver());
+                } finally {
+                    timing.end();
+                }
+            }
             // NOTE: Not sure why we used to catch and log AbstractMethodError here, but we should not!
         } catch (Exception e) {
             throw OrbeonLocationException.wrapException(e, getLocationData());
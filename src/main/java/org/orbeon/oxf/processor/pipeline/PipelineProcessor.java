@@ -614,10 +614,14 @@ public class PipelineProcessor extends ProcessorImpl {
             final Processor processor = (Processor) i.next();
             executeChildren(context, new Runnable() {
                 public void run() {
+                    final ProcessorTiming timing = ProcessorMetrics.startStart(processor);
                     try {
                         processor.start(context);
                     } catch (Exception e) {
                         throw OrbeonLocationException.wrapException(e, processor.getLocationData());
+                    } finally {
+                        if (timing != null)
+                            timing.end();
                     }
                 }
             });
@@ -20,6 +20,7 @@ import org.orbeon.oxf.common.ValidationException;
 import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.xml.XMLReceiver;
 import org.orbeon.oxf.processor.*;
+import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.xml.SAXStore;
 import org.orbeon.oxf.xml.dom4j.LocationData;
@@ -31,6 +32,8 @@ import org.xml.sax.SAXException;
 public class TeeProcessor extends ProcessorImpl {
 
     private static final Logger logger = LoggerFactory.createLogger(TeeProcessor.class);
+
+    public static final String SPILL_THRESHOLD_PROPERTY = "oxf.sax-store.spill-threshold";
     private Exception creationException;
     private Exception resetException;
     private ProcessorKey resetProcessorKey;
@@ -85,6 +88,12 @@ public class TeeProcessor extends ProcessorImpl {
                     // Create SAXStore and read input through it
                     final ProcessorInput input = getInputByName(INPUT_DATA);
                     state.store = new SAXStore(xmlReceiver);
+
+                    // Large documents can be moved to a temporary file until the end of the pipeline
+                    final int spillThreshold = Properties.instance().getPropertySet().getInteger(SPILL_THRESHOLD_PROPERTY, -1);
+                    if (spillThreshold >= 0)
+                        state.store.setSpillThreshold(spillThreshold, context);
+
                     readInputAsSAX(context, input, state.store);
                 } else {
                     state.store.replay(xmlReceiver);
@@ -123,8 +132,12 @@ public class TeeProcessor extends ProcessorImpl {
                 final ProcessorOutput output = getInputByName(INPUT_DATA).getOutput();
                 if (logger.isDebugEnabled()) {
                     final long saxStoreSize = freedStore.getApproximateSize();
-                    logger.debug("Freed SAXStore for output id: " + output.getName() + "; approximate size: " + saxStoreSize + " bytes");
+                    logger.debug("Freed SAXStore for output id: " + output.getName() + "; approximate size: " + saxStoreSize + " bytes; on disk: " + freedStore.getSpilledSize() + " bytes");
                 }
+
+                // Don't keep the temporary file until the end of the pipeline
+                if (freedStore.getSpilledSize() > 0)
+                    freedStore.clear();
             }
         }
 
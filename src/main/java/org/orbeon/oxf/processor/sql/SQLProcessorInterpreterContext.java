@@ -74,6 +74,8 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         public boolean gotResults;
         public int rowPosition;
         public int updateCount;
+        public boolean statementCached;
+        public int batchSize;
 
         public int columnIndex;
         public String columnName;
@@ -127,7 +129,7 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
     public DatabaseDelegate getDelegate() {
         // Try to obtain delegate from context
         Context context = getContext(pipelineContext);
-        String delegateKey = (jndiName != null) ? jndiName : datasource.toString();
+        String delegateKey = getConnectionKey();
         DatabaseDelegate databaseDelegate = (DatabaseDelegate) context.delegates.get(delegateKey);
         if (databaseDelegate == null) {
             // Delegate needs to be created
@@ -241,6 +243,29 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         executionContext.preparedStatement = stmt;
     }
 
+    public void setStatementCached(boolean statementCached) {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        executionContext.statementCached = statementCached;
+    }
+
+    public boolean isStatementCached() {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        return executionContext.statementCached;
+    }
+
+    /**
+     * Set the JDBC batch size for updates in the current sql:execute, or 0 if updates must not be batched.
+     */
+    public void setBatchSize(int batchSize) {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        executionContext.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        final ExecutionContext executionContext = getExecutionContext(0);
+        return executionContext.batchSize;
+    }
+
     public void setStatementString(String statementString) {
         final ExecutionContext executionContext = getExecutionContext(0);
         executionContext.statementString = statementString;
@@ -316,6 +341,125 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         }
     }
 
+    private String getConnectionKey() {
+        return (jndiName != null) ? jndiName : datasource.toString();
+    }
+
+    /**
+     * Get a prepared statement for the given SQL text, reusing the statement previously prepared with the same text on
+     * the current connection if any.
+     *
+     * The returned statement must not be closed by the user. It is closed when the pipeline context is destroyed.
+     */
+    public PreparedStatement getCachedStatement(String sql) throws SQLException {
+        final Context context = getContext(pipelineContext);
+        final String key = getConnectionKey() + '\n' + sql;
+        PreparedStatement stmt = (PreparedStatement) context.statements.get(key);
+        if (stmt == null) {
+            stmt = getConnection().prepareStatement(sql);
+            if (context.statements.isEmpty()) {
+                // Close statements when context is destroyed
+                pipelineContext.addContextListener(new PipelineContext.ContextListenerAdapter() {
+                    public void contextDestroyed(boolean success) {
+                        for (Iterator i = context.statements.values().iterator(); i.hasNext();) {
+                            try {
+                                ((PreparedStatement) i.next()).close();
+                            } catch (SQLException e) {
+                                // Statement might already be closed along with its connection
+                            }
+                        }
+                        context.statements.clear();
+                        context.pendingBatches.clear();
+                    }
+                });
+            }
+            context.statements.put(key, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Add the current parameters of the given statement to its batch, and execute all pending batches if the batch
+     * size is reached.
+     *
+     * The statement must remain open until the batch is executed, see closeStatement().
+     */
+    public void addBatch(PreparedStatement stmt, int batchSize) throws SQLException {
+        final Map pendingBatches = getContext(pipelineContext).pendingBatches;
+        PendingBatch pendingBatch = (PendingBatch) pendingBatches.get(stmt);
+        if (pendingBatch == null) {
+            pendingBatch = new PendingBatch();
+            pendingBatches.put(stmt, pendingBatch);
+        }
+        stmt.addBatch();
+        // Remember the sql:execute which owns this update, so it gets the update count
+        pendingBatch.owners.add(getExecutionContext(0));
+        if (pendingBatch.owners.size() >= batchSize)
+            executePendingBatches();
+    }
+
+    /**
+     * Execute all pending batches, in the order in which statements were first added to a batch, and add the number
+     * of updated rows to the update count of the sql:execute owning each update when the driver reports it.
+     */
+    public void executePendingBatches() throws SQLException {
+        final Map pendingBatches = getContext(pipelineContext).pendingBatches;
+        if (!pendingBatches.isEmpty()) {
+            try {
+                for (Iterator i = pendingBatches.entrySet().iterator(); i.hasNext();) {
+                    final Map.Entry entry = (Map.Entry) i.next();
+                    final List owners = ((PendingBatch) entry.getValue()).owners;
+                    final int[] updateCounts = ((PreparedStatement) entry.getKey()).executeBatch();
+
+                    if (SQLProcessor.logger.isDebugEnabled())
+                        SQLProcessor.logger.debug("Executed batch of " + owners.size() + " updates");
+
+                    for (int j = 0; j < updateCounts.length && j < owners.size(); j++)
+                        if (updateCounts[j] > 0)
+                            ((ExecutionContext) owners.get(j)).updateCount += updateCounts[j];
+                }
+            } finally {
+                clearPendingBatches();
+            }
+        }
+    }
+
+    /**
+     * Discard all pending batches, e.g. upon error. Statements are reused, so their batches must not be executed later.
+     */
+    public void clearPendingBatches() {
+        final Map pendingBatches = getContext(pipelineContext).pendingBatches;
+        for (Iterator i = pendingBatches.keySet().iterator(); i.hasNext();) {
+            try {
+                ((PreparedStatement) i.next()).clearBatch();
+            } catch (SQLException e) {
+                // Statement might already be closed along with its connection
+            }
+        }
+        pendingBatches.clear();
+    }
+
+    /**
+     * Close a statement which is not cached, first executing pending batches if the statement has one.
+     */
+    public void closeStatement(PreparedStatement stmt) throws SQLException {
+        if (getContext(pipelineContext).pendingBatches.containsKey(stmt))
+            executePendingBatches();
+        stmt.close();
+    }
+
+    public void startForEach() {
+        getContext(pipelineContext).forEachDepth++;
+    }
+
+    public void endForEach() {
+        getContext(pipelineContext).forEachDepth--;
+    }
+
+    public boolean isInForEach() {
+        return getContext(pipelineContext).forEachDepth > 0;
+    }
+
     public Node getInput() {
         return input;
     }
@@ -446,8 +590,19 @@ public class SQLProcessorInterpreterContext extends DatabaseContext {
         return context;
     }
 
+    private static class PendingBatch {
+        // ExecutionContext of the sql:execute owning each batched update, in order
+        public List owners = new ArrayList();
+    }
+
     private static class Context {
         // Map datasource names to delegates
         public Map delegates = new HashMap();
+        // Map datasource names and SQL text to prepared statements
+        public Map statements = new HashMap();
+        // Map statements with pending batches to their PendingBatch, in order of first use
+        public Map pendingBatches = new LinkedHashMap();
+        // Number of sql:for-each being executed
+        public int forEachDepth;
     }
 }
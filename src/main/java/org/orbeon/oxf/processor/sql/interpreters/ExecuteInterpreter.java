@@ -40,18 +40,29 @@ public class ExecuteInterpreter extends SQLProcessor.InterpreterContentHandler {
         // Push context
         final SQLProcessorInterpreterContext interpreterContext = getInterpreterContext();
         interpreterContext.pushContext();
+
+        // Optional JDBC batching of updates
+        final String batchSizeString = attributes.getValue("batch-size");
+        final int batchSize = (batchSizeString == null) ? 0 : Integer.parseInt(batchSizeString);
+        if (batchSize < 0)
+            throw new ValidationException("Attribute batch-size must be 0 or greater", new LocationData(getDocumentLocator()));
+        interpreterContext.setBatchSize(batchSize);
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
         // This is the end of an execute block, we can close the statement associated with it
         final SQLProcessorInterpreterContext interpreterContext = getInterpreterContext();
         final PreparedStatement stmt = interpreterContext.getStatement(0);
-        if (stmt != null) { // the statement may not exist or already have been closed
-            try {
-                stmt.close();
-            } catch (SQLException e) {
-                throw new ValidationException(e, new LocationData(getDocumentLocator()));
-            }
+        try {
+            // Outside of sql:for-each, there is nothing to batch across so execute right away
+            if (interpreterContext.getBatchSize() > 0 && !interpreterContext.isInForEach())
+                interpreterContext.executePendingBatches();
+            // Cached statements are closed when the pipeline context is destroyed
+            if (stmt != null && !interpreterContext.isStatementCached()) // the statement may not exist or already have been closed
+                interpreterContext.closeStatement(stmt);
+        } catch (SQLException e) {
+            interpreterContext.clearPendingBatches();
+            throw new ValidationException(e, new LocationData(getDocumentLocator()));
         }
         // Pop context
         interpreterContext.popContext();
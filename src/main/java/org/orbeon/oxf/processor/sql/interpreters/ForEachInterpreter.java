@@ -15,12 +15,15 @@ package org.orbeon.oxf.processor.sql.interpreters;
 
 import org.dom4j.Node;
 import org.jaxen.Function;
+import org.orbeon.oxf.common.ValidationException;
 import org.orbeon.oxf.processor.sql.SQLProcessor;
 import org.orbeon.oxf.processor.sql.SQLProcessorInterpreterContext;
 import org.orbeon.oxf.xml.XPathUtils;
+import org.orbeon.oxf.xml.dom4j.LocationData;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -66,6 +69,8 @@ public class ForEachInterpreter extends SQLProcessor.InterpreterContentHandler {
 
         final SQLProcessorInterpreterContext interpreterContext = getInterpreterContext();
         interpreterContext.pushFunctions(functions);
+        interpreterContext.startForEach();
+        boolean success = false;
         try {
             // Iterate through the result set
             int nodeCount = 1;
@@ -79,7 +84,17 @@ public class ForEachInterpreter extends SQLProcessor.InterpreterContentHandler {
                 repeatBody();
                 interpreterContext.popCurrentNode();
             }
+
+            // Execute updates batched by nested sql:execute
+            interpreterContext.executePendingBatches();
+            success = true;
+        } catch (SQLException e) {
+            throw new ValidationException(e, new LocationData(getDocumentLocator()));
         } finally {
+            // Don't leave updates batched so far to be executed by a later statement
+            if (!success)
+                interpreterContext.clearPendingBatches();
+            interpreterContext.endForEach();
             interpreterContext.popFunctions();
         }
     }
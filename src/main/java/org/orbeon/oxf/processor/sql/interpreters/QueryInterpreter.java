@@ -60,6 +60,7 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
     private boolean hasReplaceOrSeparator;
     private Iterator nodeIterator;
     private String debugString;
+    private int fetchSize;
 
     public QueryInterpreter(SQLProcessorInterpreterContext interpreterContext, int type) {
         super(interpreterContext, false);
@@ -156,6 +157,13 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
         }
         // Get debug attribute
         debugString = attributes.getValue("debug");
+        // Get fetch size attribute, which allows drivers to stream large result sets
+        final String fetchSizeString = attributes.getValue("fetch-size");
+        if (fetchSizeString != null) {
+            if (type == UPDATE)
+                throw new ValidationException("fetch-size attribute is not valid on update element", new LocationData(getDocumentLocator()));
+            fetchSize = Integer.parseInt(fetchSizeString);
+        }
     }
 
     public void end(String uri, String localname, String qName) throws SAXException {
@@ -164,11 +172,19 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
             throw new ValidationException("Missing query", new LocationData(getDocumentLocator()));
         // Execute query
         try {
+            // Updates are batched if requested by the enclosing sql:execute
+            final int batchSize = (type == UPDATE) ? getInterpreterContext().getBatchSize() : 0;
+
             // Create a single PreparedStatement if the query is not modified at each iteration
             PreparedStatement stmt = null;
+            boolean statementCached = false;
             if (!hasReplaceOrSeparator) {
                 final String queryString = query.toString();
-                if (type != CALL) {
+                if (type == UPDATE && (batchSize > 0 || getInterpreterContext().getPropertySet().getBoolean("cache-statements", false))) {
+                    // Reuse statement with the same text on this connection
+                    stmt = getInterpreterContext().getCachedStatement(queryString);
+                    statementCached = true;
+                } else if (type != CALL) {
                     // TODO: see how we can support this: Statement.RETURN_GENERATED_KEYS
                     stmt = getInterpreterContext().getConnection().prepareStatement(queryString);
                 } else
@@ -176,6 +192,7 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                 getInterpreterContext().setStatementString(queryString);
             }
             getInterpreterContext().setStatement(stmt);
+            getInterpreterContext().setStatementCached(statementCached);
             int nodeCount = 1;
             // Iterate through all source nodes (only one if "select" attribute is missing)
             for (Iterator j = (nodeIterator != null) ? nodeIterator : Collections.singletonList(getInterpreterContext().getCurrentNode()).iterator(); j.hasNext(); nodeCount++) {
@@ -322,10 +339,16 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                         }
                         // We create a new PreparedStatement for each iteration
                         String replacedQueryString = replacedQuery.toString();
-                        if (stmt != null) {
-                            stmt.close();
+                        if (batchSize > 0) {
+                            // Batched statements must remain open until the batch is executed
+                            stmt = getInterpreterContext().getCachedStatement(replacedQueryString);
+                            getInterpreterContext().setStatementCached(true);
+                        } else {
+                            if (stmt != null) {
+                                getInterpreterContext().closeStatement(stmt);
+                            }
+                            stmt = getInterpreterContext().getConnection().prepareStatement(replacedQueryString);
                         }
-                        stmt = getInterpreterContext().getConnection().prepareStatement(replacedQueryString);
                         getInterpreterContext().setStatement(stmt);
                         getInterpreterContext().setStatementString(replacedQueryString);
                     }
@@ -591,12 +614,21 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
                 } finally {
                     getInterpreterContext().popFunctions();
                 }
+                if (batchSize > 0) {
+                    // Defer execution until the batch is executed
+                    getInterpreterContext().addBatch(stmt, batchSize);
+                    continue;
+                }
+                // Make sure updates batched so far are visible to this statement
+                getInterpreterContext().executePendingBatches();
                 if (type == QUERY || type == CALL) {
                     if (nodeCount > 1)
                         throw new ValidationException("More than one iteration on sql:query or sql:call element", new LocationData(getDocumentLocator()));
                     // Execute
                     if (SQLProcessor.logger.isDebugEnabled())
                         SQLProcessor.logger.debug("Executing query/call for statement: " + getInterpreterContext().getStatementString());
+                    if (fetchSize != 0)
+                        stmt.setFetchSize(fetchSize);
                     final boolean hasResultSet = stmt.execute();
                     ResultSetInterpreter.setResultSetInfo(getInterpreterContext(), stmt, hasResultSet);
                 } else if (type == UPDATE) {
@@ -611,6 +643,8 @@ public class QueryInterpreter extends SQLProcessor.InterpreterContentHandler {
             // FIXME: should store exception so that it can be retrieved
             // Actually, we'll need a global exception mechanism for pipelines, so this may end up being done
             // in XPL or BPEL.
+            // Don't leave updates batched so far to be executed by a later statement
+            getInterpreterContext().clearPendingBatches();
             // Log closest query related to the exception if we can find it
             String statementString = getInterpreterContext().getStatementString();
             SQLProcessor.logger.error("PreparedStatement:\n" + statementString);
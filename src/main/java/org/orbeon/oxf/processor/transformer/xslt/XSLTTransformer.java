@@ -33,6 +33,7 @@ import org.orbeon.oxf.processor.transformer.URIResolverListener;
 import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.properties.PropertyStore;
 import org.orbeon.oxf.resources.URLFactory;
+import org.orbeon.oxf.util.Metrics;
 import org.orbeon.oxf.util.StringBuilderWriter;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.XMLUtils;
@@ -92,6 +93,9 @@ public abstract class XSLTTransformer extends ProcessorImpl {
     private static final String INPUT_TRANSFORMER = "transformer";
     // This input determines attributes to set on the TransformerFactory
     private static final String INPUT_ATTRIBUTES = "attributes";
+
+    private static final String METRICS_GROUP = "xslt";
+
     public static final String XSLT_STYLESHEET_URI_LISTENER = "xslt-stylesheet-uri-listener"; // used by XSLTTransformer
 
     public XSLTTransformer(String schemaURI) {
@@ -114,59 +118,14 @@ public abstract class XSLTTransformer extends ProcessorImpl {
 
                     state.hasTransformationRun = true;
 
-                    // Get URI references from cache
-                    final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
-                    final URIReferences uriReferences = getURIReferences(pipelineContext, configKeyValidity);
-
-                    // Get transformer from cache
-                    TemplatesInfo templatesInfo = null;
-                    if (uriReferences != null) {
-                        // FIXME: this won't depend on the transformer input.
-                        final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences);
-                        if (stylesheetKeyValidity != null)
-                            templatesInfo = (TemplatesInfo) ObjectCache.instance()
-                                    .findValid(stylesheetKeyValidity.key, stylesheetKeyValidity.validity);
-                    }
-
-                    // Get transformer attributes if any
-                    final Map<String, Boolean> attributesFromProperties;
-                    // Read optional attributes input only if connected
-                    if (getConnectedInputs().get(INPUT_ATTRIBUTES) != null) {
-                        // Read input as an attribute Map and cache it
-                        attributesFromProperties = readCacheInputAsObject(pipelineContext, getInputByName(INPUT_ATTRIBUTES), new CacheableInputReader<Map<String, Boolean>>() {
-                            public Map<String, Boolean> read(PipelineContext context, ProcessorInput input) {
-                                final Document preferencesDocument = readInputAsDOM4J(context, input);
-                                final PropertyStore propertyStore = new PropertyStore(preferencesDocument);
-                                final PropertySet propertySet = propertyStore.getGlobalPropertySet();
-                                return propertySet.getBooleanProperties();
-                            }
-                        });
-                    } else
-                        attributesFromProperties = Collections.emptyMap();
-
                     // Output location mode
                     final String outputLocationMode = getPropertySet().getString(OUTPUT_LOCATION_MODE_PROPERTY, OUTPUT_LOCATION_MODE_DEFAULT);
                     final boolean isDumbOutputLocation = OUTPUT_LOCATION_DUMB.equals(outputLocationMode);
                     final boolean isSmartOutputLocation = OUTPUT_LOCATION_SMART.equals(outputLocationMode);
-                    final Map<String, Boolean> attributes;
-                    if (isSmartOutputLocation) {
-                        // Create new HashMap as we don't want to change the one in cache
-                        attributes = new HashMap<String, Boolean>(attributesFromProperties);
-                        // Set attributes for Saxon source location
-                        attributes.put(FeatureKeys.LINE_NUMBERING, Boolean.TRUE);
-                        attributes.put(FeatureKeys.COMPILE_WITH_TRACING, Boolean.TRUE);
-                    } else
-                        attributes = attributesFromProperties;
-
-                    // Create transformer if we did not find one in cache
-                    if (templatesInfo == null) {
-                        // Get transformer configuration
-                        final Node config = readCacheInputAsDOM4J(pipelineContext, INPUT_TRANSFORMER);
-                        final String transformerClass = XPathUtils.selectStringValueNormalize(config, "/config/class");
-                        // Create transformer
-                        // NOTE: createTransformer() handles its own exceptions
-                        templatesInfo = createTransformer(pipelineContext, transformerClass, attributes);
-                    }
+
+                    // Get transformer from cache or create it
+                    final Map<String, Boolean> attributes = readAttributes(pipelineContext, isSmartOutputLocation);
+                    final TemplatesInfo templatesInfo = findOrCreateTemplates(pipelineContext, attributes);
 
                     // At this point, we have a templatesInfo, so run the transformation
 
@@ -573,134 +532,213 @@ public abstract class XSLTTransformer extends ProcessorImpl {
                 }
                 return validities;
             }
+        };
+        addOutput(name, output);
+        return output;
+    }
 
-            private URIReferences getURIReferences(PipelineContext context, KeyValidity configKeyValidity) {
-                if (configKeyValidity == null)
-                    return null;
-                return (URIReferences) ObjectCache.instance().findValid(configKeyValidity.key, configKeyValidity.validity);
-            }
-
-            private KeyValidity createStyleSheetKeyValidity(PipelineContext context, KeyValidity configKeyValidity, URIReferences uriReferences) {
-                if (configKeyValidity == null)
-                    return null;
+    /**
+     * Compile the stylesheet connected to the config input and store it in cache, unless it is already in cache,
+     * without running a transformation.
+     *
+     * This allows compiling stylesheets ahead of time, see XSLTPrecompiler.
+     */
+    public void precompile(PipelineContext pipelineContext) {
+        final String outputLocationMode = getPropertySet().getString(OUTPUT_LOCATION_MODE_PROPERTY, OUTPUT_LOCATION_MODE_DEFAULT);
+        findOrCreateTemplates(pipelineContext, readAttributes(pipelineContext, OUTPUT_LOCATION_SMART.equals(outputLocationMode)));
+    }
 
-                final List<CacheKey> keys = new ArrayList<CacheKey>();
-                final List<Object> validities = new ArrayList<Object>();
-                keys.add(configKeyValidity.key);
-                validities.add(configKeyValidity.validity);
-                for (Iterator<URIReference> i = uriReferences.stylesheetReferences.iterator(); i.hasNext();) {
-                    final URIReference uriReference = i.next();
-                    final URL url = URLFactory.createURL(uriReference.context, uriReference.spec);
-                    keys.add(new InternalCacheKey(XSLTTransformer.this, "xsltURLReference", url.toExternalForm()));
-                    final Processor urlGenerator = new URLGenerator(url);
-                    validities.add(((ProcessorOutputImpl) urlGenerator.createOutput(OUTPUT_DATA)).getValidity(context));//FIXME: can we do better? See URL generator.
+    // Get transformer attributes if any
+    private Map<String, Boolean> readAttributes(PipelineContext pipelineContext, boolean smartOutputLocation) {
+        final Map<String, Boolean> attributesFromProperties;
+        // Read optional attributes input only if connected
+        if (getConnectedInputs().get(INPUT_ATTRIBUTES) != null) {
+            // Read input as an attribute Map and cache it
+            attributesFromProperties = readCacheInputAsObject(pipelineContext, getInputByName(INPUT_ATTRIBUTES), new CacheableInputReader<Map<String, Boolean>>() {
+                public Map<String, Boolean> read(PipelineContext context, ProcessorInput input) {
+                    final Document preferencesDocument = readInputAsDOM4J(context, input);
+                    final PropertyStore propertyStore = new PropertyStore(preferencesDocument);
+                    final PropertySet propertySet = propertyStore.getGlobalPropertySet();
+                    return propertySet.getBooleanProperties();
                 }
+            });
+        } else
+            attributesFromProperties = Collections.emptyMap();
+
+        if (smartOutputLocation) {
+            // Create new HashMap as we don't want to change the one in cache
+            final Map<String, Boolean> attributes = new HashMap<String, Boolean>(attributesFromProperties);
+            // Set attributes for Saxon source location
+            attributes.put(FeatureKeys.LINE_NUMBERING, Boolean.TRUE);
+            attributes.put(FeatureKeys.COMPILE_WITH_TRACING, Boolean.TRUE);
+            return attributes;
+        } else
+            return attributesFromProperties;
+    }
+
+    // Get the compiled stylesheet from cache, or compile it if we did not find it in cache
+    private TemplatesInfo findOrCreateTemplates(PipelineContext pipelineContext, Map<String, Boolean> attributes) {
+
+        // Get transformer configuration
+        final Node config = readCacheInputAsDOM4J(pipelineContext, INPUT_TRANSFORMER);
+        final String transformerClass = XPathUtils.selectStringValueNormalize(config, "/config/class");
 
-                return new KeyValidity(new InternalCacheKey(XSLTTransformer.this, keys), validities);
+        // Get URI references from cache
+        final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
+        final URIReferences uriReferences = getURIReferences(pipelineContext, configKeyValidity);
+
+        // Get transformer from cache
+        if (uriReferences != null) {
+            final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences, transformerClass, attributes);
+            if (stylesheetKeyValidity != null) {
+                final TemplatesInfo templatesInfo = (TemplatesInfo) ObjectCache.instance().findValid(stylesheetKeyValidity.key, stylesheetKeyValidity.validity);
+                if (templatesInfo != null) {
+                    Metrics.group(METRICS_GROUP).counter("templates.hit").inc();
+                    return templatesInfo;
+                }
             }
+        }
 
-            // Create a Saxon Configuration which adds the Orbeon pipeline function library
-            private Configuration createXSLTConfiguration() {
-                final Configuration newConfiguration = new Configuration();
-                final FunctionLibrary javaFunctionLibrary = newConfiguration.getExtensionBinder("java");
+        // Create transformer
+        // NOTE: createTransformer() handles its own exceptions
+        Metrics.group(METRICS_GROUP).counter("templates.miss").inc();
+        return createTransformer(pipelineContext, transformerClass, attributes);
+    }
 
-                final FunctionLibraryList functionLibraryList = new FunctionLibraryList();
-                functionLibraryList.addFunctionLibrary(javaFunctionLibrary);
-                functionLibraryList.addFunctionLibrary(org.orbeon.oxf.pipeline.api.FunctionLibrary.instance());
+    private URIReferences getURIReferences(PipelineContext context, KeyValidity configKeyValidity) {
+        if (configKeyValidity == null)
+            return null;
+        return (URIReferences) ObjectCache.instance().findValid(configKeyValidity.key, configKeyValidity.validity);
+    }
 
-                newConfiguration.setExtensionBinder("java", functionLibraryList);
+    // Key of the compiled stylesheet: the stylesheet and the stylesheets it includes or imports, as well as the
+    // transformer class and attributes, which impact compilation, e.g. with allow-external-functions
+    private KeyValidity createStyleSheetKeyValidity(PipelineContext context, KeyValidity configKeyValidity, URIReferences uriReferences,
+                                                    String transformerClass, Map<String, Boolean> attributes) {
+        if (configKeyValidity == null)
+            return null;
+
+        final List<CacheKey> keys = new ArrayList<CacheKey>();
+        final List<Object> validities = new ArrayList<Object>();
+        keys.add(new InternalCacheKey(XSLTTransformer.this, "xsltTransformer", transformerClass + new TreeMap<String, Boolean>(attributes).toString()));
+        validities.add(0L);
+        keys.add(configKeyValidity.key);
+        validities.add(configKeyValidity.validity);
+        for (Iterator<URIReference> i = uriReferences.stylesheetReferences.iterator(); i.hasNext();) {
+            final URIReference uriReference = i.next();
+            final URL url = URLFactory.createURL(uriReference.context, uriReference.spec);
+            keys.add(new InternalCacheKey(XSLTTransformer.this, "xsltURLReference", url.toExternalForm()));
+            final Processor urlGenerator = new URLGenerator(url);
+            validities.add(((ProcessorOutputImpl) urlGenerator.createOutput(OUTPUT_DATA)).getValidity(context));//FIXME: can we do better? See URL generator.
+        }
 
-                return newConfiguration;
-            }
+        return new KeyValidity(new InternalCacheKey(XSLTTransformer.this, keys), validities);
+    }
 
-            /**
-             * Reads the input and creates the JAXP Templates object (wrapped in a Transformer object). While reading
-             * the input, figures out the direct dependencies on other files (URIReferences object), and stores these
-             * two mappings in cache:
-             *
-             * configKey        -> uriReferences
-             * uriReferencesKey -> transformer
-             */
-            private TemplatesInfo createTransformer(PipelineContext pipelineContext, String transformerClass, Map<String, Boolean> attributes) {
-                StringErrorListener errorListener = new StringErrorListener(logger);
-                final StylesheetForwardingXMLReceiver topStylesheetXMLReceiver = new StylesheetForwardingXMLReceiver();
-                try {
-                    // Create transformer
-                    final TemplatesInfo templatesInfo = new TemplatesInfo();
-                    final List<StylesheetForwardingXMLReceiver> xsltXMLReceivers = new ArrayList<StylesheetForwardingXMLReceiver>();
-                    {
-                        // Create SAXSource adding our forwarding receiver
-                        final SAXSource stylesheetSAXSource;
-                        {
-                            xsltXMLReceivers.add(topStylesheetXMLReceiver);
-                            final XMLReader xmlReader = new ProcessorOutputXMLReader(pipelineContext, getInputByName(INPUT_CONFIG).getOutput()) {
-                                @Override
-                                public void setContentHandler(ContentHandler handler) {
-                                    super.setContentHandler(new TeeXMLReceiver(Arrays.asList(topStylesheetXMLReceiver, new SimpleForwardingXMLReceiver(handler))));
-                                }
-                            };
-                            stylesheetSAXSource = new SAXSource(xmlReader, new InputSource());
-                        }
+    // Create a Saxon Configuration which adds the Orbeon pipeline function library
+    private Configuration createXSLTConfiguration() {
+        final Configuration newConfiguration = new Configuration();
+        final FunctionLibrary javaFunctionLibrary = newConfiguration.getExtensionBinder("java");
 
-                        // Put listener in context that will be called by URI resolved
-                        pipelineContext.setAttribute(XSLT_STYLESHEET_URI_LISTENER, new URIResolverListener() {
-                            public XMLReceiver getXMLReceiver() {
-                                StylesheetForwardingXMLReceiver xmlReceiver = new StylesheetForwardingXMLReceiver();
-                                xsltXMLReceivers.add(xmlReceiver);
-                                return xmlReceiver;
-                            }
-                        });
-                        final TransformerURIResolver uriResolver
-                                = new TransformerURIResolver(XSLTTransformer.this, pipelineContext, INPUT_DATA, XMLUtils.ParserConfiguration.PLAIN);
-                        templatesInfo.templates = TransformerUtils.getTemplates(stylesheetSAXSource, transformerClass, attributes, createXSLTConfiguration(), errorListener, uriResolver);
-                        uriResolver.destroy();
-                        templatesInfo.transformerClass = transformerClass;
-                        templatesInfo.systemId = topStylesheetXMLReceiver.getSystemId();
-                    }
+        final FunctionLibraryList functionLibraryList = new FunctionLibraryList();
+        functionLibraryList.addFunctionLibrary(javaFunctionLibrary);
+        functionLibraryList.addFunctionLibrary(org.orbeon.oxf.pipeline.api.FunctionLibrary.instance());
 
-                    // Update cache
-                    {
-                        // Create uriReferences
-                        URIReferences uriReferences = new URIReferences();
-                        for (final StylesheetForwardingXMLReceiver xsltXMLReceiver : xsltXMLReceivers) {
-                            uriReferences.hasDynamicDocumentReferences = uriReferences.hasDynamicDocumentReferences
-                                    || xsltXMLReceiver.getURIReferences().hasDynamicDocumentReferences;
-                            uriReferences.stylesheetReferences.addAll
-                                    (xsltXMLReceiver.getURIReferences().stylesheetReferences);
-                            uriReferences.documentReferences.addAll
-                                    (xsltXMLReceiver.getURIReferences().documentReferences);
-                        }
+        newConfiguration.setExtensionBinder("java", functionLibraryList);
 
-                        // Put in cache: configKey -> uriReferences
-                        final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
-                        if (configKeyValidity != null)
-                            ObjectCache.instance().add(configKeyValidity.key, configKeyValidity.validity, uriReferences);
+        return newConfiguration;
+    }
 
-                        // Put in cache: (configKey, uriReferences.stylesheetReferences) -> transformer
-                        final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences);
-                        if (stylesheetKeyValidity != null)
-                            ObjectCache.instance().add(stylesheetKeyValidity.key, stylesheetKeyValidity.validity, templatesInfo);
+    /**
+     * Reads the input and creates the JAXP Templates object (wrapped in a Transformer object). While reading
+     * the input, figures out the direct dependencies on other files (URIReferences object), and stores these
+     * two mappings in cache:
+     *
+     * configKey        -> uriReferences
+     * uriReferencesKey -> transformer
+     */
+    private TemplatesInfo createTransformer(PipelineContext pipelineContext, String transformerClass, Map<String, Boolean> attributes) {
+        StringErrorListener errorListener = new StringErrorListener(logger);
+        final StylesheetForwardingXMLReceiver topStylesheetXMLReceiver = new StylesheetForwardingXMLReceiver();
+        try {
+            // Create transformer
+            final TemplatesInfo templatesInfo = new TemplatesInfo();
+            final List<StylesheetForwardingXMLReceiver> xsltXMLReceivers = new ArrayList<StylesheetForwardingXMLReceiver>();
+            {
+                // Create SAXSource adding our forwarding receiver
+                final SAXSource stylesheetSAXSource;
+                {
+                    xsltXMLReceivers.add(topStylesheetXMLReceiver);
+                    final XMLReader xmlReader = new ProcessorOutputXMLReader(pipelineContext, getInputByName(INPUT_CONFIG).getOutput()) {
+                        @Override
+                        public void setContentHandler(ContentHandler handler) {
+                            super.setContentHandler(new TeeXMLReceiver(Arrays.asList(topStylesheetXMLReceiver, new SimpleForwardingXMLReceiver(handler))));
+                        }
+                    };
+                    stylesheetSAXSource = new SAXSource(xmlReader, new InputSource());
+                }
+
+                // Put listener in context that will be called by URI resolved
+                pipelineContext.setAttribute(XSLT_STYLESHEET_URI_LISTENER, new URIResolverListener() {
+                    public XMLReceiver getXMLReceiver() {
+                        StylesheetForwardingXMLReceiver xmlReceiver = new StylesheetForwardingXMLReceiver();
+                        xsltXMLReceivers.add(xmlReceiver);
+                        return xmlReceiver;
                     }
+                });
+                final TransformerURIResolver uriResolver
+                        = new TransformerURIResolver(XSLTTransformer.this, pipelineContext, INPUT_DATA, XMLUtils.ParserConfiguration.PLAIN);
+                final long compileStart = System.nanoTime();
+                templatesInfo.templates = TransformerUtils.getTemplates(stylesheetSAXSource, transformerClass, attributes, createXSLTConfiguration(), errorListener, uriResolver);
+                Metrics.group(METRICS_GROUP).timer("compile").record(System.nanoTime() - compileStart);
+                uriResolver.destroy();
+                templatesInfo.transformerClass = transformerClass;
+                templatesInfo.systemId = topStylesheetXMLReceiver.getSystemId();
+            }
 
-                    return templatesInfo;
+            // Update cache
+            {
+                // Create uriReferences
+                URIReferences uriReferences = new URIReferences();
+                for (final StylesheetForwardingXMLReceiver xsltXMLReceiver : xsltXMLReceivers) {
+                    uriReferences.hasDynamicDocumentReferences = uriReferences.hasDynamicDocumentReferences
+                            || xsltXMLReceiver.getURIReferences().hasDynamicDocumentReferences;
+                    uriReferences.stylesheetReferences.addAll
+                            (xsltXMLReceiver.getURIReferences().stylesheetReferences);
+                    uriReferences.documentReferences.addAll
+                            (xsltXMLReceiver.getURIReferences().documentReferences);
+                }
 
-                } catch (TransformerException e) {
-                    if (errorListener.hasErrors()) {
-                        // Use error messages information and provide location data of first error
-                        final ValidationException validationException = new ValidationException(errorListener.getMessages(), errorListener.getErrors().get(0));
-                        // If possible add location of top-level stylesheet
-                        if (topStylesheetXMLReceiver.getSystemId() != null)
-                            validationException.addLocationData(new ExtendedLocationData(new LocationData(topStylesheetXMLReceiver.getSystemId(), -1, -1), "creating XSLT transformer"));
-                        throw validationException;
-                    } else {
-                        // No XSLT errors are available
-                        final LocationData transformerExceptionLocationData
-                            = StringErrorListener.getTransformerExceptionLocationData(e, topStylesheetXMLReceiver.getSystemId());
-                        if (transformerExceptionLocationData.getSystemID() != null)
-                            throw OrbeonLocationException.wrapException(e, new ExtendedLocationData(transformerExceptionLocationData, "creating XSLT transformer"));
-                        else
-                            throw new OXFException(e);
-                    }
+                // Put in cache: configKey -> uriReferences
+                final KeyValidity configKeyValidity = getInputKeyValidity(pipelineContext, INPUT_CONFIG);
+                if (configKeyValidity != null)
+                    ObjectCache.instance().add(configKeyValidity.key, configKeyValidity.validity, uriReferences);
+
+                // Put in cache: (configKey, uriReferences.stylesheetReferences) -> transformer
+                final KeyValidity stylesheetKeyValidity = createStyleSheetKeyValidity(pipelineContext, configKeyValidity, uriReferences, transformerClass, attributes);
+                if (stylesheetKeyValidity != null)
+                    ObjectCache.instance().add(stylesheetKeyValidity.key, stylesheetKeyValidity.validity, templatesInfo);
+            }
+
+            return templatesInfo;
+
+        } catch (TransformerException e) {
+            if (errorListener.hasErrors()) {
+                // Use error messages information and provide location data of first error
+                final ValidationException validationException = new ValidationException(errorListener.getMessages(), errorListener.getErrors().get(0));
+                // If possible add location of top-level stylesheet
+                if (topStylesheetXMLReceiver.getSystemId() != null)
+                    validationException.addLocationData(new ExtendedLocationData(new LocationData(topStylesheetXMLReceiver.getSystemId(), -1, -1), "creating XSLT transformer"));
+                throw validationException;
+            } else {
+                // No XSLT errors are available
+                final LocationData transformerExceptionLocationData
+                    = StringErrorListener.getTransformerExceptionLocationData(e, topStylesheetXMLReceiver.getSystemId());
+                if (transformerExceptionLocationData.getSystemID() != null)
+                    throw OrbeonLocationException.wrapException(e, new ExtendedLocationData(transformerExceptionLocationData, "creating XSLT transformer"));
+                else
+                    throw new OXFException(e);
+            }
 
 //                    final ExtendedLocationData extendedLocationData
 //                            = StringErrorListener.getTransformerExceptionLocationData(e, topStylesheetContentHandler.getSystemId());
@@ -718,18 +756,13 @@ public abstract class XSLTTransformer extends ProcessorImpl {
 //                        }
 //                    }
 //                    throw ve;
-                } catch (Exception e) {
-                    if (topStylesheetXMLReceiver.getSystemId() != null) {
-                        throw OrbeonLocationException.wrapException(e, new ExtendedLocationData(topStylesheetXMLReceiver.getSystemId(), -1, -1, "creating XSLT transformer"));
-                    } else {
-                        throw new OXFException(e);
-                    }
-                }
+        } catch (Exception e) {
+            if (topStylesheetXMLReceiver.getSystemId() != null) {
+                throw OrbeonLocationException.wrapException(e, new ExtendedLocationData(topStylesheetXMLReceiver.getSystemId(), -1, -1, "creating XSLT transformer"));
+            } else {
+                throw new OXFException(e);
             }
-
-        };
-        addOutput(name, output);
-        return output;
+        }
     }
 
     private StringBuilderWriter createErrorStringBuilderWriter(TransformerHandler transformerHandler) throws Exception {
@@ -19,19 +19,31 @@ import org.orbeon.oxf.util.LoggerFactory;
 
 import java.io.*;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * The Filesystem resource manager is able to load resources from the filesystem with a direct
  * mapping, or, if the property is specified, within a sandbox.
+ *
+ * If the watch property is set, the last modified dates of the resources are checked by a background thread instead
+ * of by the threads asking for them.
  */
 public class FilesystemResourceManagerImpl extends ResourceManagerBase {
 
     private static Logger logger = LoggerFactory.createLogger(FilesystemResourceManagerImpl.class);
 
+    private static final long MIN_WATCH_INTERVAL = 100;
+
+    // Threads checking last modified dates, stopped when the web app is destroyed
+    private static final List<Thread> watchers = new ArrayList<Thread>();
+
     private boolean hasSandbox;
     protected File rootDirectory;
 
+    private final boolean watch;
+
     public FilesystemResourceManagerImpl(Map props) throws OXFException {
         super(props);
 
@@ -44,6 +56,53 @@ public class FilesystemResourceManagerImpl extends ResourceManagerBase {
                 throw new OXFException("Root directory " + sandbox + " does not refer to a valid directory");
             hasSandbox = true;
         }
+
+        // Check last modified dates in the background if requested
+        watch = "true".equals(props.get(FilesystemResourceManagerFactory.WATCH_PROPERTY));
+        if (watch) {
+            final long watchInterval = Math.max(minReloadInterval, MIN_WATCH_INTERVAL);
+            final Thread watcher = new Thread("Orbeon filesystem resource watcher") {
+                @Override
+                public void run() {
+                    try {
+                        while (!isInterrupted()) {
+                            Thread.sleep(watchInterval);
+                            try {
+                                final List<String> changedKeys = refreshLastModifiedIndex();
+                                if (logger.isDebugEnabled() && !changedKeys.isEmpty())
+                                    logger.debug("Modified resources: " + changedKeys);
+                            } catch (Exception e) {
+                                logger.warn("Error while checking resources", e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Exit
+                    }
+                }
+            };
+            watcher.setDaemon(true);
+            watcher.start();
+            synchronized (watchers) {
+                watchers.add(watcher);
+            }
+        }
+    }
+
+    /**
+     * Stop the threads checking last modified dates, so that they don't keep the web app's classes loaded once it is
+     * destroyed.
+     */
+    public static void stopWatchers() {
+        synchronized (watchers) {
+            for (final Thread watcher : watchers)
+                watcher.interrupt();
+            watchers.clear();
+        }
+    }
+
+    @Override
+    protected boolean isLastModifiedIndexWatched() {
+        return watch;
     }
 
     /**
@@ -33,7 +33,10 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base class for most resource manager implementations.
@@ -43,7 +46,36 @@ public abstract class ResourceManagerBase implements ResourceManager {
     private static final String MIN_RELOAD_INTERVAL_KEY = "oxf.resources.common.min-reload-interval";
     private static final long DEFAULT_MIN_RELOAD_INTERVAL = 2 * 1000;
 
-    private ExpirationMap lastModifiedMap;
+    // When set, last modified dates are read once and never checked again, which is suitable for production
+    private static final String FROZEN_KEY = "oxf.resources.common.frozen";
+
+    protected final long minReloadInterval;
+    private final boolean frozen;
+
+    // Last modified dates by key, read without locking
+    private final ConcurrentHashMap<String, LastModifiedEntry> lastModifiedIndex = new ConcurrentHashMap<String, LastModifiedEntry>();
+
+    private static class LastModifiedEntry {
+        public final long lastModified;
+        public final ResourceNotFoundException notFound;
+        public final long expiration;
+
+        private LastModifiedEntry(long lastModified, ResourceNotFoundException notFound, long expiration) {
+            this.lastModified = lastModified;
+            this.notFound = notFound;
+            this.expiration = expiration;
+        }
+
+        // The absence of the resource is cached regardless of the caller, so apply the caller's choice here
+        public long value(boolean doNotThrowResourceNotFound) {
+            if (notFound == null)
+                return lastModified;
+            else if (doNotThrowResourceNotFound)
+                return -1;
+            else
+                throw notFound;
+        }
+    }
 
     /**
      * Initialisation. Should be called only by sub-classes
@@ -58,7 +90,8 @@ public abstract class ResourceManagerBase implements ResourceManager {
                 throw new OXFException("Value for property '" + MIN_RELOAD_INTERVAL_KEY + "' must be a non-negative integer.");
             minReloadInterval = longValue;
         }
-        lastModifiedMap = new ExpirationMap(minReloadInterval);
+        this.minReloadInterval = minReloadInterval;
+        this.frozen = "true".equals(props.get(FROZEN_KEY));
     }
 
     public Node getContentAsDOM(String key) {
@@ -135,27 +168,52 @@ public abstract class ResourceManagerBase implements ResourceManager {
         return transformer;
     }
 
-    final synchronized public long lastModified(String key, boolean doNotThrowResourceNotFound) {
-        // Do only 1 call to currentTimeMillis()
-        final long currentTime = System.currentTimeMillis();
-        Object value = lastModifiedMap.get(currentTime, key);
-        if (value == null) {
-            // We don't have the information or or it has expired
-            try {
-                long lastModified = lastModifiedImpl(key, doNotThrowResourceNotFound);
-                lastModifiedMap.put(currentTime, key, lastModified);
-                return lastModified;
-            } catch (ResourceNotFoundException e) {
-                lastModifiedMap.put(currentTime, key, e);
-                throw e;
-            }
+    final public long lastModified(String key, boolean doNotThrowResourceNotFound) {
+        final LastModifiedEntry entry = lastModifiedIndex.get(key);
+        if (entry != null && (frozen || isLastModifiedIndexWatched() || System.currentTimeMillis() < entry.expiration)) {
+            return entry.value(doNotThrowResourceNotFound);
         } else {
-            if (value instanceof ResourceNotFoundException) {
-                throw (ResourceNotFoundException) value;
-            } else {
-                return (Long) value;
+            // We don't have the information or it has expired
+            // NOTE: Concurrent callers might read the same last modified date, which is harmless
+            final LastModifiedEntry newEntry = readLastModified(key);
+            lastModifiedIndex.put(key, newEntry);
+            return newEntry.value(doNotThrowResourceNotFound);
+        }
+    }
+
+    private LastModifiedEntry readLastModified(String key) {
+        final long expiration = System.currentTimeMillis() + minReloadInterval;
+        try {
+            return new LastModifiedEntry(lastModifiedImpl(key, false), null, expiration);
+        } catch (ResourceNotFoundException e) {
+            return new LastModifiedEntry(0, e, expiration);
+        }
+    }
+
+    /**
+     * Whether a subclass keeps the last modified dates up to date with refreshLastModifiedIndex(), in which case they
+     * don't expire.
+     */
+    protected boolean isLastModifiedIndexWatched() {
+        return false;
+    }
+
+    /**
+     * Read again the last modified dates of all the resources which have been asked for, and return the keys of those
+     * which changed.
+     */
+    protected List<String> refreshLastModifiedIndex() {
+        final List<String> changedKeys = new ArrayList<String>();
+        for (final Map.Entry<String, LastModifiedEntry> mapEntry : lastModifiedIndex.entrySet()) {
+            final String key = mapEntry.getKey();
+            final LastModifiedEntry oldEntry = mapEntry.getValue();
+            final LastModifiedEntry newEntry = readLastModified(key);
+            if (newEntry.lastModified != oldEntry.lastModified || (newEntry.notFound == null) != (oldEntry.notFound == null)) {
+                lastModifiedIndex.put(key, newEntry);
+                changedKeys.add(key);
             }
         }
+        return changedKeys;
     }
 
     public boolean exists(String key) {
@@ -19,10 +19,12 @@ import org.apache.http.client.CookieStore;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.ClientContext;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -31,8 +33,9 @@ import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParamBean;
 import org.apache.http.params.HttpParams;
@@ -43,6 +46,7 @@ import org.orbeon.oxf.common.OXFException;
 import org.orbeon.oxf.properties.Properties;
 import org.orbeon.oxf.properties.PropertySet;
 import org.orbeon.oxf.util.Connection;
+import org.orbeon.oxf.util.Metrics;
 import org.orbeon.oxf.util.StringConversions;
 
 import javax.net.ssl.SSLContext;
@@ -56,6 +60,8 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 public class HTTPURLConnection extends URLConnection {
 
@@ -71,19 +77,24 @@ public class HTTPURLConnection extends URLConnection {
 	public static String PROXY_PASSWORD_PROPERTY = "oxf.http.proxy.password";
 	public static String PROXY_NTLM_HOST_PROPERTY = "oxf.http.proxy.ntlm.host";
 	public static String PROXY_NTLM_DOMAIN_PROPERTY = "oxf.http.proxy.ntlm.domain";
+    public static String MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "oxf.http.max-connections-per-route";
+    public static String MAX_TOTAL_CONNECTIONS_PROPERTY = "oxf.http.max-total-connections";
+    public static String KEEP_ALIVE_TIMEOUT_PROPERTY = "oxf.http.keep-alive-timeout";
+    public static String IDLE_CONNECTION_TIMEOUT_PROPERTY = "oxf.http.idle-connection-timeout";
+    public static String CONNECTION_REAPER_INTERVAL_PROPERTY = "oxf.http.connection-reaper-interval";
+
+    // Metrics exposed via JMX as org.orbeon:type="http-client"
+    private static final String METRICS_GROUP = "http-client";
 
     // Use a single shared connection manager so we can have efficient connection pooling
-    private static ClientConnectionManager connectionManager;
+    private static PoolingClientConnectionManager connectionManager;
+    private static ConnectionKeepAliveStrategy keepAliveStrategy;
     private static HttpParams httpParams;
     private static PreemptiveAuthHttpRequestInterceptor preemptiveAuthHttpRequestInterceptor = new PreemptiveAuthHttpRequestInterceptor();
     private static AuthState proxyAuthState = null;
 
     static {
         final BasicHttpParams basicHttpParams = new BasicHttpParams();
-        // Remove limit on the number of connections per host
-        ConnManagerParams.setMaxConnectionsPerRoute(basicHttpParams, new ConnPerRouteBean(Integer.MAX_VALUE));
-        // Remove limit on the number of max connections
-        ConnManagerParams.setMaxTotalConnections(basicHttpParams, Integer.MAX_VALUE);
 
         // Set parameters per as configured in the properties
         final HttpConnectionParamBean paramBean = new HttpConnectionParamBean(basicHttpParams);
@@ -124,7 +135,38 @@ public class HTTPURLConnection extends URLConnection {
         final SSLSocketFactory sslSocketFactory = new SSLSocketFactory(sslcontext, hostnameVerifier);
         schemeRegistry.register(new Scheme("https", 443, sslSocketFactory));
 
-        connectionManager = new ThreadSafeClientConnManager(basicHttpParams, schemeRegistry);
+        connectionManager = new MeasuredConnectionManager(schemeRegistry);
+
+        // Limits on the number of connections per host and in total (unlimited by default)
+        connectionManager.setMaxTotal(propertySet.getInteger(MAX_TOTAL_CONNECTIONS_PROPERTY, Integer.MAX_VALUE));
+        connectionManager.setDefaultMaxPerRoute(propertySet.getInteger(MAX_CONNECTIONS_PER_ROUTE_PROPERTY, Integer.MAX_VALUE));
+
+        // Keep connections alive for the duration specified by the server if any, or else for the configured duration
+        // (a negative value keeps connections alive indefinitely)
+        final long keepAliveTimeout = propertySet.getInteger(KEEP_ALIVE_TIMEOUT_PROPERTY, -1);
+        keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long duration = super.getKeepAliveDuration(response, context);
+                return duration >= 0 ? duration : keepAliveTimeout;
+            }
+        };
+
+        // Periodically close expired connections, and connections idle for too long
+        final long reaperInterval = propertySet.getInteger(CONNECTION_REAPER_INTERVAL_PROPERTY, 0);
+        if (reaperInterval > 0)
+            ConnectionReaper.configure(reaperInterval, propertySet.getInteger(IDLE_CONNECTION_TIMEOUT_PROPERTY, -1));
+
+        // Pool metrics
+        Metrics.group(METRICS_GROUP).gauge("leased", new Callable<Long>() {
+            public Long call() { return (long) connectionManager.getTotalStats().getLeased(); }
+        });
+        Metrics.group(METRICS_GROUP).gauge("pending", new Callable<Long>() {
+            public Long call() { return (long) connectionManager.getTotalStats().getPending(); }
+        });
+        Metrics.group(METRICS_GROUP).gauge("available", new Callable<Long>() {
+            public Long call() { return (long) connectionManager.getTotalStats().getAvailable(); }
+        });
 
         // Set proxy if defined in properties
         final String proxyHost = propertySet.getString(PROXY_HOST_PROPERTY);
@@ -152,6 +194,91 @@ public class HTTPURLConnection extends URLConnection {
         httpParams = basicHttpParams;
     }
 
+    // Connection manager recording how long requests wait to lease a connection from the pool
+    private static class MeasuredConnectionManager extends PoolingClientConnectionManager {
+
+        public MeasuredConnectionManager(SchemeRegistry schemeRegistry) {
+            super(schemeRegistry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                public ManagedClientConnection getConnection(long timeout, TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+                    final long start = System.nanoTime();
+                    try {
+                        return request.getConnection(timeout, tunit);
+                    } catch (ConnectionPoolTimeoutException e) {
+                        Metrics.group(METRICS_GROUP).counter("lease-timeouts").inc();
+                        throw e;
+                    } finally {
+                        Metrics.group(METRICS_GROUP).timer("lease-wait").record(System.nanoTime() - start);
+                    }
+                }
+
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    // Thread closing expired and idle connections
+    // NOTE: This is a separate class so that stopping the thread doesn't initialize the connection manager.
+    public static class ConnectionReaper {
+
+        private static volatile long interval;
+        private static long idleConnectionTimeout;
+        private static volatile Thread thread;
+
+        private static synchronized void configure(long interval, long idleConnectionTimeout) {
+            ConnectionReaper.interval = interval;
+            ConnectionReaper.idleConnectionTimeout = idleConnectionTimeout;
+            start();
+        }
+
+        // Start the thread again if it was stopped, e.g. when a web app is destroyed but the class remains loaded
+        private static void ensureStarted() {
+            if (thread == null && interval > 0)
+                start();
+        }
+
+        private static synchronized void start() {
+            if (thread != null || interval <= 0)
+                return;
+
+            final long interval = ConnectionReaper.interval;
+            final long idleConnectionTimeout = ConnectionReaper.idleConnectionTimeout;
+
+            thread = new Thread("Orbeon HTTP connection reaper") {
+                @Override
+                public void run() {
+                    try {
+                        while (!isInterrupted()) {
+                            Thread.sleep(interval);
+                            connectionManager.closeExpiredConnections();
+                            if (idleConnectionTimeout >= 0)
+                                connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+                        }
+                    } catch (InterruptedException e) {
+                        // Exit
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Stop the thread, so that it doesn't keep the web app's classes loaded once it is destroyed
+        public static synchronized void stop() {
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+    }
+
     private CookieStore cookieStore;
 
     private URL url;
@@ -195,11 +322,14 @@ public class HTTPURLConnection extends URLConnection {
 
     public void connect() throws IOException {
         if (!connected) {
+            ConnectionReaper.ensureStarted();
+
             final String userInfo = url.getUserInfo();
             final boolean isAuthenticationRequestedWithUsername = username != null && !username.equals("");
 
             // Create the HTTP client and HTTP context for the client (we expect this to be fairly lightweight)
             final DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, httpParams);
+            httpClient.setKeepAliveStrategy(keepAliveStrategy);
             final HttpContext httpContext = new BasicHttpContext();
 
             // Set cookie store, creating a new one if none was provided to us
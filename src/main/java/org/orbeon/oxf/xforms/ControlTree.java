@@ -185,6 +185,15 @@ public class ControlTree implements ExternalCopyable {
         return Controls.createRepeatIterationTree(containingDocument, controlIndex, repeatControl, iterationIndex);
     }
 
+    /**
+     * Build the subtree of a repeat iteration which was created as a placeholder.
+     *
+     * @param iterationControl      placeholder repeat iteration
+     */
+    public void materializeRepeatIteration(XFormsRepeatIterationControl iterationControl) {
+        Controls.materializeRepeatIteration(controlIndex, iterationControl);
+    }
+
     public void initializeSubTree(XFormsContainerControl containerControl, boolean includeCurrent) {
 
         // Gather all control ids and controls
@@ -61,6 +61,7 @@ public class XFormsProperties {
     private static final String OPTIMIZE_LOCAL_SUBMISSION_REPLACE_ALL_PROPERTY = "optimize-local-submission";
     private static final String LOCAL_SUBMISSION_FORWARD_PROPERTY = "local-submission-forward";
     private static final String LOCAL_SUBMISSION_INCLUDE_PROPERTY = "local-submission-include";
+    private static final String LOCAL_SUBMISSION_PATHS_PROPERTY = "local-submission-paths";
     private static final String LOCAL_INSTANCE_INCLUDE_PROPERTY = "local-instance-include";
 //    private static final String XFORMS_OPTIMIZE_LOCAL_INSTANCE_LOADS_PROPERTY = "optimize-local-instance-loads";
     public static final String EXPOSE_XPATH_TYPES_PROPERTY = "expose-xpath-types";
@@ -130,6 +131,8 @@ public class XFormsProperties {
     public static final String CACHE_DOCUMENT_PROPERTY = "cache.document";
     private static final boolean CACHE_DOCUMENT_DEFAULT = true;
 
+    public static final String CACHE_SHARED_ITEMSETS_PROPERTY = "cache.shared-itemsets";
+
     private static final String DATATABLE_INIT_IN_VIEWPORT = "xbl.fr.datatable.init-in-viewport";
 
     public static final String SANITIZE_PROPERTY = "sanitize";
@@ -208,6 +211,7 @@ public class XFormsProperties {
             new PropertyDefinition(OPTIMIZE_LOCAL_SUBMISSION_REPLACE_ALL_PROPERTY, true, false),
             new PropertyDefinition(LOCAL_SUBMISSION_FORWARD_PROPERTY, true, false),
             new PropertyDefinition(LOCAL_SUBMISSION_INCLUDE_PROPERTY, false, false),
+            new PropertyDefinition(LOCAL_SUBMISSION_PATHS_PROPERTY, "", false),
             new PropertyDefinition(LOCAL_INSTANCE_INCLUDE_PROPERTY, false, false),
             new PropertyDefinition(EXPOSE_XPATH_TYPES_PROPERTY, false, false),
             new PropertyDefinition(AJAX_SHOW_LOADING_ICON_PROPERTY, true, false),
@@ -227,6 +231,7 @@ public class XFormsProperties {
             new PropertyDefinition(XFORMS11_SWITCH_PROPERTY, false, false), // false for now, but default should change at some point
             new PropertyDefinition(XPATH_ANALYSIS_PROPERTY, false, false),
             new PropertyDefinition(CACHE_DOCUMENT_PROPERTY, CACHE_DOCUMENT_DEFAULT, false),
+            new PropertyDefinition(CACHE_SHARED_ITEMSETS_PROPERTY, false, false),
             new PropertyDefinition(SANITIZE_PROPERTY, "", false),
 
             // Properties to propagate to the client
@@ -304,6 +309,8 @@ public class XFormsProperties {
 
     private static final String LOCATION_MODE_PROPERTY = XFORMS_PROPERTY_PREFIX + "location-mode";
 
+    private static final String ANALYSIS_THREADS_PROPERTY = XFORMS_PROPERTY_PREFIX + "analysis.threads";
+
     // == Global properties ============================================================================================
     /**
      * Return a PropertyDefinition given a property name.
@@ -405,6 +412,10 @@ public class XFormsProperties {
         return Properties.instance().getPropertySet().getBoolean(DEBUG_LOG_XPATH_ANALYSIS_PROPERTY, false);
     }
 
+    public static int getAnalysisThreads() {
+        return Properties.instance().getPropertySet().getInteger(ANALYSIS_THREADS_PROPERTY, 1);
+    }
+
     public static boolean isRequestStats() {
         return Properties.instance().getPropertySet().getBoolean(DEBUG_REQUEST_STATS_PROPERTY, false);
     }
@@ -449,6 +460,10 @@ public class XFormsProperties {
         return getBooleanProperty(containingDocument, LOCAL_SUBMISSION_INCLUDE_PROPERTY);
     }
 
+    public static String getLocalSubmissionPaths(XFormsContainingDocument containingDocument) {
+        return getStringProperty(containingDocument, LOCAL_SUBMISSION_PATHS_PROPERTY);
+    }
+
     public static boolean isLocalInstanceInclude(XFormsContainingDocument containingDocument) {
         return getBooleanProperty(containingDocument, LOCAL_INSTANCE_INCLUDE_PROPERTY);
     }
@@ -49,6 +49,7 @@ public class XFormsEvents {
     public static final String XXFORMS_INSTANCE_INVALIDATE = "xxforms-instance-invalidate";
 
     public static final String XXFORMS_DND = "xxforms-dnd";
+    public static final String XXFORMS_LOAD_ITERATIONS = "xxforms-load-iterations";
 
     public static final String XXFORMS_VALID = "xxforms-valid";
     public static final String XXFORMS_INVALID = "xxforms-invalid";
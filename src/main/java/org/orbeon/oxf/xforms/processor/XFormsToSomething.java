@@ -29,8 +29,10 @@ import org.orbeon.oxf.xforms.analysis.Metadata;
 import org.orbeon.oxf.xforms.analysis.model.Instance;
 import org.orbeon.oxf.xforms.analysis.model.Model;
 import org.orbeon.oxf.xforms.state.AnnotatedTemplate;
+import org.orbeon.oxf.xforms.state.PersistedStaticState;
 import org.orbeon.oxf.xforms.state.XFormsStateManager;
 import org.orbeon.oxf.xforms.state.XFormsStaticStateCache;
+import org.orbeon.oxf.xforms.state.XFormsStaticStatePersistentCache;
 import org.orbeon.oxf.xml.*;
 import org.orbeon.oxf.xml.dom4j.LocationDocumentResult;
 import org.xml.sax.SAXException;
@@ -197,9 +199,14 @@ abstract public class XFormsToSomething extends ProcessorImpl {
                         else
                             indentedLogger.logDebug("", "did not find static state by digest in cache");
 
-                        final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, indentedLogger, stage2CacheableState.staticStateDigest);
-                        staticState = XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, stage2CacheableState.staticStateDigest,
-                                staticStateBits.metadata, staticStateBits.template);
+                        final PersistedStaticState persistedState = XFormsStaticStatePersistentCache.find(stage2CacheableState.staticStateDigest);
+                        if (persistedState != null) {
+                            indentedLogger.logDebug("", "found up-to-date static state by digest on disk");
+                            staticState = persistedState.staticState();
+                        } else {
+                            final StaticStateBits staticStateBits = new StaticStateBits(pipelineContext, indentedLogger, stage2CacheableState.staticStateDigest);
+                            staticState = staticStateBits.createStaticState();
+                        }
 
                         // Store in cache
                         XFormsStaticStateCache.instance().storeDocument(staticState);
@@ -252,8 +259,7 @@ abstract public class XFormsToSomething extends ProcessorImpl {
                 else
                     indentedLogger.logDebug("", "did not find static state by digest in cache");
 
-                staticState[0] = XFormsStaticStateImpl.createFromStaticStateBits(staticStateBits.staticStateDocument, staticStateBits.staticStateDigest,
-                        staticStateBits.metadata, staticStateBits.template);
+                staticState[0] = staticStateBits.createStaticState();
 
                 // Store in cache
                 XFormsStaticStateCache.instance().storeDocument(staticState[0]);
@@ -273,12 +279,41 @@ abstract public class XFormsToSomething extends ProcessorImpl {
         public final AnnotatedTemplate template;
         public final String staticStateDigest;
 
+        // Digest of the input document and matching static state on disk, when the persistent cache is enabled
+        private final String inputDigest;
+        private final PersistedStaticState persistedState;
+
         public StaticStateBits(PipelineContext pipelineContext, IndentedLogger indentedLogger, String existingStaticStateDigest) {
 
             final boolean computeDigest = isLogStaticStateInput || existingStaticStateDigest == null;
 
             indentedLogger.startHandleOperation("", "reading input", "existing digest", existingStaticStateDigest);
 
+            // With the persistent cache, read the input first: if it produced a static state which is on disk, it
+            // doesn't need to be annotated and extracted
+            final SAXStore input;
+            if (existingStaticStateDigest == null && XFormsStaticStatePersistentCache.isEnabled()) {
+                input = new SAXStore();
+                final XMLUtils.DigestContentHandler inputDigestReceiver = new XMLUtils.DigestContentHandler();
+                readInputAsSAX(pipelineContext, INPUT_ANNOTATED_DOCUMENT, new TeeXMLReceiver(input, inputDigestReceiver));
+
+                this.inputDigest = NumberUtils.toHexString(inputDigestReceiver.getResult());
+                this.persistedState = XFormsStaticStatePersistentCache.findByInputDigest(inputDigest);
+            } else {
+                input = null;
+                this.inputDigest = null;
+                this.persistedState = null;
+            }
+
+            if (persistedState != null) {
+                this.staticStateDocument = null;
+                this.template = persistedState.template();
+                this.staticStateDigest = persistedState.digest();
+
+                indentedLogger.endHandleOperation("found on disk with input digest", inputDigest, "digest", this.staticStateDigest);
+                return;
+            }
+
             final TransformerXMLReceiver documentReceiver = TransformerUtils.getIdentityTransformerHandler();
             final LocationDocumentResult documentResult = new LocationDocumentResult();
             documentReceiver.setResult(documentResult);
@@ -305,7 +340,7 @@ abstract public class XFormsToSomething extends ProcessorImpl {
             // - optionally: debug output
             //
             this.template = AnnotatedTemplate.applyJava(new SAXStore());
-            readInputAsSAX(pipelineContext, INPUT_ANNOTATED_DOCUMENT,
+            final XMLReceiver annotatorReceiver =
                 new WhitespaceXMLReceiver(
                     new XFormsAnnotator(
                         this.template.saxStore(),
@@ -327,16 +362,36 @@ abstract public class XFormsToSomething extends ProcessorImpl {
                     ),
                     Whitespace.defaultHTMLPolicy(),
                     Whitespace.htmlPolicyMatcher()
-                ));
+                );
+
+            if (input != null) {
+                try {
+                    input.replay(annotatorReceiver);
+                } catch (SAXException e) {
+                    throw new OXFException(e);
+                }
+            } else {
+                readInputAsSAX(pipelineContext, INPUT_ANNOTATED_DOCUMENT, annotatorReceiver);
+            }
 
             this.staticStateDocument = documentResult.getDocument();
-            this.staticStateDigest = computeDigest ? NumberUtils.toHexString(digestReceiver.getResult()) : null;
+            this.staticStateDigest = computeDigest ? NumberUtils.toHexString(digestReceiver.getResult()) : existingStaticStateDigest;
 
             assert !isLogStaticStateInput || existingStaticStateDigest == null || this.staticStateDigest.equals(existingStaticStateDigest);
 
             indentedLogger.endHandleOperation("computed digest", this.staticStateDigest);
         }
 
+        // Create and analyze the static state, and store it on disk if needed
+        public XFormsStaticState createStaticState() {
+            if (persistedState != null)
+                return persistedState.staticState();
+
+            final XFormsStaticState staticState = XFormsStaticStateImpl.createFromStaticStateBits(staticStateDocument, staticStateDigest, metadata, template);
+            XFormsStaticStatePersistentCache.store(staticState, template, inputDigest);
+            return staticState;
+        }
+
         private XMLReceiver getDebugReceiver(final IndentedLogger indentedLogger) {
             final TransformerXMLReceiver identity = TransformerUtils.getIdentityTransformerHandler();
             final StringBuilderWriter writer = new StringBuilderWriter();
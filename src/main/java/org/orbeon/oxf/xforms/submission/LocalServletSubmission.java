@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission;
+
+import org.apache.commons.lang3.StringUtils;
+import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.externalcontext.AsyncExternalContext;
+import org.orbeon.oxf.externalcontext.AsyncRequest;
+import org.orbeon.oxf.externalcontext.ExternalContextWrapper;
+import org.orbeon.oxf.externalcontext.LocalResponse;
+import org.orbeon.oxf.pipeline.api.ExternalContext;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
+import org.orbeon.oxf.servlet.OrbeonServlet;
+import org.orbeon.oxf.util.ConnectionResult;
+import org.orbeon.oxf.util.IndentedLogger;
+import org.orbeon.oxf.util.NetUtils;
+import org.orbeon.oxf.xforms.XFormsProperties;
+import org.orbeon.oxf.xforms.XFormsUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+
+/**
+ * This submission directly uses the Orbeon servlet to run a request/response as a response to a submission, without
+ * going through HTTP. Unlike a request dispatcher include, the status code and headers of the response are available.
+ *
+ * It only applies to the context-relative paths configured with the oxf.xforms.local-submission-paths property.
+ */
+public class LocalServletSubmission extends BaseSubmission {
+
+    private static final String SKIPPING_SUBMISSION_DEBUG_MESSAGE = "skipping local servlet submission";
+
+    public LocalServletSubmission(XFormsModelSubmission submission) {
+        super(submission);
+    }
+
+    public String getType() {
+        return "local servlet";
+    }
+
+    /**
+     * Check whether submission is allowed.
+     */
+    public boolean isMatch(XFormsModelSubmission.SubmissionParameters p,
+                           XFormsModelSubmission.SecondPassParameters p2, XFormsModelSubmission.SerializationParameters sp) {
+
+        final ExternalContext.Request request = NetUtils.getExternalContext().getRequest();
+        final IndentedLogger indentedLogger = getDetailsLogger(p, p2);
+
+        final String localPaths = XFormsProperties.getLocalSubmissionPaths(containingDocument);
+
+        final boolean isDebugEnabled = indentedLogger.isDebugEnabled();
+        if (isDebugEnabled) {
+            indentedLogger.logDebug("", "checking whether " + getType() + " submission is allowed",
+                "resource", p2.actionOrResource,
+                "container type", request.getContainerType(),
+                "local-submission-paths", localPaths
+            );
+        }
+
+        // Only for servlet
+        if (!request.getContainerType().equals("servlet") || ! OrbeonServlet.currentServlet().value().isDefined()) {
+            if (isDebugEnabled)
+                indentedLogger.logDebug("", SKIPPING_SUBMISSION_DEBUG_MESSAGE,
+                        "reason", "container type is not servlet");
+            return false;
+        }
+
+        // Absolute URL implies a regular submission
+        if (NetUtils.urlHasProtocol(p2.actionOrResource)) {
+            if (isDebugEnabled)
+                indentedLogger.logDebug("", SKIPPING_SUBMISSION_DEBUG_MESSAGE,
+                        "reason", "resource URL has protocol", "resource", p2.actionOrResource);
+            return false;
+        }
+
+        // replace="all" is handled by the request dispatcher submission
+        if (p.isReplaceAll) {
+            if (isDebugEnabled)
+                indentedLogger.logDebug("", SKIPPING_SUBMISSION_DEBUG_MESSAGE,
+                        "reason", "replace=\"all\"");
+            return false;
+        }
+
+        // Only for configured paths
+        if (! hasLocalPathPrefix(localPaths, p2.actionOrResource)) {
+            if (isDebugEnabled)
+                indentedLogger.logDebug("", SKIPPING_SUBMISSION_DEBUG_MESSAGE,
+                        "reason", "resource path not configured for local submissions", "resource", p2.actionOrResource);
+            return false;
+        }
+
+        if (isDebugEnabled)
+            indentedLogger.logDebug("", "enabling " + getType() + " submission");
+
+        return true;
+    }
+
+    // Whether the resource starts with one of the whitespace-separated path prefixes
+    static boolean hasLocalPathPrefix(String localPaths, String resource) {
+        for (final String prefix : StringUtils.split(localPaths))
+            if (resource.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    public SubmissionResult connect(final XFormsModelSubmission.SubmissionParameters p,
+                                    final XFormsModelSubmission.SecondPassParameters p2, final XFormsModelSubmission.SerializationParameters sp) throws Exception {
+
+        final IndentedLogger timingLogger = getTimingLogger(p, p2);
+        final IndentedLogger detailsLogger = getDetailsLogger(p, p2);
+
+        // URI with xml:base resolution
+        final URI resolvedURI = XFormsUtils.resolveXMLBase(containingDocument, submission.getSubmissionElement(), p2.actionOrResource);
+
+        // Headers
+        final scala.collection.immutable.Map<String, String[]> customHeaderNameValues = SubmissionUtils.evaluateHeaders(submission, p.isReplaceAll);
+        final String headersToForward = XFormsProperties.getForwardSubmissionHeaders(containingDocument);
+
+        final String submissionEffectiveId = submission.getEffectiveId();
+
+        // Servlet running the current request, which also runs the local request
+        final OrbeonServlet currentServlet = OrbeonServlet.currentServlet().value().get();
+
+        final ExternalContext currentExternalContext = NetUtils.getExternalContext();
+        final ExternalContext.Response response = containingDocument.getResponse() != null ? containingDocument.getResponse() : currentExternalContext.getResponse();
+
+        // If async, use a "safe" copy of the context, as the current request might be gone when the submission runs
+        final ExternalContext newExternalContext = p2.isAsynchronous
+                ? new AsyncExternalContext(currentExternalContext.getWebAppContext(), new AsyncRequest(currentExternalContext.getRequest()), response)
+                : currentExternalContext;
+
+        // Pack external call into a Runnable so it can be run synchronously or asynchronously.
+        final Callable<SubmissionResult> callable = new Callable<SubmissionResult>() {
+            public SubmissionResult call() throws Exception {
+
+                if (p2.isAsynchronous && timingLogger.isDebugEnabled())
+                    timingLogger.startHandleOperation("", "running asynchronous local servlet submission", "id", submission.getEffectiveId());
+
+                // Open the connection
+                final boolean[] status = { false , false };
+                ConnectionResult connectionResult = null;
+                try {
+                    final LocalResponse[] localResponse = { null };
+
+                    connectionResult = openLocalConnection(newExternalContext, response,
+                        detailsLogger, resolvedURI.toString(), p, sp.actualRequestMediatype, p2.encoding, sp.messageBody,
+                        sp.queryString, headersToForward, customHeaderNameValues, new SubmissionProcess() {
+                            public void process(final ExternalContext.Request request, final ExternalContext.Response response) {
+
+                                // Capture headers as well, which the response passed doesn't keep
+                                localResponse[0] = new LocalResponse(response);
+
+                                // Delegate to servlet
+                                currentServlet.processorService().service(new PipelineContext(), new ExternalContextWrapper(newExternalContext) {
+                                    @Override
+                                    public ExternalContext.Request getRequest() {
+                                        return request;
+                                    }
+
+                                    @Override
+                                    public ExternalContext.Response getResponse() {
+                                        return localResponse[0];
+                                    }
+                                });
+
+                                // Hand status and body over to the response passed
+                                try {
+                                    response.setStatus(localResponse[0].status());
+                                    NetUtils.copyStream(localResponse[0].getInputStream(), response.getOutputStream());
+                                } catch (IOException e) {
+                                    throw new OXFException(e);
+                                }
+                            }
+                        }, true, false);
+
+                    // Unlike with an include, the callee's headers and content type are known
+                    connectionResult.responseHeaders_$eq(localResponse[0].jHeaders());
+                    if (localResponse[0].contentType().isDefined())
+                        connectionResult.setResponseContentType(localResponse[0].contentType().get());
+
+                    // Update status
+                    status[0] = true;
+
+                    // Obtain replacer, deserialize and update status
+                    final Replacer replacer = submission.getReplacer(connectionResult, p);
+                    replacer.deserialize(connectionResult, p, p2);
+                    status[1] = true;
+
+                    // Return result
+                    return new SubmissionResult(submissionEffectiveId, replacer, connectionResult);
+                } catch (Throwable throwable) {
+                    // Exceptions are handled further down
+                    return new SubmissionResult(submissionEffectiveId, throwable, connectionResult);
+                } finally {
+                    if (p2.isAsynchronous && timingLogger.isDebugEnabled())
+                        timingLogger.endHandleOperation("id", submissionEffectiveId, "asynchronous", Boolean.toString(p2.isAsynchronous),
+                                "connected", Boolean.toString(status[0]), "deserialized", Boolean.toString(status[1]));
+                }
+            }
+        };
+
+        // Submit the callable
+        // This returns null if the execution is deferred
+        return submitCallable(p, p2, callable);
+    }
+}
@@ -133,6 +133,7 @@ public class XFormsModelSubmission extends XFormsModelSubmissionBase implements
             new FilterPortletSubmission(this),
             new CacheableSubmission(this),
             new LocalPortletSubmission(this),
+            new LocalServletSubmission(this),
             new RequestDispatcherSubmission(this),
             new RegularSubmission(this)
         };
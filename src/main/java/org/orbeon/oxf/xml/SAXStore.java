@@ -13,10 +13,13 @@
  */
 package org.orbeon.oxf.xml;
 
+import org.apache.log4j.Logger;
 import org.dom4j.Document;
 import org.orbeon.oxf.common.OXFException;
+import org.orbeon.oxf.pipeline.api.PipelineContext;
 import org.orbeon.oxf.pipeline.api.TransformerXMLReceiver;
 import org.orbeon.oxf.processor.SAXLoggerProcessor;
+import org.orbeon.oxf.util.LoggerFactory;
 import org.orbeon.oxf.xml.dom4j.LocationSAXContentHandler;
 import org.xml.sax.Attributes;
 import org.xml.sax.Locator;
@@ -25,18 +28,24 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
 
 /**
  * SAXStore keeps a compact representation of SAX events sent to the ContentHandler interface.
  *
- * As of June 2009, we increase the size of buffers by 50% instead of 100%. Still not the greatest way. Possibly,
- * passed a threshold, say 10 MB or 20 MB, we could use a linked list of such big blocks.
+ * Events are stored in buffers made of fixed-size chunks, so that growing a buffer never copies what it already
+ * contains. The first chunk of each buffer starts small and grows up to the chunk size, as most SAXStores are small.
  *
- * TODO: Handling of system IDs is not optimal in memory as system IDs are unlikely to change much within a document.
+ * Names, namespace URIs and system ids are stored only once in a per-store table, and buffers only keep indexes into
+ * that table. Attribute values and processing instruction data are much less likely to repeat, and are stored like
+ * character data.
+ *
+ * Optionally, once a store holds more than a given number of bytes in memory, further full chunks are moved to a
+ * temporary memory-mapped file, see setSpillThreshold().
  */
 public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
@@ -52,28 +61,35 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     public static final byte START_PREFIX_MAPPING = 0x0A;
     public static final byte COMMENT = 0x0B;
 
-    private static final int INITIAL_SIZE = 10;
-
-    private byte[] eventBuffer;
-    private int eventBufferPosition;
+    private static final int INITIAL_SIZE = 16;
 
-    private char[] charBuffer;
-    private int charBufferPosition;
+    private static final int CHUNK_SHIFT = 13;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
 
-    private int[] intBuffer;
-    private int intBufferPosition;
+    private static final int NULL_STRING = -1;
 
-    private int[] lineBuffer;
-    private int lineBufferPosition;
+    private static final Logger logger = LoggerFactory.createLogger(SAXStore.class);
 
-    private String[] systemIdBuffer;
-    private int systemIdBufferPosition;
+    private Spill spill;
 
-    private int[] attributeCountBuffer;
-    private int attributeCountBufferPosition;
+    private ByteChunks eventBuffer;
+    private CharChunks charBuffer;
+    private IntChunks intBuffer;
+    private IntChunks lineBuffer;
+    private IntChunks systemIdBuffer;
+    private IntChunks attributeCountBuffer;
     private int attributeCount;
 
-    private List<String> StringBuilder = new ArrayList<String>();
+    // Indexes into stringTable
+    private IntChunks stringBuffer;
+
+    private List<String> stringTable;
+    private Map<String, Integer> nameIndexes;
+
+    // Attribute values and processing instruction data, unless they are stored with character data, see addValue()
+    private List<String> valueTable;
+    private boolean valuesInChars;
 
     private boolean hasDocumentLocator;
     private String publicId;
@@ -107,13 +123,13 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         private Mark(final SAXStore store, final String id) {
             this.id = id;
-            this.eventBufferPosition = store.eventBufferPosition;
-            this.charBufferPosition = store.charBufferPosition;
-            this.intBufferPosition = store.intBufferPosition;
-            this.lineBufferPosition = store.lineBufferPosition;
-            this.systemIdBufferPosition = store.systemIdBufferPosition;
-            this.attributeCountBufferPosition = store.attributeCountBufferPosition;
-            this.StringBuilderPosition = store.StringBuilder.size();
+            this.eventBufferPosition = store.eventBuffer.size;
+            this.charBufferPosition = store.charBuffer.size;
+            this.intBufferPosition = store.intBuffer.size;
+            this.lineBufferPosition = store.lineBuffer.size;
+            this.systemIdBufferPosition = store.systemIdBuffer.size;
+            this.attributeCountBufferPosition = store.attributeCountBuffer.size;
+            this.StringBuilderPosition = store.stringBuffer.size;
             
             rememberMark();
         }
@@ -150,38 +166,32 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     public long getApproximateSize() {
-        long size = eventBufferPosition * 4;
-        size += charBufferPosition;
-        size += intBufferPosition * 4;
-        size += lineBufferPosition * 4;
-
-        {
-            String previousId = null;
-            for (int i = 0; i < systemIdBuffer.length; i++) {
-                final String currentId = systemIdBuffer[i];
-                // This is rough, but entries in the list could point to the same string, so we try to detect this case.
-                if (currentId != null && currentId != previousId)
-                    size += currentId.length() * 2;
-                previousId = currentId;
-            }
-        }
-
-        size += attributeCountBufferPosition * 4;
-
-        {
-            String previousString = null;
-            for (Iterator<String> i = StringBuilder.iterator(); i.hasNext();) {
-                final String currentString = i.next();
-                // This is rough, but entries in the list could point to the same string, so we try to detect this case.
-                if (currentString != null && currentString != previousString)
-                    size += currentString.length() * 2;
-                previousString = currentString;
-            }
-        }
-
+        long size = eventBuffer.size;
+        size += charBuffer.size * 2;
+        size += intBuffer.size * 4;
+        size += lineBuffer.size * 4;
+        size += systemIdBuffer.size * 4;
+        size += attributeCountBuffer.size * 4;
+        size += stringBuffer.size * 4;
+
+        // Each string is in the table only once
+        for (final String currentString : stringTable)
+            size += currentString.length() * 2;
+
+        for (final String currentValue : valueTable)
+            size += currentValue.length() * 2;
+
+        // This includes chunks moved to the temporary file
         return size;
     }
 
+    /**
+     * Number of bytes moved to the temporary file, included in getApproximateSize().
+     */
+    public long getSpilledSize() {
+        return spill.spilledBytes;
+    }
+
     public int getAttributesCount() {
         return attributeCount;
     }
@@ -208,41 +218,74 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     protected void init() {
-        eventBufferPosition = 0;
-        eventBuffer = new byte[INITIAL_SIZE];
+        // Keep the threshold, but not the content, of a previous temporary file
+        if (spill != null)
+            spill.delete();
+        spill = new Spill(spill != null ? spill.threshold : -1);
 
-        charBufferPosition = 0;
-        charBuffer = new char[INITIAL_SIZE * 4];
+        eventBuffer = new ByteChunks(INITIAL_SIZE, spill);
+        charBuffer = new CharChunks(INITIAL_SIZE * 4, spill);
+        intBuffer = new IntChunks(INITIAL_SIZE, spill);
+        lineBuffer = new IntChunks(INITIAL_SIZE, spill);
+        systemIdBuffer = new IntChunks(INITIAL_SIZE, spill);
+        attributeCountBuffer = new IntChunks(INITIAL_SIZE, spill);
+        stringBuffer = new IntChunks(INITIAL_SIZE, spill);
 
-        intBufferPosition = 0;
-        intBuffer = new int[INITIAL_SIZE];
+        stringTable = new ArrayList<String>();
+        nameIndexes = new HashMap<String, Integer>();
 
-        lineBufferPosition = 0;
-        lineBuffer = new int[INITIAL_SIZE];
-
-        systemIdBufferPosition = 0;
-        systemIdBuffer = new String[INITIAL_SIZE];
-
-        attributeCountBufferPosition = 0;
-        attributeCountBuffer = new int[INITIAL_SIZE];
-
-        StringBuilder.clear();
+        valueTable = new ArrayList<String>();
+        valuesInChars = spill.threshold >= 0;
 
         locator = null;
     }
 
+    /**
+     * Move chunks to a temporary memory-mapped file once this store holds more than the given number of bytes in
+     * memory. The file is deleted when the pipeline context is destroyed, after which the store can't be replayed.
+     *
+     * This is meant for large documents which are only needed during a pipeline execution, and must be called before
+     * events are added. A negative threshold disables the temporary file.
+     */
+    public void setSpillThreshold(long threshold, PipelineContext pipelineContext) {
+        if (eventBuffer.size != 0)
+            throw new OXFException("SAXStore spill threshold must be set before events are added");
+
+        spill.threshold = threshold;
+        valuesInChars = threshold >= 0;
+        if (threshold >= 0)
+            pipelineContext.addContextListener(new PipelineContext.ContextListenerAdapter() {
+                @Override
+                public void contextDestroyed(boolean success) {
+                    spill.delete();
+                }
+            });
+    }
+
     public void replay(XMLReceiver xmlReceiver) throws SAXException {
         replay(xmlReceiver, START_MARK);
     }
 
     public void replay(XMLReceiver xmlReceiver, Mark mark) throws SAXException {
+        // Prevent the temporary file from being unmapped while other threads are replaying
+        final Spill spill = this.spill;
+        spill.acquire();
+        try {
+            replayImpl(xmlReceiver, mark);
+        } finally {
+            spill.release();
+        }
+    }
+
+    private void replayImpl(XMLReceiver xmlReceiver, Mark mark) throws SAXException {
         int intBufferPos = mark.intBufferPosition;
         int charBufferPos = mark.charBufferPosition;
-        int StringBuilderPos = mark.StringBuilderPosition;
+        int stringBufferPos = mark.StringBuilderPosition;
         int attributeCountBufferPos = mark.attributeCountBufferPosition;
         final int[] lineBufferPos = { mark.lineBufferPosition } ;
         final int[] systemIdBufferPos = { mark.systemIdBufferPosition } ;
         final AttributesImpl attributes = new AttributesImpl();
+        final CharRange charRange = new CharRange();
         int currentEventPosition = mark.eventBufferPosition;
 
         final Locator outputLocator = !hasDocumentLocator ? null : new Locator() {
@@ -251,31 +294,18 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             }
 
             public String getSystemId() {
-                try {
-                    return systemIdBuffer[systemIdBufferPos[0]];
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    return null;
-                }
+                final int pos = systemIdBufferPos[0];
+                return pos < systemIdBuffer.size ? getString(systemIdBuffer.get(pos)) : null;
             }
 
             public int getLineNumber() {
-                try {
-                    return lineBuffer[lineBufferPos[0]];
-                } catch (ArrayIndexOutOfBoundsException e) {// FIXME: sometimes this fails
-//                    System.out.println("Incorrect line number: " + lineBufferPos[0]);
-                    //e.printStackTrace();
-                    return -1;
-                }
+                final int pos = lineBufferPos[0];
+                return pos < lineBuffer.size ? lineBuffer.get(pos) : -1;
             }
 
             public int getColumnNumber() {
-                try {
-                    return lineBuffer[lineBufferPos[0] + 1];
-                } catch (ArrayIndexOutOfBoundsException e) {// FIXME: sometimes this fails
-//                    System.out.println("Incorrect line number: " + lineBufferPos[0]);
-                    //e.printStackTrace();
-                    return -1;
-                }
+                final int pos = lineBufferPos[0] + 1;
+                return pos < lineBuffer.size ? lineBuffer.get(pos) : -1;
             }
         };
 
@@ -283,12 +313,14 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             xmlReceiver.setDocumentLocator(outputLocator);
         }
 
+        final int eventBufferSize = eventBuffer.size;
+
         // Handle element marks
-        final boolean handleElementMark = (mark != START_MARK) && (eventBuffer[currentEventPosition] == START_ELEMENT);
+        final boolean handleElementMark = (mark != START_MARK) && (currentEventPosition < eventBufferSize) && (eventBuffer.get(currentEventPosition) == START_ELEMENT);
 
         int elementLevel = 0;
-        eventLoop: while (currentEventPosition < eventBufferPosition) {
-            final byte eventType = eventBuffer[currentEventPosition];
+        eventLoop: while (currentEventPosition < eventBufferSize) {
+            final byte eventType = eventBuffer.get(currentEventPosition);
             final boolean eventHasLocation = hasDocumentLocator && eventType != END_PREFIX_MAPPING && eventType != START_PREFIX_MAPPING;
             switch (eventType) {
                 case START_DOCUMENT: {
@@ -296,31 +328,40 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case START_ELEMENT: {
-                    final String namespaceURI = StringBuilder.get(StringBuilderPos++);
-                    final String localName = StringBuilder.get(StringBuilderPos++);
-                    final String qName = StringBuilder.get(StringBuilderPos++);
+                    final String namespaceURI = getString(stringBuffer.get(stringBufferPos++));
+                    final String localName = getString(stringBuffer.get(stringBufferPos++));
+                    final String qName = getString(stringBuffer.get(stringBufferPos++));
                     attributes.clear();
-                    final int attributeCount = attributeCountBuffer[attributeCountBufferPos++];
+                    final int attributeCount = attributeCountBuffer.get(attributeCountBufferPos++);
                     for (int i = 0; i < attributeCount; i++) {
-                        attributes.addAttribute(StringBuilder.get(StringBuilderPos++),
-                                StringBuilder.get(StringBuilderPos++), StringBuilder.get(StringBuilderPos++),
-                                StringBuilder.get(StringBuilderPos++), StringBuilder.get(StringBuilderPos++));
+                        final String uri = getString(stringBuffer.get(stringBufferPos++));
+                        final String attributeLocalName = getString(stringBuffer.get(stringBufferPos++));
+                        final String attributeQName = getString(stringBuffer.get(stringBufferPos++));
+                        final String type = getString(stringBuffer.get(stringBufferPos++));
+
+                        final int valueInt = intBuffer.get(intBufferPos++);
+                        final String value = getValue(valueInt, charBufferPos, charRange);
+                        if (valuesInChars)
+                            charBufferPos += Math.max(valueInt, 0);
+
+                        attributes.addAttribute(uri, attributeLocalName, attributeQName, type, value);
                     }
                     xmlReceiver.startElement(namespaceURI, localName, qName, attributes);
                     elementLevel++;
                     break;
                 }
                 case CHARACTERS: {
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.characters(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.getRange(charBufferPos, length, charRange);
+                    xmlReceiver.characters(charRange.chars, charRange.start, length);
                     charBufferPos += length;
                     break;
                 }
                 case END_ELEMENT: {
                     elementLevel--;
-                    xmlReceiver.endElement(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.endElement(getString(stringBuffer.get(stringBufferPos++)),
+                            getString(stringBuffer.get(stringBufferPos++)),
+                            getString(stringBuffer.get(stringBufferPos++)));
 
                     if (handleElementMark && elementLevel == 0) {
                         // Back to ground level, we are done!
@@ -334,33 +375,41 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
                     break;
                 }
                 case END_PREFIX_MAPPING: {
-                    xmlReceiver.endPrefixMapping(StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.endPrefixMapping(getString(stringBuffer.get(stringBufferPos++)));
                     break;
                 }
                 case IGN_WHITESPACE: {
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.ignorableWhitespace(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.getRange(charBufferPos, length, charRange);
+                    xmlReceiver.ignorableWhitespace(charRange.chars, charRange.start, length);
                     charBufferPos += length;
                     break;
                 }
                 case PI: {
-                    xmlReceiver.processingInstruction(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    final String target = getString(stringBuffer.get(stringBufferPos++));
+
+                    final int dataInt = intBuffer.get(intBufferPos++);
+                    final String data = getValue(dataInt, charBufferPos, charRange);
+                    if (valuesInChars)
+                        charBufferPos += Math.max(dataInt, 0);
+
+                    xmlReceiver.processingInstruction(target, data);
                     break;
                 }
                 case SKIPPED_ENTITY: {
-                    xmlReceiver.skippedEntity(StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.skippedEntity(getString(stringBuffer.get(stringBufferPos++)));
                     break;
                 }
                 case START_PREFIX_MAPPING: {
-                    xmlReceiver.startPrefixMapping(StringBuilder.get(StringBuilderPos++),
-                            StringBuilder.get(StringBuilderPos++));
+                    xmlReceiver.startPrefixMapping(getString(stringBuffer.get(stringBufferPos++)),
+                            getString(stringBuffer.get(stringBufferPos++)));
                     break;
                 }
                 case COMMENT: {
 
-                    final int length = intBuffer[intBufferPos++];
-                    xmlReceiver.comment(charBuffer, charBufferPos, length);
+                    final int length = intBuffer.get(intBufferPos++);
+                    charBuffer.getRange(charBufferPos, length, charRange);
+                    xmlReceiver.comment(charRange.chars, charRange.start, length);
                     charBufferPos += length;
 
                     break;
@@ -374,6 +423,22 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
     }
 
+    private String getString(int index) {
+        return index == NULL_STRING ? null : stringTable.get(index);
+    }
+
+    // Return a value from its index in the value table, or from its length in the character data
+    private String getValue(int indexOrLength, int charBufferPos, CharRange charRange) {
+        if (indexOrLength == NULL_STRING) {
+            return null;
+        } else if (!valuesInChars) {
+            return valueTable.get(indexOrLength);
+        } else {
+            charBuffer.getRange(charBufferPos, indexOrLength, charRange);
+            return new String(charRange.chars, charRange.start, indexOrLength);
+        }
+    }
+
     // Create a new mark
     // NOTE: This must be called *before* the startElement() event that will be the first element associated with the mark.
     public Mark getMark(String id) {
@@ -453,9 +518,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(END_ELEMENT);
         addLocation();
-        StringBuilder.add(uri);
-        StringBuilder.add(localname);
-        StringBuilder.add(qName);
+        addName(uri);
+        addName(localname);
+        addName(qName);
 
         super.endElement(uri, localname, qName);
     }
@@ -465,7 +530,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(END_PREFIX_MAPPING);
         // NOTE: We don't keep location data for this event as it is very unlikely to be used
-        StringBuilder.add(s);
+        addName(s);
 
         super.endPrefixMapping(s);
     }
@@ -487,8 +552,8 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(PI);
         addLocation();
-        StringBuilder.add(s);
-        StringBuilder.add(s1);
+        addName(s);
+        addValue(s1);
 
         super.processingInstruction(s, s1);
     }
@@ -505,7 +570,7 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(SKIPPED_ENTITY);
         addLocation();
-        StringBuilder.add(s);
+        addName(s);
 
         super.skippedEntity(s);
     }
@@ -529,9 +594,9 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             if (publicId == null && locator.getPublicId() != null)
                 publicId = locator.getPublicId();
         }
-        StringBuilder.add(uri);
-        StringBuilder.add(localname);
-        StringBuilder.add(qName);
+        addName(uri);
+        addName(localname);
+        addName(qName);
 
         addToAttributeBuffer(attributes);
 
@@ -543,8 +608,8 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
 
         addToEventBuffer(START_PREFIX_MAPPING);
         // NOTE: We don't keep location data for this event as it is very unlikely to be used
-        StringBuilder.add(s);
-        StringBuilder.add(s1);
+        addName(s);
+        addName(s1);
 
         super.startPrefixMapping(s, s1);
     }
@@ -569,158 +634,96 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
         }
     }
 
-    protected void addToCharBuffer(char[] chars, int start, int length) {
-        if (charBuffer.length - charBufferPosition <= length) {
-            // double the array
-            char[] old = charBuffer;
-            try{
-                charBuffer = new char[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, charBuffer, 0, charBufferPosition);
-            addToCharBuffer(chars, start, length);
+    // Add a string which is likely to repeat, and is stored only once
+    private void addName(String name) {
+        stringBuffer.add(nameIndex(name));
+    }
+
+    private int nameIndex(String name) {
+        if (name == null)
+            return NULL_STRING;
+
+        final Integer existingIndex = nameIndexes.get(name);
+        if (existingIndex != null)
+            return existingIndex;
+
+        final int index = stringTable.size();
+        stringTable.add(name);
+        nameIndexes.put(name, index);
+        return index;
+    }
+
+    // Add a string which is unlikely to repeat
+    //
+    // Values are kept as strings so that replaying doesn't create new strings, except with a temporary file, in which
+    // case they are stored with character data so that they can move to the file as well.
+    private void addValue(String value) {
+        if (value == null) {
+            intBuffer.add(NULL_STRING);
+        } else if (!valuesInChars) {
+            intBuffer.add(valueTable.size());
+            valueTable.add(value);
         } else {
-            System.arraycopy(chars, start, charBuffer, charBufferPosition, length);
-            charBufferPosition += length;
+            intBuffer.add(value.length());
+            charBuffer.add(value);
         }
     }
 
+    protected void addToCharBuffer(char[] chars, int start, int length) {
+        charBuffer.add(chars, start, length);
+    }
+
     protected void addToIntBuffer(int i) {
-        if (intBuffer.length - intBufferPosition == 1) {
-            // double the array
-            int[] old = intBuffer;
-            try{
-                intBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, intBuffer, 0, intBufferPosition);
-            addToIntBuffer(i);
-        } else {
-            intBuffer[intBufferPosition++] = i;
-        }
+        intBuffer.add(i);
     }
 
     protected void addToLineBuffer(int i) {
-        if (lineBuffer.length - lineBufferPosition == 1) {
-            // double the array
-            int[] old = lineBuffer;
-            try {
-                lineBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, lineBuffer, 0, lineBufferPosition);
-            addToLineBuffer(i);
-        } else {
-            lineBuffer[lineBufferPosition++] = i;
-        }
+        lineBuffer.add(i);
     }
 
     protected void addToSystemIdBuffer(String systemId) {
-
-        // Try to detect contiguous system ids
-        //
-        // NOTE: This native method won't work during replay, will need to store number of contiguous identical strings
-        // as well, and/or use intern().
-//        if (systemIdBufferPosition > 0 && systemIdBuffer[systemIdBufferPosition] == systemId) {
-//            return;
-//        }
-
-        if (systemIdBuffer.length - systemIdBufferPosition == 1) {
-            // double the array
-            String[] old = systemIdBuffer;
-            try {
-                systemIdBuffer = new String[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, systemIdBuffer, 0, systemIdBufferPosition);
-            addToSystemIdBuffer(systemId);
-        } else {
-            systemIdBuffer[systemIdBufferPosition++] = systemId;
-        }
+        // System ids rarely change within a document, so each one is stored only once
+        systemIdBuffer.add(nameIndex(systemId));
     }
 
-
     protected void addToEventBuffer(byte b) {
-        if (eventBuffer.length - eventBufferPosition == 1) {
-            // double the array
-            byte[] old = eventBuffer;
-            try {
-                eventBuffer = new byte[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, eventBuffer, 0, eventBufferPosition);
-            addToEventBuffer(b);
-        } else {
-            eventBuffer[eventBufferPosition++] = b;
-        }
+        eventBuffer.add(b);
     }
 
     private void addToAttributeBuffer(Attributes attributes) {
-        if (attributeCountBuffer.length - attributeCountBufferPosition == 1) {
-            // double the array
-            int[] old = attributeCountBuffer;
-            try {
-                attributeCountBuffer = new int[old.length * 3 / 2 + 1];
-            } catch (Error e) {
-                System.out.println("Out of memory: " + old.length);
-                throw e;
-            }
-            System.arraycopy(old, 0, attributeCountBuffer, 0, attributeCountBufferPosition);
-            addToAttributeBuffer(attributes);
-        } else {
-            final int count = attributes.getLength();
-            attributeCountBuffer[attributeCountBufferPosition++] = count;
-            attributeCount += count;
-            for (int i = 0; i < attributes.getLength(); i++) {
-                StringBuilder.add(attributes.getURI(i));
-                StringBuilder.add(attributes.getLocalName(i));
-                StringBuilder.add(attributes.getQName(i));
-                StringBuilder.add(attributes.getType(i));
-                StringBuilder.add(attributes.getValue(i));
-            }
+        final int count = attributes.getLength();
+        attributeCountBuffer.add(count);
+        attributeCount += count;
+        for (int i = 0; i < count; i++) {
+            addName(attributes.getURI(i));
+            addName(attributes.getLocalName(i));
+            addName(attributes.getQName(i));
+            addName(attributes.getType(i));
+            addValue(attributes.getValue(i));
         }
     }
 
     public void writeExternal(ObjectOutput out) throws IOException {
 
-        out.writeInt(eventBufferPosition);
-        out.write(eventBuffer, 0, eventBufferPosition);
-
-        out.writeInt(charBufferPosition);
-        for (int i = 0; i < charBufferPosition; i++)
-            out.writeChar(charBuffer[i]);
-
-        out.writeInt(intBufferPosition);
-        for (int i = 0; i < intBufferPosition; i++)
-            out.writeInt(intBuffer[i]);
-
-        out.writeInt(lineBufferPosition);
-        for (int i = 0; i < lineBufferPosition; i++)
-            out.writeInt(lineBuffer[i]);
-
-        out.writeInt(systemIdBufferPosition);
-        for (int i = 0; i < systemIdBufferPosition; i++) {
-            final String systemId = systemIdBuffer[i];
-            out.writeObject(systemId == null ? "" : systemId);
+        final Spill spill = this.spill;
+        spill.acquire();
+        try {
+            eventBuffer.write(out);
+            charBuffer.write(out);
+            intBuffer.write(out);
+            lineBuffer.write(out);
+            systemIdBuffer.write(out);
+            attributeCountBuffer.write(out);
+            stringBuffer.write(out);
+        } finally {
+            spill.release();
         }
 
-        out.writeInt(attributeCountBufferPosition);
-        for (int i = 0; i < attributeCountBufferPosition; i++)
-            out.writeInt(attributeCountBuffer[i]);
+        writeStrings(out, stringTable);
 
-        out.writeInt(StringBuilder.size());
-        for (int i = 0; i < StringBuilder.size(); i++)
-            out.writeObject(StringBuilder.get(i));
+        out.writeBoolean(valuesInChars);
+        if (!valuesInChars)
+            writeStrings(out, valueTable);
 
         out.writeBoolean(hasDocumentLocator);
         out.writeObject(publicId == null ? "" : publicId);
@@ -745,45 +748,29 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        eventBufferPosition = in.readInt();
-        eventBuffer = new byte[eventBufferPosition];
-        for (int i = 0; i < eventBufferPosition; i++)
-            eventBuffer[i] = in.readByte();
-
-        charBufferPosition = in.readInt();
-        charBuffer = new char[charBufferPosition];
-        for (int i = 0; i < charBufferPosition; i++)
-            charBuffer[i] = in.readChar();
-
-        intBufferPosition = in.readInt();
-        intBuffer = new int[intBufferPosition];
-        for (int i = 0; i < intBufferPosition; i++)
-            intBuffer[i] = in.readInt();
-
-        lineBufferPosition = in.readInt();
-        lineBuffer = new int[lineBufferPosition];
-        for (int i = 0; i < lineBufferPosition; i++)
-            lineBuffer[i] = in.readInt();
-
-        systemIdBufferPosition = in.readInt();
-        systemIdBuffer = new String[systemIdBufferPosition];
-        for (int i = 0; i < systemIdBufferPosition; i++) {
-            systemIdBuffer[i] = (String) in.readObject();
-            if ("".equals(systemIdBuffer[i]))
-                systemIdBuffer[i] = null;
-        }
-
-        attributeCountBufferPosition = in.readInt();
-        attributeCountBuffer = new int[attributeCountBufferPosition];
-        for (int i = 0; i < attributeCountBufferPosition; i++) {
-            final int count = in.readInt();
-            attributeCountBuffer[i] = count;
-            attributeCount += count;
-        }
-
-        final int StringBuilderSize = in.readInt();
-        for (int i = 0; i < StringBuilderSize; i++)
-            StringBuilder.add((String) in.readObject());
+
+        // A deserialized store is always kept in memory
+        spill = new Spill(-1);
+
+        eventBuffer = ByteChunks.read(in, spill);
+        charBuffer = CharChunks.read(in, spill);
+        intBuffer = IntChunks.read(in, spill);
+        lineBuffer = IntChunks.read(in, spill);
+        systemIdBuffer = IntChunks.read(in, spill);
+        attributeCountBuffer = IntChunks.read(in, spill);
+        stringBuffer = IntChunks.read(in, spill);
+
+        attributeCount = 0;
+        for (int i = 0; i < attributeCountBuffer.size; i++)
+            attributeCount += attributeCountBuffer.get(i);
+
+        stringTable = readStrings(in);
+        nameIndexes = new HashMap<String, Integer>(stringTable.size() * 2);
+        for (int i = 0; i < stringTable.size(); i++)
+            nameIndexes.put(stringTable.get(i), i);
+
+        valuesInChars = in.readBoolean();
+        valueTable = valuesInChars ? new ArrayList<String>() : readStrings(in);
 
         hasDocumentLocator = in.readBoolean();
         publicId = (String) in.readObject();
@@ -801,4 +788,520 @@ public class SAXStore extends ForwardingXMLReceiver implements Externalizable {
             }
         }
     }
+
+    // Write strings as all lengths followed by all characters
+    private static void writeStrings(ObjectOutput out, List<String> strings) throws IOException {
+        final Spill noSpill = new Spill(-1);
+        final IntChunks lengths = new IntChunks(strings.size() + 1, noSpill);
+        final CharChunks chars = new CharChunks(INITIAL_SIZE * 4, noSpill);
+        for (final String s : strings) {
+            lengths.add(s.length());
+            chars.add(s);
+        }
+        lengths.write(out);
+        chars.write(out);
+    }
+
+    private static List<String> readStrings(ObjectInput in) throws IOException {
+        final Spill noSpill = new Spill(-1);
+        final IntChunks lengths = IntChunks.read(in, noSpill);
+        final CharChunks chars = CharChunks.read(in, noSpill);
+        final CharRange charRange = new CharRange();
+
+        final List<String> result = new ArrayList<String>(lengths.size);
+        int charsPos = 0;
+        for (int i = 0; i < lengths.size; i++) {
+            final int length = lengths.get(i);
+            chars.getRange(charsPos, length, charRange);
+            result.add(new String(charRange.chars, charRange.start, length));
+            charsPos += length;
+        }
+        return result;
+    }
+
+    // Grow the first chunk of a buffer so it can hold at least minLength entries
+    private static int firstChunkLength(int currentLength, int minLength) {
+        int length = Math.max(currentLength, 1);
+        while (length < minLength)
+            length *= 2;
+        return Math.min(length, CHUNK_SIZE);
+    }
+
+    // Length of the first chunk of a buffer read from a stream
+    private static int firstChunkLength(int size) {
+        return Math.max(Math.min(size, CHUNK_SIZE), 1);
+    }
+
+    private static long[] growOffsets(long[] offsets, int length) {
+        final int previousLength = offsets.length;
+        final long[] result = new long[length];
+        System.arraycopy(offsets, 0, result, 0, previousLength);
+        Arrays.fill(result, previousLength, length, -1);
+        return result;
+    }
+
+    // NOTE: Chunks moved to the temporary file are null in the chunks array, and their offset in the file is kept in
+    // spilledOffsets. Only full chunks are moved.
+
+    private static final class ByteChunks {
+
+        private final Spill spill;
+        private byte[][] chunks = new byte[1][];
+        private long[] spilledOffsets = { -1 };
+        private int size;
+
+        ByteChunks(int initialSize, Spill spill) {
+            this.spill = spill;
+            chunks[0] = new byte[initialSize];
+        }
+
+        void add(byte b) {
+            chunkFor(size)[size & CHUNK_MASK] = b;
+            size++;
+        }
+
+        byte get(int pos) {
+            final int index = pos >>> CHUNK_SHIFT;
+            final byte[] chunk = chunks[index];
+            return chunk != null ? chunk[pos & CHUNK_MASK] : spill.getByte(spilledOffsets[index] + (pos & CHUNK_MASK));
+        }
+
+        // Return the chunk for the given position, creating or growing it as needed
+        private byte[] chunkFor(int pos) {
+            final int index = pos >>> CHUNK_SHIFT;
+            if (index == 0) {
+                if (pos >= chunks[0].length) {
+                    final byte[] newChunk = new byte[firstChunkLength(chunks[0].length, pos + 1)];
+                    System.arraycopy(chunks[0], 0, newChunk, 0, chunks[0].length);
+                    chunks[0] = newChunk;
+                }
+            } else {
+                if (index >= chunks.length) {
+                    final byte[][] newChunks = new byte[Math.max(chunks.length * 2, index + 1)][];
+                    System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+                    chunks = newChunks;
+                    spilledOffsets = growOffsets(spilledOffsets, chunks.length);
+                }
+                if (chunks[index] == null && spilledOffsets[index] == -1) {
+                    chunks[index] = new byte[CHUNK_SIZE];
+                    if (spill.allocated(CHUNK_SIZE)) {
+                        spilledOffsets[index - 1] = spill.write(chunks[index - 1]);
+                        chunks[index - 1] = null;
+                    }
+                }
+            }
+            return chunks[index];
+        }
+
+        private byte[] chunk(int index, int count) {
+            if (chunks[index] != null)
+                return chunks[index];
+
+            final byte[] result = new byte[count];
+            for (int i = 0; i < count; i++)
+                result[i] = spill.getByte(spilledOffsets[index] + i);
+            return result;
+        }
+
+        void write(ObjectOutput out) throws IOException {
+            out.writeInt(size);
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+                final int count = Math.min(size - pos, CHUNK_SIZE);
+                out.write(chunk(pos >>> CHUNK_SHIFT, count), 0, count);
+            }
+        }
+
+        static ByteChunks read(ObjectInput in, Spill spill) throws IOException {
+            final int size = in.readInt();
+            final ByteChunks result = new ByteChunks(firstChunkLength(size), spill);
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE)
+                in.readFully(result.chunkFor(pos), 0, Math.min(size - pos, CHUNK_SIZE));
+            result.size = size;
+            return result;
+        }
+    }
+
+    private static final class IntChunks {
+
+        private final Spill spill;
+        private int[][] chunks = new int[1][];
+        private long[] spilledOffsets = { -1 };
+        private int size;
+
+        IntChunks(int initialSize, Spill spill) {
+            this.spill = spill;
+            chunks[0] = new int[initialSize];
+        }
+
+        void add(int i) {
+            chunkFor(size)[size & CHUNK_MASK] = i;
+            size++;
+        }
+
+        int get(int pos) {
+            final int index = pos >>> CHUNK_SHIFT;
+            final int[] chunk = chunks[index];
+            return chunk != null ? chunk[pos & CHUNK_MASK] : spill.getInt(spilledOffsets[index] + (pos & CHUNK_MASK) * 4);
+        }
+
+        private int[] chunkFor(int pos) {
+            final int index = pos >>> CHUNK_SHIFT;
+            if (index == 0) {
+                if (pos >= chunks[0].length) {
+                    final int[] newChunk = new int[firstChunkLength(chunks[0].length, pos + 1)];
+                    System.arraycopy(chunks[0], 0, newChunk, 0, chunks[0].length);
+                    chunks[0] = newChunk;
+                }
+            } else {
+                if (index >= chunks.length) {
+                    final int[][] newChunks = new int[Math.max(chunks.length * 2, index + 1)][];
+                    System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+                    chunks = newChunks;
+                    spilledOffsets = growOffsets(spilledOffsets, chunks.length);
+                }
+                if (chunks[index] == null && spilledOffsets[index] == -1) {
+                    chunks[index] = new int[CHUNK_SIZE];
+                    if (spill.allocated(CHUNK_SIZE * 4)) {
+                        spilledOffsets[index - 1] = spill.write(chunks[index - 1]);
+                        chunks[index - 1] = null;
+                    }
+                }
+            }
+            return chunks[index];
+        }
+
+        private int[] chunk(int index, int count) {
+            if (chunks[index] != null)
+                return chunks[index];
+
+            final int[] result = new int[count];
+            spill.getInts(spilledOffsets[index], result, count);
+            return result;
+        }
+
+        // Write whole chunks at once instead of one int at a time
+        void write(ObjectOutput out) throws IOException {
+            out.writeInt(size);
+            final byte[] bytes = new byte[Math.min(size, CHUNK_SIZE) * 4];
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+                final int count = Math.min(size - pos, CHUNK_SIZE);
+                ByteBuffer.wrap(bytes).asIntBuffer().put(chunk(pos >>> CHUNK_SHIFT, count), 0, count);
+                out.write(bytes, 0, count * 4);
+            }
+        }
+
+        static IntChunks read(ObjectInput in, Spill spill) throws IOException {
+            final int size = in.readInt();
+            final IntChunks result = new IntChunks(firstChunkLength(size), spill);
+            final byte[] bytes = new byte[Math.min(size, CHUNK_SIZE) * 4];
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+                final int count = Math.min(size - pos, CHUNK_SIZE);
+                in.readFully(bytes, 0, count * 4);
+                ByteBuffer.wrap(bytes).asIntBuffer().get(result.chunkFor(pos), 0, count);
+            }
+            result.size = size;
+            return result;
+        }
+    }
+
+    // Characters of an event, which are copied only if they span two chunks or come from the temporary file
+    //
+    // Each replay uses its own CharRange, which also holds the last chunk read from the temporary file, so that
+    // concurrent replays of the same store don't share that buffer.
+    private static final class CharRange {
+        char[] chars;
+        int start;
+
+        int spilledChunkIndex = -1;
+        char[] spilledChunk;
+    }
+
+    private static final class CharChunks {
+
+        private static final char[] EMPTY = new char[0];
+
+        private final Spill spill;
+        private char[][] chunks = new char[1][];
+        private long[] spilledOffsets = { -1 };
+        private int size;
+
+        CharChunks(int initialSize, Spill spill) {
+            this.spill = spill;
+            chunks[0] = new char[initialSize];
+        }
+
+        void add(char[] chars, int start, int length) {
+            while (length > 0) {
+                final int offset = size & CHUNK_MASK;
+                final int count = Math.min(length, CHUNK_SIZE - offset);
+                System.arraycopy(chars, start, chunkFor(size + count - 1), offset, count);
+                size += count;
+                start += count;
+                length -= count;
+            }
+        }
+
+        void add(String s) {
+            int start = 0;
+            int length = s.length();
+            while (length > 0) {
+                final int offset = size & CHUNK_MASK;
+                final int count = Math.min(length, CHUNK_SIZE - offset);
+                s.getChars(start, start + count, chunkFor(size + count - 1), offset);
+                size += count;
+                start += count;
+                length -= count;
+            }
+        }
+
+        void getRange(int pos, int length, CharRange range) {
+            final int offset = pos & CHUNK_MASK;
+            if (length == 0) {
+                range.chars = EMPTY;
+                range.start = 0;
+            } else if (offset + length <= CHUNK_SIZE) {
+                range.chars = chunk(pos >>> CHUNK_SHIFT, range);
+                range.start = offset;
+            } else {
+                final char[] result = new char[length];
+                int resultPos = 0;
+                while (resultPos < length) {
+                    final int chunkOffset = (pos + resultPos) & CHUNK_MASK;
+                    final int count = Math.min(length - resultPos, CHUNK_SIZE - chunkOffset);
+                    System.arraycopy(chunk((pos + resultPos) >>> CHUNK_SHIFT, range), chunkOffset, result, resultPos, count);
+                    resultPos += count;
+                }
+                range.chars = result;
+                range.start = 0;
+            }
+        }
+
+        // NOTE: A chunk read from the temporary file is only valid until the next chunk is read with the same range
+        private char[] chunk(int index, CharRange range) {
+            if (chunks[index] != null)
+                return chunks[index];
+
+            if (range.spilledChunkIndex != index) {
+                if (range.spilledChunk == null)
+                    range.spilledChunk = new char[CHUNK_SIZE];
+                spill.getChars(spilledOffsets[index], range.spilledChunk, CHUNK_SIZE);
+                range.spilledChunkIndex = index;
+            }
+            return range.spilledChunk;
+        }
+
+        private char[] chunkFor(int pos) {
+            final int index = pos >>> CHUNK_SHIFT;
+            if (index == 0) {
+                if (pos >= chunks[0].length) {
+                    final char[] newChunk = new char[firstChunkLength(chunks[0].length, pos + 1)];
+                    System.arraycopy(chunks[0], 0, newChunk, 0, chunks[0].length);
+                    chunks[0] = newChunk;
+                }
+            } else {
+                if (index >= chunks.length) {
+                    final char[][] newChunks = new char[Math.max(chunks.length * 2, index + 1)][];
+                    System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+                    chunks = newChunks;
+                    spilledOffsets = growOffsets(spilledOffsets, chunks.length);
+                }
+                if (chunks[index] == null && spilledOffsets[index] == -1) {
+                    chunks[index] = new char[CHUNK_SIZE];
+                    if (spill.allocated(CHUNK_SIZE * 2)) {
+                        spilledOffsets[index - 1] = spill.write(chunks[index - 1]);
+                        chunks[index - 1] = null;
+                    }
+                }
+            }
+            return chunks[index];
+        }
+
+        // Write whole chunks at once instead of one char at a time
+        void write(ObjectOutput out) throws IOException {
+            out.writeInt(size);
+            final byte[] bytes = new byte[Math.min(size, CHUNK_SIZE) * 2];
+            final CharRange range = new CharRange();
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+                final int count = Math.min(size - pos, CHUNK_SIZE);
+                ByteBuffer.wrap(bytes).asCharBuffer().put(chunk(pos >>> CHUNK_SHIFT, range), 0, count);
+                out.write(bytes, 0, count * 2);
+            }
+        }
+
+        static CharChunks read(ObjectInput in, Spill spill) throws IOException {
+            final int size = in.readInt();
+            final CharChunks result = new CharChunks(firstChunkLength(size), spill);
+            final byte[] bytes = new byte[Math.min(size, CHUNK_SIZE) * 2];
+            for (int pos = 0; pos < size; pos += CHUNK_SIZE) {
+                final int count = Math.min(size - pos, CHUNK_SIZE);
+                in.readFully(bytes, 0, count * 2);
+                ByteBuffer.wrap(bytes).asCharBuffer().get(result.chunkFor(pos), 0, count);
+            }
+            result.size = size;
+            return result;
+        }
+    }
+
+    // Temporary file holding the chunks moved out of memory, shared by all the buffers of a store
+    private static final class Spill {
+
+        // The file is mapped in regions, and a chunk never spans two regions
+        private static final int REGION_SIZE = 64 * 1024 * 1024;
+
+        private long threshold;
+        private long memoryBytes;
+        private long spilledBytes;
+
+        private File file;
+        private RandomAccessFile randomAccessFile;
+        private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+        private long fileSize;
+
+        // Regions are only unmapped once the file is deleted and no thread is reading from them anymore, as accessing an
+        // unmapped region crashes the JVM
+        private volatile boolean deleted;
+        private int readers;
+
+        Spill(long threshold) {
+            this.threshold = threshold;
+        }
+
+        // Called when a buffer allocates a new chunk, return whether its previous chunk must be moved to the file
+        boolean allocated(int bytes) {
+            memoryBytes += bytes;
+            if (threshold >= 0 && memoryBytes > threshold) {
+                memoryBytes -= bytes;
+                spilledBytes += bytes;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        long write(byte[] chunk) {
+            final long offset = reserve(chunk.length);
+            region(offset).put(chunk);
+            return offset;
+        }
+
+        long write(int[] chunk) {
+            final long offset = reserve(chunk.length * 4);
+            region(offset).asIntBuffer().put(chunk);
+            return offset;
+        }
+
+        long write(char[] chunk) {
+            final long offset = reserve(chunk.length * 2);
+            region(offset).asCharBuffer().put(chunk);
+            return offset;
+        }
+
+        byte getByte(long offset) {
+            return regions.get(regionIndex(offset)).get((int) (offset % REGION_SIZE));
+        }
+
+        int getInt(long offset) {
+            return regions.get(regionIndex(offset)).getInt((int) (offset % REGION_SIZE));
+        }
+
+        void getInts(long offset, int[] dest, int count) {
+            region(offset).asIntBuffer().get(dest, 0, count);
+        }
+
+        void getChars(long offset, char[] dest, int count) {
+            region(offset).asCharBuffer().get(dest, 0, count);
+        }
+
+        // Region containing the offset, positioned at the offset
+        private ByteBuffer region(long offset) {
+            final ByteBuffer result = regions.get(regionIndex(offset)).duplicate();
+            result.position((int) (offset % REGION_SIZE));
+            return result;
+        }
+
+        private int regionIndex(long offset) {
+            if (deleted)
+                throw new OXFException("SAXStore read after its temporary file was deleted");
+            return (int) (offset / REGION_SIZE);
+        }
+
+        // Return the offset where to write the given number of bytes, creating the file and mapping regions as needed
+        private long reserve(int bytes) {
+            if (deleted)
+                throw new OXFException("SAXStore written after its temporary file was deleted");
+            try {
+                if (file == null) {
+                    file = File.createTempFile("orbeon-saxstore-", ".tmp");
+                    randomAccessFile = new RandomAccessFile(file, "rw");
+                    logger.debug("SAXStore over " + threshold + " bytes, moving events to temporary file: " + file.getAbsolutePath());
+                }
+
+                // Don't span two regions
+                if (fileSize % REGION_SIZE + bytes > REGION_SIZE)
+                    fileSize += REGION_SIZE - fileSize % REGION_SIZE;
+
+                final long offset = fileSize;
+                fileSize += bytes;
+
+                while (regions.size() <= regionIndex(offset))
+                    regions.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_SIZE, REGION_SIZE));
+
+                return offset;
+            } catch (IOException e) {
+                throw new OXFException(e);
+            }
+        }
+
+        // Called before reading from the file from any thread
+        synchronized void acquire() {
+            if (deleted)
+                throw new OXFException("SAXStore read after its temporary file was deleted");
+            readers++;
+        }
+
+        synchronized void release() {
+            readers--;
+            if (deleted && readers == 0)
+                close();
+        }
+
+        synchronized void delete() {
+            if (! deleted && file != null) {
+                deleted = true;
+                if (readers == 0)
+                    close();
+            }
+        }
+
+        private void close() {
+            for (final MappedByteBuffer region : regions)
+                unmap(region);
+            regions.clear();
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Ignore, the file is deleted anyway
+            }
+            // The file can't be deleted while mapped on some platforms, in which case it is deleted on exit. This
+            // only happens if the JVM doesn't allow unmapping regions explicitly.
+            if (! file.delete()) {
+                logger.debug("unable to delete SAXStore temporary file, deleting on exit: " + file.getAbsolutePath());
+                file.deleteOnExit();
+            }
+        }
+
+        // Release a mapped region now rather than when it is garbage collected, as it holds on to memory and to the file
+        // NOTE: There is no public API for this, so use the cleaner of direct buffers if the JVM has one.
+        private static void unmap(MappedByteBuffer region) {
+            try {
+                final Method cleanerMethod = region.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(region);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (Exception e) {
+                // Not supported by this JVM, the region is unmapped when garbage collected
+            }
+        }
+    }
 }
@@ -155,7 +155,7 @@ class PageFlowControllerProcessor extends ProcessorImpl with Logging {
         }
 
         // Run the first matching entry if any
-        pageFlow.routes.iterator map (route ⇒ route → MatchResult(route.routeElement.pattern, path)) find (_._2.matches) match {
+        pageFlow.routeIndex.find(path) match {
             case Some((route: FileRoute, matchResult)) ⇒
                 // Run the given route and let the caller handle errors
                 debug("processing file", logParams)
@@ -276,12 +276,19 @@ class PageFlowControllerProcessor extends ProcessorImpl with Logging {
                 case page: PageOrServiceElement ⇒ PageOrServiceRoute(page, compile)
             }
 
+        // Optionally compile all the pipelines now rather than upon the first request to each page or service
+        if (att(configRoot, PrecompileProperty) map (Set("true", "1")(_)) getOrElse properties.getBoolean(PrecompileProperty, false))
+            routes foreach {
+                case page: PageOrServiceRoute ⇒ page.pipelineConfig
+                case _ ⇒
+            }
+
         // Find a handler route
         def handler(elementNames: Set[String]) =
             topLevelElements find (e ⇒ elementNames(e.getName)) flatMap (att(_, "page")) flatMap
                 { pageId ⇒ routes collectFirst { case page: PageOrServiceRoute if page.routeElement.id == Some(pageId) ⇒ page } }
 
-        PageFlow(routes, handler(Set("not-found-handler")), handler(Set("unauthorized-handler")), handler(Set("error-handler")), pathMatchers, Option(urlBase))
+        PageFlow(routes, new RouteIndex(routes map (route ⇒ route.routeElement.pattern → route)), handler(Set("not-found-handler")), handler(Set("unauthorized-handler")), handler(Set("error-handler")), pathMatchers, Option(urlBase))
     }
 
     def createPipelineAST(
@@ -345,6 +352,7 @@ object PageFlowControllerProcessor {
     val PagePublicMethodsProperty    = "page-public-methods"
     val ServicePublicMethodsProperty = "service-public-methods"
     val AuthorizerProperty           = "authorizer"
+    val PrecompileProperty           = "precompile"
 
     val DefaultMatcher               = new QName("glob")
     val DefaultVisibility            = "private"
@@ -496,6 +504,7 @@ object PageFlowControllerProcessor {
 
     case class PageFlow(
         routes: Seq[Route],
+        routeIndex: RouteIndex[Route],
         notFoundRoute: Option[PageOrServiceRoute],
         unauthorizedRoute: Option[PageOrServiceRoute],
         errorRoute: Option[PageOrServiceRoute],
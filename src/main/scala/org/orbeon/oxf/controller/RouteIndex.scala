@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.controller
+
+import collection.mutable
+import java.util.regex.Pattern
+import org.orbeon.oxf.processor.RegexpMatcher.MatchResult
+
+/**
+ * Index of the routes of a page flow, which finds the first route matching a path.
+ *
+ * Trying each route's pattern in order is linear in the number of routes, and page flows can have hundreds of pages
+ * and services. Instead, each pattern is indexed by its literal prefix, that is the part of the path any matching path
+ * must start with:
+ *
+ * - patterns which are entirely literal, like the glob /fr/service/persistence/crud, are found with a single lookup
+ * - other patterns are stored in a trie, and only the patterns with a prefix of the path are tried, in page flow order
+ *
+ * So lookup time depends on the length of the path and on the number of routes sharing a prefix with it, not on the
+ * total number of routes. The result is the same as with the linear scan: the first matching route in page flow order.
+ */
+class RouteIndex[T](routes: Seq[(Pattern, T)]) {
+
+    import RouteIndex._
+
+    private val indexedRoutes = routes.toIndexedSeq
+
+    // Literal path → index of the first route with that exact path
+    private val literalRoutes = mutable.HashMap[String, Int]()
+
+    // Trie of the literal prefixes of the other routes
+    private val root = new Node
+
+    for (((pattern, _), index) ← indexedRoutes.zipWithIndex)
+        literalPrefix(pattern) match {
+            case (path, true) ⇒
+                if (! literalRoutes.contains(path))
+                    literalRoutes += path → index
+            case (prefix, false) ⇒
+                (prefix.foldLeft(root)((node, c) ⇒ node.children.getOrElseUpdate(c, new Node))).indexes += index
+        }
+
+    // Return the first route matching the path, if any, and the result of the match
+    def find(path: String): Option[(T, MatchResult)] = {
+
+        // Gather the routes whose prefix is a prefix of the path
+        val candidates = mutable.ArrayBuffer[Int]() ++= root.indexes
+
+        var node = root
+        var i = 0
+        while ((node ne null) && i < path.length) {
+            node = node.children.get(path.charAt(i)).orNull
+            if (node ne null)
+                candidates ++= node.indexes
+            i += 1
+        }
+
+        // Only candidates before the literal route, if any, can take precedence over it
+        val literalIndex = literalRoutes.get(path)
+        val limit = literalIndex getOrElse Int.MaxValue
+
+        val firstCandidate =
+            candidates.sorted.iterator takeWhile (_ < limit) map
+                (index ⇒ index → MatchResult(indexedRoutes(index)._1, path)) find (_._2.matches)
+
+        // A literal pattern has no groups
+        firstCandidate orElse (literalIndex map (_ → MatchResult(matches = true))) map
+            { case (index, matchResult) ⇒ indexedRoutes(index)._2 → matchResult }
+    }
+
+    private class Node {
+        val children = mutable.HashMap[Char, Node]()
+        val indexes  = mutable.ArrayBuffer[Int]()
+    }
+}
+
+object RouteIndex {
+
+    private val MetaCharacters = "\\.[]{}()*+?^$|"
+    private val Quantifiers    = "*+?{"
+
+    // Return the literal prefix of the pattern, and whether the pattern is entirely literal
+    //
+    // This is conservative: the prefix can be shorter than the actual literal prefix, e.g. it is empty for patterns with
+    // flags or with an alternative, but any path matching the pattern starts with the prefix.
+    def literalPrefix(pattern: Pattern): (String, Boolean) = {
+
+        val regexp = pattern.pattern
+        val prefix = new StringBuilder
+
+        def hasAlternative = {
+            var i = 0
+            while (i < regexp.length && regexp.charAt(i) != '|')
+                i += (if (regexp.charAt(i) == '\\') 2 else 1)
+            i < regexp.length
+        }
+
+        // Whether the character at the given position makes the previous character optional or repeated
+        def isQuantifier(i: Int) = i < regexp.length && Quantifiers.indexOf(regexp.charAt(i)) >= 0
+
+        if (pattern.flags != 0 || hasAlternative)
+            ("", false)
+        else {
+            var i = 0
+            var literal = true
+            while (literal && i < regexp.length) {
+                val c = regexp.charAt(i)
+                // A backslash followed by a character other than a letter or digit quotes that character
+                val (quoted, length) =
+                    if (c == '\\' && i + 1 < regexp.length && ! Character.isLetterOrDigit(regexp.charAt(i + 1)))
+                        (Some(regexp.charAt(i + 1)), 2)
+                    else if (MetaCharacters.indexOf(c) == -1)
+                        (Some(c), 1)
+                    else
+                        (None, 0)
+
+                quoted match {
+                    case Some(literalChar) if ! isQuantifier(i + length) ⇒
+                        prefix.append(literalChar)
+                        i += length
+                    case _ ⇒
+                        literal = false
+                }
+            }
+            (prefix.toString, literal)
+        }
+    }
+}
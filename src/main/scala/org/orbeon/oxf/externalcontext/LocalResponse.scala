@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.externalcontext
+
+import collection.JavaConverters._
+import collection.mutable
+import java.io._
+import java.util.{List ⇒ JList, Map ⇒ JMap}
+import org.apache.commons.io.output.ByteArrayOutputStream
+import org.orbeon.oxf.pipeline.api.ExternalContext
+import org.orbeon.oxf.util.DateUtils
+
+/**
+ * Response used for local requests.
+ *
+ * Unlike a response obtained through a servlet include, this captures the status code, headers and body produced by
+ * the callee, so that the caller can handle them as it would handle an HTTP response. URL rewriting is delegated to
+ * the response of the calling request.
+ */
+class LocalResponse(response: ExternalContext.Response) extends ResponseAdapter {
+
+    private var _status = 200
+    private val _headers = mutable.LinkedHashMap[String, List[String]]()
+
+    private var byteStream: ByteArrayOutputStream = null
+    private var printWriter: PrintWriter = null
+
+    def status = _status
+
+    // Header names are lowercase
+    def headers: collection.Map[String, List[String]] = _headers
+    def jHeaders: JMap[String, JList[String]] = (_headers map { case (k, v) ⇒ k → v.asJava }).asJava
+
+    def contentType = _headers.get("content-type") flatMap (_.headOption)
+
+    // Return the body, or an empty stream if nothing was written
+    def getInputStream: InputStream = {
+        if (printWriter ne null)
+            printWriter.flush()
+
+        Option(byteStream) map (_.toInputStream) getOrElse new ByteArrayInputStream(Array[Byte]())
+    }
+
+    override def getOutputStream: OutputStream = {
+        if (byteStream eq null)
+            byteStream = new ByteArrayOutputStream
+        byteStream
+    }
+
+    // NOTE: Text is always encoded as UTF-8, see getCharacterEncoding
+    override def getWriter: PrintWriter = {
+        if (printWriter eq null)
+            printWriter = new PrintWriter(new OutputStreamWriter(getOutputStream, "utf-8"))
+        printWriter
+    }
+
+    override def getCharacterEncoding = "utf-8"
+
+    override def reset(): Unit = {
+        _status = 200
+        _headers.clear()
+        byteStream = null
+        printWriter = null
+    }
+
+    override def setStatus(status: Int): Unit = _status = status
+    override def sendError(code: Int): Unit = _status = code
+
+    override def setContentType(contentType: String): Unit = setHeader("content-type", contentType)
+    override def setContentLength(len: Int): Unit = setHeader("content-length", len.toString)
+
+    override def setHeader(name: String, value: String): Unit =
+        _headers += name.toLowerCase → List(value)
+
+    override def addHeader(name: String, value: String): Unit =
+        _headers += name.toLowerCase → (_headers.getOrElse(name.toLowerCase, Nil) :+ value)
+
+    override def setResourceCaching(lastModified: Long, expires: Long): Unit =
+        if (lastModified > 0)
+            setHeader("last-modified", DateUtils.RFC1123Date.print(lastModified))
+
+    override def sendRedirect(location: String, isServerSide: Boolean, isExitPortal: Boolean): Unit = {
+        _status = 302
+        setHeader("location", location)
+    }
+
+    override def rewriteActionURL(urlString: String) = response.rewriteActionURL(urlString)
+    override def rewriteRenderURL(urlString: String) = response.rewriteRenderURL(urlString)
+    override def rewriteActionURL(urlString: String, portletMode: String, windowState: String) = response.rewriteActionURL(urlString, portletMode, windowState)
+    override def rewriteRenderURL(urlString: String, portletMode: String, windowState: String) = response.rewriteRenderURL(urlString, portletMode, windowState)
+    override def rewriteResourceURL(urlString: String, rewriteMode: Int) = response.rewriteResourceURL(urlString, rewriteMode)
+    override def getNamespacePrefix = response.getNamespacePrefix
+}
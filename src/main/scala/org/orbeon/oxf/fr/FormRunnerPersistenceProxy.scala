@@ -30,7 +30,11 @@ import javax.xml.transform.stream.StreamResult
 import org.orbeon.oxf.xforms.action.XFormsAPI
 import org.orbeon.oxf.externalcontext.URLRewriter
 import collection.JavaConverters._
-import org.orbeon.oxf.util.{XPath, URLRewriterUtils, NetUtils}
+import org.orbeon.oxf.util.{LoggerFactory, IndentedLogger, XPath, URLRewriterUtils, NetUtils}
+import org.orbeon.oxf.servlet.OrbeonServlet
+import org.orbeon.oxf.externalcontext.{LocalResponse, LocalRequest, ExternalContextWrapper}
+import java.io.InputStream
+import java.util.{List ⇒ JList, Map ⇒ JMap}
 
 /**
  * The persistence proxy processor:
@@ -49,6 +53,13 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
 
     private val ParametersToForward = Set("document")
 
+    // Dispatch to persistence implementations running in this web app without going through HTTP
+    private val LocalDispatchProperty = "oxf.fr.persistence.proxy.local-dispatch"
+
+    private implicit val Logger = new IndentedLogger(LoggerFactory.createLogger(classOf[FormRunnerPersistenceProxy]), "")
+
+    private case class ProxyResponse(statusCode: Int, headers: JMap[String, JList[String]], inputStream: InputStream)
+
     // Start the processor
     override def start(pipelineContext: PipelineContext) {
         val ec = NetUtils.getExternalContext
@@ -78,13 +89,75 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         val (persistenceBaseURL, headers) = FormRunner.getPersistenceURLHeaders(app, form, formOrData)
         val connection = proxyEstablishConnection(request, NetUtils.appendQueryString(dropTrailingSlash(persistenceBaseURL) + path, buildQueryString), headers)
         // Proxy status code
-        response.setStatus(connection.getResponseCode)
+        response.setStatus(connection.statusCode)
         // Proxy incoming headers
-        filterCapitalizeAndCombineHeaders(connection.getHeaderFields, out = false) foreach (response.setHeader _).tupled
-        copyStream(connection.getInputStream, response.getOutputStream)
+        filterCapitalizeAndCombineHeaders(connection.headers, out = false) foreach (response.setHeader _).tupled
+        copyStream(connection.inputStream, response.getOutputStream)
+    }
+
+    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]): ProxyResponse = {
+
+        if (! Set("GET", "DELETE", "PUT", "POST")(request.getMethod))
+            throw new OXFException("Unsupported method: " + request.getMethod)
+
+        // Ask the request generator first, as the body might have been read already
+        // Q: Could this be handled automatically in ExternalContext?
+        def requestBody =
+            RequestGenerator.getRequestBody(PipelineContext.get) match {
+                case bodyURL: String ⇒ NetUtils.uriToInputStream(bodyURL)
+                case _ ⇒ request.getInputStream
+            }
+
+        val doOutput = Set("PUT", "POST")(request.getMethod)
+
+        // Paths without protocol are resolved against the service base URI, which can point to another server, so
+        // local dispatch must be explicitly enabled. It also bypasses servlet filters configured for the services.
+        def isLocalDispatch =
+            Properties.instance.getPropertySet.getBoolean(LocalDispatchProperty, false) &&
+            ! NetUtils.urlHasProtocol(uri) &&
+            OrbeonServlet.currentServlet.value.isDefined
+
+        if (isLocalDispatch)
+            proxyLocalDispatch(request, uri, headers, if (doOutput) Some(requestBody) else None)
+        else
+            proxyHTTPConnection(request, uri, headers, if (doOutput) Some(requestBody) else None)
+    }
+
+    // Run the persistence implementation in this JVM, through the servlet's ProcessorService
+    private def proxyLocalDispatch(request: Request, uri: String, headers: Map[String, String], body: Option[InputStream]): ProxyResponse = {
+
+        val externalContext = NetUtils.getExternalContext
+
+        val outgoingHeaders =
+            filterHeaders(request.getHeaderValuesMap.asScala, out = true).map{ case (name, values) ⇒ name.toLowerCase → values }.toMap ++
+            (headers map { case (name, value) ⇒ name.toLowerCase → Array(value) })
+
+        val localRequest =
+            new LocalRequest(
+                externalContext,
+                Logger,
+                request.getContextPath,
+                uri,
+                request.getMethod,
+                body map (is ⇒ useAndClose(is)(NetUtils.inputStreamToByteArray)) orNull,
+                outgoingHeaders)
+
+        val localResponse = new LocalResponse(externalContext.getResponse)
+
+        Logger.logDebug("", "dispatching persistence request locally", "method", request.getMethod, "URI", uri)
+
+        OrbeonServlet.currentServlet.value.get.processorService.service(
+            new PipelineContext,
+            new ExternalContextWrapper(externalContext) {
+                override def getRequest  = localRequest
+                override def getResponse = localResponse
+            }
+        )
+
+        ProxyResponse(localResponse.status, localResponse.jHeaders, localResponse.getInputStream)
     }
 
-    private def proxyEstablishConnection(request: Request, uri: String, headers: Map[String, String]) = {
+    private def proxyHTTPConnection(request: Request, uri: String, headers: Map[String, String], body: Option[InputStream]): ProxyResponse = {
         // Create the absolute outgoing URL
         val outgoingURL = {
             val persistenceBaseAbsoluteURL = URLRewriterUtils.rewriteServiceURL(NetUtils.getExternalContext.getRequest, uri, URLRewriter.REWRITE_MODE_ABSOLUTE)
@@ -99,15 +172,11 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
         def proxyOutgoingHeaders(connection: HTTPURLConnection) =
             filterCapitalizeAndCombineHeaders(request.getHeaderValuesMap, out = true) foreach (connection.setRequestProperty _).tupled
 
-        if (! Set("GET", "DELETE", "PUT", "POST")(request.getMethod))
-            throw new OXFException("Unsupported method: " + request.getMethod)
-
         // Prepare connection
-        val doOutput = Set("PUT", "POST")(request.getMethod)
         val connection = outgoingURL.openConnection.asInstanceOf[HTTPURLConnection]
 
         connection.setDoInput(true)
-        connection.setDoOutput(doOutput)
+        connection.setDoOutput(body.isDefined)
         connection.setRequestMethod(request.getMethod)
 
         setPersistenceHeaders(connection)
@@ -115,19 +184,10 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
 
         // Write body if needed
         // NOTE: HTTPURLConnection requires setting the body before calling connect()
-        if (doOutput) {
-            // Ask the request generator first, as the body might have been read already
-            // Q: Could this be handled automatically in ExternalContext?
-            val is = RequestGenerator.getRequestBody(PipelineContext.get) match {
-                case bodyURL: String ⇒ NetUtils.uriToInputStream(bodyURL)
-                case _ ⇒ request.getInputStream
-            }
-
-            copyStream(is, connection.getOutputStream)
-        }
+        body foreach (copyStream(_, connection.getOutputStream))
 
         connection.connect()
-        connection
+        ProxyResponse(connection.getResponseCode, connection.getHeaderFields, connection.getInputStream)
     }
 
     /**
@@ -162,7 +222,7 @@ class FormRunnerPersistenceProxy extends ProcessorImpl {
             val serviceURI = baseURI + "/form" + Option(path).getOrElse("")
 
             // TODO: Handle connection.getResponseCode.
-            useAndClose(proxyEstablishConnection(request, serviceURI, headers).getInputStream) { is ⇒
+            useAndClose(proxyEstablishConnection(request, serviceURI, headers).inputStream) { is ⇒
                 val forms = TransformerUtils.readTinyTree(XPath.GlobalConfiguration, is, serviceURI, false, false)
                 forms \\ "forms" \\ "form"
             }
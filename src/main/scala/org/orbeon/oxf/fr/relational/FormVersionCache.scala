@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.fr.relational
+
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.properties.Properties
+
+/**
+ * Cache of the latest published version of a form definition, per datasource/app/form.
+ *
+ * Entries are removed whenever a form definition is published or deleted through this node. As other nodes of a
+ * cluster can't notify us, the cache is disabled by default, and enabled per provider with:
+ *
+ *     oxf.fr.persistence.[provider].cache-form-version
+ */
+object FormVersionCache {
+
+    private val FormVersionCacheName = "fr.persistence.form-version"
+    private val FormVersionCacheDefaultSize = 200
+    private val ConstantValidity = 0L
+
+    private val HitCounter  = RelationalUtils.PersistenceMetrics.counter("form-version-cache.hit")
+    private val MissCounter = RelationalUtils.PersistenceMetrics.counter("form-version-cache.miss")
+
+    private def cache = ObjectCache.instance(FormVersionCacheName, FormVersionCacheDefaultSize)
+
+    private def createCacheKey(datasource: String, app: String, form: String) =
+        new InternalCacheKey(FormVersionCacheName, Seq(datasource, app, form) mkString "/")
+
+    def isEnabled(provider: String) =
+        Properties.instance.getPropertySet.getBoolean("oxf.fr.persistence." + provider + ".cache-form-version", false)
+
+    // Return the cached version, or compute and cache it
+    def findOrLoad(datasource: String, app: String, form: String)(load: ⇒ Option[Int]): Option[Int] = {
+        val cacheKey = createCacheKey(datasource, app, form)
+        Option(cache.findValid(cacheKey, ConstantValidity).asInstanceOf[Option[Int]]) match {
+            case Some(version) ⇒
+                HitCounter.inc()
+                version
+            case None ⇒
+                MissCounter.inc()
+                val version = load
+                cache.add(cacheKey, ConstantValidity, version)
+                version
+        }
+    }
+
+    // Call when a form definition is published or deleted
+    def remove(datasource: String, app: String, form: String): Unit =
+        cache.remove(createCacheKey(datasource, app, form))
+}
@@ -19,20 +19,38 @@ import org.orbeon.oxf.externalcontext.ExternalContextOps._
 import javax.naming.{Context, InitialContext}
 import javax.sql.DataSource
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.util.NetUtils
+import org.orbeon.oxf.util.{Metrics, NetUtils}
 
 object RelationalUtils {
 
+    // Metrics for the relational persistence layer, exposed via JMX as org.orbeon:type="fr-persistence-relational"
+    val PersistenceMetrics = Metrics.group("fr-persistence-relational")
+
+    private val ConnectionTimer   = PersistenceMetrics.timer("connection-acquisition")
+    private val RowsReadCounter   = PersistenceMetrics.counter("rows-read")
+    private val BytesReadCounter  = PersistenceMetrics.counter("bytes-streamed")
+
+    def datasourceName = NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
+
     def withConnection[T](block: Connection ⇒ T): T = {
         // Get connection to the database
         val dataSource = {
-            val datasource = NetUtils.getExternalContext.getRequest.getFirstHeader("orbeon-datasource").get
             val jndiContext = new InitialContext().lookup("java:comp/env/jdbc").asInstanceOf[Context]
-            jndiContext.lookup(datasource).asInstanceOf[DataSource]
+            jndiContext.lookup(datasourceName).asInstanceOf[DataSource]
         }
-        useAndClose(dataSource.getConnection)(block)
+        useAndClose(ConnectionTimer.time(dataSource.getConnection))(block)
     }
 
+    // Run a statement, recording its execution time under the given statement shape, e.g. "read-data"
+    def timedStatement[T](shape: String)(body: ⇒ T): T =
+        PersistenceMetrics.timer("statement." + shape).time(body)
+
+    // Call for each row read from a result set
+    def rowRead(): Unit = RowsReadCounter.inc()
+
+    // Call with the number of bytes or characters copied from a BLOB or CLOB
+    def bytesStreamed(count: Long): Unit = BytesReadCounter.add(count)
+
     /**
      * For cases where we can't use `setString` on a prepared statement
      * - Apache Commons Lang had a `StringEscapeUtils.escapeSql` [1] but it has been deprecated in Commons Lang 3 [2]
@@ -15,7 +15,7 @@ package org.orbeon.oxf.fr.relational.crud
 
 import java.sql.Connection
 import org.orbeon.oxf.util.ScalaUtils._
-import org.orbeon.oxf.fr.relational.{ForDocument, Specific, Next, Unspecified}
+import org.orbeon.oxf.fr.relational._
 import org.orbeon.oxf.util.{LoggerFactory, IndentedLogger}
 import org.orbeon.oxf.fr.{FormRunnerPersistence, FormRunner}
 import org.orbeon.oxf.webapp.HttpStatusCodeException
@@ -45,13 +45,23 @@ trait Common extends RequestResponse with FormRunnerPersistence {
                           ps.setString(1, app)
                           ps.setString(2, form)
             docId.foreach(ps.setString(3, _))
-            val rs = ps.executeQuery()
+            val rs = RelationalUtils.timedStatement(if (docId.isEmpty) "form-version" else "form-version-for-document")(ps.executeQuery())
             rs.next(); rs
         }
+        RelationalUtils.rowRead()
         val version = versionResult.getInt(1)
         if (versionResult.wasNull()) None else Some(version)
     }
 
+    // Latest version of the form definition, from the cache if enabled for the provider
+    def latestFormVersion(connection: Connection, req: Request): Option[Int] =
+        if (FormVersionCache.isEnabled(req.provider))
+            FormVersionCache.findOrLoad(RelationalUtils.datasourceName, req.app, req.form) {
+                formVersion(connection, req.app, req.form, None)
+            }
+        else
+            formVersion(connection, req.app, req.form, None)
+
     /**
      * For every request, there is a corresponding specific form version number. In the request, that specific version
      * can be specified, but the caller can also say that it wants the next version, the latest version, or the version
@@ -59,7 +69,7 @@ trait Common extends RequestResponse with FormRunnerPersistence {
      * the request.
      */
     def requestedFormVersion(connection: Connection, req: Request): Int = {
-        def latest = formVersion(connection, req.app, req.form, None)
+        def latest = latestFormVersion(connection, req)
         req.version match {
             case Unspecified        ⇒ latest.getOrElse(1)
             case Next               ⇒ latest.map(_ + 1).getOrElse(1)
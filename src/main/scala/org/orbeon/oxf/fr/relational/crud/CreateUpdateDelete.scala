@@ -59,11 +59,12 @@ trait CreateUpdateDelete extends RequestResponse with Common {
             ps.setInt   (position.next(), requestedFormVersion(connection, req))
             if (req.forData)       ps.setString(position.next(), req.dataPart.get.documentId)
             if (req.forAttachment) ps.setString(position.next(), req.filename.get)
-            ps.executeQuery()
+            RelationalUtils.timedStatement("existing-row")(ps.executeQuery())
         }
 
         // Build case case with first row of result
         if (resultSet.next()) {
+            RelationalUtils.rowRead()
             val row = new Row(resultSet.getTimestamp("created"),
                               if (req.forData) Option(resultSet.getString("username" )) else None,
                               if (req.forData) Option(resultSet.getString("groupname")) else None)
@@ -151,7 +152,13 @@ trait CreateUpdateDelete extends RequestResponse with Common {
                                      ps.setString(position.next(), existingRow.map(_.groupname).flatten.getOrElse(requestGroupname.getOrElse(null)))
         }
 
-        ps.executeUpdate()
+        RelationalUtils.timedStatement(if (req.forAttachment) "store-attachment" else "store") {
+            ps.executeUpdate()
+        }
+
+        // Publishing or deleting a form definition can change the latest form version
+        if (req.forForm && ! req.forAttachment)
+            FormVersionCache.remove(RelationalUtils.datasourceName, req.app, req.form)
     }
 
     def change(delete: Boolean): Unit = {
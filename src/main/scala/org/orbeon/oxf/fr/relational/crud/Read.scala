@@ -17,6 +17,7 @@ import org.orbeon.oxf.fr.relational.{Next, Unspecified, Specific, RelationalUtil
 import org.orbeon.oxf.util.{Connection, NetUtils}
 import org.orbeon.oxf.webapp.HttpStatusCodeException
 import org.orbeon.oxf.fr.{FormRunner, FormRunnerPersistence}
+import org.apache.commons.io.input.{ProxyReader, CountingInputStream}
 
 trait Read extends RequestResponse with Common with FormRunnerPersistence {
 
@@ -66,11 +67,13 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
                     ps.setString(position.next(), if (req.dataPart.get.isDraft) "Y" else "N")
                 }
                 if (req.forAttachment) ps.setString(position.next(), req.filename.get)
-                ps.executeQuery()
+                RelationalUtils.timedStatement("read")(ps.executeQuery())
             }
 
             if (resultSet.next()) {
 
+                RelationalUtils.rowRead()
+
                 // Check user can read and set Orbeon-Operations header
                 if (req.forData) {
                     val dataUserGroup = {
@@ -93,10 +96,17 @@ trait Read extends RequestResponse with Common with FormRunnerPersistence {
                 // Write content (XML / file)
                 if (req.forAttachment) {
                     val blob = resultSet.getBlob("file_content")
-                    NetUtils.copyStream(blob.getBinaryStream, httpResponse.getOutputStream)
+                    val in = new CountingInputStream(blob.getBinaryStream)
+                    NetUtils.copyStream(in, httpResponse.getOutputStream)
+                    RelationalUtils.bytesStreamed(in.getByteCount)
                 } else {
                     val clob = resultSet.getClob("xml")
-                    NetUtils.copyStream(clob.getCharacterStream, httpResponse.getWriter)
+                    var count = 0L
+                    val reader = new ProxyReader(clob.getCharacterStream) {
+                        override def afterRead(n: Int) = if (n > 0) count += n
+                    }
+                    NetUtils.copyStream(reader, httpResponse.getWriter)
+                    RelationalUtils.bytesStreamed(count)
                 }
 
             } else {
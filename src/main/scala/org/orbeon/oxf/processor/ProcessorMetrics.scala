@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.Metrics
+import org.orbeon.oxf.xml.{SimpleForwardingXMLReceiver, XMLReceiver}
+import org.orbeon.oxf.xml.dom4j.LocationData
+import org.xml.sax.Attributes
+import scala.util.Try
+
+/**
+ * Per-processor metrics for XPL pipelines.
+ *
+ * When the oxf.pipeline.metrics property is enabled, the following is recorded in the "pipeline" metrics group, exposed
+ * with JMX, for each processor output and location:
+ *
+ * - time spent reading the output, with and without the time spent in nested reads
+ * - SAX events and characters produced
+ * - cache hits and misses when the output is read through readCacheInputAsObject, and reads of outputs without a cache
+ *   key or validity, which can't be cached
+ *
+ * as well as the time spent in start() for processors started by pipelines.
+ *
+ * This tells which step of a pipeline is slow. For the detail of a single request, see the existing traces, enabled
+ * with the oxf.pipeline.trace.class property.
+ */
+object ProcessorMetrics {
+
+    private val EnabledProperty = "oxf.pipeline.metrics"
+
+    lazy val isEnabled = Properties.instance.getPropertySet.getBoolean(EnabledProperty, false)
+
+    private val PipelineMetrics = Metrics.group("pipeline")
+
+    // Time spent in nested steps by the step currently running on this thread
+    private val nestedNanos = new ThreadLocal[Array[Long]] {
+        override def initialValue = Array(0L)
+    }
+
+    // Start timing the read of an output, or return null if metrics are disabled
+    def startRead(output: ProcessorOutput, xmlReceiver: XMLReceiver): ProcessorTiming =
+        if (isEnabled) {
+            val name = metricsName(output)
+            new ProcessorTiming(name + ".read", new CountingXMLReceiver(name, xmlReceiver))
+        } else
+            null
+
+    // Start timing start() of a processor, or return null if metrics are disabled
+    def startStart(processor: Processor): ProcessorTiming =
+        if (isEnabled)
+            new ProcessorTiming(metricsName(processor.getClass, null, processor.getLocationData) + ".start", null)
+        else
+            null
+
+    def cacheHit(output: ProcessorOutput): Unit =
+        if (isEnabled)
+            PipelineMetrics.counter(metricsName(output) + ".cache-hit").inc()
+
+    def cacheMiss(output: ProcessorOutput): Unit =
+        if (isEnabled)
+            PipelineMetrics.counter(metricsName(output) + ".cache-miss").inc()
+
+    def uncacheable(output: ProcessorOutput): Unit =
+        if (isEnabled)
+            PipelineMetrics.counter(metricsName(output) + ".uncacheable").inc()
+
+    // Name identifying the output, e.g. "XSLTTransformer#data@oxf:/apps/foo/page.xpl:12"
+    private def metricsName(output: ProcessorOutput): String = {
+        def processorLocationData =
+            Try(output.getProcessor(null)).toOption flatMap (Option(_)) flatMap (p ⇒ Option(p.getLocationData))
+
+        val locationData = Option(output.getLocationData) orElse processorLocationData orNull
+
+        metricsName(output.getProcessorClass, output.getName, locationData)
+    }
+
+    private def metricsName(processorClass: Class[_], outputName: String, locationData: LocationData) = {
+        val location =
+            Option(locationData) filter (_.getSystemID ne null) map ("@" + _.getSystemID + ':' + _.getLine) getOrElse ""
+
+        processorClass.getName.split('.').last + (Option(outputName) map ("#" + _) getOrElse "") + location
+    }
+
+    // Reset the nested time for a new step, returning the nested time of the enclosing step
+    private[processor] def enter(): Long = {
+        val nested = nestedNanos.get
+        val enclosing = nested(0)
+        nested(0) = 0L
+        enclosing
+    }
+
+    // Return the nested time of the step which ends, and add its total time to the nested time of the enclosing step
+    private[processor] def exit(enclosing: Long, total: Long): Long = {
+        val nested = nestedNanos.get
+        val result = nested(0)
+        nested(0) = enclosing + total
+        result
+    }
+
+    private[processor] def record(name: String, total: Long, self: Long, receiver: CountingXMLReceiver): Unit = {
+        PipelineMetrics.timer(name).record(total)
+        PipelineMetrics.timer(name + ".self").record(self)
+        if (receiver ne null) {
+            PipelineMetrics.counter(receiver.name + ".sax-events").add(receiver.events)
+            PipelineMetrics.counter(receiver.name + ".characters").add(receiver.characterCount)
+        }
+    }
+
+    // Count SAX events and characters going through
+    private[processor] class CountingXMLReceiver(val name: String, xmlReceiver: XMLReceiver) extends SimpleForwardingXMLReceiver(xmlReceiver) {
+
+        var events         = 0L
+        var characterCount = 0L
+
+        override def startElement(uri: String, localname: String, qName: String, attributes: Attributes): Unit = {
+            events += 1
+            super.startElement(uri, localname, qName, attributes)
+        }
+
+        override def endElement(uri: String, localname: String, qName: String): Unit = {
+            events += 1
+            super.endElement(uri, localname, qName)
+        }
+
+        override def characters(chars: Array[Char], start: Int, length: Int): Unit = {
+            events += 1
+            characterCount += length
+            super.characters(chars, start, length)
+        }
+    }
+}
+
+// Timing of a processor step, ended with end()
+class ProcessorTiming private[processor] (name: String, countingReceiver: ProcessorMetrics.CountingXMLReceiver) {
+
+    private val enclosing = ProcessorMetrics.enter()
+    private val start = System.nanoTime
+
+    // Receiver to pass to the output, so that SAX events are counted
+    def receiver: XMLReceiver = countingReceiver
+
+    def end(): Unit = {
+        val total  = System.nanoTime - start
+        val nested = ProcessorMetrics.exit(enclosing, total)
+        ProcessorMetrics.record(name, total, total - nested, countingReceiver)
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator
+
+import java.lang.{Long ⇒ JLong}
+import java.util.concurrent.{ExecutionException, Callable, FutureTask, ConcurrentHashMap}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.util.{Connection, DateUtils, Metrics, ConnectionResult}
+import scala.util.control.NonFatal
+
+/**
+ * Validators of HTTP resources read by URLGenerator, shared across pipelines.
+ *
+ * For each URL, this keeps the Last-Modified and ETag validators and how long the response is fresh according to
+ * Cache-Control or Expires. This allows:
+ *
+ * - skipping requests altogether while a response is fresh
+ * - sending conditional requests with If-Modified-Since and If-None-Match otherwise
+ * - using resources which only have an ETag as cacheable, with the time the ETag was first seen as validity
+ * - running a single request when several threads check the validity of the same URL at the same time
+ *
+ * Validators are keyed by URL and credentials. Requests with an Authorization header, and responses with Vary or
+ * Cache-Control: private, are not shared.
+ *
+ * The size of the cache is configured with the oxf.cache.url-generator.validators.size property.
+ */
+object HttpValidatorCache {
+
+    private val CacheName = "cache.url-generator.validators"
+    private val CacheDefaultSize = 500
+    private val ConstantValidity = 0L
+
+    private val URLGeneratorMetrics = Metrics.group("url-generator")
+    private val FreshHits   = URLGeneratorMetrics.counter("validity.fresh")
+    private val NotModified = URLGeneratorMetrics.counter("validity.not-modified")
+    private val Collapsed   = URLGeneratorMetrics.counter("validity.collapsed")
+    private val Requests    = URLGeneratorMetrics.timer("validity.request")
+
+    private case class Validators(lastModified: Option[Long], etag: Option[String], validity: Long, freshUntil: Long)
+
+    private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+    private def createCacheKey(key: String) = new InternalCacheKey("urlValidators", key)
+
+    private def find(key: String) =
+        Option(key) flatMap (k ⇒ Option(cache.findValid(createCacheKey(k), ConstantValidity).asInstanceOf[Validators]))
+
+    private def findFresh(key: String) =
+        find(key) filter (_.freshUntil > System.currentTimeMillis)
+
+    // Key of the validators for a request with the given credentials and headers, null if the response can't be shared
+    def key(url: String, credentials: Connection.Credentials, headers: collection.Map[String, Array[String]]): String =
+        if (headers.keys exists (_.equalsIgnoreCase("authorization")))
+            null
+        else
+            Option(credentials) map (c ⇒ Seq(url, c.username, c.password, c.domain) mkString "|") getOrElse url
+
+    // Validity of the resource if the last response is still fresh, null otherwise
+    def freshValidity(key: String): JLong =
+        findFresh(key) match {
+            case Some(validators) ⇒
+                FreshHits.inc()
+                validators.validity
+            case None ⇒
+                null
+        }
+
+    // Whether the last response is still fresh and for the given validity
+    def isFresh(key: String, validity: Long): Boolean = {
+        val fresh = findFresh(key) exists (_.validity == validity)
+        if (fresh)
+            FreshHits.inc()
+        fresh
+    }
+
+    // ETag to send with If-None-Match, provided it is for the given validity
+    def etagForValidity(key: String, validity: Long): String =
+        find(key) filter (_.validity == validity) flatMap (_.etag) orNull
+
+    // Last-Modified to send with If-Modified-Since
+    def lastModified(key: String): JLong =
+        find(key) flatMap (_.lastModified) map (l ⇒ l: JLong) orNull
+
+    // ETag to send with If-None-Match
+    def etag(key: String): String =
+        find(key) flatMap (_.etag) orNull
+
+    // Update the validators from a response and return the validity of the resource, null if unknown
+    //
+    // The key is null if the response can't be shared, and requestLastModified is the date sent with If-Modified-Since
+    // if any.
+    def update(key: String, connectionResult: ConnectionResult, requestLastModified: JLong): JLong = {
+
+        val now = System.currentTimeMillis
+        val headers = connectionResult.jResponseHeaders
+
+        def header(name: String) =
+            Option(headers.get(name)) flatMap (values ⇒ if (values.isEmpty) None else Option(values.get(0)))
+
+        val directives =
+            header("cache-control").toList flatMap (_ split ',') map (_.trim.toLowerCase)
+
+        // We are a shared cache, so responses which vary with the request headers or are for a single user are not kept
+        val shared = (key ne null) && header("vary").isEmpty && ! directives.contains("private")
+
+        def freshUntil =
+            if (directives exists Set("no-cache", "must-revalidate"))
+                0L
+            else
+                directives collectFirst {
+                    case d if d.startsWith("max-age=") ⇒ now + (d.substring("max-age=".length).toLong max 0L) * 1000
+                } orElse {
+                    header("expires") map DateUtils.parseRFC1123
+                } getOrElse 0L
+
+        def remove() =
+            Option(key) foreach (k ⇒ cache.remove(createCacheKey(k)))
+
+        def storeIfAllowed(validators: Validators) =
+            if (shared && ! directives.contains("no-store"))
+                cache.add(createCacheKey(key), ConstantValidity, validators)
+            else
+                remove()
+
+        try connectionResult.statusCode match {
+            case 304 ⇒
+                // Resource hasn't changed: refresh freshness only
+                NotModified.inc()
+                find(key) match {
+                    case Some(validators) ⇒
+                        storeIfAllowed(validators.copy(freshUntil = freshUntil))
+                        validators.validity: JLong
+                    case None ⇒
+                        // Validators not shared: the resource is the version we asked about
+                        requestLastModified
+                }
+            case code if code >= 200 && code < 300 ⇒
+                val lastModified = Option(connectionResult.getLastModifiedJava) map (_.longValue)
+                val etag         = header("etag")
+
+                // Without Last-Modified, the ETag still allows caching: keep the validity as long as the ETag is the same
+                val validityOpt =
+                    lastModified orElse {
+                        etag filter (_ ⇒ shared) map { tag ⇒
+                            find(key) filter (_.etag == Some(tag)) map (_.validity) getOrElse now
+                        }
+                    }
+
+                validityOpt match {
+                    case Some(validity) ⇒
+                        storeIfAllowed(Validators(lastModified, etag, validity, freshUntil))
+                        validity: JLong
+                    case None ⇒
+                        remove()
+                        null
+                }
+            case _ ⇒
+                remove()
+                null
+        } catch {
+            case NonFatal(t) ⇒
+                // Invalid headers: don't keep anything
+                remove()
+                null
+        }
+    }
+
+    private val inFlight = new ConcurrentHashMap[String, FutureTask[JLong]]
+
+    // Run the validity check, unless one is already running for the key, in which case wait for its result
+    def collapse(key: String, check: Callable[JLong]): JLong = {
+        val newTask = new FutureTask[JLong](check)
+        Option(inFlight.putIfAbsent(key, newTask)) match {
+            case Some(existingTask) ⇒
+                Collapsed.inc()
+                waitFor(existingTask)
+            case None ⇒
+                try Requests.time(newTask.run())
+                finally inFlight.remove(key, newTask)
+                waitFor(newTask)
+        }
+    }
+
+    private def waitFor(task: FutureTask[JLong]) =
+        try task.get
+        catch { case e: ExecutionException ⇒ throw e.getCause }
+}
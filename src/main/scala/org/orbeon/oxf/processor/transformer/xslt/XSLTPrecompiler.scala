@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.transformer.xslt
+
+import org.dom4j.QName
+import org.orbeon.exception.OrbeonFormatter
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.InitUtils.withPipelineContext
+import org.orbeon.oxf.pipeline.api.{ExternalContext, PipelineContext}
+import org.orbeon.oxf.processor.ProcessorFactoryRegistry
+import org.orbeon.oxf.processor.ProcessorImpl.{INPUT_CONFIG, OUTPUT_DATA}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.{LoggerFactory, PipelineUtils}
+import org.orbeon.oxf.xml.XMLConstants.{XSLT_PROCESSOR_QNAME, UNSAFE_XSLT_PROCESSOR_QNAME}
+import scala.util.control.NonFatal
+
+/**
+ * Compile XSLT stylesheets ahead of time.
+ *
+ * Stylesheets are otherwise compiled upon first use, by the thread running the request. The stylesheets listed in the
+ * oxf.xslt.precompile.stylesheets and oxf.xslt.precompile.unsafe-stylesheets properties are compiled at startup for
+ * oxf:xslt and oxf:unsafe-xslt respectively. Compiled stylesheets are stored in the cache, and found there by
+ * transformations which use the same stylesheet URL with the same processor.
+ */
+object XSLTPrecompiler {
+
+    private val Logger = LoggerFactory.createLogger(XSLTPrecompiler.getClass)
+
+    private val StylesheetsProperty       = "oxf.xslt.precompile.stylesheets"
+    private val UnsafeStylesheetsProperty = "oxf.xslt.precompile.unsafe-stylesheets"
+
+    // Compile the stylesheets listed in properties
+    // Errors are logged, so that a stylesheet with errors doesn't prevent the application from starting.
+    def precompileFromProperties(externalContext: ExternalContext): Unit = {
+
+        val propertySet = Properties.instance.getPropertySet
+
+        def urls(name: String) =
+            Option(propertySet.getString(name, null)).toList flatMap (_.split("""\s+""")) filter (_.nonEmpty)
+
+        for {
+            (processorName, property) ← Seq(XSLT_PROCESSOR_QNAME → StylesheetsProperty, UNSAFE_XSLT_PROCESSOR_QNAME → UnsafeStylesheetsProperty)
+            url                       ← urls(property)
+        } try {
+            val start = System.currentTimeMillis
+            precompile(processorName, url, externalContext)
+            Logger.info("Precompiled XSLT stylesheet " + url + " in " + (System.currentTimeMillis - start) + " ms")
+        } catch {
+            case NonFatal(t) ⇒
+                Logger.error("Error precompiling XSLT stylesheet " + url + "\n" + OrbeonFormatter.format(t))
+        }
+    }
+
+    // Compile the stylesheet at the given URL for the given XSLT processor, e.g. oxf:xslt
+    def precompile(processorName: QName, url: String, externalContext: ExternalContext): Unit =
+        ProcessorFactoryRegistry.lookup(processorName).createInstance match {
+            case transformer: XSLTTransformer ⇒
+                // Connect the stylesheet the same way pipelines do with <p:input name="config" href="..."/>
+                val urlGenerator = PipelineUtils.createURLGenerator(url)
+                PipelineUtils.connect(urlGenerator, OUTPUT_DATA, transformer, INPUT_CONFIG)
+
+                withPipelineContext { pipelineContext ⇒
+                    pipelineContext.setAttribute(PipelineContext.EXTERNAL_CONTEXT, externalContext)
+                    urlGenerator.reset(pipelineContext)
+                    transformer.reset(pipelineContext)
+                    transformer.precompile(pipelineContext)
+                }
+            case _ ⇒
+                throw new OXFException("Not an XSLT processor: " + processorName.getQualifiedName)
+        }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.xinclude
+
+import collection.JavaConverters._
+import collection.mutable
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import javax.xml.transform.sax.SAXSource
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.URLFactory
+import org.orbeon.oxf.util.{NetUtils, LoggerFactory, IndentedLogger, Connection, Metrics}
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xml.XMLConstants._
+import org.orbeon.oxf.xml.XMLUtils.ParserConfiguration
+import org.orbeon.oxf.xml.{XMLUtils, XMLReceiverAdapter, XMLReceiver, SAXStore}
+import org.xml.sax.{Attributes, InputSource}
+import scala.util.Try
+
+/**
+ * Documents included with XInclude during a request.
+ *
+ * Documents included from oxf:, file: and similar URLs are already cached by URLGenerator, keyed by URL and last
+ * modified date, and shared between requests. Documents included from http: and https: URLs are not cached, so they
+ * were fetched and parsed again each time they were included, including when the same document was included several
+ * times while processing a single request. Here:
+ *
+ * - such documents are kept for the duration of the request, and replayed when included again
+ * - if the oxf.xinclude.prefetch.threads property is set, the documents included with absolute http: or https: URLs
+ *   by the top-level document are fetched in parallel before the XInclude processing starts
+ *
+ * Documents are parsed, but XInclude processing is not applied to them, so that nested includes are still processed,
+ * and their URIs recorded for caching, each time a document is included.
+ */
+class IncludedDocuments(parserConfiguration: ParserConfiguration) {
+
+    import IncludedDocuments._
+
+    // Only accessed by the thread running the request
+    private val documents  = mutable.HashMap[String, SAXStore]()
+    private val prefetched = mutable.HashMap[String, Future[SAXStore]]()
+    private var cancelListenerAdded = false
+
+    // Stream the document to the receiver, reading it only if needed
+    def read(source: SAXSource, xmlReceiver: XMLReceiver): Unit = {
+
+        val systemId = source.getSystemId
+
+        def prefetchedDocument =
+            prefetched.remove(systemId) flatMap (future ⇒ Try(future.get).toOption)
+
+        if (! isMemoized(systemId))
+            parse(source, xmlReceiver)
+        else
+            documents.get(systemId) orElse prefetchedDocument match {
+                case Some(document) ⇒
+                    Hits.inc()
+                    documents += systemId → document
+                    document.replay(xmlReceiver)
+                case None ⇒
+                    // Read the document on this thread, including if prefetching failed, so errors are reported as usual
+                    Misses.inc()
+                    val document = new SAXStore(xmlReceiver)
+                    parse(source, document)
+                    document.setXMLReceiver(null)
+                    documents += systemId → document
+            }
+    }
+
+    // Start fetching the remote documents included by the given document
+    def prefetch(pipelineContext: PipelineContext, document: SAXStore): Unit =
+        prefetchExecutor foreach { executor ⇒
+
+            val systemIds =
+                remoteIncludes(document) map (URLFactory.createURL(_).toExternalForm) filterNot
+                    (systemId ⇒ documents.contains(systemId) || prefetched.contains(systemId))
+
+            if (systemIds.nonEmpty) {
+                // The request may be done by the time documents are fetched, so build the headers now, including the
+                // forwarded headers and the session cookie, instead of accessing the request from other threads
+                val headers = Connection.buildConnectionHeaders(None, Map(), Option(Connection.getForwardHeaders))(new IndentedLogger(Logger, ""))
+
+                for {
+                    systemId ← systemIds.distinct
+                    future   ← Try(executor.submit(new Callable[SAXStore] {
+                        def call() = fetch(systemId, headers, parserConfiguration)
+                    })).toOption // if the queue is full, the document is just read when included
+                } prefetched += systemId → future
+            }
+
+            // Don't keep fetching documents which are no longer needed
+            if (prefetched.nonEmpty && ! cancelListenerAdded) {
+                pipelineContext.addContextListener(new PipelineContext.ContextListenerAdapter {
+                    override def contextDestroyed(success: Boolean): Unit =
+                        prefetched.values foreach (_.cancel(true))
+                })
+                cancelListenerAdded = true
+            }
+        }
+}
+
+object IncludedDocuments {
+
+    private val PrefetchThreadsProperty = "oxf.xinclude.prefetch.threads"
+
+    private val XIncludeMetrics = Metrics.group("xinclude")
+    private val Hits   = XIncludeMetrics.counter("included-documents.hit")
+    private val Misses = XIncludeMetrics.counter("included-documents.miss")
+
+    private val Logger = LoggerFactory.createLogger(classOf[IncludedDocuments])
+
+    private var executor: Option[ExecutorService] = None
+
+    // Shared by all requests, created when first needed
+    private def prefetchExecutor: Option[ExecutorService] = {
+        val threads = Properties.instance.getPropertySet.getInteger(PrefetchThreadsProperty, 0)
+        threads > 0 option synchronized {
+            executor getOrElse {
+                val count = new AtomicInteger
+                val created =
+                    new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue[Runnable](threads * 10),
+                        new ThreadFactory {
+                            def newThread(r: Runnable) = {
+                                val thread = new Thread(r, "orbeon-xinclude-prefetch-" + count.incrementAndGet())
+                                thread.setDaemon(true)
+                                thread
+                            }
+                        })
+                executor = Some(created)
+                created
+            }
+        }
+    }
+
+    // Stop the threads, so that they don't keep the web app's classes loaded once it is destroyed
+    // Documents which are not fetched yet are read by the requests which include them.
+    def shutdown(): Unit = synchronized {
+        for (existing ← executor; task ← existing.shutdownNow().asScala)
+            task match {
+                case future: Future[_] ⇒ future.cancel(false)
+                case _ ⇒
+            }
+        executor = None
+    }
+
+    // Fetch and parse a document with the given headers, without accessing the request
+    private def fetch(systemId: String, headers: Map[String, Array[String]], parserConfiguration: ParserConfiguration): SAXStore = {
+        val url = URLFactory.createURL(systemId)
+        val connectionResult =
+            Connection("GET", url, None, None, headers, loadState = false, logBody = false)(new IndentedLogger(Logger, "")).connect(saveState = false)
+
+        useAndClose(connectionResult.getResponseInputStream) { inputStream ⇒
+            if (! NetUtils.isSuccessCode(connectionResult.statusCode))
+                throw new OXFException("Got invalid return code while loading included document: " + systemId + ", " + connectionResult.statusCode)
+
+            val result = new SAXStore
+            XMLUtils.inputStreamToSAX(inputStream, systemId, result, parserConfiguration, true)
+            result
+        }
+    }
+
+    // Return the documents included during the request with the given parser configuration
+    def apply(pipelineContext: PipelineContext, parserConfiguration: ParserConfiguration): IncludedDocuments = {
+        val key = classOf[IncludedDocuments].getName + parserConfiguration.getKey
+        Option(pipelineContext.getAttribute(key).asInstanceOf[IncludedDocuments]) getOrElse {
+            val includedDocuments = new IncludedDocuments(parserConfiguration)
+            pipelineContext.setAttribute(key, includedDocuments)
+            includedDocuments
+        }
+    }
+
+    // Other URLs are cached by URLGenerator
+    def isMemoized(systemId: String) =
+        (systemId ne null) && (systemId.startsWith("http:") || systemId.startsWith("https:"))
+
+    // Absolute http: and https: URLs of the documents included by the document, without nested includes
+    def remoteIncludes(document: SAXStore): Seq[String] = {
+        val hrefs = mutable.LinkedHashSet[String]()
+        document.replay(new XMLReceiverAdapter {
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes): Unit =
+                if (Set(XINCLUDE_URI, OLD_XINCLUDE_URI)(uri) && localname == "include") {
+                    val href = attributes.getValue("href")
+                    if (isMemoized(href) && attributes.getValue("xpointer") == null && Set(null, "xml")(attributes.getValue("parse")))
+                        hrefs += href
+                }
+        })
+        hrefs.toList
+    }
+
+    def parse(source: SAXSource, xmlReceiver: XMLReceiver): Unit = {
+        val xmlReader = source.getXMLReader
+        xmlReader.setContentHandler(xmlReceiver)
+        xmlReader.setProperty(SAX_LEXICAL_HANDLER, xmlReceiver)
+        xmlReader.parse(new InputSource(source.getSystemId)) // Yeah, the SAX API doesn't make much sense
+    }
+}
@@ -64,6 +64,9 @@ class XIncludeProcessor extends ProcessorImpl {
                 val parserConfiguration = new ParserConfiguration(false, false, ! (configurationAttributes.get("external-entities") exists (_ == false)))
                 val uriResolver = new TransformerURIResolver(self, pipelineContext, INPUT_CONFIG, parserConfiguration)
 
+                // Remote documents included several times during the request are only read once
+                val includedDocuments = IncludedDocuments(pipelineContext, parserConfiguration)
+
                 /**
                  * The code below reads the input in a SAX store, before replaying the SAX store to the
                  * XIncludeContentHandler.
@@ -93,7 +96,8 @@ class XIncludeProcessor extends ProcessorImpl {
                         val uriReferences = new URIReferences
                         val saxStore = new SAXStore
                         readInputAsSAX(pipelineContext, INPUT_CONFIG, saxStore)
-                        saxStore.replay(new XIncludeReceiver(pipelineContext, xmlReceiver, uriReferences, uriResolver))
+                        includedDocuments.prefetch(pipelineContext, saxStore)
+                        saxStore.replay(new XIncludeReceiver(pipelineContext, xmlReceiver, uriReferences, uriResolver, includedDocuments))
                         wasRead = true
                         uriReferences
                     }
@@ -103,7 +107,8 @@ class XIncludeProcessor extends ProcessorImpl {
                 if (! wasRead) {
                     val saxStore = new SAXStore
                     readInputAsSAX(pipelineContext, INPUT_CONFIG, saxStore)
-                    saxStore.replay(new XIncludeReceiver(pipelineContext, xmlReceiver, null, uriResolver))
+                    includedDocuments.prefetch(pipelineContext, saxStore)
+                    saxStore.replay(new XIncludeReceiver(pipelineContext, xmlReceiver, null, uriResolver, includedDocuments))
                 }
             }
         })
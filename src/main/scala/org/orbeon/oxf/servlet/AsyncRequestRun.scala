@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.servlet
+
+import java.util.concurrent._
+import java.util.concurrent.atomic.{AtomicReference, AtomicBoolean}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+
+/**
+ * Run of an asynchronous request on a pool thread, which the container can time out from another thread.
+ *
+ * The request either runs or times out before it starts, but not both. A request which times out while running is
+ * cancelled, and the timeout waits a bounded time for it to stop.
+ */
+class AsyncRequestRun {
+
+    // The pipeline context is created by the thread running the request, as it is associated with that thread
+    private val pipelineContext = new AtomicReference[PipelineContext]
+    private val future          = new AtomicReference[Future[_]]
+
+    // Whether the request started running, or timed out before that
+    private val started  = new AtomicBoolean
+    private val finished = new CountDownLatch(1)
+
+    def pipelineContextCreated(pipelineContext: PipelineContext): Unit =
+        this.pipelineContext.set(pipelineContext)
+
+    // Submit the task running the request to the executor, or throw RejectedExecutionException if it can't take it
+    def submit(executor: ExecutorService)(task: ⇒ Unit): Unit =
+        future.set(executor.submit(new Runnable { def run() = task }))
+
+    // Run the request on the current thread unless it already timed out, and then call done
+    def run(body: ⇒ Unit)(done: ⇒ Unit): Unit =
+        if (started.compareAndSet(false, true))
+            try body
+            finally {
+                finished.countDown()
+                done
+            }
+
+    // Cancel the request, and return whether it is not running anymore after waiting at most the given number of
+    // milliseconds
+    def cancel(wait: Long): Boolean =
+        if (started.compareAndSet(false, true)) {
+            // The request never runs
+            Option(future.get) foreach (_.cancel(false))
+            true
+        } else {
+            // The request stops at the next output read, or when its I/O is interrupted
+            Option(pipelineContext.get) foreach (_.cancel())
+            Option(future.get) foreach (_.cancel(true))
+            finished.await(wait, TimeUnit.MILLISECONDS)
+        }
+}
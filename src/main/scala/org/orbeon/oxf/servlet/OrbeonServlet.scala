@@ -19,7 +19,14 @@ import javax.servlet.ServletException
 import javax.servlet.http._
 import collection.JavaConverters._
 import org.orbeon.oxf.webapp.{WebAppContext, ProcessorService, ServletPortlet}
+import OrbeonServlet._
 import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.DynamicVariable
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import scala.util.Try
+import scala.util.control.NonFatal
 
 // For backward compatibility
 class OrbeonServletDelegate extends OrbeonServlet
@@ -31,6 +38,15 @@ class OrbeonServletDelegate extends OrbeonServlet
  * parameters, but each servlet and portlet can be configured with its own main processor and inputs.
  *
  * All servlets and portlets instances in a given web app share the same resource manager.
+ *
+ * With the oxf.servlet.async.threads parameter, requests run asynchronously on a dedicated pool of threads instead of on
+ * the container thread, when the container supports Servlet 3 asynchronous processing. This way, requests waiting on
+ * I/O, like submissions or database calls, don't hold on to container threads. Requests which can't be queued run on
+ * the container thread as usual. With oxf.servlet.async.timeout, requests which take longer are cancelled and answered
+ * with a 503 error.
+ *
+ * Asynchronous requests are opt-in: besides oxf.servlet.async.threads, they require a version 3.0 web.xml, with
+ * async-supported set to true on the servlet and on the filters mapped to it. See orbeon-war-web.xsl.
  */
 class OrbeonServlet extends HttpServlet with ServletPortlet {
 
@@ -39,10 +55,27 @@ class OrbeonServlet extends HttpServlet with ServletPortlet {
     val HttpAcceptMethodsParam = "oxf.http.accept-methods"
     val DefaultMethods = "get post head"
 
+    val AsyncThreadsParam   = "oxf.servlet.async.threads"
+    val AsyncQueueSizeParam = "oxf.servlet.async.queue-size"
+    val AsyncTimeoutParam   = "oxf.servlet.async.timeout"
+
+    private val TraceClassProperty = "oxf.pipeline.trace.class"
+
+    // How long a timed out request has to stop once cancelled, in milliseconds
+    private val AsyncCancelWait = 5000L
+
     // Accepted methods for this servlet
     private lazy val acceptedMethods =
         initParameters.getOrElse(HttpAcceptMethodsParam, DefaultMethods) split """[\s,]+""" filter (_.nonEmpty) toSet
 
+    private def intParameter(name: String, default: Int) =
+        initParameters.get(name) map (_.trim.toInt) getOrElse default
+
+    private lazy val asyncTimeout = intParameter(AsyncTimeoutParam, 0).toLong
+
+    // Bounded pool of threads running asynchronous requests, if enabled
+    private var asyncExecutor: Option[ExecutorService] = None
+
     def logPrefix = "Servlet"
 
     // Immutable map of servlet parameters
@@ -54,23 +87,103 @@ class OrbeonServlet extends HttpServlet with ServletPortlet {
     override def init(): Unit =
         withRootException("initialization", new ServletException(_)) {
             init(WebAppContext(getServletContext), Some("oxf.servlet-initialized-processor." → "oxf.servlet-initialized-processor.input."))
+
+            val threads = intParameter(AsyncThreadsParam, 0)
+            if (threads > 0) {
+                val count = new AtomicInteger
+                asyncExecutor = Some(
+                    new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue[Runnable](intParameter(AsyncQueueSizeParam, threads * 10)),
+                        new ThreadFactory {
+                            def newThread(r: Runnable) = {
+                                val thread = new Thread(r, "orbeon-servlet-async-" + count.incrementAndGet())
+                                thread.setDaemon(true)
+                                thread
+                            }
+                        }))
+            }
         }
 
     // Servlet destroy
     override def destroy(): Unit =
         withRootException("destruction", new ServletException(_)) {
+            asyncExecutor foreach (_.shutdownNow())
+            asyncExecutor = None
             destroy(Some("oxf.servlet-destroyed-processor." → "oxf.servlet-destroyed-processor.input."))
         }
 
     // Servlet request
     override def service(request: HttpServletRequest, response: HttpServletResponse): Unit =
-        withRootException("request", new ServletException(_)) {
-            val httpMethod = request.getMethod
-            if (! acceptedMethods(httpMethod.toLowerCase))
-                throw new OXFException("HTTP method not accepted: " + httpMethod + ". You can configure methods in your web.xml using the parameter: " + HttpAcceptMethodsParam)
-
-            val pipelineContext = new PipelineContext
-            val externalContext = new ServletExternalContext(pipelineContext, webAppContext, request, response)
-            processorService.service(pipelineContext, externalContext)
+        asyncExecutor match {
+            case Some(executor) if ServletAsyncSupport.isAsyncSupported(request) ⇒
+                serviceAsync(executor, request, response)
+            case _ ⇒
+                serviceSync(request, response, _ ⇒ ())
         }
+
+    private def serviceSync(request: HttpServletRequest, response: HttpServletResponse, started: PipelineContext ⇒ Unit): Unit =
+        currentServlet.withValue(this) {
+            withRootException("request", new ServletException(_)) {
+                val httpMethod = request.getMethod
+                if (! acceptedMethods(httpMethod.toLowerCase))
+                    throw new OXFException("HTTP method not accepted: " + httpMethod + ". You can configure methods in your web.xml using the parameter: " + HttpAcceptMethodsParam)
+
+                // Tracing context only if a trace is configured with oxf.pipeline.trace.class
+                val pipelineContext =
+                    if (Properties.instance.getPropertySet.getNCName(TraceClassProperty) ne null)
+                        new TracingPipelineContext
+                    else
+                        new PipelineContext
+                started(pipelineContext)
+                val externalContext = new ServletExternalContext(pipelineContext, webAppContext, request, response)
+                processorService.service(pipelineContext, externalContext)
+            }
+        }
+
+    // Run the request on the executor, releasing the container thread
+    private def serviceAsync(executor: ExecutorService, request: HttpServletRequest, response: HttpServletResponse): Unit = {
+
+        val run = new AsyncRequestRun
+
+        val async =
+            ServletAsyncSupport.startAsync(request, asyncTimeout) { async ⇒
+                logger.warn("Request timed out after " + asyncTimeout + " ms, cancelling: " + request.getRequestURI)
+
+                // The container recycles the request and response once the request completes, so give the request
+                // some time to stop using them, but don't block the container thread longer than that
+                if (! run.cancel(AsyncCancelWait))
+                    logger.error("Request still running " + AsyncCancelWait + " ms after it was cancelled, completing: " + request.getRequestURI)
+
+                if (! response.isCommitted)
+                    Try(response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE))
+                async.complete()
+            }
+
+        def runRequest() =
+            run.run {
+                try serviceSync(request, response, run.pipelineContextCreated)
+                catch {
+                    case NonFatal(t) ⇒
+                        // Like in synchronous mode, let the container report the error if possible
+                        logger.error("Exception while running asynchronous request: " + request.getRequestURI, t)
+                        if (! response.isCommitted)
+                            Try(response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR))
+                }
+            } {
+                async.complete()
+            }
+
+        try
+            run.submit(executor)(runRequest())
+        catch {
+            case e: RejectedExecutionException ⇒
+                // Too many requests waiting, run on the container thread
+                runRequest()
+        }
+    }
+}
+
+object OrbeonServlet {
+    // Used by local service calls (LocalServletSubmission, persistence proxy) to get access to ProcessorService
+    val currentServlet = new DynamicVariable[OrbeonServlet]
 }
\ No newline at end of file
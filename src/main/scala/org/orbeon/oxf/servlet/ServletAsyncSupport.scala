@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.servlet
+
+import java.lang.reflect.{Method, InvocationHandler, Proxy}
+import javax.servlet.ServletRequest
+import scala.util.Try
+
+/**
+ * Access to Servlet 3 asynchronous processing.
+ *
+ * We compile against the Servlet 2.3 API and run in containers which don't all support Servlet 3, so the Servlet 3
+ * methods are called with reflection when they are available.
+ */
+object ServletAsyncSupport {
+
+    private val isAsyncSupportedMethod = Try(classOf[ServletRequest].getMethod("isAsyncSupported")).toOption
+    private val startAsyncMethod       = Try(classOf[ServletRequest].getMethod("startAsync")).toOption
+
+    private lazy val asyncContextClass  = Class.forName("javax.servlet.AsyncContext")
+    private lazy val asyncListenerClass = Class.forName("javax.servlet.AsyncListener")
+
+    // Whether the container and the request, including all its filters, support asynchronous processing
+    def isAsyncSupported(request: ServletRequest) =
+        isAsyncSupportedMethod exists (m ⇒ Try(m.invoke(request) == java.lang.Boolean.TRUE) getOrElse false)
+
+    // Put the request in asynchronous mode, so that the response is not committed when the container thread returns
+    //
+    // The timeout is in milliseconds, and 0 keeps the container's default. onTimeout is called by the container if the
+    // request doesn't complete before the timeout.
+    def startAsync(request: ServletRequest, timeout: Long)(onTimeout: AsyncHandle ⇒ Unit): AsyncHandle = {
+
+        val asyncContext = startAsyncMethod.get.invoke(request)
+        val handle = new AsyncHandle(asyncContext)
+
+        if (timeout > 0)
+            asyncContextClass.getMethod("setTimeout", java.lang.Long.TYPE).invoke(asyncContext, java.lang.Long.valueOf(timeout))
+
+        // Only react to onTimeout: completion and errors are handled by the thread running the request
+        val listener =
+            Proxy.newProxyInstance(asyncListenerClass.getClassLoader, Array(asyncListenerClass), new InvocationHandler {
+                def invoke(proxy: AnyRef, method: Method, args: Array[AnyRef]): AnyRef = {
+                    if (method.getName == "onTimeout")
+                        onTimeout(handle)
+                    null
+                }
+            })
+
+        asyncContextClass.getMethod("addListener", asyncListenerClass).invoke(asyncContext, listener)
+
+        handle
+    }
+
+    class AsyncHandle(asyncContext: AnyRef) {
+        // Complete the response. This does nothing if the container already completed it, e.g. after a timeout.
+        def complete(): Unit =
+            Try(asyncContextClass.getMethod("complete").invoke(asyncContext))
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ *  Copyright (C) 2013 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.servlet
+
+import javax.servlet.http.{HttpServletResponse, HttpServletRequest, HttpServlet}
+import org.orbeon.oxf.webapp.WarmUp
+
+// This servlet tells load balancers whether the web app is ready: it sends a 200 once warm-up is done, a 503 before.
+class WarmUpStatusServlet extends HttpServlet {
+
+    override def doGet(req: HttpServletRequest, res: HttpServletResponse): Unit = {
+        val ready = WarmUp.isReady
+
+        res.setStatus(if (ready) 200 else 503)
+        res.setContentType("text/plain")
+        res.setHeader("Cache-Control", "no-cache, no-store")
+        res.getWriter.print(if (ready) "ready" else "warming up")
+    }
+}
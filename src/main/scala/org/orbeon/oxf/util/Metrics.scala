@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.util
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{Callable, ConcurrentHashMap}
+import java.util.concurrent.atomic.AtomicLong
+import javax.management._
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+// Simple counters, timers and gauges grouped by name, each group being exposed as a read-only JMX MBean under the
+// org.orbeon domain. Updating a metric is a few atomic operations, so metrics can be recorded unconditionally.
+object Metrics {
+
+    private val Logger = LoggerFactory.createLogger(getClass)
+    private val Domain = "org.orbeon"
+
+    private val groups = new ConcurrentHashMap[String, Group]
+
+    // Return the group with the given name, creating and registering it if needed
+    def group(name: String): Group =
+        Option(groups.get(name)) getOrElse {
+            val newGroup = new Group(name)
+            Option(groups.putIfAbsent(name, newGroup)) getOrElse {
+                register(newGroup)
+                newGroup
+            }
+        }
+
+    private def register(group: Group): Unit =
+        try {
+            val server = ManagementFactory.getPlatformMBeanServer
+            val objectName = new ObjectName(Domain + ":type=" + ObjectName.quote(group.name))
+            if (! server.isRegistered(objectName))
+                server.registerMBean(group, objectName)
+        } catch {
+            case NonFatal(t) ⇒
+                // Metrics are still collected, just not exposed
+                Logger.warn("unable to register metrics with JMX for " + group.name, t)
+        }
+
+    class Counter {
+        private val value = new AtomicLong
+
+        def inc(): Unit = value.incrementAndGet()
+        def add(n: Long): Unit = value.addAndGet(n)
+        def count = value.get
+    }
+
+    class Timer {
+        private val _count = new AtomicLong
+        private val _totalNanos = new AtomicLong
+        private val _maxNanos = new AtomicLong
+
+        def time[T](body: ⇒ T): T = {
+            val start = System.nanoTime
+            try body
+            finally record(System.nanoTime - start)
+        }
+
+        def record(nanos: Long): Unit = {
+            _count.incrementAndGet()
+            _totalNanos.addAndGet(nanos)
+
+            var max = _maxNanos.get
+            while (nanos > max && ! _maxNanos.compareAndSet(max, nanos))
+                max = _maxNanos.get
+        }
+
+        def count      = _count.get
+        def totalMs    = _totalNanos.get / 1000000.0
+        def maxMs      = _maxNanos.get / 1000000.0
+        def meanMs     = { val c = count; if (c == 0) 0.0 else totalMs / c }
+    }
+
+    class Group(val name: String) extends DynamicMBean {
+
+        private val counters = new ConcurrentHashMap[String, Counter]
+        private val timers   = new ConcurrentHashMap[String, Timer]
+        private val gauges   = new ConcurrentHashMap[String, () ⇒ Long]
+
+        def counter(name: String): Counter = getOrCreate(counters, name, new Counter)
+        def timer(name: String): Timer     = getOrCreate(timers, name, new Timer)
+
+        // Register a value computed when read
+        def gauge(name: String)(value: ⇒ Long): Unit = gauges.put(name, () ⇒ value)
+
+        // Same for callers in Java
+        def gauge(name: String, value: Callable[java.lang.Long]): Unit = gauge(name)(value.call().longValue)
+
+        private def getOrCreate[T](map: ConcurrentHashMap[String, T], name: String, create: ⇒ T): T =
+            Option(map.get(name)) getOrElse {
+                val newValue = create
+                Option(map.putIfAbsent(name, newValue)) getOrElse newValue
+            }
+
+        // All current attributes, with name, JMX type and value
+        private def attributes: Seq[(String, String, () ⇒ AnyRef)] = {
+
+            val counterAttributes =
+                for ((name, counter) ← counters.asScala.toSeq)
+                    yield (name, "java.lang.Long", () ⇒ Long.box(counter.count))
+
+            val gaugeAttributes =
+                for ((name, gauge) ← gauges.asScala.toSeq)
+                    yield (name, "java.lang.Long", () ⇒ Long.box(gauge()))
+
+            val timerAttributes =
+                for {
+                    (name, timer)  ← timers.asScala.toSeq
+                    (suffix, get)  ← Seq[(String, Timer ⇒ AnyRef)](
+                        "count"    → (t ⇒ Long.box(t.count)),
+                        "total-ms" → (t ⇒ Double.box(t.totalMs)),
+                        "mean-ms"  → (t ⇒ Double.box(t.meanMs)),
+                        "max-ms"   → (t ⇒ Double.box(t.maxMs))
+                    )
+                } yield
+                    (name + '.' + suffix, if (suffix == "count") "java.lang.Long" else "java.lang.Double", () ⇒ get(timer))
+
+            (counterAttributes ++ gaugeAttributes ++ timerAttributes) sortBy (_._1)
+        }
+
+        // For logging and tests
+        def values: Seq[(String, AnyRef)] = attributes map { case (name, _, get) ⇒ name → get() }
+
+        def getAttribute(attribute: String) =
+            attributes collectFirst { case (`attribute`, _, get) ⇒ get() } getOrElse (throw new AttributeNotFoundException(attribute))
+
+        def getAttributes(names: Array[String]) = {
+            val list = new AttributeList
+            for ((name, _, get) ← attributes if names.contains(name))
+                list.add(new Attribute(name, get()))
+            list
+        }
+
+        def setAttribute(attribute: Attribute) =
+            throw new AttributeNotFoundException("read-only attribute: " + attribute.getName)
+
+        def setAttributes(attributes: AttributeList) = new AttributeList
+
+        def invoke(actionName: String, params: Array[AnyRef], signature: Array[String]) =
+            throw new ReflectionException(new NoSuchMethodException(actionName))
+
+        def getMBeanInfo =
+            new MBeanInfo(
+                classOf[Group].getName,
+                "Orbeon Forms " + name + " metrics",
+                (attributes map { case (name, tpe, _) ⇒ new MBeanAttributeInfo(name, tpe, name, true, false, false) }).toArray,
+                null,
+                null,
+                null
+            )
+    }
+}
@@ -15,7 +15,11 @@ package org.orbeon.oxf.webapp
 
 import org.orbeon.oxf.pipeline.InitUtils.runWithServletContext
 import javax.servlet.{ServletException, ServletContextEvent, ServletContextListener}
+import org.orbeon.oxf.processor.xinclude.IncludedDocuments
+import org.orbeon.oxf.resources.FilesystemResourceManagerImpl
+import org.orbeon.oxf.resources.handler.HTTPURLConnection
 import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xforms.analysis.PartXPathCompilation
 
 // For backward compatibility
 class OrbeonServletContextListenerDelegate extends OrbeonServletContextListener
@@ -38,12 +42,22 @@ class OrbeonServletContextListener extends ServletContextListener {
     def contextInitialized(event: ServletContextEvent): Unit =
         withRootException("context creation", new ServletException(_)) {
             runWithServletContext(event.getServletContext, None, logger, logPrefix, "Context initialized.", InitProcessorPrefix, InitInputPrefix)
+            // Once properties are available
+            ServletPortlet.precompileStylesheetsOnce(WebAppContext(event.getServletContext))
+            WarmUp.start(event.getServletContext)
         }
 
     def contextDestroyed(event: ServletContextEvent): Unit =
         withRootException("context destruction", new ServletException(_)) {
+            WarmUp.stop()
             runWithServletContext(event.getServletContext, None, logger, logPrefix, "Context destroyed.", DestroyProcessorPrefix, DestroyInputPrefix)
             // NOTE: This calls all listeners, because the listeners are stored in the actual web app context's attributes
             WebAppContext(event.getServletContext).webAppDestroyed()
+
+            // Stop threads shared by all the servlets and portlets of the web app, once they are all destroyed
+            PartXPathCompilation.shutdown()
+            IncludedDocuments.shutdown()
+            HTTPURLConnection.ConnectionReaper.stop()
+            FilesystemResourceManagerImpl.stopWatchers()
         }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import org.orbeon.oxf.pipeline.InitUtils._
 import org.orbeon.oxf.webapp.ProcessorService._
 import org.orbeon.oxf.pipeline.api.{PipelineContext, ProcessorDefinition}
 import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.processor.transformer.xslt.XSLTPrecompiler
 
 // Servlet/portlet helper for processor definitions and services
 trait ServletPortlet {
@@ -44,6 +45,10 @@ trait ServletPortlet {
 
         // Run listener if needed
         processor foreach { case (processorPrefix, inputPrefix) ⇒ runInitDestroyListenerProcessor(_, _) }
+
+        // Compile configured XSLT stylesheets before the first request needs them
+        ServletPortlet.precompileStylesheetsOnce(webAppContext)
+
         Logger.info(logPrefix + " initialized.")
     }
 
@@ -90,3 +95,24 @@ trait ServletPortlet {
         functions flatMap (_(processorPrefix, inputPrefix)) headOption
     }
 }
+
+object ServletPortlet {
+
+    private val StylesheetsPrecompiled = "oxf.xslt.precompiled"
+
+    // Compile configured XSLT stylesheets only once per web app, whether by the context listener or by the first
+    // servlet or portlet initialized
+    def precompileStylesheetsOnce(webAppContext: WebAppContext): Unit = {
+        // Compile outside of the lock, so that other servlets and portlets don't wait for it to initialize
+        val first =
+            WebAppContext.synchronized {
+                webAppContext.attributes.get(StylesheetsPrecompiled).isEmpty && {
+                    webAppContext.attributes += StylesheetsPrecompiled → "true"
+                    true
+                }
+            }
+
+        if (first)
+            XSLTPrecompiler.precompileFromProperties(new WebAppExternalContext(webAppContext))
+    }
+}
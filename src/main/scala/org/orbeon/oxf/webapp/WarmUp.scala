@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.webapp
+
+import collection.JavaConverters._
+import java.io.{IOException, InputStream}
+import java.net.{ConnectException, HttpURLConnection, URL}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ThreadFactory, Callable, Executors}
+import javax.servlet.ServletContext
+import org.apache.commons.io.IOUtils
+import org.orbeon.oxf.controller.Authorizer
+import org.orbeon.oxf.fr.FormRunner
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{SecureUtils, Metrics}
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import scala.util.control.NonFatal
+
+/**
+ * Warm-up of pages after the web app starts.
+ *
+ * After a deployment, the first request to each form pays for reading XBL bindings, creating and analyzing the static
+ * state, and compiling XPath expressions. When enabled, this requests a list of pages in the background, optionally
+ * with all the published Form Runner forms, so that this work is done before users come in. Results are kept in the
+ * usual caches.
+ *
+ * Pages are requested over HTTP, as a browser would, so that the same caches are used. Requests use the service token
+ * so that Form Runner services are authorized.
+ *
+ * Until all pages have been requested, isReady returns false. This is exposed with the "ready" attribute of the
+ * "warm-up" JMX metrics, and by WarmUpStatusServlet, which load balancers can poll.
+ */
+object WarmUp {
+
+    private val EnabledProperty        = "oxf.warm-up.enabled"
+    private val BaseURIProperty        = "oxf.warm-up.base-uri"
+    private val URLsProperty           = "oxf.warm-up.urls"
+    private val PublishedFormsProperty = "oxf.warm-up.published-forms"
+    private val MaxThreadsProperty     = "oxf.warm-up.max-threads"
+
+    // Retries while the container is not accepting connections yet
+    private val MaxConnectAttempts = 10
+    private val MaxConnectDelayMs  = 10000L
+
+    private val Logger = ProcessorService.Logger
+
+    private val WarmUpMetrics = Metrics.group("warm-up")
+    private val Succeeded     = WarmUpMetrics.counter("succeeded")
+    private val Failed        = WarmUpMetrics.counter("failed")
+    private val Requests      = WarmUpMetrics.timer("request")
+
+    @volatile private var _ready = true
+    @volatile private var coordinator: Option[Thread] = None
+    private val pending = new AtomicInteger
+
+    WarmUpMetrics.gauge("ready")(if (_ready) 1L else 0L)
+    WarmUpMetrics.gauge("pending")(pending.get)
+
+    // Whether warm-up is complete, or true if it is not enabled
+    def isReady = _ready
+
+    // Start warming up in the background if enabled
+    def start(servletContext: ServletContext): Unit = {
+
+        val propertySet = Properties.instance.getPropertySet
+
+        def configuredURLs = nonEmptyOrNone(propertySet.getString(URLsProperty, "")).toList flatMap (_.split("""\s+"""))
+
+        if (propertySet.getBoolean(EnabledProperty, false)) {
+            nonEmptyOrNone(propertySet.getStringOrURIAsString(BaseURIProperty, allowEmpty = true)) match {
+                case Some(baseURI) ⇒
+                    val maxThreads = propertySet.getInteger(MaxThreadsProperty, 2).intValue max 1
+                    val token      = WebAppContext(servletContext).attributes.getOrElseUpdate(Authorizer.TokenKey, SecureUtils.randomHexId).asInstanceOf[String]
+                    val context    = new WarmUpContext(dropTrailingSlash(baseURI), token)
+                    val forms      = propertySet.getBoolean(PublishedFormsProperty, false)
+
+                    _ready = false
+
+                    val thread = daemonThread("orbeon-warm-up") {
+                        try warmUp(context, configuredURLs, forms, maxThreads)
+                        catch {
+                            case e: InterruptedException ⇒ Logger.info("Warm-up interrupted")
+                            case NonFatal(t)             ⇒ Logger.error("Warm-up failed", t)
+                        } finally
+                            _ready = true
+                    }
+                    coordinator = Some(thread)
+                    thread.start()
+                case None ⇒
+                    Logger.warn("Warm-up is enabled but " + BaseURIProperty + " is not set, skipping")
+            }
+        }
+    }
+
+    // Stop warming up, typically because the web app is stopping
+    def stop(): Unit = {
+        coordinator foreach (_.interrupt())
+        coordinator = None
+    }
+
+    private class WarmUpContext(val baseURI: String, val token: String) {
+
+        // GET the path and read the response if successful
+        def get[T](path: String)(read: InputStream ⇒ T): T = {
+            val connection = new URL(baseURI + appendStartingSlash(path)).openConnection.asInstanceOf[HttpURLConnection]
+            connection.setRequestProperty(Authorizer.TokenKey, token)
+            try {
+                val code = connection.getResponseCode
+                if (code != 200)
+                    throw new IOException("status code " + code)
+                useAndClose(connection.getInputStream)(read)
+            } finally
+                connection.disconnect()
+        }
+
+        // Same, but retry while the container is not accepting connections yet
+        def getWhenAvailable[T](path: String)(read: InputStream ⇒ T): T = {
+            def attempt(n: Int, delayMs: Long): T =
+                try get(path)(read)
+                catch {
+                    case e: ConnectException if n < MaxConnectAttempts ⇒
+                        Thread.sleep(delayMs)
+                        attempt(n + 1, (delayMs * 2) min MaxConnectDelayMs)
+                }
+
+            attempt(1, 500)
+        }
+    }
+
+    private def warmUp(context: WarmUpContext, configuredURLs: List[String], publishedForms: Boolean, maxThreads: Int): Unit = {
+
+        val start = System.currentTimeMillis
+
+        def publishedFormURLs =
+            if (publishedForms)
+                try
+                    context.getWhenAvailable(FormRunner.FormMetadataBasePath) { is ⇒
+                        val forms = Dom4jUtils.elements(Dom4jUtils.readDom4j(is).getRootElement, "form").asScala.toList
+                        for {
+                            form ← forms
+                            app  ← nonEmptyOrNone(form.elementText("application-name"))
+                            name ← nonEmptyOrNone(form.elementText("form-name"))
+                        } yield
+                            "/fr/" + app + "/" + name + "/new"
+                    }
+                catch {
+                    case NonFatal(t) ⇒
+                        Logger.warn("Warm-up unable to read published forms", t)
+                        Nil
+                }
+            else
+                Nil
+
+        val urls = (configuredURLs ++ publishedFormURLs).distinct
+        pending.set(urls.size)
+
+        Logger.info("Warm-up starting for " + urls.size + " page(s) with " + maxThreads + " thread(s)")
+
+        val tasks =
+            for (url ← urls)
+                yield new Callable[Unit] {
+                    def call() =
+                        try {
+                            val startRequest = System.currentTimeMillis
+                            Requests.time(context.getWhenAvailable(url)(IOUtils.copy(_, NullOutputStream)))
+                            Succeeded.inc()
+                            Logger.info("Warm-up of " + url + " done in " + (System.currentTimeMillis - startRequest) + " ms, " + pending.decrementAndGet() + " page(s) remaining")
+                        } catch {
+                            case NonFatal(t) ⇒
+                                Failed.inc()
+                                pending.decrementAndGet()
+                                Logger.warn("Warm-up of " + url + " failed: " + t.getMessage)
+                        }
+                }
+
+        // Limit parallelism so that warm-up doesn't take over the server, and stop requests if interrupted
+        val executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory {
+            private val count = new AtomicInteger
+            def newThread(r: Runnable) = daemonThread("orbeon-warm-up-" + count.incrementAndGet())(r.run())
+        })
+        try executor.invokeAll(tasks.asJava)
+        finally executor.shutdownNow()
+
+        Logger.info("Warm-up done in " + (System.currentTimeMillis - start) + " ms: " + Succeeded.count + " succeeded, " + Failed.count + " failed")
+    }
+
+    private object NullOutputStream extends java.io.OutputStream {
+        def write(b: Int) = ()
+        override def write(b: Array[Byte], off: Int, len: Int) = ()
+    }
+
+    private def daemonThread(name: String)(body: ⇒ Unit) = {
+        val thread = new Thread(new Runnable { def run() = body }, name)
+        thread.setDaemon(true)
+        thread
+    }
+}
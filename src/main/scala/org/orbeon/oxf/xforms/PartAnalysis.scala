@@ -13,7 +13,7 @@
  */
 package org.orbeon.oxf.xforms
 
-import org.orbeon.oxf.xforms.analysis.{ElementAnalysis, Metadata}
+import org.orbeon.oxf.xforms.analysis.{InstancePaths, ElementAnalysis, Metadata}
 import org.orbeon.oxf.xforms.event.EventHandler
 import org.orbeon.oxf.xml.dom4j.LocationData
 import java.util.{List ⇒ JList}
@@ -51,6 +51,9 @@ trait PartAnalysis extends PartGlobalOps with PartStaticAnalysisOps {
     def metadata: Metadata
     def xblBindings: XBLBindings
 
+    // Instance paths of XPath analyses, shared by all the parts
+    def instancePaths: InstancePaths
+
     def dumpAnalysis()
 
     // The element in our parent that created the current part
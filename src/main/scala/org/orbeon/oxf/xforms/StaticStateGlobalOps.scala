@@ -87,6 +87,8 @@ class StaticStateGlobalOps(topLevelPart: PartAnalysis) extends PartGlobalOps {
 
     def hasInputPlaceholder = existsInParts(_.hasInputPlaceholder)
 
+    def instancePaths = parts map (_.instancePaths)
+
     def getGlobals = collectInParts(_.getGlobals) toMap
 
     def scripts = collectInParts(_.scripts) toMap
@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import collection.mutable
+
+/**
+ * Instance paths found by XPath analysis, shared by all the analyses of a part.
+ *
+ * Each distinct path is stored once and identified by a small integer id. Paths are stored in a trie, with one root per
+ * instance and one node per step, where steps are fingerprints as produced by PathMapXPathAnalysis, e.g. "123" or
+ * "@456". The root stands for the empty path, i.e. the root element of the instance.
+ *
+ * The paths of an analysis are then a PathSet, and the changes to instances at runtime are a set of ids, so that
+ * checking whether an analysis is impacted by changes doesn't involve any string comparison.
+ *
+ * Each part has its own table, which is only modified during the analysis of that part and only read afterwards. In
+ * particular, parts created at runtime, e.g. by xxf:dynamic, don't add paths to the table of the top-level part, which
+ * is cached and read concurrently by all the documents using the static state.
+ */
+class InstancePaths {
+
+    import InstancePaths._
+
+    private val roots     = new mutable.HashMap[String, Node]
+    private val nodes     = new mutable.ArrayBuffer[Node]
+    private val steps     = new mutable.HashMap[String, String]
+    private val pathSets  = new mutable.HashMap[PathSet, PathSet]
+
+    // Number of distinct paths
+    def size = synchronized(nodes.size)
+
+    // Return the id of the path, allocating one if needed
+    def intern(instancePrefixedId: String, path: String): Int = synchronized {
+        val root = roots.getOrElseUpdate(instancePrefixedId, new Node(null, instancePrefixedId))
+        val node =
+            splitPath(path).foldLeft(root) { (node, step) ⇒
+                node.findChild(step) getOrElse node.addChild(steps.getOrElseUpdate(step, step))
+            }
+
+        if (node.id == NoId) {
+            node.id = nodes.size
+            nodes += node
+        }
+        node.id
+    }
+
+    // Return the id of the path, or NoId if no analysis refers to it
+    def find(instancePrefixedId: String, path: String): Int =
+        findNode(instancePrefixedId, splitPath(path)) map (_.id) getOrElse NoId
+
+    // Call f with the ids of the path and of all its ancestor paths to which analyses refer
+    def foreachAncestorOrSelf(instancePrefixedId: String, steps: Seq[String])(f: Int ⇒ Unit): Unit =
+        roots.get(instancePrefixedId) foreach { root ⇒
+
+            def visit(node: Node, remaining: Seq[String]): Unit = {
+                if (node.id != NoId)
+                    f(node.id)
+
+                if (remaining.nonEmpty)
+                    node.findChild(remaining.head) foreach (visit(_, remaining.tail))
+            }
+
+            visit(root, steps)
+        }
+
+    def instance(id: Int) = nodes(id).instance
+    def path(id: Int)     = nodes(id).path
+
+    // Return the shared path set with the given ids
+    private[analysis] def pathSet(ids: Array[Int]): PathSet =
+        if (ids.isEmpty)
+            PathSet.Empty
+        else synchronized {
+            val pathSet = new PathSet(this, ids)
+            pathSets.getOrElseUpdate(pathSet, pathSet)
+        }
+
+    private def findNode(instancePrefixedId: String, steps: Seq[String]) =
+        steps.foldLeft(roots.get(instancePrefixedId))((node, step) ⇒ node flatMap (_.findChild(step)))
+}
+
+object InstancePaths {
+
+    val NoId = -1
+
+    private def splitPath(path: String): Seq[String] =
+        if (path.isEmpty) Nil else path split '/'
+
+    // Trie node, where the root has the instance id as step
+    private class Node(val parent: Node, val step: String) {
+
+        var id = NoId
+
+        // Most nodes have no or few children
+        private var children: mutable.HashMap[String, Node] = null
+
+        def findChild(step: String) = if (children eq null) None else children.get(step)
+
+        def addChild(step: String) = {
+            if (children eq null)
+                children = new mutable.HashMap[String, Node]
+            val child = new Node(this, step)
+            children.put(step, child)
+            child
+        }
+
+        def instance: String = if (parent eq null) step else parent.instance
+        def path: String = ancestorOrSelfSteps.tail mkString "/"
+
+        private def ancestorOrSelfSteps: List[String] = {
+            var result: List[String] = Nil
+            var current = this
+            while (current ne null) {
+                result = current.step :: result
+                current = current.parent
+            }
+            result
+        }
+    }
+}
+
+/**
+ * Immutable set of instance paths, as ids into an InstancePaths table.
+ *
+ * Ids are kept in the order in which paths were added, grouped by instance, so that the output of the analysis is
+ * reproducible. Sets with the same ids are shared, as identical expressions in the same context produce the same paths.
+ */
+final class PathSet private[analysis] (private val table: InstancePaths, private val ids: Array[Int]) {
+
+    def isEmpty  = ids.isEmpty
+    def nonEmpty = ! isEmpty
+
+    // Whether any of the paths is in the given changeset
+    def intersects(changeset: Changeset): Boolean =
+        nonEmpty && intersects(changeset.ids(table))
+
+    // Whether any of the paths is in the given set of ids
+    def intersects(changeset: collection.BitSet): Boolean = {
+        var i = 0
+        while (i < ids.length) {
+            if (changeset(ids(i)))
+                return true
+            i += 1
+        }
+        false
+    }
+
+    // Instances of the paths, in order
+    def instances: Seq[String] = (ids map table.instance).distinct
+
+    // (instance, path) pairs, in order
+    def paths: Seq[(String, String)] = ids map (id ⇒ (table.instance(id), table.path(id)))
+
+    def combine(other: PathSet): PathSet =
+        if (other.isEmpty || (other eq this))
+            this
+        else if (isEmpty)
+            other
+        else {
+            val builder = new PathSet.Builder(table)
+            builder ++= this
+            builder ++= other
+            builder.result
+        }
+
+    override def equals(other: Any) = other match {
+        case other: PathSet ⇒ (table eq other.table) && java.util.Arrays.equals(ids, other.ids)
+        case _ ⇒ false
+    }
+
+    override def hashCode = java.util.Arrays.hashCode(ids)
+}
+
+object PathSet {
+
+    val Empty = new PathSet(null, Array.empty[Int])
+
+    // Build a path set, grouping paths by instance
+    class Builder(table: InstancePaths) {
+
+        private val idsByInstance = new mutable.LinkedHashMap[String, mutable.LinkedHashSet[Int]]
+
+        def +=(instancePrefixedId: String, path: String): this.type =
+            add(instancePrefixedId, table.intern(instancePrefixedId, path))
+
+        def ++=(pathSet: PathSet): this.type = {
+            pathSet.ids foreach (id ⇒ add(table.instance(id), id))
+            this
+        }
+
+        def result = table.pathSet(idsByInstance.values.flatten.toArray)
+
+        private def add(instancePrefixedId: String, id: Int): this.type = {
+            idsByInstance.getOrElseUpdate(instancePrefixedId, new mutable.LinkedHashSet[Int]) += id
+            this
+        }
+    }
+}
+
+/**
+ * Mutable set of changed instance paths, with the ids of the paths in each InstancePaths table.
+ *
+ * A change to an instance node can impact the analyses of several parts, e.g. when a nested part refers to an instance
+ * of its parent, so the change is recorded with the ids of each table which knows the path.
+ */
+final class Changeset {
+
+    private val idsByTable = new mutable.HashMap[InstancePaths, mutable.BitSet]
+
+    def isEmpty = idsByTable.values forall (_.isEmpty)
+
+    def ids(table: InstancePaths): collection.BitSet =
+        idsByTable.getOrElse(table, Changeset.NoIds)
+
+    def +=(table: InstancePaths, id: Int): this.type = {
+        idsByTable.getOrElseUpdate(table, new mutable.BitSet) += id
+        this
+    }
+
+    def clear(): Unit = idsByTable.clear()
+}
+
+object Changeset {
+    private val NoIds = collection.immutable.BitSet.empty
+}
@@ -112,6 +112,8 @@ trait Bindings {
         this.lastModified = math.max(this.lastModified, lastModified)
     }
 
+    def bindingsLastModified = lastModified
+
     // Check if the binding includes are up to date.
     def checkBindingsIncludes =
         try {
@@ -54,6 +54,7 @@ class PartAnalysisImpl(
     with PartEventHandlerAnalysis
     with PartControlsAnalysis
     with PartXBLAnalysis
+    with PartXPathCompilation
     with Logging
     with DebugXML {
 
@@ -81,6 +82,9 @@ class PartAnalysisImpl(
 
     def isTopLevel = startScope.isTopLevelScope
 
+    // Own to this part, so that a part created at runtime doesn't modify the table of its parent
+    val instancePaths = new InstancePaths
+
     def getProperty[T](propertyName: String) = staticStateDocument.getProperty[T](propertyName)
     val isExposeXPathTypes = getProperty[Boolean](P.EXPOSE_XPATH_TYPES_PROPERTY)
 
@@ -227,6 +231,11 @@ class PartAnalysisImpl(
             } else if (xblBindings.allGlobals.nonEmpty)
                 warn(s"There are ${xblBindings.allGlobals.size} xxbl:global in a child part. Those won't be processed.")
 
+            // Compile expressions on other threads while the steps below run
+            val isXPathAnalysis = isTopLevel && staticState.isXPathAnalysis
+            if (isXPathAnalysis)
+                precompileXPath(controlAnalysisMap.values)
+
             // Attach LHHA
             for (lhha ← lhhas)
                 lhha.attachToControl()
@@ -242,7 +251,7 @@ class PartAnalysisImpl(
             analyzeCustomControls(attributes)
 
             // NOTE: For now, we don't analyze the XPath of nested (dynamic) parts
-            if (isTopLevel && staticState.isXPathAnalysis) {
+            if (isXPathAnalysis) {
                 // Analyze root control XPath first as nested models might ask for its context
                 rootControlAnalysis.analyzeXPath()
                 // Analyze all models XPath
@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import collection.JavaConverters._
+import collection.mutable
+import java.util.concurrent._
+import java.util.concurrent.atomic.AtomicInteger
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{DynamicVariable, XPath}
+import org.orbeon.oxf.util.XPath.CompiledExpression
+import org.orbeon.oxf.xforms.{XFormsProperties, XFormsContainingDocument}
+import org.orbeon.oxf.xml.NamespaceMapping
+import org.orbeon.oxf.xml.dom4j.LocationData
+
+/**
+ * Compilation of the XPath expressions of controls on several threads.
+ *
+ * XPath analysis of controls depends on the analysis of ancestors, preceding variables and binds, so it runs in
+ * document order on a single thread. But compiling each expression is independent from the others, and is the largest
+ * part of the cost. So once the tree of controls is built, the expressions known in advance are submitted to a shared
+ * pool, and the XPath analysis picks up the results as it reaches each control. Results are looked up by element and
+ * expression, so the analysis and its ids are the same as when compiling on a single thread.
+ *
+ * This is enabled when the oxf.xforms.analysis.threads property is greater than 1.
+ */
+trait PartXPathCompilation extends TransientState {
+
+    self: PartAnalysisImpl ⇒
+
+    import PartXPathCompilation._
+
+    // Expressions being compiled, by prefixed id, expression and whether the expression is an AVT
+    private val precompiled = mutable.HashMap[(String, String, Boolean), Future[CompiledExpression]]()
+
+    // Start compiling the expressions of the given elements
+    protected def precompileXPath(elements: Iterable[ElementAnalysis]): Unit =
+        executorOpt foreach { executor ⇒
+            for {
+                element           ← elements collect { case e: SimpleElementAnalysis ⇒ e }
+                (expression, avt) ← element.precompilableExpressions
+                key               = (element.prefixedId, expression, avt)
+                if ! precompiled.contains(key)
+            } {
+                val namespaceMapping = metadata.getNamespaceMapping(element.prefixedId)
+                val locationData     = element.locationData
+                try
+                    precompiled += key → executor.submit(new Callable[CompiledExpression] {
+                        def call() = compile(expression, namespaceMapping, locationData, avt)
+                    })
+                catch {
+                    // The executor was shut down, the expression is compiled on the current thread instead
+                    case e: RejectedExecutionException ⇒
+                }
+            }
+        }
+
+    // Return the compiled expression, compiling it now unless it was compiled ahead
+    def compileExpression(prefixedId: String, expression: String, namespaceMapping: NamespaceMapping, locationData: LocationData, avt: Boolean): CompiledExpression =
+        precompiled.remove((prefixedId, expression, avt)) match {
+            case Some(future) ⇒
+                try future.get
+                catch {
+                    case e: ExecutionException   ⇒ throw e.getCause
+                    // The executor was shut down before the expression was compiled
+                    case e: CancellationException ⇒ compile(expression, namespaceMapping, locationData, avt)
+                }
+            case None ⇒
+                compile(expression, namespaceMapping, locationData, avt)
+        }
+
+    override def freeTransientState() = {
+        super.freeTransientState()
+
+        // Expressions which were not needed after all
+        precompiled.values foreach (_.cancel(false))
+        precompiled.clear()
+    }
+
+    private def compile(expression: String, namespaceMapping: NamespaceMapping, locationData: LocationData, avt: Boolean) = {
+        implicit val logger = getIndentedLogger
+        XPath.compileExpression(expression, namespaceMapping, locationData, XFormsContainingDocument.getFunctionLibrary, avt)
+    }
+}
+
+object PartXPathCompilation {
+
+    // For tests, to compile with the given number of threads instead of the number set by the property
+    private[analysis] val threadsOverride = new DynamicVariable[Int]
+
+    private var executor: Option[(Int, ExecutorService)] = None
+
+    // Shared by all static states, None if compiling on the current thread only
+    private def executorOpt: Option[ExecutorService] = {
+        val threads = threadsOverride.value getOrElse XFormsProperties.getAnalysisThreads
+        threads > 1 option synchronized {
+            executor match {
+                case Some((`threads`, existing)) ⇒
+                    existing
+                case other ⇒
+                    // Let compilations in progress complete if the number of threads has changed
+                    other foreach (_._2.shutdown())
+                    val created = newExecutor(threads)
+                    executor = Some(threads → created)
+                    created
+            }
+        }
+    }
+
+    // Stop the threads, so that they don't keep the web app's classes loaded once it is destroyed
+    // If a static state is analyzed afterwards, new threads are created.
+    def shutdown(): Unit = synchronized {
+        for ((_, existing) ← executor; task ← existing.shutdownNow().asScala)
+            task match {
+                case future: Future[_] ⇒ future.cancel(false) // so that the analysis doesn't wait for it
+                case _ ⇒
+            }
+        executor = None
+    }
+
+    private def newExecutor(threads: Int) =
+        Executors.newFixedThreadPool(threads, new ThreadFactory {
+            private val count = new AtomicInteger
+            def newThread(r: Runnable) = {
+                val thread = new Thread(r, "orbeon-xpath-compilation-" + count.incrementAndGet())
+                thread.setDaemon(true)
+                thread
+            }
+        })
+}
@@ -38,8 +38,8 @@ import scala.util.control.NonFatal
 class PathMapXPathAnalysis(val xpathString: String,
                            var pathmap: Option[PathMap], // this is used when used as variables and context and can be freed afterwards
                            val figuredOutDependencies: Boolean,
-                           val valueDependentPaths: MapSet[String, String],
-                           val returnablePaths: MapSet[String, String],
+                           val valueDependentPaths: PathSet,
+                           val returnablePaths: PathSet,
                            val dependentModels: collection.Set[String],
                            val dependentInstances: collection.Set[String])
         extends XPathAnalysis {
@@ -79,7 +79,7 @@ class PathMapXPathAnalysis(val xpathString: String,
             Some(pathmap.get.clone),
             true,
             valueDependentPaths combine returnablePaths,
-            MapSet.empty[String, String],
+            PathSet.Empty,
             dependentModels,
             dependentInstances)
 
@@ -96,14 +96,14 @@ class PathMapXPathAnalysis(val xpathString: String,
             }
         }
 
-        def mapSetToSet(mapSet: MapSet[String, String]) = mapSet map (entry ⇒ PathMapXPathAnalysis.buildInstanceString(entry._1) + "/" + entry._2)
+        def pathSetToSet(pathSet: PathSet) = pathSet.paths map { case (instance, path) ⇒ PathMapXPathAnalysis.buildInstanceString(instance) + "/" + path }
 
-        toXML(mapSetToSet(valueDependentPaths), "value-dependent", "path")
-        toXML(mapSetToSet(returnablePaths), "returnable", "path")
+        toXML(pathSetToSet(valueDependentPaths), "value-dependent", "path")
+        toXML(pathSetToSet(returnablePaths), "returnable", "path")
 
         toXML(dependentModels, "dependent-models", "model")
         toXML(dependentInstances, "dependent-instances", "instance")
-        toXML(returnablePaths.keys, "returnable-instances", "instance")
+        toXML(returnablePaths.instances, "returnable-instances", "instance")
 
         helper.endElement()
     }
@@ -198,8 +198,8 @@ object PathMapXPathAnalysis {
 //                    dumpPathMap(staticState.getXPathConfiguration, xpathString, pathmap)
 
                     // We use LinkedHashMap/LinkedHashSet in part to keep unit tests reproducible
-                    val valueDependentPaths = new MapSet[String, String]
-                    val returnablePaths = new MapSet[String, String]
+                    val valueDependentPaths = new PathSet.Builder(partAnalysis.instancePaths)
+                    val returnablePaths = new PathSet.Builder(partAnalysis.instancePaths)
 
                     val dependentModels = new LinkedHashSet[String]
                     val dependentInstances = new LinkedHashSet[String]
@@ -247,9 +247,9 @@ object PathMapXPathAnalysis {
 
                                         // NOTE: A same node can be both returnable AND atomized in a given expression
                                         if (node.isReturnable)
-                                            returnablePaths.put(instancePath.instancePrefixedId, instancePath.path)
+                                            returnablePaths += (instancePath.instancePrefixedId, instancePath.path)
                                         if (node.isAtomized)
-                                            valueDependentPaths.put(instancePath.instancePrefixedId, instancePath.path)
+                                            valueDependentPaths += (instancePath.instancePrefixedId, instancePath.path)
                                     case Right(None) ⇒ // NOP: don't add the path as this is not considered a dependency
                                     case Left(_) ⇒ return false // we can't deal with this path so stop here
                                 }
@@ -277,7 +277,7 @@ object PathMapXPathAnalysis {
 
                     if (processPaths())
                         // Success
-                        new PathMapXPathAnalysis(xpathString, Some(pathmap), true, valueDependentPaths, returnablePaths, dependentModels, dependentInstances)
+                        new PathMapXPathAnalysis(xpathString, Some(pathmap), true, valueDependentPaths.result, returnablePaths.result, dependentModels, dependentInstances)
                     else
                         // Failure
                         NegativeAnalysis(xpathString)
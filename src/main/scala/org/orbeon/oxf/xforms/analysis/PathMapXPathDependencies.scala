@@ -42,41 +42,33 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         var validateMIPsEvaluatedOnce  = false  // start dirty
 
         // Meaning of a change: "the string value of the node has changed"
-        var recalculateChangeset = new MapSet[String, String]   // changeset for recalculate MIPs
-        var revalidateChangeset  = recalculateChangeset         // changeset for revalidate MIPs
+        // Changesets contain ids of paths in the instance paths of the parts
+        var recalculateChangeset = new Changeset        // changeset for recalculate MIPs
+        var revalidateChangeset  = recalculateChangeset // changeset for revalidate MIPs
 
         def markValueChanged(node: NodeInfo) {
             // Only care about path changes if there is no structural change for this model, since structural changes
             // for now disable any more subtle path-based check.
             if (! hasStructuralChanges) {
 
-                // Create instance/path combo
-                val instance = containingDocument.getInstanceForNode(node)
+                val instancePrefixedId = containingDocument.getInstanceForNode(node).getPrefixedId
 
-                val instancePrefixedId = instance.getPrefixedId
+                // Add the path of the node, and the paths of its parent elements as well. The idea is that if the
+                // string value of /a/b/c changed, then the string value of /a/b did as well, and so did /a's.
+                // This adds more entries to the changeset, but handles cases such as detecting changes impacting
+                // the string() or serialize() functions.
+                // Paths to which no analysis refers don't have an id and are not needed in changesets.
+                val steps = PathMapXPathDependencies.createFingerprintedSteps(node)
+                for (table ← instancePaths)
+                    table.foreachAncestorOrSelf(instancePrefixedId, steps) { id ⇒
 
-                def processNode(n: NodeInfo) {
-                    val path = PathMapXPathDependencies.createFingerprintedPath(n)
+                        // Update model and view changesets
+                        recalculateChangeset += (table, id)
+                        if (revalidateChangeset ne recalculateChangeset)
+                            revalidateChangeset += (table, id) // also add to revalidate changeset if it is different
 
-                    val instancePath = instancePrefixedId → path
-
-                    // Update model and view changesets
-                    recalculateChangeset += instancePath
-                    if (revalidateChangeset ne recalculateChangeset)
-                        revalidateChangeset += instancePath // also add to revalidate changeset if it is different
-
-                    RefreshState.changeset += instancePath
-
-                    // Add parent elements as well. The idea is that if the string value of /a/b/c changed, then the
-                    // string value of /a/b did as well, and so did /a's.
-                    // This adds more entries to the changeset, but handles cases such as detecting changes impacting
-                    // the string() or serialize() functions.
-                    val parent = n.getParent
-                    if ((parent ne null) && parent.getNodeKind == ELEMENT_NODE)
-                        processNode(parent)
-                }
-
-                processNode(node)
+                        RefreshState.changeset += (table, id)
+                    }
             }
         }
 
@@ -118,10 +110,10 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
 
         // Return an empty changeset, trying to point to the empty right changeset if possible
         // This is so that we can try to avoid adding changes to both changesets later
-        private def clearChangeset(left: MapSet[String, String], right: MapSet[String, String]) =
+        private def clearChangeset(left: Changeset, right: Changeset) =
             if (right isEmpty) right
             else if (left ne right) { left.clear(); left }
-            else new MapSet[String, String]
+            else new Changeset
 
         def refreshDone() = ()
 
@@ -133,6 +125,9 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         // although following rebuild will set calculateClean = false, this is not right and might still lead to issues
     }
 
+    // Instance paths of the analyses of all the parts, including parts created at runtime
+    private def instancePaths = containingDocument.getStaticOps.instancePaths
+
     // State of models
     private val modelStates = new mutable.HashMap[String, ModelState]
 
@@ -148,8 +143,8 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
         // Structural changes
         val structuralChangeModels = new mutable.HashSet[String]
 
-        // Modified paths by instance
-        val changeset = new MapSet[String, String]
+        // Ids of modified paths
+        val changeset = new Changeset
 
         // Caches to speedup checks on repeated items
         val modifiedBindingCacheForRepeats = new mutable.HashMap[String, UpdateResult]
@@ -303,7 +298,12 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
     def setModifiedPathTest(instance: String, namespaces: JMap[String, String], path: String) {
         assert(RefreshState.changeset.isEmpty)
 
-        RefreshState.changeset += instance → PathMapXPathAnalysis.getInternalPath(namespaces, path)
+        val internalPath = PathMapXPathAnalysis.getInternalPath(namespaces, path)
+        for (table ← instancePaths) {
+            val id = table.find(instance, internalPath)
+            if (id != InstancePaths.NoId)
+                RefreshState.changeset += (table, id)
+        }
     }
 
     private case class UpdateResult(requireUpdate: Boolean, savedEvaluations: Int)
@@ -539,9 +539,9 @@ class PathMapXPathDependencies(private val containingDocument: XFormsContainingD
 object PathMapXPathDependencies {
 
     /**
-     * Create a fingerprinted path of the form: 3142/1425/@1232 from a node.
+     * Create the fingerprinted steps of the path of a node, e.g. 3142, 1425, @1232 for 3142/1425/@1232.
      */
-    private def createFingerprintedPath(node: NodeInfo): String = {
+    private def createFingerprintedSteps(node: NodeInfo): List[String] = {
 
         // Create an immutable list with ancestor-or-self nodes up to but not including the document node
         var ancestorOrSelf: List[NodeInfo] = Nil
@@ -552,12 +552,12 @@ object PathMapXPathDependencies {
         }
 
         // Fingerprint representation of the element and attribute nodes
-        (if (ancestorOrSelf.size > 1) // first is the root element, which we skip as that corresponds to instance('...')
+        if (ancestorOrSelf.size > 1) // first is the root element, which we skip as that corresponds to instance('...')
             ancestorOrSelf.tail map (node ⇒ node.getNodeKind match {
-                case ELEMENT_NODE ⇒ node.getFingerprint
+                case ELEMENT_NODE ⇒ node.getFingerprint.toString
                 case ATTRIBUTE_NODE ⇒ "@" + node.getFingerprint
             })
         else
-            Nil) mkString "/"
+            Nil
     }
 }
\ No newline at end of file
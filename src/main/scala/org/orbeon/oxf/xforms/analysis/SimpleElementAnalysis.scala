@@ -106,6 +106,10 @@ class SimpleElementAnalysis(
     // No value defined, leave this to subclasses
     protected def computeValueAnalysis: Option[XPathAnalysis] = None
 
+    // Expressions compiled by the XPath analysis which are known in advance, with whether they are AVTs
+    def precompilableExpressions: List[(String, Boolean)] =
+        (context.toList ++ (if (bind.isDefined) Nil else ref.toList)) map (_ → false)
+
     private def getInScopeContext: Option[XPathAnalysis] = {
         ElementAnalysis.getClosestAncestorInScopeModel(self, ScopeModel(scope, model)) match {
             case Some(ancestor: ElementAnalysis) ⇒
@@ -129,13 +133,8 @@ class SimpleElementAnalysis(
         analyzeXPath(contextAnalysis, inScopeVariables, xpathString, avt)
 
     // For callers without a CompiledExpression
-    protected def analyzeXPath(contextAnalysis: Option[XPathAnalysis], inScopeVariables: Map[String, VariableTrait], xpathString: String, avt: Boolean): XPathAnalysis = {
-
-        val defaultInstancePrefixedId = model flatMap (_.defaultInstancePrefixedId)
-
-        PathMapXPathAnalysis(part, xpathString, part.metadata.getNamespaceMapping(prefixedId),
-            contextAnalysis, inScopeVariables, new SimplePathMapContext, scope, defaultInstancePrefixedId, locationData, element, avt)
-    }
+    protected def analyzeXPath(contextAnalysis: Option[XPathAnalysis], inScopeVariables: Map[String, VariableTrait], xpathString: String, avt: Boolean): XPathAnalysis =
+        analyzeXPath(contextAnalysis, inScopeVariables, part.compileExpression(prefixedId, xpathString, part.metadata.getNamespaceMapping(prefixedId), locationData, avt))
 
     // For callers with a CompiledExpression
     protected def analyzeXPath(contextAnalysis: Option[XPathAnalysis], inScopeVariables: Map[String, VariableTrait], expression: CompiledExpression): XPathAnalysis = {
@@ -71,6 +71,13 @@ trait VariableAnalysisTrait extends SimpleElementAnalysis with VariableTrait {
 
     def variableAnalysis = getValueAnalysis
 
+    // Don't access sequenceAnalysis, which must remain lazy
+    override def precompilableExpressions =
+        if (element.element(XFormsConstants.XXFORMS_SEQUENCE_QNAME) eq null)
+            super.precompilableExpressions ++ (Option(VariableAnalysis.valueOrSelectAttribute(element)).toList map (_ → false))
+        else
+            super.precompilableExpressions
+
     override def computeValueAnalysis =
         sequenceAnalysis match {
             case Some(sequenceAnalysis) ⇒
@@ -13,7 +13,6 @@
  */
 package org.orbeon.oxf.xforms.analysis
 
-import org.orbeon.oxf.xforms.MapSet
 import org.orbeon.oxf.xml.XMLUtils.DebugXML
 import org.orbeon.oxf.xml.XMLReceiverHelper
 
@@ -25,20 +24,20 @@ abstract class XPathAnalysis extends DebugXML  {
     val xpathString: String
     val figuredOutDependencies: Boolean
 
-    val valueDependentPaths: MapSet[String, String]
-    val returnablePaths: MapSet[String, String]
+    val valueDependentPaths: PathSet
+    val returnablePaths: PathSet
 
     val dependentModels: collection.Set[String]
     val dependentInstances: collection.Set[String]
 
-    def returnableInstances = returnablePaths.keys
+    def returnableInstances = returnablePaths.instances
 
     // For all those, return true if any path matches
     // NOTE: For now just check exact paths. Later must be smarter?
 
-    def intersectsBinding(touchedPaths:  MapSet[String, String]) = valueDependentPaths intersects touchedPaths
+    def intersectsBinding(touchedPaths:  Changeset)              = valueDependentPaths intersects touchedPaths
     def intersectsModels (touchedModels: collection.Set[String]) = dependentModels exists (touchedModels contains _)
-    def intersectsValue  (touchedPaths:  MapSet[String, String]) = intersectsBinding(touchedPaths) || (returnablePaths intersects touchedPaths)
+    def intersectsValue  (touchedPaths:  Changeset)              = intersectsBinding(touchedPaths) || (returnablePaths intersects touchedPaths)
 
     // Combine this analysis with another one and return a new analysis
     def combine(other: XPathAnalysis): XPathAnalysis
@@ -65,8 +64,8 @@ object XPathAnalysis {
 
         val dependentInstances = Set.empty[String]
         val dependentModels = Set.empty[String]
-        val returnablePaths = MapSet.empty[String, String]
-        val valueDependentPaths = MapSet.empty[String, String]
+        val returnablePaths = PathSet.Empty
+        val valueDependentPaths = PathSet.Empty
 
         def makeValuesDependencies = this
 
@@ -25,7 +25,7 @@ class AttributeControl(staticStateContext: StaticStateContext, element: Element,
         with OptionalSingleNode {
 
     // Attribute control uses an AVT
-    override def computeValueAnalysis = Some(analyzeXPath(getChildrenContext, attributeValue, avt = true))
+    override protected def valueExpression = (attributeValue, true)
 
     val forStaticId = element.attributeValue(FOR_QNAME)
     val forPrefixedId = XFormsUtils.getRelatedEffectiveId(prefixedId, forStaticId)
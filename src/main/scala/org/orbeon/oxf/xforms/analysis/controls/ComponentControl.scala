@@ -41,6 +41,9 @@ class ComponentControl(staticStateContext: StaticStateContext, element: Element,
     override protected def computeBindingAnalysis =
         if (binding.abstractBinding.modeBinding) super.computeBindingAnalysis else getContextAnalysis
 
+    override def precompilableExpressions =
+        if (binding.abstractBinding.modeBinding) super.precompilableExpressions else context.toList map (_ → false)
+
     // Leave as 'def' as the binding can, in theory, mutate
     override protected def externalEventsDef = super.externalEventsDef ++ binding.abstractBinding.allowedExternalEvents
     override def externalEvents              = externalEventsDef
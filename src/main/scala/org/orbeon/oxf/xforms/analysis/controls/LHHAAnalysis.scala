@@ -99,6 +99,9 @@ class LHHAAnalysis(staticStateContext: StaticStateContext, element: Element, par
     override protected def computeContextAnalysis = None
     override protected def computeBindingAnalysis = None
 
+    // Only the delegate's context and binding are known in advance
+    override def precompilableExpressions = if (staticValue.isEmpty) super.precompilableExpressions else Nil
+
     override protected def computeValueAnalysis = {
         if (staticValue.isEmpty) {
             // Value is likely not static
@@ -14,10 +14,12 @@
 package org.orbeon.oxf.xforms.analysis.controls
 
 import org.dom4j.Element
+import org.orbeon.oxf.common.ValidationException
 import org.orbeon.oxf.xforms.analysis._
 import org.orbeon.oxf.xforms.xbl.Scope
 import org.orbeon.oxf.xforms.XFormsConstants._
 import org.orbeon.oxf.xforms.event.XFormsEvents._
+import scala.util.Try
 
 class RepeatControl(staticStateContext: StaticStateContext, element: Element, parent: Option[ElementAnalysis], preceding: Option[ElementAnalysis], scope: Scope)
     extends ContainerControl(staticStateContext, element, parent, preceding, scope)
@@ -31,6 +33,15 @@ class RepeatControl(staticStateContext: StaticStateContext, element: Element, pa
 
     val isAroundTableOrListElement = appearances(XXFORMS_SEPARATOR_APPEARANCE_QNAME)
 
-    override protected def externalEventsDef = super.externalEventsDef + XXFORMS_DND
+    // With xxf:lazy-iterations="n", only the first n iterations and the iteration at the repeat index are built upfront,
+    // and other iterations are only built when needed, see XFormsRepeatControl
+    val lazyIterations = Option(element.attributeValue(XXFORMS_LAZY_ITERATIONS_QNAME)) map { value ⇒
+        Try(value.trim.toInt) filter (_ >= 0) getOrElse {
+            throw new ValidationException(s"${XXFORMS_LAZY_ITERATIONS_QNAME.getQualifiedName} attribute must be a non-negative integer: $value", locationData)
+        }
+    }
+
+    // With lazy iterations, the client asks for the iterations which become visible
+    override protected def externalEventsDef = super.externalEventsDef + XXFORMS_DND ++ (lazyIterations map (_ ⇒ XXFORMS_LOAD_ITERATIONS))
     override val externalEvents              = externalEventsDef
 }
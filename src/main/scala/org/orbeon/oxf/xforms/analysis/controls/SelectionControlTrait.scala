@@ -17,16 +17,20 @@ import collection.JavaConverters._
 import org.apache.commons.lang3.StringUtils
 import org.dom4j.{QName, Text, Element}
 import org.orbeon.oxf.common.ValidationException
-import org.orbeon.oxf.util.{XPath, ScalaUtils, XPathCache}
+import org.orbeon.oxf.util.{IndentedLogger, XPath, ScalaUtils, XPathCache}
 import org.orbeon.oxf.xforms.XFormsConstants._
 import org.orbeon.oxf.xforms._
 import org.orbeon.oxf.xforms.analysis.ControlAnalysisFactory.InputValueControl
 import org.orbeon.oxf.xforms.analysis._
 import org.orbeon.oxf.xforms.control.LHHAValue
+import org.orbeon.oxf.xforms.function.{XFormsFunction, Instance}
+import org.orbeon.oxf.xforms.function.xxforms.XXFormsInstance
 import org.orbeon.oxf.xforms.itemset.{ItemContainer, XFormsItemUtils, Item, Itemset}
-import org.orbeon.oxf.xml.XMLReceiverHelper
+import org.orbeon.oxf.xml.{Dom4j, ShareableXPathStaticContext, NamespaceMapping, XMLReceiverHelper}
 import org.orbeon.oxf.xml.dom4j.Dom4jUtils
 import org.orbeon.saxon.dom4j.DocumentWrapper
+import org.orbeon.saxon.expr.{FunctionCall, Expression}
+import org.orbeon.saxon.functions.SystemFunction
 import ScalaUtils._
 
 trait SelectionControlTrait extends InputValueControl with SelectAppearanceTrait with ChildrenLHHAItemsetsAndActionsTrait {
@@ -164,6 +168,31 @@ trait SelectionControlTrait extends InputValueControl with SelectAppearanceTrait
     // Return the control's static itemset if any
     lazy val staticItemset = hasStaticItemset option evaluateStaticItemset
 
+    // Prefixed ids of the instances on which the itemset depends, if they are all cached readonly instances. In this
+    // case, the itemset is the same for all the documents which use the same instances, see SharedItemsetCache.
+    //
+    // XPath analysis only tells which instances the itemset depends on. Functions such as xxf:get-request-parameter()
+    // or xxf:lang(), and variables, don't show as dependencies but can make the itemset differ between users, so
+    // itemsets which use them are not shared.
+    lazy val sharedItemsetInstances: Option[Set[String]] = {
+
+        def isSharedInstance(instancePrefixedId: String) =
+            Option(part.getModelByInstancePrefixedId(instancePrefixedId)) exists
+                (_.instances.values exists (instance ⇒ instance.prefixedId == instancePrefixedId && instance.readonly && instance.cache))
+
+        val isEnabled =
+            part.staticState.getProperty[Boolean](XFormsProperties.CACHE_SHARED_ITEMSETS_PROPERTY) &&
+            ! hasStaticItemset && ! isNorefresh && itemsetAnalyzed && SelectionControlUtil.isItemsetSharable(element)
+
+        if (isEnabled)
+            getItemsetAnalysis collect {
+                case analysis if analysis.figuredOutDependencies && analysis.dependentInstances.nonEmpty && (analysis.dependentInstances forall isSharedInstance) ⇒
+                    analysis.dependentInstances.toSet
+            }
+        else
+            None
+    }
+
     private def evaluateStaticItemset = {
 
         // TODO: operate on nested ElementAnalysis instead of Element
@@ -254,6 +283,61 @@ object SelectionControlUtil {
 
     private val attributesToPropagate = XFormsItemUtils.ATTRIBUTES_TO_PROPAGATE.toSeq
 
+    private val XPathAttributes = Set("ref", "nodeset", "value")
+
+    // Standard functions whose result depends on the time or on the environment rather than on their arguments
+    private val ContextDependentFunctions = Set(
+        "current-dateTime", "current-date", "current-time", "implicit-timezone", "default-collation", "static-base-uri",
+        "doc", "doc-available", "document", "collection", "unparsed-text", "unparsed-text-available", "system-property")
+
+    // Whether the result of the itemset of the given selection control only depends on the instances it refers to,
+    // i.e. its expressions only use standard functions which don't depend on the time or the environment, instance
+    // functions, and no variables.
+    def isItemsetSharable(selectionElement: Element)(implicit logger: IndentedLogger): Boolean = {
+
+        def isSharableExpression(expression: Expression): Boolean = {
+            val isSharableFunction = expression match {
+                case _: Instance | _: XXFormsInstance ⇒ true
+                case _: XFormsFunction                ⇒ false
+                case function: SystemFunction         ⇒
+                    function.getClass.getName.startsWith("org.orbeon.saxon.functions.") &&
+                    ! ContextDependentFunctions(function.getFunctionName.getLocalName)
+                case _: FunctionCall                  ⇒ false
+                case _                                ⇒ true
+            }
+
+            isSharableFunction && (expression.iterateSubExpressions.asScala forall (e ⇒ isSharableExpression(e.asInstanceOf[Expression])))
+        }
+
+        def isSharableXPath(e: Element, xpathString: String, avt: Boolean) = {
+            val namespaceMapping = new NamespaceMapping(Dom4jUtils.getNamespaceContextNoDefault(e))
+            val staticContext = new ShareableXPathStaticContext(XPath.GlobalConfiguration, namespaceMapping, XFormsContainingDocument.getFunctionLibrary)
+            val expression = XPath.compileExpressionWithStaticContext(staticContext, xpathString, avt)
+
+            staticContext.referencedVariables.isEmpty && isSharableExpression(expression.getInternalExpression)
+        }
+
+        def isSharableElement(e: Element) =
+            Dom4j.attributes(e) forall { attribute ⇒
+                val isXFormsElement = e.getNamespaceURI == XFORMS_NAMESPACE_URI
+                val name = attribute.getQualifiedName
+                val value = attribute.getValue
+
+                if (isXFormsElement && name == "bind")
+                    false
+                else if (isXFormsElement && XPathAttributes(name))
+                    isSharableXPath(e, value, avt = false)
+                else if (value.contains('{'))
+                    isSharableXPath(e, value, avt = true)
+                else
+                    true
+            }
+
+        def descendantOrSelf(e: Element): Seq[Element] = e +: (Dom4j.elements(e) flatMap descendantOrSelf)
+
+        Dom4j.elements(selectionElement) filter isTopLevelItemsetElement flatMap descendantOrSelf forall isSharableElement
+    }
+
     def getAttributes(itemChoiceItemset: Element) = {
         val tuples =
             for {
@@ -23,11 +23,17 @@ import org.orbeon.oxf.xforms.model.DataModel
  */
 trait ValueTrait extends SimpleElementAnalysis with SingleNodeTrait {
 
+    // Expression for the value, with whether it is an AVT
+    protected def valueExpression: (String, Boolean) =
+        (if (value.isDefined) "string((" + value.get + ")[1])" else "string(.)", false)
+
     override protected def computeValueAnalysis: Option[XPathAnalysis] = {
-        val subExpression = if (value.isDefined) "string((" + value.get + ")[1])" else "string(.)"
-        Some(analyzeXPath(getChildrenContext, subExpression))
+        val (subExpression, avt) = valueExpression
+        Some(analyzeXPath(getChildrenContext, subExpression, avt))
     }
 
+    override def precompilableExpressions = super.precompilableExpressions :+ valueExpression
+
     override def isAllowedBoundItem(item: Item) = DataModel.isAllowedValueBoundItem(item)
 
     // TODO: Move value handling from ElementAnalysis to here? Need base trait to handle value controls, variables, and LHHA.
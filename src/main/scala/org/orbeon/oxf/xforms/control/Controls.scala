@@ -71,6 +71,19 @@ object Controls {
             controlOpt.get.asInstanceOf[XFormsRepeatIterationControl] // we "know" this, right?
     }
 
+    // Build the subtree of a repeat iteration which was created as a placeholder
+    def materializeRepeatIteration(controlIndex: ControlIndex, iteration: XFormsRepeatIterationControl) = {
+
+        val idSuffix = XFormsUtils.getEffectiveIdSuffixParts(iteration.getEffectiveId).toSeq
+
+        // The binding might have changed since the placeholder was created
+        iteration.evaluateBindingAndValues(iteration.repeat.bindingContextForChild, update = true)
+
+        iteration.buildChildren(buildTree(controlIndex, _, _, Some(iteration), _, _), idSuffix)
+
+        logTreeIfNeeded("after materializing repeat iteration")(iteration)
+    }
+
     // Create a new subtree of controls (used by xxf:dynamic)
     def createSubTree(
             container: XBLContainer,
@@ -26,10 +26,12 @@ import org.orbeon.oxf.xforms.action.actions.XFormsDeleteAction
 import org.orbeon.oxf.xforms.action.actions.XFormsInsertAction
 import org.orbeon.oxf.xforms.event.events.XXFormsDndEvent
 import org.orbeon.oxf.xforms.event.events.XXFormsIndexChangedEvent
+import org.orbeon.oxf.xforms.event.events.XXFormsLoadIterationsEvent
 import org.orbeon.oxf.xforms.event.events.XXFormsNodesetChangedEvent
 import org.orbeon.oxf.xforms.event.events.XXFormsSetindexEvent
 import org.orbeon.oxf.xforms.xbl.XBLContainer
 import org.orbeon.saxon.om.{NodeInfo, Item}
+import org.orbeon.saxon.value.StringValue
 import org.orbeon.oxf.xforms.XFormsConstants._
 import org.orbeon.oxf.util.Logging
 
@@ -38,6 +40,7 @@ import java.lang.{Integer ⇒ JInteger}
 import java.util.{ArrayList, Map ⇒ JMap, Collections}
 import collection.JavaConverters._
 import org.orbeon.oxf.xforms.BindingContext
+import collection.mutable
 import collection.mutable.{ListBuffer, ArrayBuffer, LinkedHashMap}
 
 // Represents an xf:repeat container control.
@@ -91,6 +94,10 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
             // NOTE: state deserialized → state previously serialized → control was relevant → onCreate() called
             restoredState = false
 
+        // Build the iteration at the start index if it exists and is still a placeholder
+        // NOTE: Iterations are initialized by the caller along with the rest of the tree.
+        materializeEagerIterations()
+
         // Reset refresh information
         refreshInfo = null
     }
@@ -102,6 +109,11 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
 
         // Set index
         setIndexInternal(index)
+
+        // Build the new current iteration if needed
+        materializeEagerIterations() foreach
+            (containingDocument.getControls.getCurrentControlTree.initializeSubTree(_, true))
+
         if (oldRepeatIndex != getIndex) {
             // Dispatch custom event to notify that the repeat index has changed
             Dispatch.dispatchEvent(new XXFormsIndexChangedEvent(this, oldRepeatIndex, getIndex))
@@ -112,6 +124,47 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
         resolutionScopeContainer.setDeferredFlagsForSetindex()
     }
 
+    // With lazy iterations, whether the given iteration must be built when it is created, rather than be a placeholder
+    // until it is needed. The iteration at the index is always built, so that it can be focused and referred to with
+    // index(). Other iterations are built when they become current, when a client event targets them, or when they
+    // become visible on the client.
+    def isEagerIteration(iterationIndex: Int) =
+        staticControl.lazyIterations match {
+            case Some(eagerIterations) ⇒
+                // NOTE: Don't use getIndex as this is called while the repeat and its iterations are being built, in
+                // which case the index might not be set yet and the start index applies.
+                val localIndex = getCurrentLocal.asInstanceOf[XFormsRepeatControlLocal].index
+                val index      = if (localIndex != -1) localIndex else ensureIndexBounds(getStartIndex)
+                iterationIndex <= eagerIterations || iterationIndex == index
+            case None ⇒
+                true
+        }
+
+    // Build the iterations which must be built but are still placeholders, because the index changed or because
+    // iterations moved, and return them
+    private def materializeEagerIterations(): Seq[XFormsRepeatIterationControl] =
+        if (staticControl.lazyIterations.isEmpty)
+            Seq()
+        else
+            for (iteration ← children if ! iteration.materialized && isEagerIteration(iteration.iterationIndex))
+                yield withDebug("materializing iteration", Seq("id" → getEffectiveId, "index" → iteration.iterationIndex.toString)) {
+                    iteration.materialize()
+                    iteration
+                }
+
+    // Build the given iterations if they are placeholders, when they become visible on the client
+    def loadIterations(iterationIndexes: Seq[Int]): Unit =
+        for {
+            iterationIndex ← iterationIndexes.distinct
+            iteration      ← children.lift(iterationIndex - 1)
+            if ! iteration.materialized
+        } locally {
+            withDebug("materializing iteration", Seq("id" → getEffectiveId, "index" → iterationIndex.toString)) {
+                iteration.materialize()
+            }
+            containingDocument.getControls.getCurrentControlTree.initializeSubTree(iteration, true)
+        }
+
     private def setIndexInternal(index: Int) {
         val local = getLocalForUpdate.asInstanceOf[XFormsRepeatControl.XFormsRepeatControlLocal]
         local.index = ensureIndexBounds(index)
@@ -545,7 +598,9 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
             else
                 null
 
-        (newIterations, partialFocusRepeatOption)
+        // Placeholders might have moved to the index or to the first iterations, in which case they are built and
+        // handled like new iterations by the caller
+        (newIterations ++ materializeEagerIterations(), partialFocusRepeatOption)
     }
 
     override def dispatchChangeEvents() =
@@ -564,15 +619,8 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
             }
         }
 
-    private def findNodeIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]) = {
-
-        val nodeset2Scala = nodeset2
-
-        def indexOfItem(otherItem: Item) =
-            nodeset2Scala indexWhere (XFormsUtils.compareItems(_, otherItem))
-
-        nodeset1 map indexOfItem toArray
-    }
+    private def findNodeIndexes(nodeset1: Seq[Item], nodeset2: Seq[Item]) =
+        findItemIndexes(nodeset1, nodeset2)
 
     // Serialize index
     override def serializeLocal: JMap[String, String] =
@@ -592,6 +640,7 @@ class XFormsRepeatControl(container: XBLContainer, parent: XFormsControl, elemen
     override def performDefaultAction(event: XFormsEvent) = event match {
         case e: XXFormsSetindexEvent ⇒ setIndex(e.index)
         case e: XXFormsDndEvent ⇒ doDnD(e)
+        case e: XXFormsLoadIterationsEvent ⇒ loadIterations(e.iterations)
         case _ ⇒ super.performDefaultAction(event)
     }
 
@@ -666,6 +715,32 @@ object XFormsRepeatControl {
         Option(tree.getControl(addSuffix(control.prefixedId, suffix)))
     }
 
+    // Build the placeholder iterations which contain the control or iteration with the given effective id, if any,
+    // so that it can be the target of an event
+    def materializeIterationsFor(doc: XFormsContainingDocument, effectiveId: String): Unit =
+        doc.getStaticOps.getControlAnalysisOption(XFormsUtils.getPrefixedId(effectiveId)) foreach { staticControl ⇒
+
+            val tree = doc.getControls.getCurrentControlTree
+
+            // All ancestor repeats from root to leaf, and the iteration of each of them
+            val ancestorRepeats = staticControl.ancestorRepeatsAcrossParts.reverse
+            val iterationIndexes = XFormsUtils.getEffectiveIdSuffixParts(effectiveId).toList
+
+            if (ancestorRepeats.nonEmpty && ancestorRepeats.size == iterationIndexes.size)
+                for ((repeat, level) ← ancestorRepeats.zipWithIndex) {
+                    val repeatEffectiveId = addSuffix(repeat.prefixedId, iterationIndexes take level mkString REPEAT_INDEX_SEPARATOR_STRING)
+                    tree.getControl(repeatEffectiveId) match {
+                        case repeatControl: XFormsRepeatControl ⇒
+                            repeatControl.children.lift(iterationIndexes(level) - 1) filterNot (_.materialized) foreach { iteration ⇒
+                                iteration.materialize()
+                                tree.initializeSubTree(iteration, true)
+                            }
+                        case _ ⇒
+                            return
+                    }
+                }
+        }
+
     // Find indexes for the given repeats in the current document
     private def findIndexes(tree: ControlTree, repeats: Seq[RepeatControl], index: XFormsRepeatControl ⇒ Int) =
         repeats.foldLeft(LinkedHashMap[String, Int]()) {
@@ -686,6 +761,37 @@ object XFormsRepeatControl {
                 })
         }
     
+    private case object NullKey
+    private case class StringKey(value: String)
+
+    // For each item of items1, return the index of the same item in items2, or -1 if it is not there
+    //
+    // This gives the same result as searching each item with XFormsUtils.compareItems, but in linear time: nodes are
+    // matched by identity and strings by value with a hash map. Other atomic values, which are rare in repeat
+    // sequences, are still searched sequentially.
+    def findItemIndexes(items1: Seq[Item], items2: Seq[Item]): Array[Int] = {
+
+        def key(item: Item): Option[AnyRef] = item match {
+            case null                ⇒ Some(NullKey)
+            case node: NodeInfo      ⇒ Some(node) // equals() and hashCode() follow node identity
+            case string: StringValue ⇒ Some(StringKey(string.getStringValue))
+            case _                   ⇒ None
+        }
+
+        // Index of the first occurrence of each item in items2
+        val indexes = mutable.HashMap[AnyRef, Int]()
+        for ((item, index) ← items2.iterator.zipWithIndex; itemKey ← key(item))
+            if (! indexes.contains(itemKey))
+                indexes += itemKey → index
+
+        def indexOfItem(item: Item) = key(item) match {
+            case Some(itemKey) ⇒ indexes.getOrElse(itemKey, -1)
+            case None          ⇒ items2 indexWhere (XFormsUtils.compareItems(_, item))
+        }
+
+        (items1.iterator map indexOfItem).toArray
+    }
+
     private def suffixForRepeats(indexes: collection.Map[String, Int], repeats: Seq[RepeatControl]) =
         repeats map (repeat ⇒ indexes(repeat.prefixedId)) mkString REPEAT_INDEX_SEPARATOR_STRING
     
@@ -23,6 +23,8 @@ import org.xml.sax.helpers.AttributesImpl
 import org.orbeon.oxf.xforms.analysis.controls.RepeatIterationControl
 import org.orbeon.oxf.xforms.control.{NoLHHATrait, XFormsControl, XFormsSingleNodeContainerControl}
 import org.orbeon.oxf.xforms.BindingContext
+import org.orbeon.oxf.xforms.analysis.ElementAnalysis
+import java.util.{Collections, Map ⇒ JMap}
 
 /**
  * Represents xf:repeat iteration information.
@@ -50,6 +52,22 @@ class XFormsRepeatIterationControl(container: XBLContainer, parent: XFormsContro
         }
     }
 
+    // Whether this iteration's subtree has been built. With lazy iterations, other iterations are placeholders without
+    // children. Their relevance only depends on their binding, like for other iterations. See XFormsRepeatControl.
+    private var _materialized =
+        repeat.isEagerIteration(_iterationIndex) || (stateToRestore exists (_.keyValues.contains("materialized")))
+
+    def materialized = _materialized
+
+    // Build this iteration's subtree if it is a placeholder
+    // NOTE: The caller must dispatch initialization events if this is not called during a refresh.
+    def materialize(): Unit =
+        if (! _materialized) {
+            containingDocument.getControls.cloneInitialStateIfNeeded()
+            _materialized = true
+            containingDocument.getControls.getCurrentControlTree.materializeRepeatIteration(this)
+        }
+
     // Whether this iteration is the repeat's current iteration
     def isCurrentIteration = iterationIndex == repeat.getIndex
 
@@ -63,6 +81,17 @@ class XFormsRepeatIterationControl(container: XBLContainer, parent: XFormsContro
 
     override def supportFullAjaxUpdates = false
 
+    override def buildChildren(buildTree: (XBLContainer, BindingContext, ElementAnalysis, Seq[Int]) ⇒ Option[XFormsControl], idSuffix: Seq[Int]) =
+        if (_materialized)
+            super.buildChildren(buildTree, idSuffix)
+
+    // Remember iterations which were materialized on demand, so that they are materialized again when the state is restored
+    override def serializeLocal: JMap[String, String] =
+        if (_materialized && ! repeat.isEagerIteration(_iterationIndex))
+            Collections.singletonMap("materialized", "true")
+        else
+            super.serializeLocal
+
     // Update this control's effective id and its descendants based on the parent's effective id.
     override def updateEffectiveId() {
         // Update this iteration's effective id
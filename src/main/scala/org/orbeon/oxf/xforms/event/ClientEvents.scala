@@ -37,9 +37,10 @@ object ClientEvents extends Logging {
 
     // Only a few events specify custom properties that can be set by the client
     private val AllStandardProperties =
-        XXFormsDndEvent.StandardProperties        ++
-        KeypressEvent.StandardProperties          ++
-        XXFormsUploadDoneEvent.StandardProperties ++
+        XXFormsDndEvent.StandardProperties            ++
+        XXFormsLoadIterationsEvent.StandardProperties ++
+        KeypressEvent.StandardProperties              ++
+        XXFormsUploadDoneEvent.StandardProperties     ++
         XXFormsLoadEvent.StandardProperties
 
     private val DummyEvent = List(new LocalEvent(Dom4jUtils.createElement("dummy"), false))
@@ -226,8 +227,13 @@ object ClientEvents extends Logging {
 
         implicit val CurrentLogger = doc.getIndentedLogger(LOGGING_CATEGORY)
 
+        val targetEffectiveId = deNamespaceId(doc, adjustIdForRepeatIteration(doc, event.targetEffectiveId))
+
+        // The target might be in repeat iterations which are not built yet
+        XFormsRepeatControl.materializeIterationsFor(doc, targetEffectiveId)
+
         // Get event target
-        val eventTarget = doc.getObjectByEffectiveId(deNamespaceId(doc, adjustIdForRepeatIteration(doc, event.targetEffectiveId))) match {
+        val eventTarget = doc.getObjectByEffectiveId(targetEffectiveId) match {
             case eventTarget: XFormsEventTarget ⇒ eventTarget
             case _ ⇒
                 debug("ignoring client event with invalid target id", Seq("target id" → event.targetEffectiveId, "event name" → event.name))
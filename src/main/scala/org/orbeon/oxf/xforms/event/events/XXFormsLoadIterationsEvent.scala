@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.event.events
+
+import org.orbeon.oxf.xforms.event.XFormsEvent
+import org.orbeon.oxf.xforms.event.XFormsEvent._
+import org.orbeon.oxf.xforms.event.XFormsEventTarget
+import org.orbeon.oxf.xforms.event.XFormsEvents._
+import scala.util.Try
+
+// Sent by the client to a repeat with lazy iterations, with the iterations which became visible
+class XXFormsLoadIterationsEvent(target: XFormsEventTarget, properties: PropertyGetter)
+    extends XFormsEvent(XXFORMS_LOAD_ITERATIONS, target, properties, bubbles = false, cancelable = false) {
+
+    // Iteration indexes, ignoring values which are not integers
+    def iterations = property[String]("iterations").toList flatMap (_.split("""\s+""")) flatMap (i ⇒ Try(i.toInt).toOption)
+}
+
+object XXFormsLoadIterationsEvent {
+    val StandardProperties = Map(XXFORMS_LOAD_ITERATIONS → Seq("iterations"))
+}
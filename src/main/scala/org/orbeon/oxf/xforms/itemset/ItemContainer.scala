@@ -78,7 +78,7 @@ trait ItemContainer {
 
     // Implement deep equals
     override def equals(other: Any) = other match {
-        case other: ItemContainer ⇒ _children == other._children
+        case other: ItemContainer ⇒ (this eq other) || _children == other._children
         case _ ⇒ false
     }
 
@@ -40,8 +40,19 @@ class Itemset(multiple: Boolean) extends ItemContainer {
     def jSelectedItems(value: String): JIterable[Item] =
         (allItemsIterator filter (item ⇒ isSelected(multiple, value, item.value)) toList) asJava
 
+    // JSON tree without selection, computed once as itemsets are not modified once complete
+    @volatile private var jsonTreeInfoWithoutSelection: String = null
+
     // Return the list of items as a JSON tree
-    def getJSONTreeInfo(controlValue: String, locationData: LocationData): String = {
+    def getJSONTreeInfo(controlValue: String, locationData: LocationData): String =
+        if (controlValue eq null) {
+            if (jsonTreeInfoWithoutSelection eq null)
+                jsonTreeInfoWithoutSelection = jsonTreeInfo(null, locationData)
+            jsonTreeInfoWithoutSelection
+        } else
+            jsonTreeInfo(controlValue, locationData)
+
+    private def jsonTreeInfo(controlValue: String, locationData: LocationData): String = {
         // Produce a JSON fragment with hierarchical information
 
         val sb = new StringBuilder
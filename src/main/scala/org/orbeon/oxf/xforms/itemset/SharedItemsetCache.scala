@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.itemset
+
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
+import org.orbeon.oxf.util.Metrics
+import org.orbeon.oxf.xforms.XFormsInstance
+import org.orbeon.oxf.xforms.control.controls.XFormsSelect1Control
+import org.orbeon.oxf.xforms.function.xxforms.XXFormsLang
+import org.orbeon.saxon.om.DocumentInfo
+
+/**
+ * Cache of itemsets shared between documents.
+ *
+ * An itemset which only depends on cached readonly instances, like a list of countries, is the same for all the
+ * documents created from the same static state, as long as they use the same instance content and language. Such
+ * itemsets are evaluated once and shared. Itemsets are not modified after they are created, and the JSON sent to the
+ * client is computed once per itemset as well.
+ *
+ * Which itemsets can be shared is determined statically with XPath analysis, see SelectionControlTrait. Only instances
+ * outside of repeats are supported.
+ *
+ * Sharing is enabled with the oxf.xforms.cache.shared-itemsets property, and the size of the cache is configured
+ * with the oxf.xforms.cache.shared-itemsets.size property.
+ */
+object SharedItemsetCache {
+
+    private val CacheName = "xforms.cache.shared-itemsets"
+    private val CacheDefaultSize = 200
+    private val ConstantValidity = 0L
+
+    private val ItemsetMetrics = Metrics.group("itemsets")
+    private val Hits   = ItemsetMetrics.counter("shared.hit")
+    private val Misses = ItemsetMetrics.counter("shared.miss")
+
+    // Instance content is compared by identity, as the content of cached readonly instances is shared
+    private case class CacheEntry(documents: List[DocumentInfo], itemset: Itemset)
+
+    private def cache = ObjectCache.instance(CacheName, CacheDefaultSize)
+
+    // Return the shared itemset for the control if possible, otherwise evaluate it
+    def findOrEvaluate(control: XFormsSelect1Control)(evaluate: ⇒ Itemset): Itemset =
+        keyAndDocuments(control) match {
+            case Some((key, documents)) ⇒
+                Option(cache.findValid(key, ConstantValidity).asInstanceOf[CacheEntry]) filter
+                    (entry ⇒ (entry.documents corresponds documents)(_ eq _)) match {
+                    case Some(entry) ⇒
+                        Hits.inc()
+                        entry.itemset
+                    case None ⇒
+                        Misses.inc()
+                        val itemset = evaluate
+                        cache.add(key, ConstantValidity, CacheEntry(documents, itemset))
+                        itemset
+                }
+            case None ⇒
+                evaluate
+        }
+
+    private def keyAndDocuments(control: XFormsSelect1Control): Option[(InternalCacheKey, List[DocumentInfo])] =
+        control.staticControl.sharedItemsetInstances flatMap { instancePrefixedIds ⇒
+
+            val containingDocument = control.containingDocument
+
+            // Instances have the same effective id as prefixed id outside of repeats
+            val instances =
+                instancePrefixedIds.toList.sorted map containingDocument.getObjectByEffectiveId collect {
+                    case instance: XFormsInstance if instance.readonly && instance.instanceCaching.isDefined ⇒ instance
+                }
+
+            if (instances.size == instancePrefixedIds.size) {
+
+                def instanceKey(instance: XFormsInstance) = {
+                    val caching = instance.instanceCaching.get
+                    caching.sourceURI + (caching.requestBodyHash map ('|' + _) getOrElse "")
+                }
+
+                val lang = XXFormsLang.resolveXMLangHandleAVTs(containingDocument, control.staticControl) getOrElse ""
+
+                val key =
+                    containingDocument.getStaticState.digest :: control.getPrefixedId :: lang :: (instances map instanceKey) mkString "|"
+
+                Some((new InternalCacheKey("sharedItemset", key), instances map (_.documentInfo)))
+            } else
+                None
+        }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.processor
+
+import collection.mutable
+import java.io.{FileOutputStream, File}
+import java.net.HttpURLConnection
+import java.util.concurrent.{ExecutionException, Callable, FutureTask}
+import java.util.{LinkedHashMap ⇒ JLinkedHashMap}
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.URLFactory
+import org.orbeon.oxf.resources.handler.HTTPURLConnection
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.{SystemUtils, Metrics, SecureUtils}
+import org.orbeon.oxf.xforms.processor.XFormsResourceServer.DynamicResource
+import scala.util.Try
+
+/**
+ * Bounded on-disk cache of remote dynamic resources.
+ *
+ * Without the cache, each request for a dynamic resource fetches the whole remote resource, including each range
+ * request made when a user seeks in a video or a large PDF. With the cache, the resource is fetched once into a
+ * temporary file, and requests, including range requests, are served from that file.
+ *
+ * Entries are identified by URI, outgoing headers and last modified date. As the last modified date is the one known
+ * when the resource was registered, and the remote resource can change after that, all entries are kept for a limited
+ * time only. Only successful responses are cached. Least recently used entries are removed when the total size of the
+ * cached files exceeds the maximum, and their files are deleted. The file of an entry which is still being served is
+ * only deleted once it is no longer used, and concurrent requests for a resource which is not in the cache wait for a
+ * single fetch.
+ *
+ * The cache is disabled unless oxf.xforms.resources.dynamic.disk-cache.max-bytes is set.
+ */
+object DynamicResourceCache {
+
+    private val MaxBytesProperty = "oxf.xforms.resources.dynamic.disk-cache.max-bytes"
+    private val MaxAgeProperty   = "oxf.xforms.resources.dynamic.disk-cache.max-age"
+
+    private def propertySet = Properties.instance.getPropertySet
+
+    private lazy val maxBytes = propertySet.getInteger(MaxBytesProperty, 0).longValue
+    private lazy val maxAge   = propertySet.getInteger(MaxAgeProperty, 60).longValue * 1000
+
+    private lazy val instance = new DynamicResourceCache(maxBytes, maxAge, fetch)
+
+    def isEnabled = maxBytes > 0
+
+    // Run the body with a local file with the content of the resource, fetching it if needed
+    // The file is not removed from the cache while the body runs. Return None if the cache is disabled or if the
+    // resource can't be cached.
+    def withFile[T](resource: DynamicResource)(body: File ⇒ T): Option[T] =
+        if (isEnabled) instance.withFile(resource)(body) else None
+
+    // Fetch the resource into a new temporary file, unless the response is not successful
+    private def fetch(resource: DynamicResource): Option[File] = {
+        val connection = URLFactory.createURL(resource.uri.toString).openConnection
+        for { (name, values) ← resource.headers; value ← values }
+            connection.addRequestProperty(name, value)
+
+        val statusCode = connection match {
+            case http: HTTPURLConnection ⇒ http.connect(); http.getResponseCode
+            case http: HttpURLConnection ⇒ http.getResponseCode
+            case _                       ⇒ 200
+        }
+
+        if (statusCode == 200) {
+            val file = File.createTempFile("orbeon-dynamic-", ".tmp", SystemUtils.getTemporaryDirectory)
+            try {
+                copyStream(connection.getInputStream, new FileOutputStream(file))
+                Some(file)
+            } catch {
+                case t: Throwable ⇒
+                    file.delete()
+                    throw t
+            }
+        } else {
+            // Release the connection
+            connection match {
+                case http: HTTPURLConnection ⇒ Try(http.disconnect())
+                case http: HttpURLConnection ⇒ http.disconnect()
+                case _                       ⇒
+            }
+            None
+        }
+    }
+
+    private val CacheMetrics = Metrics.group("dynamic-resources")
+    private val Hits   = CacheMetrics.counter("disk-cache.hit")
+    private val Misses = CacheMetrics.counter("disk-cache.miss")
+
+    private class Entry(val file: File, val size: Long, val created: Long) {
+        // Number of requests using the file, which is only deleted when it is no longer used
+        var users   = 0
+        var removed = false
+    }
+}
+
+class DynamicResourceCache(maxBytes: Long, maxAge: Long, fetchResource: DynamicResource ⇒ Option[File]) {
+
+    import DynamicResourceCache.{Entry, Hits, Misses}
+
+    // Access-ordered, so that iteration starts with the least recently used entry
+    private val entries = new JLinkedHashMap[String, Entry](16, 0.75f, true)
+    private var totalBytes = 0L
+
+    // Fetches in progress, so that concurrent requests for the same resource wait for a single fetch
+    private val fetches = mutable.HashMap[String, FutureTask[Option[Entry]]]()
+
+    def withFile[T](resource: DynamicResource)(body: File ⇒ T): Option[T] =
+        acquire(cacheKey(resource), resource) map { entry ⇒
+            try body(entry.file)
+            finally release(entry)
+        }
+
+    // Find a valid entry and mark it as used, fetching the resource or waiting for a fetch in progress if needed
+    // Return None if the resource can't be cached.
+    private def acquire(key: String, resource: DynamicResource): Option[Entry] = {
+
+        val entryOrFetch =
+            synchronized {
+                findValid(key) match {
+                    case Some(entry) ⇒
+                        Hits.inc()
+                        entry.users += 1
+                        Left(entry)
+                    case None ⇒
+                        fetches.get(key) match {
+                            case Some(existingFetch) ⇒
+                                Right((existingFetch, false))
+                            case None ⇒
+                                Misses.inc()
+                                val newFetch = new FutureTask(new Callable[Option[Entry]] {
+                                    def call() =
+                                        try fetchResource(resource) map (add(key, _))
+                                        finally DynamicResourceCache.this.synchronized { fetches -= key }
+                                })
+                                fetches += key → newFetch
+                                Right((newFetch, true))
+                        }
+                }
+            }
+
+        entryOrFetch match {
+            case Left(entry) ⇒
+                Some(entry)
+            case Right((fetchTask, runHere)) ⇒
+                // The fetch runs on the thread of the first request, outside of any lock
+                if (runHere)
+                    fetchTask.run()
+
+                val entryOpt =
+                    try fetchTask.get
+                    catch { case e: ExecutionException ⇒ throw e.getCause }
+
+                entryOpt flatMap { entry ⇒
+                    // Start over in the unlikely case the entry was removed before this request could use it
+                    val acquired = synchronized { ! entry.removed && { entry.users += 1; true } }
+                    if (acquired) Some(entry) else acquire(key, resource)
+                }
+        }
+    }
+
+    private def release(entry: Entry) = synchronized {
+        entry.users -= 1
+        if (entry.removed && entry.users == 0)
+            entry.file.delete()
+    }
+
+    private def cacheKey(resource: DynamicResource) = {
+        val headers = resource.headers.toList.sortBy(_._1) map { case (name, values) ⇒ name + ':' + (values mkString ",") }
+        SecureUtils.digestString(resource.uri.toString :: resource.lastModified.toString :: headers mkString "|", "hex")
+    }
+
+    private def findValid(key: String) =
+        Option(entries.get(key)) match {
+            case Some(entry) if entry.file.exists && System.currentTimeMillis - entry.created < maxAge ⇒
+                Some(entry)
+            case Some(entry) ⇒
+                remove(key)
+                None
+            case None ⇒
+                None
+        }
+
+    private def add(key: String, file: File) = synchronized {
+        remove(key)
+        val entry = new Entry(file, file.length, System.currentTimeMillis)
+        entries.put(key, entry)
+        totalBytes += entry.size
+
+        // Remove least recently used entries, but keep the new one even if it is larger than the maximum, as it is
+        // about to be served
+        val i = entries.entrySet.iterator
+        while (totalBytes > maxBytes && i.hasNext) {
+            val current = i.next()
+            if (current.getKey != key) {
+                i.remove()
+                discard(current.getValue)
+            }
+        }
+
+        entry
+    }
+
+    private def remove(key: String) =
+        Option(entries.remove(key)) foreach discard
+
+    // Files in use are deleted when they are released
+    private def discard(entry: Entry) = {
+        totalBytes -= entry.size
+        entry.removed = true
+        if (entry.users == 0)
+            entry.file.delete()
+    }
+
+    // For tests
+    def cachedBytes = synchronized { totalBytes }
+}
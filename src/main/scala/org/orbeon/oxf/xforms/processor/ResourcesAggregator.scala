@@ -16,6 +16,8 @@ package org.orbeon.oxf.xforms.processor
 
 import org.orbeon.oxf.util.ScalaUtils._
 import collection.mutable.{Buffer, LinkedHashSet}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.zip.{InflaterInputStream, Inflater, DeflaterOutputStream, Deflater}
 import net.sf.ehcache.{Element ⇒ EhElement }
 import org.apache.commons.lang3.StringUtils
 import org.dom4j.QName
@@ -27,6 +29,7 @@ import org.orbeon.oxf.xforms._
 import org.orbeon.oxf.xml._
 import org.xml.sax.Attributes
 import org.xml.sax.helpers.AttributesImpl
+import scala.util.Try
 
 /**
  * Aggregate CSS and JS resources under <head>.
@@ -283,13 +286,7 @@ object ResourcesAggregator extends Logging {
 
             implicit val logger = Loggers.getIndentedLogger("resources")
 
-            // If there is at least one non-platform path, we also hash the app version number
-            val hasAppResource = ! (resources forall URLRewriterUtils.isPlatformPath)
-            val appVersion = URLRewriterUtils.getApplicationResourceVersion
-
-            // All resource paths are hashed
-            val itemsToHash = resources ++ (if (hasAppResource && StringUtils.isNotBlank(appVersion)) Set(appVersion) else Set())
-            val resourcesHash = SecureUtils.digestString(itemsToHash mkString "|", "hex")
+            val resourcesHash = computeResourcesHash(resources.toSeq)
 
             // Cache mapping so that resource can be served by oxf:resource-server
             Caches.resourcesCache.put(new EhElement(resourcesHash, resources.toArray)) // use Array which is compact, serializable and usable from Java
@@ -298,22 +295,25 @@ object ResourcesAggregator extends Logging {
             def extension = if (isCSS) ".css" else ".js"
             def namespace = namespaceOpt map ("?ns=" + _) getOrElse ""
 
-            // Output link to resource
+            // Path of the resource
             val path = "" :: "xforms-server" ::
                 (URLRewriterUtils.isResourcesVersioned list URLRewriterUtils.getOrbeonVersionForClient) :::
                 "orbeon-" + resourcesHash + extension + namespace :: Nil mkString "/"
 
+            // Output link to resource, with the resource paths so that the resource can be served even if the mapping
+            // is no longer in the cache, or if the request reaches another server
+            val link = path + (if (namespaceOpt.isDefined) '&' else '?') + ResourcesParameter + '=' + encodeResources(resources.toSeq)
+
             debug("aggregating resources", Seq(
                 "isCSS"                    → isCSS.toString,
                 "isCacheCombinedResources" → isCacheCombinedResources.toString,
-                "hasAppResource"           → hasAppResource.toString,
-                "appVersion"               → appVersion,
+                "appVersion"               → URLRewriterUtils.getApplicationResourceVersion,
                 "resourcesHash"            → resourcesHash,
                 "namespaceOpt"             → namespaceOpt.orNull,
                 "resources"                → (resources mkString " | ")
             ))
 
-            val result = outputElement(path)
+            val result = outputElement(link)
 
             // Store on disk if requested to make the resource available to external software, like Apache
             if (isCacheCombinedResources) {
@@ -327,4 +327,63 @@ object ResourcesAggregator extends Logging {
 
             result
         }
-}
\ No newline at end of file
+
+    val ResourcesParameter = "r"
+
+    // Maximum size of the decoded resource paths, so that a crafted parameter can't use large amounts of memory
+    private val MaxDecodedResourcesLength = 64 * 1024
+
+    // Hash of the resource paths. If there is at least one non-platform path, we also hash the app version number.
+    def computeResourcesHash(resources: Seq[String]) = {
+        val hasAppResource = ! (resources forall URLRewriterUtils.isPlatformPath)
+        val appVersion = URLRewriterUtils.getApplicationResourceVersion
+
+        val itemsToHash = resources ++ (if (hasAppResource && StringUtils.isNotBlank(appVersion)) Seq(appVersion) else Nil)
+        SecureUtils.digestString(itemsToHash mkString "|", "hex")
+    }
+
+    // Encode the resource paths for the URL, as deflated and URL-safe Base64
+    def encodeResources(resources: Seq[String]) = {
+        val deflater = new Deflater(Deflater.BEST_COMPRESSION, true)
+        try {
+            val os = new ByteArrayOutputStream
+            useAndClose(new DeflaterOutputStream(os, deflater))(_.write((resources mkString "|").getBytes("utf-8")))
+            Base64.encode(os.toByteArray, false).replace('+', '-').replace('/', '_').replace("=", "")
+        } finally
+            deflater.end()
+    }
+
+    // Decode resource paths encoded with encodeResources
+    //
+    // The paths are only accepted if they match the hash and the extension requested, so that the parameter can't be
+    // used to serve anything else than the CSS or JavaScript resources which are already public.
+    def decodeResources(encoded: String, resourcesHash: String, isCSS: Boolean): Option[Seq[String]] = {
+
+        def decode = {
+            val base64 = encoded.replace('-', '+').replace('_', '/') + ("=" * ((4 - encoded.length % 4) % 4))
+            val inflater = new Inflater(true)
+            try {
+                val is = new InflaterInputStream(new ByteArrayInputStream(Base64.decode(base64)), inflater)
+                val os = new ByteArrayOutputStream
+                val buffer = new Array[Byte](1024)
+                var read = is.read(buffer)
+                while (read != -1 && os.size <= MaxDecodedResourcesLength) {
+                    os.write(buffer, 0, read)
+                    read = is.read(buffer)
+                }
+                if (os.size > MaxDecodedResourcesLength)
+                    throw new IllegalArgumentException("encoded resources too long")
+                (new String(os.toByteArray, "utf-8") split '|').toList
+            } finally
+                inflater.end()
+        }
+
+        val extension = if (isCSS) ".css" else ".js"
+
+        Try(decode).toOption filter { resources ⇒
+            resources.nonEmpty &&
+            (resources forall (path ⇒ path.startsWith("/") && path.endsWith(extension) && ! path.contains(".."))) &&
+            computeResourcesHash(resources) == resourcesHash
+        }
+    }
+}
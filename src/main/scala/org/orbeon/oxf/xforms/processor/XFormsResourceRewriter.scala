@@ -17,8 +17,11 @@ package org.orbeon.oxf.xforms.processor
 import org.orbeon.oxf.util._
 import ScalaUtils._
 import java.io._
+import java.util.concurrent.ConcurrentHashMap
 import java.util.regex.Matcher
+import java.util.zip.Deflater
 import java.util.{List ⇒ JList}
+import org.orbeon.oxf.cache.{InternalCacheKey, ObjectCache}
 import org.orbeon.oxf.common.Version
 import org.orbeon.oxf.controller.PageFlowControllerProcessor
 import org.orbeon.oxf.externalcontext.URLRewriter
@@ -26,7 +29,7 @@ import org.orbeon.oxf.pipeline.api.ExternalContext
 import org.orbeon.oxf.pipeline.api.PipelineContext
 import org.orbeon.oxf.resources.ResourceManagerWrapper
 import org.orbeon.oxf.util._
-import org.orbeon.oxf.xforms.XFormsProperties
+import org.orbeon.oxf.xforms.{XFormsCompressor, XFormsProperties}
 import org.orbeon.oxf.xforms.processor.XFormsFeatures.ResourceConfig
 import collection.JavaConverters._
 import util.{Failure, Try}
@@ -203,23 +206,19 @@ object XFormsResourceRewriter extends Logging {
                 def logParameters = Seq("resource path" → resourcePath, "real path" → realPath)
 
                 val resourceFile = new File(realPath)
-                if (resourceFile.exists) {
+                if (resourceFile.exists && gzippedFile(resourceFile).exists && digestFile(resourceFile).exists) {
                     // Resources exist, generate if needed
                     val resourceLastModified = resourceFile.lastModified
                     if (resourceLastModified < combinedLastModified) {
                         // Resource is out of date, generate
                         debug("cached combined resources out of date, saving", logParameters)
-                        val fos = new FileOutputStream(resourceFile)
-                        generate(resources, namespaceOpt, fos, isCSS, isMinimal)(indentedLogger)
+                        saveResources(resourceFile, resources, namespaceOpt, isCSS, isMinimal)
                     } else
                         debug("cached combined resources exist and are up-to-date", logParameters)
                 } else {
                     // Resource doesn't exist, generate
                     debug("cached combined resources don't exist, saving", logParameters)
-                    resourceFile.getParentFile.mkdirs()
-                    resourceFile.createNewFile()
-                    val fos = new FileOutputStream(resourceFile)
-                    generate(resources, namespaceOpt, fos, isCSS, isMinimal)(indentedLogger)
+                    saveResources(resourceFile, resources, namespaceOpt, isCSS, isMinimal)
                 }
                 resourceFile
             case None ⇒
@@ -227,4 +226,82 @@ object XFormsResourceRewriter extends Logging {
                 null
         }
     }
+
+    // File containing the gzipped version of cached combined resources
+    def gzippedFile(resourceFile: File) = new File(resourceFile.getPath + ".gz")
+
+    // File containing the digest of cached combined resources, used for the ETag of both the plain and gzipped versions
+    private def digestFile(resourceFile: File) = new File(resourceFile.getPath + ".digest")
+
+    // Save the combined resources and their gzipped version. Files are written under a temporary name and then renamed,
+    // so that concurrent requests never serve a partially written file.
+    private def saveResources(resourceFile: File, resources: Seq[ResourceConfig], namespaceOpt: Option[String], isCSS: Boolean, isMinimal: Boolean)(implicit logger: IndentedLogger): Unit = {
+
+        val combined = generateCombinedResource(resources, namespaceOpt, isCSS, isMinimal)
+
+        def save(file: File, bytes: Array[Byte]) = {
+            val tempFile = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+            useAndClose(new FileOutputStream(tempFile))(_.write(bytes))
+            // Renaming over an existing file fails on some platforms
+            if (! tempFile.renameTo(file)) {
+                file.delete()
+                if (! tempFile.renameTo(file)) {
+                    tempFile.delete()
+                    throw new IOException("unable to save cached combined resources to " + file.getPath)
+                }
+            }
+        }
+
+        resourceFile.getParentFile.mkdirs()
+
+        // The digest is computed from the bytes written, and only published once both versions are written, so that
+        // the ETag of the new version is never sent with the content of the old version
+        save(gzippedFile(resourceFile), combined.gzippedBytes)
+        save(resourceFile, combined.bytes)
+        save(digestFile(resourceFile), combined.digest.getBytes("utf-8"))
+
+        fileDigests.put(resourceFile.getPath, combined.digest)
+    }
+
+    // Digests of cached combined resources, as last published by this JVM or read from the digest files
+    private val fileDigests = new ConcurrentHashMap[String, String]
+
+    // Digest of the content of cached combined resources
+    def fileDigest(resourceFile: File): String =
+        Option(fileDigests.get(resourceFile.getPath)) getOrElse {
+            val digest = useAndClose(new FileInputStream(digestFile(resourceFile)))(is ⇒ new String(NetUtils.inputStreamToByteArray(is), "utf-8"))
+            // Don't replace a digest published by saveResources while the file was being read
+            Option(fileDigests.putIfAbsent(resourceFile.getPath, digest)) getOrElse digest
+        }
+
+    // Combined resources in memory, with their gzipped version and a digest of their content
+    case class CombinedResource(bytes: Array[Byte], gzippedBytes: Array[Byte], digest: String)
+
+    private val CombinedResourcesCacheName = "xforms.cache.combined-resources"
+    private val CombinedResourcesCacheDefaultSize = 20
+    private val ConstantValidity = 0L
+
+    // Return the combined resources from memory, generating them if needed. This is used when combined resources are
+    // not cached on disk, so that they are not generated again for each request.
+    def combinedResource(resources: Seq[ResourceConfig], resourcePath: String, namespaceOpt: Option[String], combinedLastModified: Long, isCSS: Boolean, isMinimal: Boolean): CombinedResource = {
+
+        implicit val indentedLogger = XFormsResourceServer.indentedLogger
+
+        val cache = ObjectCache.instance(CombinedResourcesCacheName, CombinedResourcesCacheDefaultSize)
+        val key   = new InternalCacheKey("combinedResources", resourcePath + '|' + (namespaceOpt getOrElse "") + '|' + combinedLastModified)
+
+        Option(cache.findValid(key, ConstantValidity).asInstanceOf[CombinedResource]) getOrElse {
+            debug("generating combined resources in memory", Seq("resource path" → resourcePath))
+            val combined = generateCombinedResource(resources, namespaceOpt, isCSS, isMinimal)
+            cache.add(key, ConstantValidity, combined)
+            combined
+        }
+    }
+
+    private def generateCombinedResource(resources: Seq[ResourceConfig], namespaceOpt: Option[String], isCSS: Boolean, isMinimal: Boolean)(implicit logger: IndentedLogger) = {
+        val os = new ByteArrayOutputStream
+        generate(resources, namespaceOpt, os, isCSS, isMinimal)
+        val bytes = os.toByteArray
+        CombinedResource(bytes, XFormsCompressor.compressBytes(bytes, Deflater.BEST_COMPRESSION), SecureUtils.digestBytes(bytes, "hex"))
+    }
 }
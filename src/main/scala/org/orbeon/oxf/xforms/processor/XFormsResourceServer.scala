@@ -15,6 +15,8 @@ package org.orbeon.oxf.xforms.processor
 
 import java.io._
 import java.net.{URI, URLEncoder}
+import java.nio.channels.Channels
+import net.sf.ehcache.{Element ⇒ EhElement}
 import org.orbeon.oxf.externalcontext.URLRewriter
 import org.orbeon.oxf.pipeline.api.ExternalContext
 import org.orbeon.oxf.pipeline.api.PipelineContext
@@ -29,6 +31,7 @@ import ExternalContext.Session.APPLICATION_SCOPE
 import ExternalContext._
 import ScalaUtils._
 import org.orbeon.exception.OrbeonFormatter
+import scala.util.Try
 import scala.util.control.NonFatal
 
 /**
@@ -68,13 +71,16 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
                 // resource if "fast" to obtain last modified ("oxf:" or "file:"). Would be nice to do better: pass
                 // whether resource is cacheable or not; here, when dereferencing the resource, we get the last
                 // modified (Last-Modified header from HTTP even) and store it. Then we can handle conditional get.
-                // This is some work though. Might have to proxy conditional GET as well. So for now we don't
-                // handle conditional GET and produce a non-now last modified only in a few cases.
+                // This is some work though. Might have to proxy conditional GET as well. So for now we only handle
+                // conditional GET when the last modified is known, which is only in a few cases.
 
                 response.setResourceCaching(resource.lastModified, 0)
 
-                if (resource.size >= 0)
-                    response.setContentLength(resource.size.asInstanceOf[Int]) // Q: Why does this API (and Servlet counterpart) take an int?
+                // Check If-Modified-Since and don't return content if condition is met
+                if (resource.lastModified > 0 && ! response.checkIfModifiedSince(resource.lastModified)) {
+                    response.setStatus(SC_NOT_MODIFIED)
+                    return
+                }
 
                 // TODO: for Safari, try forcing application/octet-stream
                 // NOTE: IE 6/7 don't display a download box when detecting an HTML document (known IE bug)
@@ -88,15 +94,54 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
                 // TODO: filename should be encoded somehow, as 1) spaces don't work and 2) non-ISO-8859-1 won't work
                 response.setHeader("Content-Disposition", "attachment; filename=" + URLEncoder.encode(contentFilename, "UTF-8"))
 
+                val request = externalContext.getRequest
+                val isHead  = request.getMethod == "HEAD"
+
                 // Copy stream out
                 try {
-                    val connection = URLFactory.createURL(resource.uri.toString).openConnection
-
-                    // Set outgoing headers
-                    for { (name, values) ← resource.headers; value ← values }
-                        connection.addRequestProperty(name, value)
-
-                    copyStream(connection.getInputStream, response.getOutputStream)
+                    // A HEAD request doesn't fetch a remote resource
+                    withLocalFile(resource, fetch = ! isHead) { file ⇒
+                        // The size is known, so we can serve ranges, as requested by browsers when seeking in a
+                        // video or a PDF file
+                        val length = file.length
+                        response.setHeader("Accept-Ranges", "bytes")
+
+                        // A conditional range request is simply answered with the whole content
+                        def rangeHeader =
+                            if (request.getHeaderValuesMap.containsKey("if-range"))
+                                None
+                            else
+                                Option(request.getHeaderValuesMap.get("range")) flatMap (_.headOption)
+
+                        parseRange(rangeHeader, length) match {
+                            case Some(Some((first, last))) ⇒
+                                response.setStatus(SC_PARTIAL_CONTENT)
+                                response.setHeader("Content-Range", s"bytes $first-$last/$length")
+                                setContentLength(response, last - first + 1)
+                                if (! isHead)
+                                    useAndClose(response.getOutputStream)(sendFile(file, _, first, last - first + 1))
+                            case Some(None) ⇒
+                                response.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE)
+                                response.setHeader("Content-Range", s"bytes */$length")
+                            case None ⇒
+                                setContentLength(response, length)
+                                if (! isHead)
+                                    useAndClose(response.getOutputStream)(sendFile(file, _))
+                        }
+                    } getOrElse {
+                        if (resource.size >= 0)
+                            setContentLength(response, resource.size)
+
+                        if (! isHead) {
+                            val connection = URLFactory.createURL(resource.uri.toString).openConnection
+
+                            // Set outgoing headers
+                            for { (name, values) ← resource.headers; value ← values }
+                                connection.addRequestProperty(name, value)
+
+                            copyStream(connection.getInputStream, response.getOutputStream)
+                        }
+                    }
                 } catch {
                     case NonFatal(t) ⇒ warn("exception copying stream", Seq("throwable" → OrbeonFormatter.format(t)))
                 }
@@ -125,15 +170,29 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
         val resources = {
             // New hash-based mechanism
             val resourcesHash = filenameFromRequest.substring("orbeon-".length, filenameFromRequest.lastIndexOf("."))
-            val cacheElement = Caches.resourcesCache.get(resourcesHash)
-            if (cacheElement ne null) {
-                // Mapping found
-                val resourcesStrings = cacheElement.getObjectValue.asInstanceOf[Array[String]].toList
-                resourcesStrings map (r ⇒ new XFormsFeatures.ResourceConfig(r, r))
-            } else {
-                // Not found, either because the hash is invalid, or because the cache lost the mapping
-                response.setStatus(SC_NOT_FOUND)
-                return
+
+            def fromCache =
+                Option(Caches.resourcesCache.get(resourcesHash)) map
+                    (_.getObjectValue.asInstanceOf[Array[String]].toList)
+
+            // The mapping is not in the cache if the cache lost it, or if the page was produced by another server, so
+            // use the resource paths passed with the URL, if any
+            def fromParameter =
+                Option(externalContext.getRequest.getParameterMap.get(ResourcesAggregator.ResourcesParameter)) flatMap
+                    (p ⇒ ResourcesAggregator.decodeResources(p(0).asInstanceOf[String], resourcesHash, isCSS)) map { resourcesStrings ⇒
+                        Caches.resourcesCache.put(new EhElement(resourcesHash, resourcesStrings.toArray))
+                        resourcesStrings
+                    }
+
+            fromCache orElse fromParameter match {
+                case Some(resourcesStrings) ⇒
+                    // Mapping found
+                    resourcesStrings map (r ⇒ new XFormsFeatures.ResourceConfig(r, r))
+                case None ⇒
+                    // Not found, either because the hash is invalid, or because the cache lost the mapping and the
+                    // resource paths are missing or invalid
+                    response.setStatus(SC_NOT_FOUND)
+                    return
             }
         }
 
@@ -143,10 +202,11 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
         val combinedLastModified = XFormsResourceRewriter.computeCombinedLastModified(resources, isMinimal)
 
         // Set Last-Modified, required for caching and conditional get
-        if (URLRewriterUtils.isResourcesVersioned)
-            // Use expiration far in the future
+        if (URLRewriterUtils.isResourcesVersioned) {
+            // Use expiration far in the future, and tell browsers that the resource doesn't change under this URL
             response.setResourceCaching(combinedLastModified, combinedLastModified + ResourceServer.ONE_YEAR_IN_MILLISECONDS)
-        else
+            response.setHeader("Cache-Control", "public, max-age=" + ResourceServer.ONE_YEAR_IN_MILLISECONDS / 1000 + ", immutable")
+        } else
             // Use standard expiration policy
             response.setResourceCaching(combinedLastModified, 0)
 
@@ -168,13 +228,34 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
 
         def debugParameters = Seq("request path" → requestPath)
 
+        val gzip = acceptsGzip(externalContext.getRequest.getHeaderValuesMap.get("accept-encoding"))
+
+        // Send the content with a strong ETag, which differs between the plain and gzipped versions
+        def send(digest: String, length: Long)(write: OutputStream ⇒ Unit): Unit = {
+
+            val etag = entityTag(digest, gzip)
+
+            response.setHeader("Vary", "Accept-Encoding")
+            response.setHeader("ETag", etag)
+
+            if (matchesETag(externalContext.getRequest.getHeaderValuesMap.get("if-none-match"), etag)) {
+                response.setStatus(SC_NOT_MODIFIED)
+            } else {
+                if (gzip)
+                    response.setHeader("Content-Encoding", "gzip")
+                response.setContentLength(length.toInt)
+                useAndClose(response.getOutputStream)(write)
+            }
+        }
+
         if (XFormsProperties.isCacheCombinedResources) {
             // Caching requested
             val resourceFile = XFormsResourceRewriter.cacheResources(resources, requestPath, namespaceOpt, combinedLastModified, isCSS, isMinimal)
             if (resourceFile ne null) {
                 // Caching could take place, send out cached result
                 debug("serving from cache ", debugParameters)
-                copyStream(new FileInputStream(resourceFile), response.getOutputStream)
+                val file = if (gzip) XFormsResourceRewriter.gzippedFile(resourceFile) else resourceFile
+                send(XFormsResourceRewriter.fileDigest(resourceFile), file.length)(sendFile(file, _))
             } else {
                 // Was unable to cache, just serve
                 debug("caching requested but not possible, serving directly", debugParameters)
@@ -183,11 +264,11 @@ class XFormsResourceServer extends ProcessorImpl with Logging {
                 }
             }
         } else {
-            // Should not cache, just serve
-            debug("caching not requested, serving directly", debugParameters)
-            useAndClose(response.getOutputStream) { os ⇒
-                XFormsResourceRewriter.generate(resources, namespaceOpt, os, isCSS, isMinimal)(indentedLogger)
-            }
+            // Should not cache on disk, serve from memory
+            debug("caching not requested, serving from memory", debugParameters)
+            val combined = XFormsResourceRewriter.combinedResource(resources, requestPath, namespaceOpt, combinedLastModified, isCSS, isMinimal)
+            val bytes = if (gzip) combined.gzippedBytes else combined.bytes
+            send(combined.digest, bytes.length)(_.write(bytes))
         }
     }
 }
@@ -243,4 +324,81 @@ object XFormsResourceServer {
     case class DynamicResource(uri: URI, filename: Option[String], contentType: Option[String], size: Long, lastModified: Long, headers: Map[String, Array[String]])
 
     private def filename(requestPath: String) = requestPath.substring(requestPath.lastIndexOf('/') + 1)
+
+    // Whether the Accept-Encoding header values allow gzip, taking into account q=0
+    def acceptsGzip(acceptEncoding: Array[String]) = {
+
+        def quality(parameters: Seq[String]) =
+            parameters collectFirst {
+                case parameter if parameter.startsWith("q=") ⇒ Try(parameter.substring(2).toDouble) getOrElse 0.0
+            } getOrElse 1.0
+
+        val codings =
+            for {
+                values ← Option(acceptEncoding).toList
+                value  ← values
+                coding ← value split ','
+                parts  = coding split ';' map (_.trim)
+            } yield
+                parts.head.toLowerCase → quality(parts.tail)
+
+        codings exists { case (name, q) ⇒ (name == "gzip" || name == "x-gzip") && q > 0 }
+    }
+
+    // ETag for the given content digest
+    def entityTag(digest: String, gzipped: Boolean) =
+        '"' + digest + (if (gzipped) "-gzip" else "") + '"'
+
+    // Whether the If-None-Match header values match the given ETag
+    def matchesETag(ifNoneMatch: Array[String], etag: String) =
+        Option(ifNoneMatch).toList flatMap (_ flatMap (_ split ',')) map (_.trim) exists (tag ⇒ tag.stripPrefix("W/") == etag || tag == "*")
+
+    // Parse a Range header with a single byte range, see RFC 2616 section 14.35. Return None if the whole content must
+    // be sent, including when the header is absent or has multiple ranges, and Some(None) if the range can't be
+    // satisfied.
+    def parseRange(rangeHeader: Option[String], length: Long): Option[Option[(Long, Long)]] = {
+
+        val SingleRange = """bytes=(\d*)-(\d*)""".r
+
+        def toLong(s: String) = Try(s.toLong).toOption
+
+        val parsed = rangeHeader map (_.trim) collect {
+            case SingleRange(first, "") if first.nonEmpty ⇒
+                toLong(first) map (first ⇒ Some((first, length - 1)) filter (_ ⇒ first < length))
+            case SingleRange("", suffix) if suffix.nonEmpty ⇒
+                toLong(suffix) map (suffix ⇒ Some((math.max(0L, length - suffix), length - 1)) filter (_ ⇒ suffix > 0 && length > 0))
+            case SingleRange(first, last) if first.nonEmpty && last.nonEmpty ⇒
+                for (first ← toLong(first); last ← toLong(last) if first <= last)
+                    yield Some((first, math.min(last, length - 1))) filter (_ ⇒ first < length)
+        }
+
+        parsed.flatten
+    }
+
+    // Use a local file for the resource if possible, fetching a remote resource into the cache only if requested
+    private def withLocalFile[T](resource: DynamicResource, fetch: Boolean)(body: File ⇒ T): Option[T] =
+        if (resource.uri.getScheme == "file")
+            Try(new File(resource.uri)).toOption filter (_.isFile) map body
+        else if (resource.uri.getScheme != "oxf" && fetch)
+            DynamicResourceCache.withFile(resource)(body)
+        else
+            None
+
+    private def setContentLength(response: Response, length: Long) =
+        if (length <= Int.MaxValue)
+            response.setContentLength(length.toInt)
+        else
+            response.setHeader("Content-Length", length.toString)
+
+    // Send the file with FileChannel.transferTo, which avoids copying the content through user space when the
+    // container's output stream allows it
+    private def sendFile(file: File, os: OutputStream, start: Long = 0L, count: Long = -1L): Unit =
+        useAndClose(new FileInputStream(file)) { is ⇒
+            val channel = is.getChannel
+            val target  = Channels.newChannel(os)
+            val end     = if (count < 0) channel.size else math.min(start + count, channel.size)
+            var position = start
+            while (position < end)
+                position += channel.transferTo(position, end - position, target)
+        }
 }
\ No newline at end of file
@@ -61,7 +61,9 @@ class XFormsRepeatHandler extends XFormsControlLifecyleHandler(true, true) { //
                 def generateFirstDelimiter(outputInterceptor: OutputInterceptor): Unit = {
                     if (isMustGenerateBeginEndDelimiters) {
 
-                        def firstDelimiterClasses = "xforms-repeat-begin-end" + (if (userClasses.nonEmpty) (" " + userClasses) else "")
+                        // With lazy iterations, the client looks for placeholder iterations which become visible
+                        def lazyClass = if (elementAnalysis.asInstanceOf[RepeatControl].lazyIterations.isDefined) " xforms-repeat-lazy" else ""
+                        def firstDelimiterClasses = "xforms-repeat-begin-end" + lazyClass + (if (userClasses.nonEmpty) (" " + userClasses) else "")
 
                         // Delimiter: begin repeat
                         outputDelimiter(firstDelimiterClasses, "repeat-begin-" + namespacedId)
@@ -147,10 +149,14 @@ class XFormsRepeatHandler extends XFormsControlLifecyleHandler(true, true) { //
 
                 // MIP classes
                 // Q: Could use handleMIPClasses()?
-                val relevant = repeatControl.children(i - 1).isRelevant
-                if (!relevant)
+                val iteration = repeatControl.children(i - 1)
+                if (! iteration.isRelevant)
                     appendClasses(addedClasses, "xforms-disabled")
 
+                // Iteration without controls yet, see XFormsRepeatControl
+                if (! iteration.materialized)
+                    appendClasses(addedClasses, "xforms-repeat-placeholder")
+
                 // Apply the content of the body for this iteration
                 repeatBody(i, addedClasses, generateTemplate = false, repeatSelected = selected)
             }
@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io._
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.properties.Properties
+import org.orbeon.oxf.resources.{ResourceNotFoundException, ResourceManagerWrapper}
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.util.SecureUtils
+import org.orbeon.oxf.xforms.analysis.Metadata
+import org.orbeon.oxf.xforms.xbl.Scope
+import org.orbeon.oxf.xforms.{Loggers, XFormsUtils, XFormsStaticStateImpl, XFormsStaticState}
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl.StaticStateDocument
+import org.orbeon.oxf.xml.SAXStore
+import collection.JavaConverters._
+import scala.util.control.NonFatal
+
+/**
+ * Cache of static states on disk, which survives restarts.
+ *
+ * Each entry is stored under the static state digest, with the encoded static state document, the annotated template
+ * and the XBL files included, so that a static state can be created again without annotating and extracting the form.
+ * The static state is still analyzed, as the result of the analysis is not stored.
+ *
+ * As the digest is only known after extraction, entries are also found with a digest of the input document, which
+ * XFormsToSomething computes before annotation.
+ *
+ * Entries are valid as long as the included XBL files have not changed, the XForms properties have the same values,
+ * and the version of Orbeon Forms is the same. Entries which are no longer valid are removed when found, and the least
+ * recently used entries are removed when there are more than oxf.xforms.cache.static-state.directory.size entries.
+ *
+ * The cache is enabled when the oxf.xforms.cache.static-state.directory property is set.
+ */
+object XFormsStaticStatePersistentCache {
+
+    val DirectoryProperty = "oxf.xforms.cache.static-state.directory"
+    val SizeProperty      = "oxf.xforms.cache.static-state.directory.size"
+
+    // Change when the format of entries changes
+    private val FormatVersion = 2
+
+    private val EntryExtension = ".static-state"
+    private val InputExtension = ".input"
+
+    private def logger = Loggers.getIndentedLogger("cache")
+
+    private def propertySet = Properties.instance.getPropertySet
+
+    private def directoryOpt =
+        Option(propertySet.getString(DirectoryProperty, null)) flatMap nonEmptyOrNone map (new File(_))
+
+    def isEnabled = directoryOpt.isDefined
+
+    // Find an up-to-date entry by static state digest, null if not found
+    def find(digest: String): PersistedStaticState =
+        directoryOpt flatMap (find(_, digest, configurationDigest)) orNull
+
+    // Find an up-to-date entry by digest of the input document, null if not found
+    def findByInputDigest(inputDigest: String): PersistedStaticState =
+        directoryOpt flatMap (findByInputDigest(_, inputDigest, configurationDigest)) orNull
+
+    // Store the entry for a static state, and optionally the digest of the input document which produced it
+    def store(staticState: XFormsStaticState, template: AnnotatedTemplate, inputDigest: String): Unit =
+        directoryOpt foreach { dir ⇒
+            store(dir, staticState, template, inputDigest, configurationDigest)
+            prune(dir, propertySet.getInteger(SizeProperty, 500))
+        }
+
+    // Remove the entry for a static state
+    def remove(digest: String): Unit =
+        directoryOpt foreach (remove(_, digest))
+
+    // Digest of the values of the XForms properties, which impact annotation, extraction and analysis
+    // NOTE: Only properties without wildcards are taken into account.
+    private def configurationDigest = {
+        val names = propertySet.keySet.asScala.toList filter (name ⇒ name.startsWith("oxf.xforms.") && ! name.startsWith(DirectoryProperty))
+        SecureUtils.digestString(names.sorted map (name ⇒ name + '=' + propertySet.getObject(name)) mkString "\n", "hex")
+    }
+
+    private[state] def find(dir: File, digest: String, configuration: String): Option[PersistedStaticState] = {
+        val file = entryFile(dir, digest)
+        if (! file.exists)
+            None
+        else
+            read(file) filter (entry ⇒ entry.configuration == configuration && entry.isUpToDate) match {
+                case found @ Some(_) ⇒
+                    // Keep track of use for pruning
+                    file.setLastModified(System.currentTimeMillis)
+                    found
+                case None ⇒
+                    logger.logDebug("", "removing outdated static state from disk", "digest", digest)
+                    file.delete()
+                    None
+            }
+    }
+
+    private[state] def findByInputDigest(dir: File, inputDigest: String, configuration: String): Option[PersistedStaticState] = {
+        val file = inputFile(dir, inputDigest)
+        if (! file.exists)
+            None
+        else
+            readString(file) flatMap (find(dir, _, configuration)) match {
+                case found @ Some(_) ⇒
+                    found
+                case None ⇒
+                    // The static state was removed or is outdated
+                    file.delete()
+                    None
+            }
+    }
+
+    private[state] def store(dir: File, staticState: XFormsStaticState, template: AnnotatedTemplate, inputDigest: String, configuration: String): Unit =
+        try {
+            dir.mkdirs()
+
+            val metadata = staticState.topLevelPart.metadata
+            writeAtomically(entryFile(dir, staticState.digest)) { out ⇒
+                out.writeInt(FormatVersion)
+                out.writeUTF(Version.VersionNumber)
+                out.writeUTF(configuration)
+                out.writeUTF(staticState.digest)
+                out.writeObject(staticState.encodedState)
+                out.writeLong(metadata.bindingsLastModified)
+                out.writeInt(metadata.bindingIncludes.size)
+                metadata.bindingIncludes foreach out.writeUTF
+                out.writeObject(template.saxStore)
+            }
+
+            if (inputDigest ne null)
+                writeAtomically(inputFile(dir, inputDigest))(_.writeUTF(staticState.digest))
+
+            logger.logDebug("", "stored static state on disk", "digest", staticState.digest, "input digest", inputDigest)
+        } catch {
+            case NonFatal(t) ⇒
+                // The cache is an optimization only
+                logger.logWarning("", "unable to store static state on disk", t)
+        }
+
+    private[state] def remove(dir: File, digest: String): Unit =
+        entryFile(dir, digest).delete()
+
+    // Remove the least recently used entries above the maximum, and the input digests which no longer have an entry
+    private[state] def prune(dir: File, maxEntries: Int): Unit = {
+
+        def filesWithExtension(extension: String) =
+            Option(dir.listFiles) map (_.toList) getOrElse Nil filter (_.getName.endsWith(extension))
+
+        val entryFiles = filesWithExtension(EntryExtension)
+        if (entryFiles.size > maxEntries) {
+            entryFiles sortBy (_.lastModified) take (entryFiles.size - maxEntries) foreach (_.delete())
+
+            filesWithExtension(InputExtension) filter (file ⇒ readString(file) forall (! entryFile(dir, _).exists)) foreach (_.delete())
+
+            logger.logDebug("", "pruned static states on disk", "removed", (entryFiles.size - maxEntries).toString)
+        }
+    }
+
+    private def entryFile(dir: File, digest: String) = new File(dir, digest + EntryExtension)
+    private def inputFile(dir: File, inputDigest: String) = new File(dir, inputDigest + InputExtension)
+
+    private def read(file: File): Option[PersistedStaticState] =
+        try useAndClose(new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) { in ⇒
+            if (in.readInt() != FormatVersion || in.readUTF() != Version.VersionNumber)
+                None
+            else {
+                val configuration        = in.readUTF()
+                val digest               = in.readUTF()
+                val encodedState         = in.readObject().asInstanceOf[String]
+                val bindingsLastModified = in.readLong()
+                val bindingIncludes      = 1 to in.readInt() map (_ ⇒ in.readUTF())
+                val template             = AnnotatedTemplate(in.readObject().asInstanceOf[SAXStore])
+
+                Some(PersistedStaticState(digest, encodedState, template, bindingIncludes, bindingsLastModified, configuration))
+            }
+        } catch {
+            case NonFatal(t) ⇒
+                logger.logWarning("", "unable to read static state from disk", t)
+                None
+        }
+
+    private def readString(file: File) =
+        try Some(useAndClose(new ObjectInputStream(new FileInputStream(file)))(_.readUTF()))
+        catch {
+            case NonFatal(t) ⇒
+                logger.logWarning("", "unable to read static state digest from disk", t)
+                None
+        }
+
+    // Write to a temporary file first, so that concurrent readers never see a partial entry
+    private def writeAtomically(file: File)(write: ObjectOutputStream ⇒ Unit): Unit = {
+        val tempFile = File.createTempFile(file.getName, ".tmp", file.getParentFile)
+        try {
+            useAndClose(new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))(write)
+            if (! tempFile.renameTo(file)) {
+                file.delete()
+                tempFile.renameTo(file)
+            }
+        } finally
+            tempFile.delete()
+    }
+}
+
+// Static state read from disk
+case class PersistedStaticState(digest: String, encodedState: String, template: AnnotatedTemplate, bindingIncludes: Seq[String], bindingsLastModified: Long, configuration: String) {
+
+    // Same check as Metadata.checkBindingsIncludes
+    def isUpToDate =
+        try bindingIncludes forall (ResourceManagerWrapper.instance.lastModified(_, false) <= bindingsLastModified)
+        catch { case e: ResourceNotFoundException ⇒ false }
+
+    // Create and analyze the static state
+    def staticState: XFormsStaticState = {
+        val staticStateDocument = new StaticStateDocument(XFormsUtils.decodeXML(encodedState))
+
+        val metadata = Metadata(staticStateDocument, Some(template))
+        metadata.bindingIncludes ++= bindingIncludes
+        metadata.updateBindingsLastModified(bindingsLastModified)
+
+        new XFormsStaticStateImpl(
+            encodedState,
+            digest,
+            new Scope(null, ""),
+            metadata,
+            staticStateDocument.template map (_ ⇒ template), // only keep the template around if needed
+            staticStateDocument
+        )
+    }
+}
@@ -94,6 +94,9 @@ case class AbstractBinding(
         } yield
             Transform.createTransformConfig(transformQName, templateRoot, lastModified)
 
+    // Raw shadow trees for bound elements using this binding
+    val rawShadowTrees = new ShadowTreeCache(AbstractBinding.MaxSharedShadowTrees)
+
     // A transform cannot be reused, so this creates a new one when called, based on the config
     def newTransform(boundElement: Element) = transformConfig map {
         case (pipelineConfig, domGenerator) ⇒
@@ -113,6 +116,8 @@ case class AbstractBinding(
 
 object AbstractBinding {
 
+    private val MaxSharedShadowTrees = 50
+
     // Construct an AbstractBinding
     def apply(bindingElement: Element, lastModified: Long, scripts: Seq[HeadElement]) = {
 
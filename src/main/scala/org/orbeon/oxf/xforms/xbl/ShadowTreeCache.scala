@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.xbl
+
+import java.util.{Map ⇒ JMap, LinkedHashMap ⇒ JLinkedHashMap}
+import org.dom4j.{Document, Element}
+import org.orbeon.oxf.util.Metrics
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+
+/**
+ * Raw shadow trees of an abstract binding, shared between bound elements which produce the same tree.
+ *
+ * The raw shadow tree is the result of the optional xxbl:transform, and of applying xbl:content and xbl:attr. It only
+ * depends on the bound element, with its attributes, content and in-scope namespaces. So when the same component is
+ * used many times with the same attributes and content, the tree is generated once. As trees are only read after they
+ * are generated, a single instance is shared. Annotation still takes place for each bound element, as it allocates ids
+ * and scopes.
+ *
+ * The id of each bound element is different, so the key doesn't include it. A tree which contains the id of the bound
+ * element it was generated for is taken to depend on it, and is only shared with bound elements with the same id.
+ *
+ * Bound elements with a lot of content, such as sections, are unlikely to produce the same tree twice, and their tree
+ * is large, so they are not cached.
+ */
+class ShadowTreeCache(maxEntries: Int) {
+
+    import ShadowTreeCache._
+
+    private val trees = new JLinkedHashMap[String, Document](16, 0.75f, true) {
+        override def removeEldestEntry(eldest: JMap.Entry[String, Document]) = size > maxEntries
+    }
+
+    private def find(key: String) = synchronized(Option(trees.get(key)))
+    private def add(key: String, tree: Document) = synchronized(trees.put(key, tree))
+
+    def getOrCreate(boundElement: Element)(create: ⇒ Document): Document = {
+
+        val id = boundElement.attributeValue("id")
+
+        val keyWithoutId = {
+            val copy = Dom4jUtils.createDocumentCopyParentNamespaces(boundElement)
+            copy.getRootElement.addAttribute("id", null)
+            Dom4jUtils.domToString(copy)
+        }
+
+        if (keyWithoutId.length > MaxKeyLength)
+            create
+        else {
+            def keyWithId = keyWithoutId + '#' + id
+
+            find(keyWithoutId) orElse (if (id ne null) find(keyWithId) else None) match {
+                case Some(tree) ⇒
+                    Shared.inc()
+                    tree
+                case None ⇒
+                    Generated.inc()
+                    val tree = create
+                    val dependsOnId = (id ne null) && Dom4jUtils.domToString(tree).contains(id)
+                    add(if (dependsOnId) keyWithId else keyWithoutId, tree)
+                    tree
+            }
+        }
+    }
+}
+
+private object ShadowTreeCache {
+
+    val MaxKeyLength = 10000
+
+    private val XBLMetrics = Metrics.group("xbl")
+    val Shared    = XBLMetrics.counter("shadow-tree.shared")
+    val Generated = XBLMetrics.counter("shadow-tree.generated")
+}
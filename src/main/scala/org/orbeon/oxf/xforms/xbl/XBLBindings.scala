@@ -356,6 +356,8 @@ class XBLBindings(indentedLogger: IndentedLogger, partAnalysis: PartAnalysisImpl
     /**
      * Generate raw (non-annotated) shadow content for the given control id and XBL binding.
      *
+     * The result can be shared with other bound elements, see ShadowTreeCache, so it must not be modified.
+     *
      * @param boundElement      element to which the binding applies
      * @param abstractBinding  corresponding <xbl:binding>
      * @return Some shadow tree document if there is a template, None otherwise
@@ -364,20 +366,22 @@ class XBLBindings(indentedLogger: IndentedLogger, partAnalysis: PartAnalysisImpl
                                       abstractBinding: AbstractBinding): Option[Document] = {
         abstractBinding.templateElement map {
             templateElement ⇒
-                withDebug("generating raw XBL shadow content", Seq("binding id" → abstractBinding.bindingId.orNull)) {
+                abstractBinding.rawShadowTrees.getOrCreate(boundElement) {
+                    withDebug("generating raw XBL shadow content", Seq("binding id" → abstractBinding.bindingId.orNull)) {
 
-                    // TODO: in script mode, XHTML elements in template should only be kept during page generation
+                        // TODO: in script mode, XHTML elements in template should only be kept during page generation
 
-                    // Here we create a completely separate document
+                        // Here we create a completely separate document
 
-                    // 1. Apply optional preprocessing step (usually XSLT)
-                    // If @xxbl:transform is not present, just use a copy of the template element itself
-                    val shadowTreeDocument =
-                        abstractBinding.newTransform(boundElement) getOrElse
-                            Dom4jUtils.createDocumentCopyParentNamespaces(templateElement)
+                        // 1. Apply optional preprocessing step (usually XSLT)
+                        // If @xxbl:transform is not present, just use a copy of the template element itself
+                        val shadowTreeDocument =
+                            abstractBinding.newTransform(boundElement) getOrElse
+                                Dom4jUtils.createDocumentCopyParentNamespaces(templateElement)
 
-                    // 2. Apply xbl:attr, xbl:content, xxbl:attr and index xxbl:scope
-                    XBLTransformer.transform(shadowTreeDocument, boundElement, abstractBinding.modeHandlers, abstractBinding.modeLHHA)
+                        // 2. Apply xbl:attr, xbl:content, xxbl:attr and index xxbl:scope
+                        XBLTransformer.transform(shadowTreeDocument, boundElement, abstractBinding.modeHandlers, abstractBinding.modeLHHA)
+                    }
                 }
         }
     }
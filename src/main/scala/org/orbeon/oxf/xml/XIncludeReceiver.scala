@@ -19,6 +19,7 @@ import org.orbeon.oxf.common.OXFException
 import org.orbeon.oxf.common.ValidationException
 import org.orbeon.oxf.pipeline.api.{FunctionLibrary, PipelineContext}
 import org.orbeon.oxf.processor.transformer.TransformerURIResolver
+import org.orbeon.oxf.processor.xinclude.IncludedDocuments
 import org.orbeon.oxf.processor.transformer.XPathProcessor
 import org.orbeon.oxf.util.{XPath, LoggerFactory, XPathCache}
 import org.orbeon.oxf.xml.XMLUtils.addOrReplaceAttribute
@@ -39,13 +40,17 @@ class XIncludeReceiver(
         uriResolver: TransformerURIResolver,
         xmlBase: String,
         generateXMLBase: Boolean,
-        outputLocator: OutputLocator)
+        outputLocator: OutputLocator,
+        includedDocuments: Option[IncludedDocuments])
     extends ForwardingXMLReceiver(xmlReceiver) {
 
     self ⇒
 
     def this(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver, uriReferences: URIReferences, uriResolver: TransformerURIResolver) =
-        this(pipelineContext, None, xmlReceiver, uriReferences, uriResolver, null, true, new OutputLocator)
+        this(pipelineContext, None, xmlReceiver, uriReferences, uriResolver, null, true, new OutputLocator, None)
+
+    def this(pipelineContext: PipelineContext, xmlReceiver: XMLReceiver, uriReferences: URIReferences, uriResolver: TransformerURIResolver, includedDocuments: IncludedDocuments) =
+        this(pipelineContext, None, xmlReceiver, uriReferences, uriResolver, null, true, new OutputLocator, Some(includedDocuments))
 
     private val topLevel = parent.isEmpty
     private val namespaceContext = new NamespaceContext
@@ -144,7 +149,7 @@ class XIncludeReceiver(
                 uriReferences.addReference(base, href, null, null)
 
             def createChildReceiver =
-                new XIncludeReceiver(pipelineContext, Some(self), getXMLReceiver, uriReferences, uriResolver, systemId, generateXMLBase, outputLocator)
+                new XIncludeReceiver(pipelineContext, Some(self), getXMLReceiver, uriReferences, uriResolver, systemId, generateXMLBase, outputLocator, includedDocuments)
 
             try {
                 xpointer match {
@@ -175,13 +180,10 @@ class XIncludeReceiver(
                         throw new ValidationException("Invalid 'xpointer' attribute value: " + xpointer, new LocationData(outputLocator))
                     case None ⇒
                         // No xpointer attribute specified, just stream the child document
-                        val xmlReader = source.getXMLReader
-                        val xmlReceiver = createChildReceiver
-
-                        xmlReader.setContentHandler(xmlReceiver)
-                        xmlReader.setProperty(SAX_LEXICAL_HANDLER, xmlReceiver)
-
-                        xmlReader.parse(new InputSource(systemId)) // Yeah, the SAX API doesn't make much sense
+                        includedDocuments match {
+                            case Some(documents) ⇒ documents.read(source, createChildReceiver)
+                            case None            ⇒ IncludedDocuments.parse(source, createChildReceiver)
+                        }
                 }
             } catch {
                 case NonFatal(t) ⇒
@@ -3266,6 +3266,7 @@ ORBEON.xforms.Events = {
      */
     scrollOrResize: function() {
         ORBEON.xforms.Events._resize();
+        ORBEON.xforms.Events.loadVisibleIterations();
         // Adjust position of dialogs with "constraintoviewport" since YUI doesn't do it automatically
         // NOTE: comment this one out for now, as that causes issues like unreachable buttons for large dialogs, and funny scrolling
 //        for (var yuiDialogId in ORBEON.xforms.Globals.dialogs) {
@@ -3276,6 +3277,66 @@ ORBEON.xforms.Events = {
 //        }
     },
 
+    /**
+     * Ask the server to build the placeholder iterations of repeats with xxf:lazy-iterations which are in the viewport.
+     * This waits until scrolling stops.
+     */
+    loadVisibleIterations: function() {
+        if (ORBEON.xforms.Globals.loadIterationsTimer != null)
+            window.clearTimeout(ORBEON.xforms.Globals.loadIterationsTimer);
+        ORBEON.xforms.Globals.loadIterationsTimer = window.setTimeout(function() {
+            ORBEON.xforms.Globals.loadIterationsTimer = null;
+
+            var viewportTop = YAHOO.util.Dom.getDocumentScrollTop();
+            var viewportBottom = viewportTop + YAHOO.util.Dom.getViewportHeight();
+            function isVisible(element) {
+                var region = YAHOO.util.Dom.getRegion(element);
+                return region && region.bottom >= viewportTop && region.top <= viewportBottom;
+            }
+
+            var events = [];
+            _.each(YAHOO.util.Dom.getElementsByClassName("xforms-repeat-lazy"), function(beginElement) {
+                if (beginElement.id.indexOf("repeat-begin-") != 0) return;
+
+                // Go through the iterations, skipping the content of nested repeats which are siblings of iterations
+                var iterations = [];
+                var depth = 0;
+                var position = 0;
+                var cursor = YAHOO.util.Dom.getNextSibling(beginElement);
+                while (cursor != null) {
+                    if (YAHOO.util.Dom.hasClass(cursor, "xforms-repeat-begin-end")) {
+                        var isBegin = cursor.id.indexOf("repeat-begin-") == 0;
+                        if (! isBegin && depth == 0) break;
+                        depth += isBegin ? 1 : -1;
+                    } else if (depth == 0) {
+                        if (YAHOO.util.Dom.hasClass(cursor, "xforms-repeat-delimiter")) {
+                            position++;
+                        } else if (YAHOO.util.Dom.hasClass(cursor, "xforms-repeat-placeholder") && isVisible(cursor)) {
+                            // Only ask once for each iteration
+                            YAHOO.util.Dom.removeClass(cursor, "xforms-repeat-placeholder");
+                            if (_.last(iterations) != position)
+                                iterations.push(position);
+                        }
+                    }
+                    cursor = YAHOO.util.Dom.getNextSibling(cursor);
+                }
+
+                if (iterations.length > 0) {
+                    events.push(new ORBEON.xforms.server.AjaxServer.Event({
+                        form: ORBEON.xforms.Controls.getForm(beginElement),
+                        targetId: beginElement.id.substring("repeat-begin-".length),
+                        eventName: "xxforms-load-iterations",
+                        showProgress: false,
+                        additionalAttribs: ["iterations", iterations.join(" ")]
+                    }));
+                }
+            });
+
+            if (events.length > 0)
+                ORBEON.xforms.server.AjaxServer.fireEvents(events, false);
+        }, 200);
+    },
+
     sliderValueChange: function(offset) {
         // Notify server that value changed
         var rangeControl = ORBEON.util.Dom.get(this.id).parentNode;
@@ -4223,6 +4284,9 @@ ORBEON.xforms.Init = {
 
         ORBEON.xforms.Globals.topLevelListenerRegistered = true;
 
+        // Placeholder iterations which are visible initially
+        ORBEON.xforms.Events.loadVisibleIterations();
+
         // A heartbeat event - An AJAX request for letting server know that "I'm still alive"
         if (ORBEON.util.Properties.sessionHeartbeat.get()) {
             var heartBeatDelay = ORBEON.util.Properties.sessionHeartbeatDelay.get();
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.controller
+
+import java.util.regex.Pattern
+import org.junit.Test
+import org.orbeon.oxf.processor.RegexpMatcher.{MatchResult, compilePattern}
+import org.orbeon.oxf.util.LoggerFactory
+import org.scalatest.junit.AssertionsForJUnit
+
+class RouteIndexTest extends AssertionsForJUnit {
+
+    private val Logger = LoggerFactory.createLogger(classOf[RouteIndexTest])
+
+    private val BenchmarkRouteCount = 1000
+
+    // What PageFlowControllerProcessor used to do
+    private def linearFind[T](routes: Seq[(Pattern, T)], path: String) =
+        routes.iterator map { case (pattern, route) ⇒ route → MatchResult(pattern, path) } find (_._2.matches)
+
+    private def glob(path: String)   = compilePattern(path, glob = true)
+    private def regexp(path: String) = compilePattern(path, glob = false)
+
+    // Synthetic page flow similar to the ones of large applications: mostly literal pages and services, and some globs
+    // and regexps, some of them shadowing others
+    private def syntheticRoutes(count: Int) = {
+        val sections = count / 10
+        val routes =
+            for (section ← 0 until sections; (path, i) ← Seq(
+                    glob("/app/section-" + section + "/"),
+                    glob("/app/section-" + section + "/edit"),
+                    glob("/app/section-" + section + "/view"),
+                    regexp("/app/section-" + section + "/view/([^/]+)"),
+                    regexp("/app/section-" + section + "/(new|summary)"),
+                    glob("/app/section-" + section + "/service/save"),
+                    glob("/app/section-" + section + "/service/load"),
+                    glob("/app/section-" + section + "/service/*"),
+                    glob("/app/section-" + section + "/*.png"),
+                    glob("/app/section-" + section + "/*")).zipWithIndex)
+            yield path → (section * 10 + i)
+
+        (glob("/xforms-server-submit") → -1) +: routes :+ (glob("/*") → count)
+    }
+
+    private def syntheticPaths(count: Int) =
+        for (section ← 0 until count / 10; page ← Seq("", "edit", "view", "view/42", "new", "summary", "service/save", "service/other", "logo.png", "other/page"))
+            yield "/app/section-" + section + "/" + page
+
+    @Test def literalPrefix(): Unit = {
+
+        import RouteIndex.literalPrefix
+
+        assert(literalPrefix(regexp("/fr/service/crud")) === ("/fr/service/crud", true))
+        assert(literalPrefix(glob("/fr/service/crud")) === ("/fr/service/crud", true))
+        assert(literalPrefix(glob("/fr/*.css")) === ("/fr/", false))
+        assert(literalPrefix(glob("/fr/a.b?")) === ("/fr/a.b", false))
+        assert(literalPrefix(regexp("/fr/(.+)")) === ("/fr/", false))
+        assert(literalPrefix(regexp("/fr/abc?")) === ("/fr/ab", false))
+        assert(literalPrefix(regexp("/fr/a\\.b*")) === ("/fr/a.", false))
+        assert(literalPrefix(regexp("/fr/\\d+")) === ("/fr/", false))
+        assert(literalPrefix(regexp("/fr/a(b|c)")) === ("/fr/a", false))
+        assert(literalPrefix(regexp("/fr/a|/fr/b")) === ("", false))
+        assert(literalPrefix(Pattern.compile("/fr/a", Pattern.CASE_INSENSITIVE)) === ("", false))
+    }
+
+    @Test def sameAsLinearScan(): Unit = {
+
+        val routes = Seq(
+            regexp("/fr/(.+)/(.+)/new")    → 1,
+            glob("/fr/orbeon/builder/new") → 2,
+            glob("/fr/service/crud")       → 3,
+            glob("/fr/service/crud")       → 4,
+            regexp("/fr/service/.*")       → 5,
+            glob("/fr/*.css")              → 6,
+            regexp("(?i)/FR/A")            → 7,
+            regexp("/a|/b")                → 8,
+            glob("/*")                     → 9)
+
+        val index = new RouteIndex(routes)
+
+        for (path ← Seq("/fr/orbeon/builder/new", "/fr/service/crud", "/fr/service/other", "/fr/a.css", "/fr/a", "/a", "/b", "/", "", "/fr/x/y/new/z"))
+            assert(index.find(path) === linearFind(routes, path), path)
+
+        assert(index.find("/fr/orbeon/builder/new") === Some(1 → MatchResult(matches = true, Seq("orbeon", "builder"))))
+        assert(index.find("/fr/service/crud") === Some(3 → MatchResult(matches = true)))
+        assert(index.find("") === None)
+    }
+
+    // Benchmark of the lookup over a synthetic page flow with 1000 routes
+    // NOTE: Timings are only logged, as they depend on the machine running the test.
+    @Test def benchmark(): Unit = {
+
+        def time(body: ⇒ Any) = {
+            val start = System.nanoTime
+            body
+            (System.nanoTime - start) / 1000000
+        }
+
+        val routes = syntheticRoutes(BenchmarkRouteCount)
+        val paths  = syntheticPaths(BenchmarkRouteCount) :+ "/other" :+ "/xforms-server-submit"
+        val index  = new RouteIndex(routes)
+
+        for (path ← paths)
+            assert(index.find(path) === linearFind(routes, path), path)
+
+        val linearMs = time { for (path ← paths) linearFind(routes, path) }
+        val indexMs  = time { for (path ← paths) index.find(path) }
+
+        Logger.info("lookup of " + paths.size + " paths in " + routes.size + " routes: linear scan " + linearMs + " ms, index " + indexMs + " ms")
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import java.awt.image.BufferedImage
+import java.io.File
+import javax.imageio.ImageIO
+import org.apache.commons.io.{FileUtils, IOUtils}
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.{After, Test}
+import org.orbeon.oxf.externalcontext.{ExternalContextWrapper, LocalResponse}
+import org.orbeon.oxf.pipeline.api.{ExternalContext, PipelineContext}
+import org.orbeon.oxf.processor.generator.DOMGenerator
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{Metrics, PipelineUtils, SecureUtils}
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+import scala.xml.NodeSeq
+
+class ImageServerTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private val imageDir = newTempDir("image-server-test-images-")
+    private val cacheDir = newTempDir("image-server-test-cache-")
+
+    @After def deleteDirs(): Unit = {
+        FileUtils.deleteDirectory(imageDir)
+        FileUtils.deleteDirectory(cacheDir)
+    }
+
+    private def newTempDir(prefix: String) = {
+        val dir = File.createTempFile(prefix, "")
+        dir.delete()
+        dir.mkdirs()
+        dir
+    }
+
+    private def newImage(name: String) = {
+        val file = new File(imageDir, name)
+        ImageIO.write(new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB), "jpeg", file)
+        file
+    }
+
+    private def config(useDiskCache: Boolean): JDocument =
+        <config>
+            <image-directory>{imageDir.toURI.toString}</image-directory>
+            { if (useDiskCache) <cache><directory>{cacheDir.getAbsolutePath}</directory></cache> else NodeSeq.Empty }
+        </config>
+
+    private def image(name: String, width: Int = 20): JDocument =
+        <image>
+            <url>{name}</url>
+            <transform type="scale">
+                <width>{width}</width>
+                <height>10</height>
+            </transform>
+        </image>
+
+    private def transformedCount(name: String) = Metrics.group("image-server").counter("transformed." + name).count
+
+    // Run the image server, with a response reporting whether the image was modified since the client got it
+    private def serve(config: JDocument, image: JDocument, modified: Boolean = true) = {
+
+        val processor = new ImageServer
+        for ((document, inputName) ← Seq(config → "config", image → "image"))
+            PipelineUtils.connect(PipelineUtils.createDOMGenerator(document, SecureUtils.randomHexId, DOMGenerator.ZeroValidity, DOMGenerator.DefaultContext), "data", processor, inputName)
+
+        val response = new LocalResponse(null) {
+            override def checkIfModifiedSince(lastModified: Long) = modified
+        }
+
+        val pipelineContext = createPipelineContextWithExternalContext()
+        val externalContext = pipelineContext.getAttribute(PipelineContext.EXTERNAL_CONTEXT).asInstanceOf[ExternalContext]
+        pipelineContext.setAttribute(PipelineContext.EXTERNAL_CONTEXT, new ExternalContextWrapper(externalContext) {
+            override def getResponse = response
+        })
+
+        try {
+            processor.reset(pipelineContext)
+            processor.start(pipelineContext)
+        } finally
+            pipelineContext.destroy(true)
+
+        response
+    }
+
+    private def body(response: LocalResponse) = IOUtils.toByteArray(response.getInputStream)
+
+    private def cacheFiles = FileUtils.listFiles(cacheDir, null, true)
+
+    @Test def diskCache(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        newImage("disk-cache.jpg")
+
+        val misses = transformedCount("miss")
+
+        // First request transforms the image and saves it to the disk cache
+        val first = serve(config(useDiskCache = true), image("disk-cache.jpg"))
+        assert(first.status === 200)
+        assert(first.contentType === Some("image/jpeg"))
+        assert(transformedCount("miss") === misses + 1)
+        assert(cacheFiles.size === 1)
+
+        val cacheFile = cacheFiles.iterator.next()
+        assert(body(first).toSeq === FileUtils.readFileToByteArray(cacheFile).toSeq)
+
+        // Second request is sent from the disk cache without transforming the image
+        val hits = transformedCount("hit")
+        val second = serve(config(useDiskCache = true), image("disk-cache.jpg"))
+        assert(second.status === 200)
+        assert(body(second).toSeq === body(first).toSeq)
+        assert(transformedCount("miss") === misses + 1)
+        assert(transformedCount("hit") === hits)
+    }
+
+    @Test def staleDiskCache(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        val source = newImage("stale-disk-cache.jpg")
+        serve(config(useDiskCache = true), image("stale-disk-cache.jpg"))
+
+        // The image changed after it was cached, so the disk cache is not used
+        val cacheFile = cacheFiles.iterator.next()
+        assert(cacheFile.setLastModified(source.lastModified - 10000))
+
+        // The transformed image is still in memory for that version of the image, and is saved again to the disk cache
+        val hits = transformedCount("hit")
+        val response = serve(config(useDiskCache = true), image("stale-disk-cache.jpg"))
+        assert(response.status === 200)
+        assert(transformedCount("hit") === hits + 1)
+        assert(cacheFile.lastModified >= source.lastModified)
+    }
+
+    @Test def notModified(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        val source = newImage("not-modified.jpg")
+        serve(config(useDiskCache = true), image("not-modified.jpg"))
+
+        // The client has the current version
+        val response = serve(config(useDiskCache = true), image("not-modified.jpg"), modified = false)
+        assert(response.status === 304)
+        assert(response.headers("last-modified").nonEmpty)
+        assert(body(response).isEmpty)
+
+        // Without transformations, the image is never processed and the same applies
+        val untransformed: JDocument = <image><url>not-modified.jpg</url></image>
+        assert(serve(config(useDiskCache = false), untransformed, modified = false).status === 304)
+
+        val sent = serve(config(useDiskCache = false), untransformed)
+        assert(sent.status === 200)
+        assert(body(sent).toSeq === FileUtils.readFileToByteArray(source).toSeq)
+    }
+
+    @Test def memoryCache(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        newImage("memory-cache.jpg")
+
+        val misses = transformedCount("miss")
+        val hits   = transformedCount("hit")
+
+        val first = serve(config(useDiskCache = false), image("memory-cache.jpg"))
+        val second = serve(config(useDiskCache = false), image("memory-cache.jpg"))
+
+        assert(body(second).toSeq === body(first).toSeq)
+        assert(transformedCount("miss") === misses + 1)
+        assert(transformedCount("hit") === hits + 1)
+
+        // Another transformation of the same image is a different entry
+        serve(config(useDiskCache = false), image("memory-cache.jpg", width = 10))
+        assert(transformedCount("miss") === misses + 2)
+
+        assert(cacheFiles.isEmpty)
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor
+
+import org.junit.Test
+import org.orbeon.oxf.util.Metrics
+import org.orbeon.oxf.xml.XMLReceiverAdapter
+import org.scalatest.junit.AssertionsForJUnit
+import org.xml.sax.helpers.AttributesImpl
+
+class ProcessorMetricsTest extends AssertionsForJUnit {
+
+    private def value(name: String) =
+        (Metrics.group("pipeline").values collectFirst { case (`name`, v) ⇒ v }).get
+
+    @Test def nestedTimes(): Unit = {
+
+        val outer = new ProcessorTiming("test-outer", null)
+        Thread.sleep(20)
+
+        val inner = new ProcessorTiming("test-inner", new ProcessorMetrics.CountingXMLReceiver("test-inner", new XMLReceiverAdapter))
+        inner.receiver.startElement("", "a", "a", new AttributesImpl)
+        inner.receiver.characters("abc".toCharArray, 0, 3)
+        inner.receiver.endElement("", "a", "a")
+        Thread.sleep(50)
+        inner.end()
+
+        outer.end()
+
+        val outerTotal = value("test-outer.total-ms").asInstanceOf[Double]
+        val outerSelf  = value("test-outer.self.total-ms").asInstanceOf[Double]
+        val innerTotal = value("test-inner.total-ms").asInstanceOf[Double]
+
+        // The time of the inner step is excluded from the self time of the outer step
+        assert(innerTotal >= 50)
+        assert(outerTotal >= innerTotal + 20)
+        assert(math.abs(outerSelf - (outerTotal - innerTotal)) < 1)
+
+        assert(value("test-inner.sax-events") === 3L)
+        assert(value("test-inner.characters") === 3L)
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.generator
+
+import java.util.{List ⇒ JList}
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{Metrics, Connection, ConnectionResult}
+import org.scalatest.junit.AssertionsForJUnit
+import scala.collection.JavaConverters._
+
+class HttpValidatorCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    import HttpValidatorCache._
+
+    private val NoHeaders = Map[String, Array[String]]()
+
+    private def response(statusCode: Int, headers: (String, String)*) = {
+        val result = new ConnectionResult("http://example.org/")
+        result.statusCode = statusCode
+        result.responseHeaders = (headers map { case (name, value) ⇒ name → (List(value).asJava: JList[String]) }).toMap.asJava
+        result
+    }
+
+    private def credentials(username: String, password: String) =
+        Connection.Credentials(username, password, "false", null)
+
+    private def freshHits = Metrics.group("url-generator").counter("validity.fresh").count
+
+    @Test def keyedByCredentials(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        val url        = "http://example.org/keyed-by-credentials.xml"
+        val anonymous  = key(url, null, NoHeaders)
+        val user1      = key(url, credentials("user1", "secret"), NoHeaders)
+        val user2      = key(url, credentials("user2", "secret"), NoHeaders)
+
+        assert(Set(anonymous, user1, user2).size === 3)
+
+        val validity = update(user1, response(200, "etag" → "\"1\"", "cache-control" → "max-age=60"), null)
+        assert(validity ne null)
+
+        assert(freshValidity(user1) === validity)
+        assert(etag(user1) === "\"1\"")
+
+        // Validators for a user are not used for other users
+        assert(freshValidity(anonymous) eq null)
+        assert(freshValidity(user2) eq null)
+        assert(etag(user2) eq null)
+    }
+
+    @Test def notSharedWithAuthorizationHeader(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        val url = "http://example.org/authorization.xml"
+
+        assert(key(url, null, Map("Authorization" → Array("Basic dXNlcjpzZWNyZXQ="))) eq null)
+        assert(key(url, null, NoHeaders) ne null)
+
+        // Without a key, nothing is found nor kept
+        assert(freshValidity(null) eq null)
+        assert(update(null, response(200, "etag" → "\"1\"", "cache-control" → "max-age=60"), null) eq null)
+        assert(update(null, response(304), 1000L) === 1000L)
+    }
+
+    @Test def notSharedWhenVaryingOrPrivate(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        for ((path, header) ← Seq("vary.xml" → ("vary" → "Accept-Language"), "private.xml" → ("cache-control" → "private, max-age=60"))) {
+            val k = key("http://example.org/" + path, null, NoHeaders)
+
+            // A shared response is kept first, and then removed by the response which can't be shared
+            update(k, response(200, "etag" → "\"1\"", "cache-control" → "max-age=60"), null)
+            assert(etag(k) === "\"1\"", path)
+
+            update(k, response(200, "etag" → "\"2\"", header), null)
+            assert(etag(k) eq null, path)
+            assert(freshValidity(k) eq null, path)
+        }
+    }
+
+    @Test def freshHitsOnlyCountedWhenUsed(): Unit = {
+
+        ResourceManagerTestBase.staticSetup()
+
+        val k = key("http://example.org/fresh-hits.xml", null, NoHeaders)
+        val validity: Long = update(k, response(200, "etag" → "\"1\"", "cache-control" → "max-age=60"), null)
+
+        val before = freshHits
+
+        // Fresh, but not for the version the caller has
+        assert(! isFresh(k, validity + 1))
+        assert(freshHits === before)
+
+        assert(isFresh(k, validity))
+        assert(freshHits === before + 1)
+    }
+}
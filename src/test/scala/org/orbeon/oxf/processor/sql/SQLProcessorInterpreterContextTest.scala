@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.sql
+
+import java.sql.{Connection, Driver, DriverManager, DriverPropertyInfo, PreparedStatement, SQLFeatureNotSupportedException}
+import java.util.Properties
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.{After, Before, Test}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.mockito.{Matchers, Mockito}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.processor.Datasource
+import org.scalatest.junit.AssertionsForJUnit
+import org.scalatest.mock.MockitoSugar
+import scala.collection.mutable.ListBuffer
+
+class SQLProcessorInterpreterContextTest extends AssertionsForJUnit with MockitoSugar {
+
+    import SQLProcessorInterpreterContextTest._
+
+    private val Insert = "insert into t values (?)"
+
+    private val driver = new TestDriver
+
+    @Before def registerDriver(): Unit = DriverManager.registerDriver(driver)
+    @After  def deregisterDriver(): Unit = DriverManager.deregisterDriver(driver)
+
+    private def datasource(name: String) =
+        new Datasource(classOf[TestDriver].getName, TestDriver.URLPrefix + name, null, null)
+
+    private def newContext(pipelineContext: PipelineContext, datasourceName: String) = {
+        val context = new SQLProcessorInterpreterContext(null)
+        context.setPipelineContext(pipelineContext)
+        context.setDatasource(datasource(datasourceName))
+        context
+    }
+
+    @Test def batchExecutedWhenFull(): Unit = {
+        val context = newContext(new PipelineContext, "db")
+        context.pushContext()
+
+        val stmt = context.getCachedStatement(Insert)
+        for (_ ← 1 to 5)
+            context.addBatch(stmt, 2)
+
+        // Two full batches
+        Mockito.verify(stmt, Mockito.times(2)).executeBatch()
+        assert(context.getUpdateCount === 4)
+
+        // Remaining update, e.g. when sql:for-each completes
+        context.executePendingBatches()
+        Mockito.verify(stmt, Mockito.times(3)).executeBatch()
+        assert(context.getUpdateCount === 5)
+
+        // Nothing left to execute
+        context.executePendingBatches()
+        Mockito.verify(stmt, Mockito.times(3)).executeBatch()
+    }
+
+    @Test def updateCountsGoToOwningExecute(): Unit = {
+        val context = newContext(new PipelineContext, "db")
+
+        // sql:for-each, and then sql:execute within it
+        context.pushContext()
+        context.pushContext()
+
+        val stmt = context.getCachedStatement(Insert)
+        context.addBatch(stmt, 10)
+        context.addBatch(stmt, 10)
+        context.executePendingBatches()
+
+        assert(context.getUpdateCount === 2)
+        context.popContext()
+        assert(context.getUpdateCount === 0)
+    }
+
+    @Test def closeStatementExecutesPendingBatch(): Unit = {
+        val context = newContext(new PipelineContext, "db")
+        context.pushContext()
+
+        // Statement which is not cached
+        val stmt = context.getConnection.prepareStatement(Insert)
+        context.addBatch(stmt, 10)
+        context.closeStatement(stmt)
+
+        val inOrder = Mockito.inOrder(stmt)
+        inOrder.verify(stmt).executeBatch()
+        inOrder.verify(stmt).close()
+        assert(context.getUpdateCount === 1)
+    }
+
+    @Test def pendingBatchesClearedUponError(): Unit = {
+        val context = newContext(new PipelineContext, "db")
+        context.pushContext()
+
+        val stmt = context.getCachedStatement(Insert)
+        context.addBatch(stmt, 10)
+        context.clearPendingBatches()
+        context.executePendingBatches()
+
+        Mockito.verify(stmt).clearBatch()
+        Mockito.verify(stmt, Mockito.never).executeBatch()
+        assert(context.getUpdateCount === 0)
+    }
+
+    @Test def statementsReusedPerConnection(): Unit = {
+        val pipelineContext = new PipelineContext
+        val context = newContext(pipelineContext, "db1")
+
+        // Same connection and SQL text
+        val stmt1 = context.getCachedStatement(Insert)
+        assert(context.getCachedStatement(Insert) eq stmt1)
+        assert(context.getCachedStatement("delete from t") ne stmt1)
+
+        // Another connection doesn't reuse the statement
+        context.setDatasource(datasource("db2"))
+        val stmt2 = context.getCachedStatement(Insert)
+        assert(stmt2 ne stmt1)
+
+        assert(driver.connections.size === 2)
+        val Seq(connection1, connection2) = driver.connections.toList
+        Mockito.verify(connection1, Mockito.times(1)).prepareStatement(Insert)
+        Mockito.verify(connection2, Mockito.times(1)).prepareStatement(Insert)
+
+        // Statements are closed with the pipeline context, and a new pipeline uses new statements
+        pipelineContext.destroy(true)
+        Mockito.verify(stmt1).close()
+        Mockito.verify(stmt2).close()
+
+        assert(newContext(new PipelineContext, "db1").getCachedStatement(Insert) ne stmt1)
+        assert(driver.connections.size === 3)
+    }
+}
+
+object SQLProcessorInterpreterContextTest extends MockitoSugar {
+
+    // JDBC driver creating mock connections, which create mock statements reporting one updated row per batched update
+    class TestDriver extends Driver {
+
+        val connections = ListBuffer[Connection]()
+
+        def connect(url: String, info: Properties) =
+            if (acceptsURL(url)) {
+                val connection = mock[Connection]
+                Mockito when connection.prepareStatement(Matchers.anyString) thenAnswer new Answer[PreparedStatement] {
+                    def answer(invocation: InvocationOnMock) = newStatement()
+                }
+                connections += connection
+                connection
+            } else
+                null
+
+        private def newStatement() = {
+            val stmt = mock[PreparedStatement]
+            val batched = new AtomicInteger
+
+            Mockito.doAnswer(new Answer[AnyRef] {
+                def answer(invocation: InvocationOnMock) = { batched.incrementAndGet(); null }
+            }).when(stmt).addBatch()
+
+            Mockito when stmt.executeBatch() thenAnswer new Answer[Array[Int]] {
+                def answer(invocation: InvocationOnMock) = Array.fill(batched.getAndSet(0))(1)
+            }
+
+            stmt
+        }
+
+        def acceptsURL(url: String)                           = url.startsWith(TestDriver.URLPrefix)
+        def getPropertyInfo(url: String, info: Properties)    = Array[DriverPropertyInfo]()
+        def getMajorVersion                                   = 1
+        def getMinorVersion                                   = 0
+        def jdbcCompliant                                     = false
+        def getParentLogger: java.util.logging.Logger         = throw new SQLFeatureNotSupportedException
+    }
+
+    object TestDriver {
+        val URLPrefix = "jdbc:sql-processor-test:"
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.processor.transformer.xslt
+
+import org.dom4j.QName
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.{Metrics, NetUtils}
+import org.orbeon.oxf.xml.XMLConstants.{XSLT_PROCESSOR_QNAME, UNSAFE_XSLT_PROCESSOR_QNAME}
+import org.scalatest.junit.AssertionsForJUnit
+
+class XSLTPrecompilerTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private val Stylesheet = "oxf:/org/orbeon/oxf/processor/transformer/xslt/precompile.xsl"
+
+    private def hits   = Metrics.group("xslt").counter("templates.hit").count
+    private def misses = Metrics.group("xslt").counter("templates.miss").count
+
+    @Test def compiledOncePerProcessor(): Unit = {
+
+        def precompile(processorName: QName) =
+            XSLTPrecompiler.precompile(processorName, Stylesheet, NetUtils.getExternalContext)
+
+        val (hitsBefore, missesBefore) = (hits, misses)
+
+        // Compiled the first time
+        precompile(XSLT_PROCESSOR_QNAME)
+        assert((hits - hitsBefore, misses - missesBefore) === (0L, 1L))
+
+        // Then found in cache, including by another processor instance
+        precompile(XSLT_PROCESSOR_QNAME)
+        assert((hits - hitsBefore, misses - missesBefore) === (1L, 1L))
+
+        // But not shared with oxf:unsafe-xslt, which compiles stylesheets with different attributes
+        precompile(UNSAFE_XSLT_PROCESSOR_QNAME)
+        assert((hits - hitsBefore, misses - missesBefore) === (1L, 2L))
+    }
+}
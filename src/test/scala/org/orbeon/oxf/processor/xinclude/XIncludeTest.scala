@@ -14,13 +14,16 @@
 package org.orbeon.oxf.processor.xinclude
 
 import javax.xml.namespace.QName
+import javax.xml.transform.sax.SAXSource
 import org.junit.Test
 import org.orbeon.oxf.test.ResourceManagerTestBase
-import org.orbeon.oxf.xml.XMLUtils.ParserConfiguration.XINCLUDE_ONLY
-import org.orbeon.oxf.xml.{XMLReceiverAdapter, XMLUtils}
+import org.orbeon.oxf.xml.XMLUtils.ParserConfiguration.{PLAIN, XINCLUDE_ONLY}
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.orbeon.oxf.xml.{TransformerUtils, XMLReceiver, SAXStore, XMLReceiverAdapter, XMLUtils}
 import org.orbeon.scaxon.SAXEvents._
 import org.scalatest.junit.AssertionsForJUnit
-import org.xml.sax.Attributes
+import org.xml.sax.helpers.XMLFilterImpl
+import org.xml.sax.{InputSource, Attributes}
 
 class XIncludeTest extends ResourceManagerTestBase with AssertionsForJUnit {
 
@@ -150,6 +153,55 @@ class XIncludeTest extends ResourceManagerTestBase with AssertionsForJUnit {
         assert(expected === collector.events)
     }
 
+    @Test def remoteIncludes() {
+
+        val document = new SAXStore
+
+        XMLUtils.stringToSAX(
+            """<root xmlns:xi="http://www.w3.org/2001/XInclude">
+                    <xi:include href="http://example.org/a.xml"/>
+                    <xi:include href="https://example.org/b.xml"/>
+                    <xi:include href="http://example.org/a.xml"/>
+                    <xi:include href="http://example.org/c.xml" xpointer="xpath(/*)"/>
+                    <xi:include href="http://example.org/d.txt" parse="text"/>
+                    <xi:include href="e.xml"/>
+                    <xi:include href="oxf:/f.xml"/>
+                </root>""",
+            null, document, PLAIN, false)
+
+        assert(IncludedDocuments.remoteIncludes(document) === Seq("http://example.org/a.xml", "https://example.org/b.xml"))
+    }
+
+    @Test def documentIncludedTwiceParsedOnce() {
+
+        // Reader which counts how many times the document is parsed
+        var parsed = 0
+        val xmlReader = new XMLFilterImpl {
+            override def setProperty(name: String, value: AnyRef) = ()
+            override def parse(input: InputSource) = {
+                parsed += 1
+                XMLUtils.stringToSAX(
+                    """<doc xmlns:a="http://example.org/a"><a:value>42</a:value><!-- comment --></doc>""",
+                    input.getSystemId, getContentHandler.asInstanceOf[XMLReceiver], PLAIN, true)
+            }
+        }
+
+        val includedDocuments = new IncludedDocuments(PLAIN)
+
+        def include() = {
+            val result = new SAXStore
+            includedDocuments.read(new SAXSource(xmlReader, new InputSource("http://example.org/doc.xml")), result)
+            Dom4jUtils.domToString(TransformerUtils.saxStoreToDom4jDocument(result))
+        }
+
+        val first  = include()
+        val second = include()
+
+        assert(parsed === 1)
+        assert(first contains "<a:value>42</a:value>")
+        assert(second === first)
+    }
+
     // Collect the SAX events we are interested in
     class Collector extends XMLReceiverAdapter {
 
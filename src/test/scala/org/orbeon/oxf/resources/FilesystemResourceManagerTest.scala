@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.resources
+
+import java.io.{FileOutputStream, File}
+import org.junit.Test
+import org.scalatest.junit.AssertionsForJUnit
+import collection.JavaConverters._
+
+class FilesystemResourceManagerTest extends AssertionsForJUnit {
+
+    private def withResource[T](body: (File, File) ⇒ T): T = {
+        val directory = File.createTempFile("resources", "")
+        directory.delete()
+        directory.mkdir()
+
+        val file = new File(directory, "foo.xml")
+        val os = new FileOutputStream(file)
+        try os.write("<foo/>".getBytes("utf-8"))
+        finally os.close()
+        file.setLastModified(1000000000000L)
+        try body(directory, file)
+        finally {
+            file.delete()
+            directory.delete()
+        }
+    }
+
+    private def manager(directory: File, properties: (String, String)*) =
+        new FilesystemResourceManagerImpl((properties.toMap + (FilesystemResourceManagerFactory.SANDBOX_DIRECTORY_PROPERTY → directory.getPath)).asJava)
+
+    @Test def reloadInterval(): Unit =
+        withResource { (directory, file) ⇒
+            val resources = manager(directory, "oxf.resources.common.min-reload-interval" → "0")
+
+            assert(resources.lastModified("/foo.xml", false) === 1000000000000L)
+            file.setLastModified(1000000001000L)
+            assert(resources.lastModified("/foo.xml", false) === 1000000001000L)
+
+            intercept[ResourceNotFoundException](resources.lastModified("/bar.xml", false))
+            assert(resources.lastModified("/bar.xml", true) === -1)
+        }
+
+    @Test def frozen(): Unit =
+        withResource { (directory, file) ⇒
+            val resources = manager(directory, "oxf.resources.common.min-reload-interval" → "0", "oxf.resources.common.frozen" → "true")
+
+            assert(resources.lastModified("/foo.xml", false) === 1000000000000L)
+            file.setLastModified(1000000001000L)
+            assert(resources.lastModified("/foo.xml", false) === 1000000000000L)
+        }
+
+    // Whether a missing resource throws depends on each caller, including when its absence is cached
+    @Test def notFoundWithFrozenOrWatchedIndex(): Unit =
+        withResource { (directory, file) ⇒
+            for (properties ← Seq("oxf.resources.common.frozen" → "true", FilesystemResourceManagerFactory.WATCH_PROPERTY → "true")) {
+                val resources = manager(directory, properties)
+
+                assert(resources.lastModified("/bar.xml", true) === -1)
+                intercept[ResourceNotFoundException](resources.lastModified("/bar.xml", false))
+
+                intercept[ResourceNotFoundException](resources.lastModified("/baz.xml", false))
+                assert(resources.lastModified("/baz.xml", true) === -1)
+            }
+            FilesystemResourceManagerImpl.stopWatchers()
+        }
+
+    @Test def refreshIndex(): Unit =
+        withResource { (directory, file) ⇒
+            val resources = manager(directory)
+
+            assert(resources.lastModified("/foo.xml", false) === 1000000000000L)
+            assert(resources.refreshLastModifiedIndex().isEmpty)
+
+            file.setLastModified(1000000001000L)
+            assert(resources.refreshLastModifiedIndex().asScala === Seq("/foo.xml"))
+            assert(resources.lastModified("/foo.xml", false) === 1000000001000L)
+        }
+
+    @Test def stopWatchers(): Unit =
+        withResource { (directory, file) ⇒
+            def watcherThreads =
+                Thread.getAllStackTraces.keySet.asScala filter (t ⇒ t.getName == "Orbeon filesystem resource watcher" && t.isAlive)
+
+            manager(directory, FilesystemResourceManagerFactory.WATCH_PROPERTY → "true")
+            assert(watcherThreads.nonEmpty)
+
+            FilesystemResourceManagerImpl.stopWatchers()
+            watcherThreads foreach (_.join(10000))
+            assert(watcherThreads.isEmpty)
+        }
+}
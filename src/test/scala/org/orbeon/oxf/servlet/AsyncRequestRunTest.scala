@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.servlet
+
+import java.util.concurrent.{TimeUnit, CountDownLatch, Executors}
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.{After, Test}
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.scalatest.junit.AssertionsForJUnit
+
+class AsyncRequestRunTest extends AssertionsForJUnit {
+
+    private val executor = Executors.newSingleThreadExecutor
+
+    @After def shutdown(): Unit =
+        executor.shutdownNow()
+
+    @Test def runsOnce(): Unit = {
+        val run = new AsyncRequestRun
+        val runs = new AtomicInteger
+        val done = new AtomicInteger
+
+        run.run(runs.incrementAndGet())(done.incrementAndGet())
+        run.run(runs.incrementAndGet())(done.incrementAndGet())
+
+        assert(runs.get === 1)
+        assert(done.get === 1)
+
+        // Timing out after the request ran doesn't wait
+        assert(run.cancel(0))
+    }
+
+    @Test def timeoutBeforeStart(): Unit = {
+        val run = new AsyncRequestRun
+        val runs = new AtomicInteger
+
+        // Keep the executor busy so that the request is queued
+        val blocker = new CountDownLatch(1)
+        executor.submit(new Runnable { def run() = blocker.await() })
+        run.submit(executor)(run.run(runs.incrementAndGet())(()))
+
+        assert(run.cancel(0))
+        blocker.countDown()
+
+        executor.shutdown()
+        assert(executor.awaitTermination(10, TimeUnit.SECONDS))
+        assert(runs.get === 0)
+    }
+
+    @Test def timeoutWhileRunning(): Unit = {
+        val run = new AsyncRequestRun
+        val pipelineContext = new PipelineContext
+        val started = new CountDownLatch(1)
+        val interrupted = new CountDownLatch(1)
+
+        run.submit(executor) {
+            run.run {
+                run.pipelineContextCreated(pipelineContext)
+                started.countDown()
+                try Thread.sleep(60000)
+                catch { case e: InterruptedException ⇒ interrupted.countDown() }
+            } (())
+        }
+
+        started.await()
+
+        // The request is interrupted and stops before the wait is over
+        assert(run.cancel(10000))
+        assert(pipelineContext.isCancelled)
+        assert(interrupted.getCount === 0)
+    }
+
+    @Test def boundedWaitForRequestWhichDoesNotStop(): Unit = {
+        val run = new AsyncRequestRun
+        val started = new CountDownLatch(1)
+        val release = new CountDownLatch(1)
+
+        run.submit(executor) {
+            run.run {
+                started.countDown()
+                // Ignore interruptions, like a request blocked in I/O which can't be interrupted
+                while (release.getCount > 0)
+                    try release.await()
+                    catch { case e: InterruptedException ⇒ }
+            } (())
+        }
+
+        started.await()
+
+        val start = System.currentTimeMillis
+        assert(! run.cancel(100))
+        assert(System.currentTimeMillis - start < 10000)
+
+        release.countDown()
+    }
+}
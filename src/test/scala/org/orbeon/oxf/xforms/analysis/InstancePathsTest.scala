@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import collection.mutable
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.{Assume, Test}
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.oxf.xforms.xbl.Scope
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+
+class InstancePathsTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private def pathSet(table: InstancePaths, paths: (String, String)*) = {
+        val builder = new PathSet.Builder(table)
+        for ((instance, path) ← paths)
+            builder += (instance, path)
+        builder.result
+    }
+
+    @Test def internPaths() {
+        val table = new InstancePaths
+
+        val id1 = table.intern("i1", "1/2/@3")
+        val id2 = table.intern("i1", "1/2")
+        val id3 = table.intern("i2", "1/2")
+        val id4 = table.intern("i1", "")
+
+        assert(Set(id1, id2, id3, id4).size === 4)
+        assert(table.intern("i1", "1/2/@3") === id1)
+        assert(table.size === 4)
+
+        assert(table.find("i1", "1/2") === id2)
+        assert(table.find("i1", "1") === InstancePaths.NoId)
+        assert(table.find("i3", "1/2") === InstancePaths.NoId)
+
+        assert(table.instance(id3) === "i2")
+        assert(table.path(id1) === "1/2/@3")
+        assert(table.path(id4) === "")
+    }
+
+    @Test def ancestorOrSelfIds() {
+        val table = new InstancePaths
+
+        val root  = table.intern("i1", "")
+        val child = table.intern("i1", "1/2")
+        val attr  = table.intern("i1", "1/2/@3")
+        table.intern("i1", "1/4")
+
+        def ids(steps: String*) = {
+            val result = mutable.ListBuffer[Int]()
+            table.foreachAncestorOrSelf("i1", steps)(result += _)
+            result.toList
+        }
+
+        assert(ids("1", "2", "@3") === List(root, child, attr))
+        assert(ids("1", "2", "5") === List(root, child))
+        assert(ids("6") === List(root))
+    }
+
+    @Test def pathSets() {
+        val table = new InstancePaths
+
+        val set1 = pathSet(table, "i1" → "1", "i2" → "1", "i1" → "2")
+        val set2 = pathSet(table, "i1" → "1", "i2" → "1", "i1" → "2")
+        val set3 = pathSet(table, "i2" → "3")
+
+        // Identical sets are shared
+        assert(set1 eq set2)
+
+        // Paths are grouped by instance
+        assert(set1.paths === Seq("i1" → "1", "i1" → "2", "i2" → "1"))
+        assert(set1.instances === Seq("i1", "i2"))
+
+        val combined = set1 combine set3
+        assert(combined.paths === Seq("i1" → "1", "i1" → "2", "i2" → "1", "i2" → "3"))
+        assert((set1 combine PathSet.Empty) eq set1)
+        assert((PathSet.Empty combine set1) eq set1)
+
+        val changeset = new Changeset
+        assert(! combined.intersects(changeset))
+        changeset += (table, table.find("i2", "3"))
+        assert(! set1.intersects(changeset))
+        assert(combined.intersects(changeset))
+        assert(! PathSet.Empty.intersects(changeset))
+    }
+
+    @Test def changesetsPerTable() {
+        val table1 = new InstancePaths
+        val table2 = new InstancePaths
+
+        val set1 = pathSet(table1, "i1" → "1")
+        val set2 = pathSet(table2, "i1" → "1")
+
+        // The same path has an id in each table, and a change is only seen through the table it is recorded for
+        val changeset = new Changeset
+        changeset += (table2, table2.find("i1", "1"))
+        assert(! set1.intersects(changeset))
+        assert(set2.intersects(changeset))
+
+        changeset.clear()
+        assert(changeset.isEmpty)
+        assert(! set2.intersects(changeset))
+    }
+
+    private def form(instanceId: String, ref: String): JDocument =
+        <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                 xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+            <xh:head>
+                <xf:model id={instanceId + "-model"} xxf:xpath-analysis="true">
+                    <xf:instance id={instanceId}>
+                        <form><a/><b/><c/></form>
+                    </xf:instance>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:input id={instanceId + "-input"} ref={ref}/>
+            </xh:body>
+        </xh:html>
+
+    @Test def nestedPartAfterTopLevelAnalysis() {
+        Assume.assumeTrue(Version.isPE) // XPath analysis is a PE feature
+
+        ResourceManagerTestBase.staticSetup()
+
+        val (_, staticState) = XFormsStaticStateImpl.createFromDocument(form("top", "a"))
+        val topLevelPart = staticState.topLevelPart
+        val topLevelPaths = topLevelPart.instancePaths
+        val topLevelSize = topLevelPaths.size
+        assert(topLevelSize > 0)
+
+        // Create a nested part, as xxf:dynamic does at runtime
+        val (_, nestedPart) =
+            XFormsStaticStateImpl.createPart(staticState, topLevelPart, form("nested", "b/following-sibling::c"), new Scope(topLevelPart.startScope, "dynamic"))
+
+        // The nested part has its own paths, and the table of the top-level part is unchanged
+        assert(nestedPart.instancePaths ne topLevelPaths)
+        assert(nestedPart.instancePaths.size > 0)
+        assert(topLevelPaths.size === topLevelSize)
+    }
+}
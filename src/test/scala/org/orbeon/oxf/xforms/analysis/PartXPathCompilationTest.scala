@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.{After, Assume, Test}
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.oxf.xml.XMLUtils
+import org.orbeon.oxf.xml.dom4j.Dom4jUtils
+import org.scalatest.junit.AssertionsForJUnit
+
+class PartXPathCompilationTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    @After def shutdown(): Unit =
+        PartXPathCompilation.shutdown()
+
+    private def form: JDocument =
+        <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                 xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xs="http://www.w3.org/2001/XMLSchema"
+                 xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+            <xh:head>
+                <xf:model id="model" xxf:xpath-analysis="true">
+                    <xf:instance id="instance">
+                        <form>
+                            <lang>en</lang>
+                            { 1 to 20 map (i ⇒ <field><value>{i}</value><label lang="en">Label {i}</label></field>) }
+                        </form>
+                    </xf:instance>
+                    <xf:bind ref="field/value" constraint=". castable as xs:integer"/>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:var name="lang" value="lang"/>
+                <xf:repeat id="fields" ref="field">
+                    <xf:var name="position" value="position()"/>
+                    <xf:input id="value" ref="value">
+                        <xf:label ref="../label[@lang = $lang]"/>
+                    </xf:input>
+                    <xf:output id="double" value="value * 2"/>
+                    <xf:output id="position" value="concat($position, ' of ', count(../field))"/>
+                </xf:repeat>
+                { 1 to 20 map (i ⇒ <xf:output id={"total-" + i} value={"sum(field[position() le " + i + "]/value)"}/>) }
+            </xh:body>
+        </xh:html>
+
+    // Static analysis of the form, as XML
+    private def analysis(threads: Int) =
+        PartXPathCompilation.threadsOverride.withValue(threads) {
+            val (_, staticState) = XFormsStaticStateImpl.createFromDocument(form)
+            Dom4jUtils.domToString(XMLUtils.createDocument(staticState.topLevelPart.asInstanceOf[PartAnalysisImpl]))
+        }
+
+    @Test def sameAnalysisAsSequential(): Unit = {
+        Assume.assumeTrue(Version.isPE) // XPath analysis is a PE feature
+
+        ResourceManagerTestBase.staticSetup()
+
+        val sequential = analysis(1)
+        assert(sequential.nonEmpty)
+
+        for (_ ← 1 to 3)
+            assert(analysis(4) === sequential)
+    }
+
+    @Test def analysisAfterShutdown(): Unit = {
+        Assume.assumeTrue(Version.isPE)
+
+        ResourceManagerTestBase.staticSetup()
+
+        val sequential = analysis(1)
+
+        // A new pool is created after the previous one is shut down
+        assert(analysis(4) === sequential)
+        PartXPathCompilation.shutdown()
+        assert(analysis(4) === sequential)
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.analysis
+
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.{Assume, Test}
+import org.orbeon.oxf.common.Version
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.oxf.xforms.analysis.controls.SelectionControlTrait
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+import xml.Elem
+
+class SharedItemsetsTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private def form(enabled: Boolean, itemset: Elem): JDocument =
+        <xh:html xmlns:xh="http://www.w3.org/1999/xhtml"
+                 xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+            <xh:head>
+                <xf:model id="model" xxf:xpath-analysis="true" xxf:cache.shared-itemsets={enabled.toString}>
+                    <xf:instance id="instance">
+                        <value/>
+                    </xf:instance>
+                    <!-- Not loaded, as only the static state is created -->
+                    <xf:instance id="countries" src="oxf:/org/orbeon/oxf/xforms/analysis/countries.xml" xxf:readonly="true" xxf:cache="true"/>
+                    <xf:instance id="mutable">
+                        <countries><country><name>Switzerland</name><code>ch</code></country></countries>
+                    </xf:instance>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:var name="prefix" value="'c'"/>
+                <xf:select1 id="select" ref="instance('instance')">
+                    { itemset }
+                </xf:select1>
+            </xh:body>
+        </xh:html>
+
+    private def sharedInstances(enabled: Boolean, itemset: Elem) = {
+        val (_, staticState) = XFormsStaticStateImpl.createFromDocument(form(enabled, itemset))
+        staticState.topLevelPart.getControlAnalysis("select").asInstanceOf[SelectionControlTrait].sharedItemsetInstances
+    }
+
+    private def itemset(label: Elem, value: String = "code", ref: String = "instance('countries')/country") =
+        <xf:itemset ref={ref} xmlns:xf="http://www.w3.org/2002/xforms">
+            { label }
+            <xf:value ref={value}/>
+        </xf:itemset>
+
+    private def label(ref: String) =
+        <xf:label ref={ref} xmlns:xf="http://www.w3.org/2002/xforms"/>
+
+    @Test def sharedWhenOnlyDependingOnCachedInstances(): Unit = {
+        Assume.assumeTrue(Version.isPE) // XPath analysis is a PE feature
+
+        ResourceManagerTestBase.staticSetup()
+
+        assert(sharedInstances(enabled = true, itemset(label("name"))) === Some(Set("countries")))
+        assert(sharedInstances(enabled = true, itemset(label("upper-case(name)"), value = "concat(code, '')")) === Some(Set("countries")))
+
+        // Disabled by default
+        assert(sharedInstances(enabled = false, itemset(label("name"))) === None)
+    }
+
+    @Test def notSharedWhenDependingOnContext(): Unit = {
+        Assume.assumeTrue(Version.isPE)
+
+        ResourceManagerTestBase.staticSetup()
+
+        // Functions depending on the user, request, language or time
+        for (ref ← Seq(
+                "if (xxf:is-user-in-role('admin')) then name else code",
+                "concat(name, xxf:get-request-parameter('suffix'))",
+                "concat(name, xxf:get-session-attribute('suffix'))",
+                "concat(name, xxf:property('suffix'))",
+                "name[@lang = xxf:lang()]",
+                "concat(name, current-dateTime())"))
+            assert(sharedInstances(enabled = true, itemset(label(ref))) === None, ref)
+
+        // Variables
+        assert(sharedInstances(enabled = true, itemset(label("concat($prefix, name)"))) === None)
+
+        // AVTs
+        assert(sharedInstances(enabled = true, itemset(<xf:label class="{xxf:lang()}" ref="name" xmlns:xf="http://www.w3.org/2002/xforms"/>)) === None)
+
+        // Instance which is not cached and readonly
+        assert(sharedInstances(enabled = true, itemset(label("name"), ref = "instance('mutable')/country")) === None)
+    }
+}
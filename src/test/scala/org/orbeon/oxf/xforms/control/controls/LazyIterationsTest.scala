@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.control.controls
+
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.Test
+import org.orbeon.oxf.test.DocumentTestBase
+import org.orbeon.oxf.xforms.action.XFormsAPI._
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+
+class LazyIterationsTest extends DocumentTestBase with AssertionsForJUnit {
+
+    private val RepeatId = "my-repeat"
+
+    private def lazyRepeatDocument(lazyIterations: Int, startIndex: Int, nonRelevantRow: Int = 0): JDocument =
+        <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xh="http://www.w3.org/1999/xhtml"
+                 xmlns:xxf="http://orbeon.org/oxf/xml/xforms">
+            <xh:head>
+                <xf:model>
+                    <xf:instance id="instance">
+                        <rows>{ 1 to 6 map (i ⇒ <row>{i}</row>) }</rows>
+                    </xf:instance>
+                    <xf:bind ref={"row[. = " + nonRelevantRow + "]"} relevant="false()"/>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:repeat id={RepeatId} ref="row" startindex={startIndex.toString} xxf:lazy-iterations={lazyIterations.toString}>
+                    <xf:input id="my-input" ref="."/>
+                </xf:repeat>
+            </xh:body>
+        </xh:html>
+
+    private def repeat = getObject(RepeatId).asInstanceOf[XFormsRepeatControl]
+
+    // Iterations which have their subtree of controls
+    private def materialized =
+        repeat.children filter (_.materialized) map (_.iterationIndex)
+
+    private def hasInput(iterationIndex: Int) =
+        getObject("my-input⊙" + iterationIndex) ne null
+
+    @Test def firstIterationsAndStartIndex(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 2, startIndex = 4))) {
+            assert(repeat.getIndex === 4)
+            assert(materialized === Seq(1, 2, 4))
+            assert((1 to 6 map hasInput) === Seq(true, true, false, true, false, false))
+
+            // Placeholders are relevant like other iterations
+            assert(isRelevant("my-repeat~iteration⊙3"))
+            assert(isRelevant("my-repeat~iteration⊙4"))
+        }
+
+    @Test def placeholderRelevanceFollowsBinding(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 1, startIndex = 1, nonRelevantRow = 5))) {
+            assert(materialized === Seq(1))
+            assert(isRelevant("my-repeat~iteration⊙4"))
+            assert(! isRelevant("my-repeat~iteration⊙5"))
+
+            // Building the iteration doesn't change its relevance
+            repeat.loadIterations(Seq(4, 5))
+            assert(materialized === Seq(1, 4, 5))
+            assert(isRelevant("my-repeat~iteration⊙4"))
+            assert(! isRelevant("my-repeat~iteration⊙5"))
+            assert(! isRelevant("my-input⊙5"))
+        }
+
+    @Test def noEagerIterations(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 0, startIndex = 3))) {
+            assert(repeat.getIndex === 3)
+            assert(materialized === Seq(3))
+            assert(getControlValue("my-input⊙3") === "3")
+        }
+
+    @Test def materializeOnSetindex(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 1, startIndex = 1))) {
+            assert(materialized === Seq(1))
+
+            setindex(RepeatId, 5)
+            assert(repeat.getIndex === 5)
+            assert(materialized === Seq(1, 5))
+            assert(isRelevant("my-repeat~iteration⊙5"))
+            assert(getControlValue("my-input⊙5") === "5")
+        }
+
+    @Test def materializeForEventTarget(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 1, startIndex = 1))) {
+            assert(! hasInput(6))
+
+            XFormsRepeatControl.materializeIterationsFor(document, "my-input⊙6")
+            assert(materialized === Seq(1, 6))
+            assert(getControlValue("my-input⊙6") === "6")
+
+            // The index doesn't change
+            assert(repeat.getIndex === 1)
+        }
+
+    @Test def materializeForFocus(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 1, startIndex = 1))) {
+            // The client focuses the control, which doesn't exist yet
+            XFormsRepeatControl.materializeIterationsFor(document, "my-input⊙3")
+            dispatch(name = "xforms-focus", targetId = "my-input⊙3")
+
+            assert(materialized === Seq(1, 3))
+            assert(repeat.getIndex === 3)
+        }
+
+    @Test def materializeVisibleIterations(): Unit =
+        withActionAndDoc(setupDocument(lazyRepeatDocument(lazyIterations = 1, startIndex = 1))) {
+            // Iterations which became visible on the client, including out of range and already built ones
+            dispatch(name = "xxforms-load-iterations", targetId = RepeatId, properties = Map("iterations" → Some("1 3 4 9")))
+
+            assert(materialized === Seq(1, 3, 4))
+            assert((3 to 4 map (i ⇒ getControlValue("my-input⊙" + i))) === Seq("3", "4"))
+
+            // The index doesn't change
+            assert(repeat.getIndex === 1)
+        }
+}
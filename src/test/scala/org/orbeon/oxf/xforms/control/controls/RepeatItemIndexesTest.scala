@@ -0,0 +1,101 @@
+/**
+ *  Copyright (C) 2013 Orbeon, Inc.
+ *
+ *  This program is free software; you can redistribute it and/or modify it under the terms of the
+ *  GNU Lesser General Public License as published by the Free Software Foundation; either version
+ *  2.1 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ *  without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *  See the GNU Lesser General Public License for more details.
+ *
+ *  The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.control.controls
+
+import java.util.{IdentityHashMap ⇒ JIdentityHashMap}
+import org.junit.Test
+import org.orbeon.oxf.util.LoggerFactory
+import org.orbeon.oxf.xforms.XFormsUtils
+import org.orbeon.saxon.om.{Item, NodeInfo}
+import org.orbeon.saxon.value.{Int64Value, StringValue}
+import org.orbeon.scaxon.XML._
+import org.scalatest.junit.AssertionsForJUnit
+
+class RepeatItemIndexesTest extends AssertionsForJUnit {
+
+    private val Logger = LoggerFactory.createLogger(classOf[RepeatItemIndexesTest])
+
+    private val LargeRowCount = 10000
+
+    private def rows(count: Int): Seq[Item] = {
+        val root: NodeInfo = <rows>{ 1 to count map (i ⇒ <row>{i}</row>) }</rows>
+        (root \ "row").toIndexedSeq
+    }
+
+    // What XFormsRepeatControl used to do
+    private def naiveItemIndexes(items1: Seq[Item], items2: Seq[Item]) =
+        items1 map (item ⇒ items2 indexWhere (XFormsUtils.compareItems(_, item))) toArray
+
+    // Same result in linear time, for sequences of nodes, which are compared by identity
+    private def identityItemIndexes(items1: Seq[Item], items2: Seq[Item]) = {
+        val positions = new JIdentityHashMap[Item, Int]
+        for ((item, index) ← items2.zipWithIndex.reverse)
+            positions.put(item, index)
+        items1 map (item ⇒ if (positions.containsKey(item)) positions.get(item) else -1)
+    }
+
+    // Scenarios of changes to a repeat sequence: (name, old items, new items)
+    private def scenarios(count: Int) = {
+        val old = rows(count)
+        val other = rows(count)
+
+        Seq(
+            ("insert",       old, (old take count / 2) ++ (other take 1) ++ (old drop count / 2)),
+            ("delete",       old, (old take count / 2) ++ (old drop count / 2 + 1)),
+            ("move",         old, (old take 10) ++ Seq(old(count - 1)) ++ (old drop 10 take count - 11)),
+            ("full-replace", old, other)
+        )
+    }
+
+    @Test def sameAsNaiveIndexes(): Unit = {
+
+        // Smaller sequences, as the naive search is quadratic
+        for ((name, oldItems, newItems) ← scenarios(1000)) {
+            assert(XFormsRepeatControl.findItemIndexes(newItems, oldItems).toSeq === naiveItemIndexes(newItems, oldItems).toSeq, name)
+            assert(XFormsRepeatControl.findItemIndexes(oldItems, newItems).toSeq === naiveItemIndexes(oldItems, newItems).toSeq, name)
+        }
+    }
+
+    @Test def atomicValues(): Unit = {
+
+        val items1 = Seq[Item](new StringValue("a"), new StringValue("b"), new Int64Value(1), null)
+        val items2 = Seq[Item](new Int64Value(1), new StringValue("b"), new StringValue("b"), null)
+
+        assert(XFormsRepeatControl.findItemIndexes(items1, items2).toSeq === Seq(-1, 1, 0, 3))
+        assert(XFormsRepeatControl.findItemIndexes(items1, items2).toSeq === naiveItemIndexes(items1, items2).toSeq)
+    }
+
+    // Both directions of the reconciliation done upon repeat update, as updateIterations does, on large sequences
+    // The time is logged for information only, as it depends on the machine running the test.
+    @Test def largeSequences(): Unit = {
+
+        def time[T](body: ⇒ T) = {
+            val start = System.nanoTime
+            val result = body
+            (result, (System.nanoTime - start) / 1000000)
+        }
+
+        for ((name, oldItems, newItems) ← scenarios(LargeRowCount)) {
+
+            val ((newToOld, oldToNew), ms) = time {
+                (XFormsRepeatControl.findItemIndexes(newItems, oldItems), XFormsRepeatControl.findItemIndexes(oldItems, newItems))
+            }
+
+            Logger.info("repeat reconciliation of " + LargeRowCount + " rows, " + name + ": " + ms + " ms")
+
+            assert(newToOld.toSeq === identityItemIndexes(newItems, oldItems), name)
+            assert(oldToNew.toSeq === identityItemIndexes(oldItems, newItems), name)
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.processor
+
+import java.io.{FileOutputStream, File}
+import java.net.URI
+import java.util.concurrent.{TimeUnit, Executors, Callable, CountDownLatch}
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.util.ScalaUtils._
+import org.orbeon.oxf.xforms.processor.XFormsResourceServer.DynamicResource
+import org.scalatest.junit.AssertionsForJUnit
+
+class DynamicResourceCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    private def resource(path: String, lastModified: Long = 1L) =
+        DynamicResource(new URI("http://example.org/" + path), None, None, -1, lastModified, Map())
+
+    // Fetch function which creates a file of the given size and counts fetches
+    private class Fetcher(size: Int) extends (DynamicResource ⇒ Option[File]) {
+        val count = new AtomicInteger
+        def apply(resource: DynamicResource) = {
+            count.incrementAndGet()
+            val file = File.createTempFile("dynamic-resource-cache-test-", ".tmp")
+            useAndClose(new FileOutputStream(file))(_.write(new Array[Byte](size)))
+            Some(file)
+        }
+    }
+
+    private def fileOf(cache: DynamicResourceCache, resource: DynamicResource) =
+        cache.withFile(resource)(identity).get
+
+    @Test def hitsAndLeastRecentlyUsedEviction(): Unit = {
+        val fetcher = new Fetcher(10)
+        val cache = new DynamicResourceCache(25, 60000, fetcher)
+
+        val a = fileOf(cache, resource("a"))
+        val b = fileOf(cache, resource("b"))
+        assert(fetcher.count.get === 2)
+
+        // Hit, which also makes a the most recently used entry
+        assert(fileOf(cache, resource("a")) === a)
+        assert(fetcher.count.get === 2)
+
+        // Adding c exceeds the maximum, so b is evicted
+        val c = fileOf(cache, resource("c"))
+        assert(cache.cachedBytes === 20)
+        assert(a.exists && ! b.exists && c.exists)
+
+        fileOf(cache, resource("b"))
+        assert(fetcher.count.get === 4)
+    }
+
+    @Test def expiry(): Unit = {
+        val fetcher = new Fetcher(10)
+        val cache = new DynamicResourceCache(100, 0, fetcher)
+
+        val first = fileOf(cache, resource("a", lastModified = 0))
+        val second = fileOf(cache, resource("a", lastModified = 0))
+
+        assert(fetcher.count.get === 2)
+        assert(! first.exists && second.exists)
+        assert(cache.cachedBytes === 10)
+
+        // The remote resource can change after its last modified date was known, so the entry expires as well
+        fileOf(cache, resource("b"))
+        fileOf(cache, resource("b"))
+        assert(fetcher.count.get === 4)
+    }
+
+    @Test def unsuccessfulResponseNotCached(): Unit = {
+        val count = new AtomicInteger
+        val cache = new DynamicResourceCache(100, 60000, _ ⇒ { count.incrementAndGet(); None })
+
+        assert(cache.withFile(resource("a"))(identity) === None)
+        assert(cache.withFile(resource("a"))(identity) === None)
+        assert(count.get === 2)
+        assert(cache.cachedBytes === 0)
+    }
+
+    @Test def fileInUseIsNotDeleted(): Unit = {
+        val fetcher = new Fetcher(10)
+        val cache = new DynamicResourceCache(15, 60000, fetcher)
+
+        cache.withFile(resource("a")) { a ⇒
+            // Evict a while it is being served
+            fileOf(cache, resource("b"))
+            assert(a.exists)
+            assert(cache.cachedBytes === 10)
+
+            // A new request for a doesn't reuse the evicted entry
+            val newA = fileOf(cache, resource("a"))
+            assert(newA != a)
+            assert(a.exists)
+        }
+
+        assert(fetcher.count.get === 3)
+        assert(cache.cachedBytes === 10)
+    }
+
+    @Test def fileDeletedAfterRelease(): Unit = {
+        val fetcher = new Fetcher(10)
+        val cache = new DynamicResourceCache(15, 60000, fetcher)
+
+        val a = cache.withFile(resource("a")) { a ⇒
+            fileOf(cache, resource("b"))
+            assert(a.exists)
+            a
+        }.get
+
+        assert(! a.exists)
+    }
+
+    @Test def concurrentMissesFetchOnce(): Unit = {
+
+        val started = new CountDownLatch(1)
+        val proceed = new CountDownLatch(1)
+
+        val fetcher = new Fetcher(10) {
+            override def apply(resource: DynamicResource) = {
+                started.countDown()
+                proceed.await()
+                super.apply(resource)
+            }
+        }
+
+        val cache = new DynamicResourceCache(100, 60000, fetcher)
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val futures =
+                for (i ← 1 to 4)
+                yield executor.submit(new Callable[File] { def call() = fileOf(cache, resource("a")) })
+
+            // Let the other requests wait for the fetch in progress before completing it
+            started.await()
+            Thread.sleep(100)
+            proceed.countDown()
+
+            val files = futures map (_.get(10, TimeUnit.SECONDS))
+            assert(files.distinct.size === 1)
+            assert(fetcher.count.get === 1)
+        } finally
+            executor.shutdownNow()
+    }
+}
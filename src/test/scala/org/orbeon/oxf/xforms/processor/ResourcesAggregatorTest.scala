@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.processor
+
+import org.junit.Test
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.scalatest.junit.AssertionsForJUnit
+import ResourcesAggregator._
+
+class ResourcesAggregatorTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    @Test def resourcesParameter() {
+
+        val css  = Seq("/css1.css", "/css2.css")
+        val hash = computeResourcesHash(css)
+
+        assert(encodeResources(css) === "008uLjbUAxI1-kDCCMQCAA")
+
+        // Round trip
+        assert(decodeResources(encodeResources(css), hash, isCSS = true) === Some(css))
+
+        // Paths must match the hash and the extension
+        assert(decodeResources(encodeResources(Seq("/css1.css")), hash, isCSS = true) === None)
+        assert(decodeResources(encodeResources(css), hash, isCSS = false) === None)
+
+        val other = Seq("/config/properties-local.xml")
+        assert(decodeResources(encodeResources(other), computeResourcesHash(other), isCSS = true) === None)
+
+        // Invalid encoding
+        assert(decodeResources("not-base64!", hash, isCSS = true) === None)
+    }
+}
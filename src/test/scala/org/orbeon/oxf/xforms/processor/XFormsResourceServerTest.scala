@@ -29,4 +29,46 @@ class XFormsResourceServerTest extends ResourceManagerTestBase with AssertionsFo
         assert("/xforms-server/dynamic/1dd011d51abc6f3d9003fabd2f5561943d066c73" ===
             XFormsResourceServer.proxyURI("http://example.org/foo/bar.png", None, None, -1, Map(), None)(indentedLogger))
     }
-}
\ No newline at end of file
+
+    @Test def acceptsGzip() {
+        assert(! XFormsResourceServer.acceptsGzip(null))
+        assert(! XFormsResourceServer.acceptsGzip(Array("identity")))
+        assert(XFormsResourceServer.acceptsGzip(Array("gzip, deflate")))
+        assert(XFormsResourceServer.acceptsGzip(Array("deflate", "GZIP;q=0.5")))
+        assert(XFormsResourceServer.acceptsGzip(Array("x-gzip")))
+        assert(! XFormsResourceServer.acceptsGzip(Array("gzip;q=0, deflate")))
+    }
+
+    @Test def matchesETag() {
+        val etag = XFormsResourceServer.entityTag("abc", gzipped = true)
+        assert(etag === "\"abc-gzip\"")
+
+        assert(! XFormsResourceServer.matchesETag(null, etag))
+        assert(XFormsResourceServer.matchesETag(Array("\"abc-gzip\""), etag))
+        assert(XFormsResourceServer.matchesETag(Array("\"def\", W/\"abc-gzip\""), etag))
+        assert(XFormsResourceServer.matchesETag(Array("*"), etag))
+        assert(! XFormsResourceServer.matchesETag(Array("\"abc\""), etag))
+    }
+
+    @Test def parseRange() {
+        import XFormsResourceServer.parseRange
+
+        // Whole content
+        assert(parseRange(None, 100) === None)
+        assert(parseRange(Some("bytes=0-10,20-30"), 100) === None)
+        assert(parseRange(Some("bytes=10-5"), 100) === None)
+        assert(parseRange(Some("items=0-10"), 100) === None)
+
+        // Satisfiable ranges
+        assert(parseRange(Some("bytes=0-9"), 100) === Some(Some((0L, 9L))))
+        assert(parseRange(Some("bytes=90-"), 100) === Some(Some((90L, 99L))))
+        assert(parseRange(Some("bytes=90-200"), 100) === Some(Some((90L, 99L))))
+        assert(parseRange(Some("bytes=-10"), 100) === Some(Some((90L, 99L))))
+        assert(parseRange(Some("bytes=-200"), 100) === Some(Some((0L, 99L))))
+
+        // Unsatisfiable ranges
+        assert(parseRange(Some("bytes=100-"), 100) === Some(None))
+        assert(parseRange(Some("bytes=100-110"), 100) === Some(None))
+        assert(parseRange(Some("bytes=-0"), 100) === Some(None))
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.state
+
+import java.io.File
+import org.dom4j.{Document ⇒ JDocument}
+import org.junit.{After, Before, Test}
+import org.orbeon.oxf.test.ResourceManagerTestBase
+import org.orbeon.oxf.xforms.XFormsStaticStateImpl
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+
+class XFormsStaticStatePersistentCacheTest extends ResourceManagerTestBase with AssertionsForJUnit {
+
+    import XFormsStaticStatePersistentCache._
+
+    private val Configuration      = "configuration"
+    private val OtherConfiguration = "other-configuration"
+
+    private var dir: File = _
+
+    @Before def createDirectory(): Unit = {
+        ResourceManagerTestBase.staticSetup()
+        dir = File.createTempFile("static-state-cache-test-", "")
+        dir.delete()
+        dir.mkdirs()
+    }
+
+    @After def deleteDirectory(): Unit = {
+        Option(dir.listFiles) foreach (_ foreach (_.delete()))
+        dir.delete()
+    }
+
+    private def formDocument(label: String): JDocument =
+        <xh:html xmlns:xf="http://www.w3.org/2002/xforms"
+                 xmlns:xh="http://www.w3.org/1999/xhtml">
+            <xh:head>
+                <xf:model>
+                    <xf:instance id="instance">
+                        <value/>
+                    </xf:instance>
+                </xf:model>
+            </xh:head>
+            <xh:body>
+                <xf:input id="my-input" ref="/value">
+                    <xf:label>{label}</xf:label>
+                </xf:input>
+            </xh:body>
+        </xh:html>
+
+    // Create a static state and store it under the given input digest
+    private def storeForm(label: String, inputDigest: String) = {
+        val (template, staticState) = XFormsStaticStateImpl.createFromDocument(formDocument(label))
+        store(dir, staticState, AnnotatedTemplate(template), inputDigest, Configuration)
+        staticState
+    }
+
+    private def entryFiles = dir.listFiles.toList filter (_.getName.endsWith(".static-state"))
+    private def inputFiles = dir.listFiles.toList filter (_.getName.endsWith(".input"))
+
+    @Test def storeAndLoad(): Unit = {
+        val staticState = storeForm("First", "input1")
+
+        val persisted = find(dir, staticState.digest, Configuration)
+        assert(persisted.isDefined)
+        assert(persisted.get.digest === staticState.digest)
+        assert(persisted.get.encodedState === staticState.encodedState)
+        assert(persisted.get.isUpToDate)
+
+        // Found by input digest as well
+        assert(findByInputDigest(dir, "input1", Configuration) map (_.digest) === Some(staticState.digest))
+        assert(findByInputDigest(dir, "input2", Configuration) === None)
+
+        // The static state created from the entry is the same
+        val restored = persisted.get.staticState
+        assert(restored.digest === staticState.digest)
+        assert(restored.encodedState === staticState.encodedState)
+        assert(restored.topLevelPart.getControlAnalysis("my-input") ne null)
+    }
+
+    @Test def invalidatedByConfiguration(): Unit = {
+        val staticState = storeForm("First", "input1")
+
+        // Outdated entries are removed, as well as the input digests pointing to them
+        assert(findByInputDigest(dir, "input1", OtherConfiguration) === None)
+        assert(entryFiles.isEmpty && inputFiles.isEmpty)
+        assert(find(dir, staticState.digest, Configuration) === None)
+    }
+
+    @Test def invalidatedByBindings(): Unit = {
+        val staticState = storeForm("First", "input1")
+        val persisted = find(dir, staticState.digest, Configuration).get
+
+        assert(! persisted.copy(bindingIncludes = Seq("/xbl/orbeon/does-not-exist/does-not-exist.xbl")).isUpToDate)
+    }
+
+    @Test def removal(): Unit = {
+        val staticState = storeForm("First", "input1")
+
+        remove(dir, staticState.digest)
+        assert(find(dir, staticState.digest, Configuration) === None)
+        assert(findByInputDigest(dir, "input1", Configuration) === None)
+        assert(inputFiles.isEmpty)
+    }
+
+    @Test def pruneLeastRecentlyUsed(): Unit = {
+        val first  = storeForm("First", "input1")
+        val second = storeForm("Second", "input2")
+        val third  = storeForm("Third", "input3")
+
+        // Make the first entry the most recently used
+        for ((file, time) ← entryFiles zip Seq(1000L, 2000L, 3000L))
+            file.setLastModified(time)
+        find(dir, first.digest, Configuration)
+
+        prune(dir, 2)
+        assert(entryFiles.size === 2)
+        assert(inputFiles.size === 2)
+        assert(find(dir, first.digest, Configuration).isDefined)
+        assert(Seq(second, third) count (s ⇒ find(dir, s.digest, Configuration).isDefined) === 1)
+
+        // Nothing to do below the maximum
+        prune(dir, 2)
+        assert(entryFiles.size === 2)
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.submission
+
+import org.apache.commons.io.IOUtils
+import org.junit.Test
+import org.orbeon.oxf.externalcontext.LocalResponse
+import org.scalatest.junit.AssertionsForJUnit
+
+class LocalServletSubmissionTest extends AssertionsForJUnit {
+
+    @Test def localPaths(): Unit = {
+        val localPaths = "/fr/service/ /xforms-server/"
+
+        assert(LocalServletSubmission.hasLocalPathPrefix(localPaths, "/fr/service/persistence/crud/acme/order/data/1/data.xml"))
+        assert(LocalServletSubmission.hasLocalPathPrefix(localPaths, "/xforms-server/dynamic/1"))
+
+        assert(! LocalServletSubmission.hasLocalPathPrefix(localPaths, "/fr/acme/order/new"))
+        assert(! LocalServletSubmission.hasLocalPathPrefix(localPaths, "fr/service/persistence"))
+        assert(! LocalServletSubmission.hasLocalPathPrefix("", "/fr/service/persistence"))
+    }
+
+    @Test def responseCapturesStatusHeadersAndBody(): Unit = {
+        val response = new LocalResponse(null)
+
+        // Nothing written
+        assert(response.status === 200)
+        assert(response.contentType === None)
+        assert(IOUtils.toByteArray(response.getInputStream).isEmpty)
+
+        response.setStatus(201)
+        response.setContentType("application/xml")
+        response.addHeader("X-Test", "1")
+        response.addHeader("x-test", "2")
+        response.getWriter.print("<é/>")
+
+        assert(response.status === 201)
+        assert(response.contentType === Some("application/xml"))
+        assert(response.headers("x-test") === List("1", "2"))
+        assert(response.jHeaders.get("x-test").size === 2)
+
+        // Text written is flushed and encoded as UTF-8
+        assert(IOUtils.toString(response.getInputStream, "utf-8") === "<é/>")
+
+        // Reset drops everything, e.g. when an error page replaces the response
+        response.reset()
+        response.sendError(404)
+        assert(response.status === 404)
+        assert(response.headers.isEmpty)
+        assert(IOUtils.toByteArray(response.getInputStream).isEmpty)
+    }
+}
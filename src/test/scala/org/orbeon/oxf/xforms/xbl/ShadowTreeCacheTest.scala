@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xforms.xbl
+
+import org.dom4j.Element
+import org.junit.Test
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.scalatest.junit.AssertionsForJUnit
+import xml.Elem
+
+class ShadowTreeCacheTest extends AssertionsForJUnit {
+
+    private def bound(e: Elem): Element = elemToDocument(e).getRootElement
+
+    // Generate a tree which copies the given attribute of the bound element, and count generations
+    private class Generator(attName: String) {
+        var count = 0
+        def apply(boundElement: Element) = {
+            count += 1
+            elemToDocument(<div class={boundElement.attributeValue(attName)}/>)
+        }
+    }
+
+    @Test def sharedAcrossIds(): Unit = {
+        val cache = new ShadowTreeCache(10)
+        val generate = new Generator("appearance")
+
+        val e1 = bound(<fr:foo xmlns:fr="http://orbeon.org/oxf/xml/form-runner" id="foo1" appearance="minimal"/>)
+        val e2 = bound(<fr:foo xmlns:fr="http://orbeon.org/oxf/xml/form-runner" id="foo2" appearance="minimal"/>)
+        val e3 = bound(<fr:foo xmlns:fr="http://orbeon.org/oxf/xml/form-runner" id="foo3" appearance="full"/>)
+
+        val tree1 = cache.getOrCreate(e1)(generate(e1))
+        val tree2 = cache.getOrCreate(e2)(generate(e2))
+        val tree3 = cache.getOrCreate(e3)(generate(e3))
+
+        assert(tree1 eq tree2)
+        assert(tree1 ne tree3)
+        assert(generate.count === 2)
+    }
+
+    @Test def notSharedIfUsingId(): Unit = {
+        val cache = new ShadowTreeCache(10)
+        val generate = new Generator("id")
+
+        val e1 = bound(<fr:foo xmlns:fr="http://orbeon.org/oxf/xml/form-runner" id="foo1"/>)
+        val e2 = bound(<fr:foo xmlns:fr="http://orbeon.org/oxf/xml/form-runner" id="foo2"/>)
+
+        val tree1 = cache.getOrCreate(e1)(generate(e1))
+        val tree2 = cache.getOrCreate(e2)(generate(e2))
+
+        assert(tree1.getRootElement.attributeValue("class") === "foo1")
+        assert(tree2.getRootElement.attributeValue("class") === "foo2")
+
+        // Same id
+        assert(cache.getOrCreate(e1)(generate(e1)) eq tree1)
+        assert(generate.count === 2)
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2013 Orbeon, Inc.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU Lesser General Public License as published by the Free Software Foundation; either version
+ * 2.1 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Lesser General Public License for more details.
+ *
+ * The full text of the license is available at http://www.gnu.org/copyleft/lesser.html
+ */
+package org.orbeon.oxf.xml
+
+import collection.JavaConverters._
+import java.io.{ObjectInputStream, ByteArrayInputStream, ObjectOutputStream, ByteArrayOutputStream}
+import java.util.concurrent.{Callable, Executors}
+import org.dom4j.Document
+import org.junit.Test
+import org.orbeon.oxf.common.OXFException
+import org.orbeon.oxf.pipeline.api.PipelineContext
+import org.orbeon.oxf.xml.Dom4j.elemToDocument
+import org.orbeon.oxf.xml.dom4j.LocationSAXContentHandler
+import org.scalatest.junit.AssertionsForJUnit
+import org.xml.sax.Attributes
+
+class SAXStoreTest extends AssertionsForJUnit {
+
+    // Large enough for all buffers to use several chunks, with text spanning chunk boundaries
+    val largeDoc: Document =
+        <rows xmlns:xf="http://www.w3.org/2002/xforms">{
+            1 to 5000 map { i ⇒
+                <xf:row id={"row" + i} class="row">{ "text " + i + (if (i % 1000 == 0) "x" * 20000 else "") }</xf:row>
+            }
+        }</rows>
+
+    private def serializeDeserialize(saxStore: SAXStore) = {
+        val os = new ByteArrayOutputStream
+        val out = new ObjectOutputStream(os)
+        out.writeObject(saxStore)
+        out.close()
+
+        new ObjectInputStream(new ByteArrayInputStream(os.toByteArray)).readObject().asInstanceOf[SAXStore]
+    }
+
+    @Test def replayLargeDocument() {
+        val saxStore = TransformerUtils.dom4jToSAXStore(largeDoc, false)
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, TransformerUtils.saxStoreToDom4jDocument(saxStore)))
+        assert(saxStore.getAttributesCount === 10000)
+    }
+
+    @Test def serializeLargeDocument() {
+        val saxStore = serializeDeserialize(TransformerUtils.dom4jToSAXStore(largeDoc, false))
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, TransformerUtils.saxStoreToDom4jDocument(saxStore)))
+        assert(saxStore.getAttributesCount === 10000)
+    }
+
+    @Test def marksInLargeDocument() {
+
+        val saxStore = new SAXStore
+        TransformerUtils.writeDom4j(largeDoc, new ForwardingXMLReceiver(saxStore) {
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes) {
+                Option(attributes.getValue("id")) filter (_.endsWith("000")) foreach
+                    (saxStore.getMark(_))
+
+                super.startElement(uri, localname, qName, attributes)
+            }
+        })
+
+        val expectedDocs = 1 to 5 map { i ⇒
+            elemToDocument(<xf:row id={"row" + i * 1000} class="row" xmlns:xf="http://www.w3.org/2002/xforms">{ "text " + i * 1000 + "x" * 20000 }</xf:row>)
+        }
+
+        for (store ← Seq(saxStore, serializeDeserialize(saxStore))) {
+            val actualDocs = store.getMarks.asScala map (TransformerUtils.saxStoreMarkToDom4jDocument(_))
+
+            assert(actualDocs.size === expectedDocs.size)
+            for ((expected, actual) ← expectedDocs zip actualDocs)
+                assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(expected, actual))
+        }
+    }
+
+    @Test def namesStoredOnce() {
+        // 5000 elements with 2 attributes each, but names and namespaces are only counted once
+        val saxStore = TransformerUtils.dom4jToSAXStore(largeDoc, false)
+        val textSize = 2 * ((1 to 5000 map (i ⇒ ("text " + i).length)).sum + 5 * 20000)
+        val valuesSize = 2 * (1 to 5000 map (i ⇒ ("row" + i).length + "row".length)).sum
+        val perEventSize = 5000 * 200
+
+        assert(saxStore.getApproximateSize < textSize + valuesSize + perEventSize)
+    }
+
+    @Test def spillToTemporaryFile() {
+
+        val pipelineContext = new PipelineContext
+        val saxStore = new SAXStore
+        saxStore.setSpillThreshold(100 * 1000, pipelineContext)
+        TransformerUtils.writeDom4j(largeDoc, saxStore)
+
+        assert(saxStore.getSpilledSize > 0)
+        assert(saxStore.getApproximateSize > saxStore.getSpilledSize)
+
+        // Replay and serialization read from the temporary file
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, TransformerUtils.saxStoreToDom4jDocument(saxStore)))
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, TransformerUtils.saxStoreToDom4jDocument(serializeDeserialize(saxStore))))
+
+        // The temporary file is gone with the pipeline context
+        pipelineContext.destroy(true)
+        intercept[OXFException] {
+            TransformerUtils.saxStoreToDom4jDocument(saxStore)
+        }
+    }
+
+    @Test def concurrentReplaysOfSpilledStore() {
+
+        val pipelineContext = new PipelineContext
+        val saxStore = new SAXStore
+        saxStore.setSpillThreshold(100 * 1000, pipelineContext)
+        TransformerUtils.writeDom4j(largeDoc, saxStore)
+
+        // Replays read chunks from the temporary file at the same time
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val futures = 1 to 8 map { _ ⇒
+                executor.submit(new Callable[Document] {
+                    def call() = TransformerUtils.saxStoreToDom4jDocument(saxStore)
+                })
+            }
+            for (future ← futures)
+                assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, future.get))
+        } finally {
+            executor.shutdown()
+            pipelineContext.destroy(true)
+        }
+    }
+
+    @Test def deletedDuringReplay() {
+
+        val pipelineContext = new PipelineContext
+        val saxStore = new SAXStore
+        saxStore.setSpillThreshold(100 * 1000, pipelineContext)
+        TransformerUtils.writeDom4j(largeDoc, saxStore)
+
+        // The pipeline context is destroyed while the store is being replayed, as can happen from another thread
+        val result = new LocationSAXContentHandler
+        saxStore.replay(new ForwardingXMLReceiver(result) {
+            var destroyed = false
+            override def startElement(uri: String, localname: String, qName: String, attributes: Attributes) {
+                if (! destroyed) {
+                    destroyed = true
+                    pipelineContext.destroy(true)
+                }
+                super.startElement(uri, localname, qName, attributes)
+            }
+        })
+
+        // The replay in progress completes, and the temporary file is only gone afterwards
+        assert(Dom4j.compareDocumentsIgnoreNamespacesInScope(largeDoc, result.getDocument))
+        intercept[OXFException] {
+            TransformerUtils.saxStoreToDom4jDocument(saxStore)
+        }
+    }
+}